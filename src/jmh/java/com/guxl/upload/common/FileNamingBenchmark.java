@@ -0,0 +1,93 @@
+package com.guxl.upload.common;
+
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+
+/**
+ * 生成文件名和随机子目录的基准测试。UUID.randomUUID()使用共享的SecureRandom，多线程版本用于观察其竞争；
+ * UuidFileIdGenerator和UlidFileIdGenerator使用线程独享的状态，多线程时的耗时应与单线程相同。
+ * @author xiangligu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FileNamingBenchmark {
+
+	private ShardLayout shardLayout = new HashShardLayout(1, 2);
+	private String fileName = UUID.randomUUID().toString();
+	private FileIdGenerator uuidGenerator = new UuidFileIdGenerator();
+	private FileIdGenerator ulidGenerator = new UlidFileIdGenerator();
+	private ShardLayout timeShardLayout = new TimeShardLayout(ChronoUnit.DAYS, ZoneId.systemDefault(), this.shardLayout);
+	private String ulidFileName = this.ulidGenerator.nextId();
+
+
+	@Benchmark
+	public String randomUuid() {
+		return UUID.randomUUID().toString();
+	}
+
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String randomUuidContended() {
+		return UUID.randomUUID().toString();
+	}
+
+
+	@Benchmark
+	public String uuidGenerator() {
+		return this.uuidGenerator.nextId();
+	}
+
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String uuidGeneratorContended() {
+		return this.uuidGenerator.nextId();
+	}
+
+
+	@Benchmark
+	public String ulidGenerator() {
+		return this.ulidGenerator.nextId();
+	}
+
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String ulidGeneratorContended() {
+		return this.ulidGenerator.nextId();
+	}
+
+
+	@Benchmark
+	public String timeShardSubDir() {
+		return this.timeShardLayout.getSubDir(this.ulidFileName);
+	}
+
+
+	@Benchmark
+	public String shardSubDir() {
+		return this.shardLayout.getSubDir(this.fileName);
+	}
+
+
+	//SimpleUploadManager.saveFile(MultipartFile)中生成文件名和子目录的完整过程
+	@Benchmark
+	public String randomUuidAndShardSubDir() {
+		return this.shardLayout.getSubDir(UUID.randomUUID().toString());
+	}
+
+}
@@ -0,0 +1,66 @@
+package com.guxl.upload.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * FileSystemUtil中每次保存文件都会调用的路径处理函数的基准测试。配合gc profiler，gc.alloc.rate.norm即为每次调用分配的字节数。
+ * @author xiangligu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FileSystemUtilBenchmark {
+
+	//与SimpleUploadManager拼接出的路径形式相同：fsBasePath + "/" + subDir
+	private String fullPath = "/data/upload/uploaded//ab";
+	private String fullUrlPath = "/upload//ab";
+	private String fileName = "holiday photo.final.jpg";
+	private String shardSubDir = "ab/cd";
+	private String userSubDir = " photos//2016 ";
+
+
+	@Benchmark
+	public String getRegularFullPath() {
+		return FileSystemUtil.getRegularFullPath(this.fullPath);
+	}
+
+
+	@Benchmark
+	public String getRegularFullUrlPath() {
+		return FileSystemUtil.getRegularFullUrlPath(this.fullUrlPath);
+	}
+
+
+	@Benchmark
+	public String getRegularRelativePathRegular() {
+		return FileSystemUtil.getRegularRelativePath(this.shardSubDir);
+	}
+
+
+	@Benchmark
+	public String getRegularRelativePathIrregular() {
+		return FileSystemUtil.getRegularRelativePath(this.userSubDir);
+	}
+
+
+	@Benchmark
+	public String getFileExtent() {
+		return FileSystemUtil.getFileExtent(this.fileName);
+	}
+
+
+	@Benchmark
+	public boolean isMicrosoftWindows() {
+		return FileSystemUtil.isMicrosoftWindows();
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockMultipartFile;
+
+
+/**
+ * SimpleUploadManager.saveFile的端到端基准测试，包括校验、目录准备、写入和生成文件信息，不连接数据库（没有注册监听器）。
+ * <br> saveFileNamed：指定子目录和文件名并覆盖写入，文件数不随调用次数增长；
+ * <br> saveFileGenerated：与上传接口相同，随机生成文件名和子目录，每轮结束后删除保存的文件。
+ * <p> durability参数比较三种持久化级别的开销；GROUP只有在多线程并发保存时才能合并fsync，应以-t 16等参数运行。
+ * @author xiangligu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SaveFileBenchmark {
+
+	@Param({"4096", "262144"})
+	public int fileSize;
+
+	@Param({"NONE", "PER_FILE", "GROUP"})
+	public Durability durability;
+
+	private SimpleUploadManager uploadManager;
+	private MockMultipartFile multipartFile;
+	private Path fsBasePath;
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.fsBasePath = Files.createTempDirectory("SaveFileBenchmark");
+		this.uploadManager = new SimpleUploadManager();
+		this.uploadManager.setFsBasePath(this.fsBasePath.toString());
+		this.uploadManager.setUrlBasePath("/upload/");
+		this.uploadManager.setFileSizeLimit("10Mb");
+		GroupCommitScheduler commitScheduler=new GroupCommitScheduler();
+		UploadedFileWriter fileWriter=new StreamingUploadedFileWriter();
+		fileWriter.setCommitScheduler(commitScheduler);
+		this.uploadManager.setFileWriter(fileWriter);
+		this.uploadManager.setCommitScheduler(commitScheduler);
+		this.uploadManager.setDurability(this.durability);
+		this.uploadManager.precreateShardDirectories();
+		this.multipartFile = new MockMultipartFile("file", "benchmark.jpg", "image/jpeg", new byte[this.fileSize]);
+	}
+
+
+	@TearDown(Level.Iteration)
+	public void deleteSavedFiles() throws IOException {
+		try(Stream<Path> paths=Files.walk(this.fsBasePath)){
+			paths.filter(Files::isRegularFile).forEach(path -> path.toFile().delete());
+		}
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		this.uploadManager.getCommitScheduler().shutdown();
+		try(Stream<Path> paths=Files.walk(this.fsBasePath)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+
+	@Benchmark
+	public UploadedFileInfo saveFileNamed(ThreadName threadName) throws IOException {
+		return this.uploadManager.saveFile(this.multipartFile, "named", threadName.name, true);
+	}
+
+
+	@Benchmark
+	public UploadedFileInfo saveFileGenerated() throws NoSuchAlgorithmException, IOException {
+		return this.uploadManager.saveFile(this.multipartFile);
+	}
+
+
+	//每个线程覆盖写入自己的文件，避免多线程时写同一个文件
+	@State(Scope.Thread)
+	public static class ThreadName {
+		final String name = UUID.randomUUID().toString();
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+
+/**
+ * SimpleUploadManager.saveFile中除写入文件之外的部分（校验、生成文件名和子目录、解析路径、生成文件信息）的基准测试。
+ * 使用不做任何事的UploadedFileWriter，gc.alloc.rate.norm即为保存一个文件时这些步骤分配的内存，应接近返回的UploadedFileInfo本身的大小。
+ * @author xiangligu
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SavePathBenchmark {
+
+	private SimpleUploadManager uploadManager;
+	private MultipartFile multipartFile;
+	private Path fsBasePath;
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.fsBasePath = Files.createTempDirectory("SavePathBenchmark");
+		this.uploadManager = new SimpleUploadManager();
+		this.uploadManager.setFsBasePath(this.fsBasePath.toString());
+		this.uploadManager.setUrlBasePath("/upload/");
+		this.uploadManager.setFileSizeLimit("10Mb");
+		this.uploadManager.setFileWriter(new NoopUploadedFileWriter());
+		this.uploadManager.precreateShardDirectories();
+		this.multipartFile = new MockMultipartFile("file", "holiday photo.jpg", "image/jpeg", new byte[4096]);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		try(Stream<Path> paths=Files.walk(this.fsBasePath)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+
+	@Benchmark
+	public UploadedFileInfo saveFileGenerated() throws NoSuchAlgorithmException, IOException {
+		return this.uploadManager.saveFile(this.multipartFile);
+	}
+
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public UploadedFileInfo saveFileGeneratedContended() throws NoSuchAlgorithmException, IOException {
+		return this.uploadManager.saveFile(this.multipartFile);
+	}
+
+
+	@Benchmark
+	public UploadedFileInfo saveFileNamed() throws IOException {
+		return this.uploadManager.saveFile(this.multipartFile, "named", "holiday", true);
+	}
+
+
+
+	//不访问文件系统的UploadedFileWriter
+	private static class NoopUploadedFileWriter implements UploadedFileWriter {
+
+		@Override
+		public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability) {
+		}
+
+		@Override
+		public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability) {
+			return 0;
+		}
+
+		@Override
+		public void setCommitScheduler(GroupCommitScheduler commitScheduler) {
+		}
+
+		@Override
+		public void removeFile(String pathFileName) {
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockMultipartFile;
+
+
+/**
+ * UploadedFileWriter写入不同大小文件的基准测试，比较simple和streaming两种实现的耗时和每次写入分配的内存。
+ * 每次调用都覆盖写入同一个文件，测试的是写入本身，不包括目录准备。
+ * @author xiangligu
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UploadedFileWriterBenchmark {
+
+	//1Kb、64Kb、1Mb、10Mb、100Mb
+	@Param({"1024", "65536", "1048576", "10485760", "104857600"})
+	public int fileSize;
+
+	@Param({"simple", "streaming"})
+	public String writer;
+
+	private UploadedFileWriter fileWriter;
+	private MockMultipartFile multipartFile;
+	private Path dir;
+	private String pathFileName;
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.fileWriter = "simple".equals(this.writer) ? new SimpleUploadedFileWriter() : new StreamingUploadedFileWriter();
+		byte[] content=new byte[this.fileSize];
+		new Random(this.fileSize).nextBytes(content);
+		this.multipartFile = new MockMultipartFile("file", "benchmark.bin", "application/octet-stream", content);
+		this.dir = Files.createTempDirectory("UploadedFileWriterBenchmark");
+		this.pathFileName = this.dir.resolve("benchmark.bin").toString();
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		this.fileWriter.removeFile(this.pathFileName);
+		Files.deleteIfExists(this.dir);
+	}
+
+
+	@Benchmark
+	public void writeFile() throws IOException {
+		this.fileWriter.writeFile(this.multipartFile, this.pathFileName, true);
+	}
+
+}
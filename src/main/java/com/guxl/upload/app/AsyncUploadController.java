@@ -0,0 +1,76 @@
+package com.guxl.upload.app;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.guxl.upload.common.AsyncUploadManager;
+import com.guxl.upload.common.UploadedFileInfo;
+import com.guxl.upload.common.exception.FileSizeExceedLimitException;
+import com.guxl.upload.common.exception.QuotaExceededException;
+import com.guxl.upload.common.exception.SameFileNameExistException;
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * 异步保存上传文件的controller。返回CompletableFuture使请求进入Servlet 3的异步模式，
+ * 磁盘写入期间web服务器的请求线程被释放，可以处理其他请求。
+ * <p> I/O线程和队列已满时返回503，并通过Retry-After告知客户端多久之后重试。
+ * @author xiangligu
+ *
+ */
+@RestController
+public class AsyncUploadController {
+	
+	@Autowired
+	AsyncUploadManager asyncUploadManager;
+	
+	@Value("${upload.async.retryAfterSeconds:1}")
+	int retryAfterSeconds;
+	
+	
+	@RequestMapping(path="/async-upload", method=RequestMethod.POST)
+	public CompletableFuture<UploadedFileInfo> upload(@RequestParam("file") MultipartFile file,
+			@RequestParam(required=false) String subDir,
+			@RequestParam(required=false) String newFileName,
+			@RequestParam(defaultValue="true") boolean overwrite){
+		if(subDir!=null && newFileName!=null){
+			return this.asyncUploadManager.saveFileAsync(file, subDir, newFileName, overwrite);
+		}
+		return this.asyncUploadManager.saveFileAsync(file);
+	}
+	
+	
+	@ExceptionHandler(UploadQueueFullException.class)
+	public ResponseEntity<String> handleQueueFull(UploadQueueFullException e){
+		HttpHeaders headers=new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(this.retryAfterSeconds));
+		return new ResponseEntity<>(e.getMessage(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+	}
+	
+	@ExceptionHandler(FileSizeExceedLimitException.class)
+	public ResponseEntity<String> handleFileSizeExceedLimit(FileSizeExceedLimitException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.PAYLOAD_TOO_LARGE);
+	}
+	
+	@ExceptionHandler(QuotaExceededException.class)
+	public ResponseEntity<String> handleQuotaExceeded(QuotaExceededException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.INSUFFICIENT_STORAGE);
+	}
+	
+	@ExceptionHandler(SameFileNameExistException.class)
+	public ResponseEntity<String> handleSameFileNameExist(SameFileNameExistException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.CONFLICT);
+	}
+	
+}
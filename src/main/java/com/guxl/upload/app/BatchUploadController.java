@@ -0,0 +1,34 @@
+package com.guxl.upload.app;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.guxl.upload.common.FileSaveResult;
+import com.guxl.upload.common.UploadManager;
+
+
+/**
+ * 批量保存上传文件的controller。一次请求中的多个文件并行写入，返回与请求中文件顺序一致的保存结果列表。
+ * @author xiangligu
+ *
+ */
+@RestController
+public class BatchUploadController {
+	
+	@Autowired
+	UploadManager uploadManager;
+	
+	
+	@RequestMapping(path="/batch-upload", method=RequestMethod.POST)
+	public List<FileSaveResult> upload(@RequestParam("files") List<MultipartFile> files,
+			@RequestParam(required=false) String subDir){
+		return this.uploadManager.saveFiles(files, subDir);
+	}
+	
+}
@@ -0,0 +1,113 @@
+package com.guxl.upload.app;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.guxl.upload.common.ChunkedUploadSession;
+import com.guxl.upload.common.UploadManager;
+import com.guxl.upload.common.UploadedFileInfo;
+import com.guxl.upload.common.exception.FileSizeExceedLimitException;
+import com.guxl.upload.common.exception.QuotaExceededException;
+import com.guxl.upload.common.exception.SameFileNameExistException;
+import com.guxl.upload.common.exception.UploadSessionNotFoundException;
+
+
+/**
+ * 分块上传的controller：
+ * <br> POST /chunked-upload：创建会话，返回会话信息（包含sessionId）
+ * <br> PUT /chunked-upload/{sessionId}?offset=：上传一个分块，请求体即分块数据，必须带Content-Length。多个分块可以并行上传
+ * <br> GET /chunked-upload/{sessionId}：查询会话的状态，包括缺失的区间
+ * <br> POST /chunked-upload/{sessionId}/commit：提交会话，返回UploadedFileInfo
+ * <br> DELETE /chunked-upload/{sessionId}：放弃会话
+ * @author xiangligu
+ *
+ */
+@RestController
+@RequestMapping(path="/chunked-upload")
+public class ChunkedUploadController {
+	
+	@Autowired
+	UploadManager uploadManager;
+	
+	
+	@RequestMapping(method=RequestMethod.POST)
+	public ChunkedUploadSession create(@RequestParam String fileName, @RequestParam long fileSize,
+			@RequestParam(required=false) String subDir,
+			@RequestParam(required=false) String newFileName,
+			@RequestParam(defaultValue="true") boolean overwrite) 
+					throws NoSuchAlgorithmException, IOException{
+		if(subDir!=null && newFileName!=null){
+			return this.uploadManager.createUploadSession(fileName, fileSize, subDir, newFileName, overwrite);
+		}
+		return this.uploadManager.createUploadSession(fileName, fileSize);
+	}
+	
+	
+	@RequestMapping(path="/{sessionId}", method=RequestMethod.PUT)
+	public ChunkedUploadSession writeChunk(@PathVariable String sessionId, @RequestParam long offset, HttpServletRequest request) 
+			throws IOException{
+		long length=request.getContentLengthLong();
+		if(length<0){
+			throw new IllegalArgumentException("上传分块时必须指定Content-Length");
+		}
+		return this.uploadManager.writeChunk(sessionId, offset, request.getInputStream(), length);
+	}
+	
+	
+	@RequestMapping(path="/{sessionId}", method=RequestMethod.GET)
+	public ChunkedUploadSession status(@PathVariable String sessionId){
+		return this.uploadManager.getUploadSession(sessionId);
+	}
+	
+	
+	@RequestMapping(path="/{sessionId}/commit", method=RequestMethod.POST)
+	public UploadedFileInfo commit(@PathVariable String sessionId) throws IOException{
+		return this.uploadManager.commitUploadSession(sessionId);
+	}
+	
+	
+	@RequestMapping(path="/{sessionId}", method=RequestMethod.DELETE)
+	public void abort(@PathVariable String sessionId) throws IOException{
+		this.uploadManager.abortUploadSession(sessionId);
+	}
+	
+	
+	
+	@ExceptionHandler(UploadSessionNotFoundException.class)
+	public ResponseEntity<String> handleSessionNotFound(UploadSessionNotFoundException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.NOT_FOUND);
+	}
+	
+	@ExceptionHandler(FileSizeExceedLimitException.class)
+	public ResponseEntity<String> handleFileSizeExceedLimit(FileSizeExceedLimitException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.PAYLOAD_TOO_LARGE);
+	}
+	
+	@ExceptionHandler(QuotaExceededException.class)
+	public ResponseEntity<String> handleQuotaExceeded(QuotaExceededException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.INSUFFICIENT_STORAGE);
+	}
+	
+	@ExceptionHandler({SameFileNameExistException.class, IllegalStateException.class})
+	public ResponseEntity<String> handleConflict(RuntimeException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.CONFLICT);
+	}
+	
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<String> handleBadRequest(IllegalArgumentException e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+	}
+	
+}
@@ -0,0 +1,36 @@
+package com.guxl.upload.app;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.guxl.upload.common.UploadMetrics;
+
+
+/**
+ * 以Prometheus的文本格式输出上传和下载的运行指标，供Prometheus抓取。
+ * @author xiangligu
+ *
+ */
+@RestController
+public class MetricsController {
+	
+	@Autowired
+	UploadMetrics uploadMetrics;
+	
+	
+	@RequestMapping(path="/metrics", method=RequestMethod.GET)
+	public void metrics(HttpServletResponse response) throws IOException{
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		Writer writer=response.getWriter();
+		this.uploadMetrics.writePrometheus(writer);
+		writer.flush();
+	}
+	
+}
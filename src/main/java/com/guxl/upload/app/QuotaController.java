@@ -0,0 +1,58 @@
+package com.guxl.upload.app;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.guxl.upload.common.TenantQuota;
+import com.guxl.upload.common.TenantQuotaManager;
+
+
+/**
+ * 查询租户存储用量的controller，结果直接读取TenantQuotaManager中的计数，不遍历目录：
+ * <br> GET /quota：全部已跟踪的租户的配额和已用量
+ * <br> GET /quota/{tenant}：一个租户的配额和已用量，租户未被跟踪时返回404
+ * <br> POST /quota/{tenant}/recount：重新统计租户的目录，修正已用量
+ * @author xiangligu
+ *
+ */
+@RestController
+@RequestMapping(path="/quota")
+public class QuotaController {
+
+	@Autowired
+	TenantQuotaManager quotaManager;
+
+
+	@RequestMapping(method=RequestMethod.GET)
+	public Collection<TenantQuota> list(){
+		return this.quotaManager.getQuotas();
+	}
+
+
+	@RequestMapping(path="/{tenant:.+}", method=RequestMethod.GET)
+	public ResponseEntity<TenantQuota> get(@PathVariable String tenant){
+		return this.toResponse(this.quotaManager.getQuota(tenant));
+	}
+
+
+	@RequestMapping(path="/{tenant:.+}/recount", method=RequestMethod.POST)
+	public ResponseEntity<TenantQuota> recount(@PathVariable String tenant) throws IOException{
+		return this.toResponse(this.quotaManager.recount(tenant));
+	}
+
+
+
+	//==================private functions===================
+	private ResponseEntity<TenantQuota> toResponse(TenantQuota quota){
+		return quota==null ? new ResponseEntity<>(HttpStatus.NOT_FOUND) : new ResponseEntity<>(quota, HttpStatus.OK);
+	}
+
+}
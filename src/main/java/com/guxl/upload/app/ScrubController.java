@@ -0,0 +1,60 @@
+package com.guxl.upload.app;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.guxl.upload.common.UploadScrubber;
+
+
+/**
+ * 查询和启动文件校验和检查的controller：
+ * <br> GET /scrub：是否正在检查，以及最近一次（或正在进行的）检查的统计
+ * <br> GET /scrub/mismatches：已发现的校验和不一致（已损坏）的文件
+ * <br> POST /scrub：在后台立即开始一次检查，已有检查正在进行时返回409
+ * @author xiangligu
+ *
+ */
+@RestController
+@RequestMapping(path="/scrub")
+public class ScrubController {
+
+	@Autowired
+	UploadScrubber uploadScrubber;
+
+
+	@RequestMapping(method=RequestMethod.GET)
+	public Map<String, Object> status(){
+		Map<String, Object> status=new LinkedHashMap<>();
+		status.put("scrubbing", this.uploadScrubber.isScrubbing());
+		status.put("scannedFiles", this.uploadScrubber.getScannedFiles());
+		status.put("scannedBytes", this.uploadScrubber.getScannedBytes());
+		status.put("skippedFiles", this.uploadScrubber.getSkippedFiles());
+		status.put("mismatchedFiles", this.uploadScrubber.getMismatchedFiles());
+		status.put("bytesPerSecond", this.uploadScrubber.getBytesPerSecond());
+		return status;
+	}
+
+
+	@RequestMapping(path="/mismatches", method=RequestMethod.GET)
+	public Collection<UploadScrubber.Mismatch> mismatches(){
+		return this.uploadScrubber.getMismatches();
+	}
+
+
+	@RequestMapping(method=RequestMethod.POST)
+	public ResponseEntity<String> start(){
+		if(!this.uploadScrubber.scrubLater()){
+			return new ResponseEntity<>("已有检查正在进行", HttpStatus.CONFLICT);
+		}
+		return new ResponseEntity<>(HttpStatus.ACCEPTED);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.guxl.upload.app;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.boot.web.filter.OrderedHiddenHttpMethodFilter;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.UrlPathHelper;
+
+
+/**
+ * 替换springboot默认的HiddenHttpMethodFilter。默认的filter会对POST请求调用getParameter("_method")，
+ * 这会使web服务器把multipart请求体全部解析并缓存下来，StreamingUploadController将无法再以流的方式读取请求体，
+ * 因此对StreamingUploadController处理的请求跳过该filter。
+ * @author xiangligu
+ *
+ */
+@Component
+public class StreamingHiddenHttpMethodFilter extends OrderedHiddenHttpMethodFilter {
+	
+	private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+	
+	
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		return this.urlPathHelper.getPathWithinApplication(request).startsWith(StreamingUploadController.STREAMING_UPLOAD_PATH);
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.guxl.upload.app;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.util.UrlPathHelper;
+
+
+/**
+ * 替换springboot默认的MultipartResolver。对于StreamingUploadController处理的请求，不做multipart解析，
+ * 使请求体保持未读状态，由controller以流的方式读取；其余请求仍按StandardServletMultipartResolver的方式解析。
+ * @author xiangligu
+ *
+ */
+@Component(DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+public class StreamingMultipartResolver extends StandardServletMultipartResolver {
+	
+	private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+	
+	
+	@Override
+	public boolean isMultipart(HttpServletRequest request) {
+		String path=this.urlPathHelper.getPathWithinApplication(request);
+		if(path.startsWith(StreamingUploadController.STREAMING_UPLOAD_PATH)){
+			return false;
+		}
+		return super.isMultipart(request);
+	}
+
+}
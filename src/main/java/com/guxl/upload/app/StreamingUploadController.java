@@ -0,0 +1,158 @@
+package com.guxl.upload.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.guxl.upload.common.FileRemoveResult;
+import com.guxl.upload.common.UploadManager;
+import com.guxl.upload.common.UploadedFileInfo;
+import com.guxl.upload.common.exception.FileSizeExceedLimitException;
+import com.guxl.upload.common.exception.QuotaExceededException;
+
+
+/**
+ * 以流的方式接收multipart上传请求的controller。使用commons-fileupload的streaming API逐个解析请求中的文件，
+ * 解析出的数据直接交给UploadManager写入文件系统，web服务器不会预先把文件缓存到内存或临时文件中。
+ * <p> 读取的字节数一旦超过upload.sizeLimit，立即返回413并关闭连接，不再继续接收剩余数据；超过租户的存储配额时同样立即返回507并关闭连接。
+ * <p> 注意：该路径下的请求不会被StreamingMultipartResolver解析，也会跳过StreamingHiddenHttpMethodFilter，因此请求体只能在此处读取一次。
+ * @author xiangligu
+ *
+ */
+@RestController
+public class StreamingUploadController {
+	
+	private static final Logger logger = LoggerFactory.getLogger(StreamingUploadController.class);
+	
+	public static final String STREAMING_UPLOAD_PATH = "/stream-upload";
+	
+	@Autowired
+	UploadManager uploadManager;
+	
+	
+	/**
+	 * 保存请求中的所有文件。如果在query string中指定了subDir和newFileName，则只允许请求中包含一个文件；否则子目录和文件名随机生成。
+	 * <p> 文件在解析到时即写入，无法预先知道后面的部分是否合法。因此任何一个文件保存失败、或指定了newFileName时出现第二个文件，
+	 * 都会删除本次请求中已保存的文件后再返回错误（覆盖保存时原有的同名文件已被替换，也一并删除），保证返回错误时请求中的文件都未保存。
+	 * <p> 注意：不能使用@RequestParam获取参数，调用request.getParameter会使web服务器解析并缓存整个multipart请求体。
+	 */
+	@RequestMapping(path=STREAMING_UPLOAD_PATH, method=RequestMethod.POST)
+	public List<UploadedFileInfo> upload(HttpServletRequest request) 
+					throws IOException, FileUploadException, NoSuchAlgorithmException{
+		MultiValueMap<String, String> queryParams=this.getQueryParams(request);
+		String subDir=queryParams.getFirst("subDir");
+		String newFileName=queryParams.getFirst("newFileName");
+		boolean overwrite=!"false".equalsIgnoreCase(queryParams.getFirst("overwrite"));
+		
+		if(!ServletFileUpload.isMultipartContent(request)){
+			throw new IllegalArgumentException("请求不是multipart类型");
+		}
+		
+		List<UploadedFileInfo> result=new ArrayList<>();
+		try{
+			FileItemIterator iterator=new ServletFileUpload().getItemIterator(request);
+			while(iterator.hasNext()){
+				FileItemStream item=iterator.next();
+				if(item.isFormField() || item.getName()==null || item.getName().trim().length()==0){
+					continue;
+				}
+				
+				try(InputStream inputStream=item.openStream()){
+					if(subDir!=null && newFileName!=null){
+						if(!result.isEmpty()){
+							throw new IllegalArgumentException("指定了subDir和newFileName时，请求中只允许包含一个文件");
+						}
+						result.add(this.uploadManager.saveFile(inputStream, item.getName(), subDir, newFileName, overwrite));
+					}else{
+						result.add(this.uploadManager.saveFile(inputStream, item.getName()));
+					}
+				}
+			}
+		}catch(IOException | FileUploadException | NoSuchAlgorithmException | RuntimeException e){
+			this.removeSaved(result);
+			throw e;
+		}
+		return result;
+	}
+	
+	
+	//请求失败时删除本次请求中已保存的文件，客户端收到错误响应时不会留下未报告的文件
+	private void removeSaved(List<UploadedFileInfo> saved){
+		if(saved.isEmpty()){
+			return;
+		}
+		List<String> paths=new ArrayList<>(saved.size());
+		for(UploadedFileInfo fileInfo : saved){
+			paths.add(fileInfo.getFilePath());
+		}
+		for(FileRemoveResult removeResult : this.uploadManager.removeFiles(paths)){
+			if(!removeResult.isSuccess()){
+				logger.error("删除上传失败的请求中已保存的文件{}时出错：{}", removeResult.getFilePath(), removeResult.getErrorMessage());
+			}
+		}
+	}
+	
+	
+	//只从query string中解析参数，不读取请求体
+	private MultiValueMap<String, String> getQueryParams(HttpServletRequest request) throws UnsupportedEncodingException{
+		MultiValueMap<String, String> queryParams=new LinkedMultiValueMap<>();
+		if(request.getQueryString()==null){
+			return queryParams;
+		}
+		for(String pair : request.getQueryString().split("&")){
+			int eq=pair.indexOf('=');
+			String name=URLDecoder.decode(eq<0 ? pair : pair.substring(0, eq), "UTF-8");
+			String value=eq<0 ? "" : URLDecoder.decode(pair.substring(eq+1), "UTF-8");
+			queryParams.add(name, value);
+		}
+		return queryParams;
+	}
+	
+	
+	//超过大小限制时返回413，并要求关闭连接，使web服务器不再读取剩余的请求体
+	@ExceptionHandler(FileSizeExceedLimitException.class)
+	public ResponseEntity<String> handleFileSizeExceedLimit(FileSizeExceedLimitException e){
+		HttpHeaders headers=new HttpHeaders();
+		headers.setConnection("close");
+		return new ResponseEntity<>(e.getMessage(), headers, HttpStatus.PAYLOAD_TOO_LARGE);
+	}
+	
+	
+	//超过租户的存储配额时返回507，同样要求关闭连接
+	@ExceptionHandler(QuotaExceededException.class)
+	public ResponseEntity<String> handleQuotaExceeded(QuotaExceededException e){
+		HttpHeaders headers=new HttpHeaders();
+		headers.setConnection("close");
+		return new ResponseEntity<>(e.getMessage(), headers, HttpStatus.INSUFFICIENT_STORAGE);
+	}
+	
+	
+	@ExceptionHandler({FileUploadException.class, IllegalArgumentException.class})
+	public ResponseEntity<String> handleBadRequest(Exception e){
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+	}
+	
+}
@@ -6,22 +6,33 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.guxl.upload.common.HotFileCache;
 import com.guxl.upload.common.UploadManager;
+import com.guxl.upload.common.UploadMetrics;
 
 @RestController
 public class TestController {
 	@Autowired
 	UploadManager uploadManager;
 	
+	@Autowired
+	HotFileCache hotFileCache;
+	
+	@Autowired
+	UploadMetrics uploadMetrics;
+	
 	@RequestMapping(path="/test")
 	public Hashtable<String, Object> test(){
 		Hashtable<String, Object> result=new Hashtable<>();
 		
 		result.put("fsBasePath", uploadManager.getFsBasePath());
+		result.put("fsBasePaths", uploadManager.getFsBasePaths());
 		result.put("urlBasePath", uploadManager.getUrlBasePath());
 		result.put("sizeLimit", uploadManager.getSizeLimit());
 		result.put("sizeLimitBytes", (Long)uploadManager.getSizeLimitBytes());
 		result.put("writer inited", uploadManager.getFileWriter()!=null);
+		result.put("hotFileCache", hotFileCache.getStats());
+		result.put("metrics", uploadMetrics.getSummary());
 		
 		return result;
 	}
@@ -0,0 +1,90 @@
+package com.guxl.upload.app;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Preconditions;
+import com.guxl.upload.common.ZipArchiveStreamer;
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * 打包下载多个文件的controller，ZIP数据边生成边发送，不返回Content-Length：
+ * <br> /zip-download?path=/upload/ab/xxx.jpg&amp;path=...：打包指定url路径的文件，文件名为上传时的原始文件名；
+ * <br> /zip-download?subDir=xxx：打包fsBasePath下subDir目录中的全部文件，文件名为相对于subDir的路径。
+ * <p> 文件较多时url可能过长，可以改用POST，以表单参数传递path。name参数指定下载的文件名（不含“.zip”），默认为subDir的最后一级目录名或“files”。
+ * <p> 同时进行的打包下载数已达上限时返回503，并通过Retry-After告知客户端多久之后重试。
+ * @author xiangligu
+ *
+ */
+@RestController
+public class ZipDownloadController {
+
+	@Autowired
+	ZipArchiveStreamer zipArchiveStreamer;
+
+	@Value("${upload.async.retryAfterSeconds:1}")
+	int retryAfterSeconds;
+
+
+	@RequestMapping(path="/zip-download", method={RequestMethod.GET, RequestMethod.POST})
+	public void download(@RequestParam(name="path", required=false) List<String> paths,
+			@RequestParam(required=false) String subDir,
+			@RequestParam(required=false) String name,
+			HttpServletResponse response) throws IOException{
+		Preconditions.checkArgument((paths==null || paths.isEmpty()) != (subDir==null || subDir.trim().isEmpty()), "必须且只能指定path或subDir中的一个参数");
+		if(name==null || name.trim().isEmpty()){
+			name=subDir!=null ? subDir.replaceAll("[/\\\\]+$", "").replaceAll("^.*[/\\\\]", "") : "files";
+		}
+		response.setContentType("application/zip");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, this.getContentDisposition(name.trim() + ".zip"));
+		if(subDir!=null){
+			this.zipArchiveStreamer.writeDirectory(subDir, response.getOutputStream());
+		}else{
+			this.zipArchiveStreamer.writeFiles(paths, response.getOutputStream());
+		}
+	}
+
+
+	//还未开始发送ZIP数据时清除已设置的Content-Type和Content-Disposition
+	@ExceptionHandler(UploadQueueFullException.class)
+	public ResponseEntity<String> handleQueueFull(UploadQueueFullException e, HttpServletResponse response){
+		response.reset();
+		HttpHeaders headers=new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(this.retryAfterSeconds));
+		return new ResponseEntity<>(e.getMessage(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	@ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<String> handleBadRequest(IllegalArgumentException e, HttpServletResponse response){
+		response.reset();
+		return new ResponseEntity<>(e.getMessage(), HttpStatus.BAD_REQUEST);
+	}
+
+
+
+	//==================private functions===================
+	//filename只保留ASCII字符，完整的文件名以RFC 5987格式放在filename*中
+	private String getContentDisposition(String fileName) throws UnsupportedEncodingException{
+		String asciiName=CharMatcher.inRange(' ', '~').and(CharMatcher.noneOf("\"\\")).negate().replaceFrom(fileName, '_');
+		String encodedName=URLEncoder.encode(fileName, "UTF-8").replace("+", "%20");
+		return "attachment; filename=\"" + asciiName + "\"; filename*=UTF-8''" + encodedName;
+	}
+
+}
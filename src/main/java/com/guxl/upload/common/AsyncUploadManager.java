@@ -0,0 +1,190 @@
+package com.guxl.upload.common;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * UploadManager的异步版本。保存和删除文件的操作交给独立的I/O线程执行，调用方立即得到CompletableFuture，
+ * 配合Servlet 3的异步请求，web服务器的请求线程不必等待磁盘写入完成。
+ * <p> 同时在执行和排队的操作数不超过maxThreads+queueCapacity，超过时立即抛出UploadQueueFullException，
+ * 由调用方返回503让客户端稍后重试，而不是无限制地排队。
+ * <p> 当virtualThreads为true且运行在支持虚拟线程的JDK（21及以上）上时，每个操作使用一个虚拟线程执行，否则使用固定大小的线程池。
+ * @author xiangligu
+ *
+ */
+public class AsyncUploadManager {
+	
+	private static final Logger logger = LoggerFactory.getLogger(AsyncUploadManager.class);
+
+	private final UploadManager uploadManager;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int capacity;
+	private UploadMetrics metrics;
+
+
+	public AsyncUploadManager(UploadManager uploadManager, int maxThreads, int queueCapacity, boolean virtualThreads) {
+		Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		Preconditions.checkArgument(maxThreads>0, "参数maxThreads必须为正整数");
+		Preconditions.checkArgument(queueCapacity>=0, "参数queueCapacity不允许为负数");
+		
+		this.uploadManager = uploadManager;
+		this.capacity = maxThreads + queueCapacity;
+		this.permits = new Semaphore(this.capacity);
+		
+		ExecutorService virtualThreadExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+		if(virtualThreadExecutor!=null){
+			this.executor = virtualThreadExecutor;
+		}else{
+			//队列长度由permits限制，线程池本身的队列不需要再限制
+			this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<>(), new UploadThreadFactory());
+		}
+	}
+
+
+	public UploadManager getUploadManager() {
+		return this.uploadManager;
+	}
+
+
+	/**
+	 * @param metrics 设置后，因队列已满被拒绝的操作将计入错误数
+	 */
+	public void setMetrics(UploadMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * @return 正在执行和排队等待执行的操作数
+	 */
+	public int getPendingCount() {
+		return this.capacity - this.permits.availablePermits();
+	}
+
+
+	/**
+	 * @return 允许同时执行和排队的最大操作数
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+
+
+	//==============async save and remove================
+	/**
+	 * 异步执行UploadManager.saveFile(MultipartFile, String, String, boolean)
+	 * @throws UploadQueueFullException 执行和排队的操作数已达上限时抛出
+	 */
+	public CompletableFuture<UploadedFileInfo> saveFileAsync(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite) {
+		return this.submit(() -> this.uploadManager.saveFile(multipartFile, subDir, newFileName, overwrite));
+	}
+
+
+	/**
+	 * 异步执行UploadManager.saveFile(MultipartFile)
+	 * @throws UploadQueueFullException 执行和排队的操作数已达上限时抛出
+	 */
+	public CompletableFuture<UploadedFileInfo> saveFileAsync(MultipartFile multipartFile) {
+		return this.submit(() -> this.uploadManager.saveFile(multipartFile));
+	}
+
+
+	/**
+	 * 异步执行UploadManager.removeFile(String)
+	 * @throws UploadQueueFullException 执行和排队的操作数已达上限时抛出
+	 */
+	public CompletableFuture<Void> removeFileAsync(String fullPathFileName) {
+		return this.submit(() -> {
+			this.uploadManager.removeFile(fullPathFileName);
+			return null;
+		});
+	}
+
+
+	/**
+	 * 不再接受新的操作，并等待已提交的操作执行完毕
+	 */
+	public void shutdown() throws InterruptedException {
+		this.executor.shutdown();
+		this.executor.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+
+
+	//==================private functions===================
+	private <T> CompletableFuture<T> submit(IOTask<T> task) {
+		if(!this.permits.tryAcquire()){
+			UploadQueueFullException e=new UploadQueueFullException();
+			if(this.metrics!=null){
+				this.metrics.recordError(e);
+			}
+			throw e;
+		}
+		
+		CompletableFuture<T> future=new CompletableFuture<>();
+		try{
+			this.executor.execute(() -> {
+				try{
+					future.complete(task.call());
+				}catch(Exception | Error e){
+					future.completeExceptionally(e);
+				}finally{
+					this.permits.release();
+				}
+			});
+		}catch(RuntimeException e){
+			this.permits.release();
+			throw e;
+		}
+		return future;
+	}
+
+
+	//通过反射调用Executors.newVirtualThreadPerTaskExecutor()，当前JDK不支持时返回null
+	private static ExecutorService newVirtualThreadExecutor() {
+		try{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(ReflectiveOperationException | RuntimeException e){
+			logger.warn("当前JDK不支持虚拟线程，改用固定大小的线程池");
+			return null;
+		}
+	}
+
+
+
+	@FunctionalInterface
+	private interface IOTask<T> {
+		T call() throws Exception;
+	}
+
+
+	private static class UploadThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread=new Thread(r, "upload-io-" + this.count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+}
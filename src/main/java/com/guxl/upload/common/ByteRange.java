@@ -0,0 +1,42 @@
+package com.guxl.upload.common;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 表示文件中一段连续字节的区间[start, end)，start包含在区间内，end不包含在区间内。
+ * @author xiangligu
+ *
+ */
+public class ByteRange {
+
+	private final long start;
+	private final long end;
+
+
+	public ByteRange(long start, long end) {
+		Preconditions.checkArgument(start>=0 && start<=end, "区间[" + start + ", " + end + ")不合法");
+		this.start = start;
+		this.end = end;
+	}
+
+
+	public long getStart() {
+		return this.start;
+	}
+
+	public long getEnd() {
+		return this.end;
+	}
+
+	public long getLength() {
+		return this.end - this.start;
+	}
+
+
+	@Override
+	public String toString() {
+		return "[" + this.start + ", " + this.end + ")";
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+
+/**
+ * 分块上传的会话。创建会话时按文件大小预分配一个临时文件，之后各个分块按照各自的偏移量使用FileChannel.write(buffer, position)
+ * 写入该文件，因此多个分块可以由不同的请求并行写入，且不要求按顺序到达。
+ * <p> 会话记录已收到的字节区间，客户端上传失败后可以查询缺失的区间，只重新上传这些部分。
+ * @author xiangligu
+ *
+ */
+public class ChunkedUploadSession {
+
+	//每个线程复用的写缓冲区大小
+	private static final int BUFFER_BYTES = 256 * 1024;
+	private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_BYTES));
+
+	private final String sessionId;
+	private final String originFileName;
+	private final long fileSize;
+	private final String subDir;
+	private final String newFileName;
+	private final boolean overwrite;
+	private final Path partFile;
+	private final FileChannel channel;
+	private final RangeSet<Long> receivedRanges = TreeRangeSet.create();
+	private volatile long lastAccessTime;
+	//finish()之后不再接受分块
+	private volatile boolean finished;
+	//会话所属租户的配额，不属于任何已跟踪的租户时为null
+	private volatile TenantQuota quota;
+
+
+	ChunkedUploadSession(Path partDir, String originFileName, long fileSize, String subDir, String newFileName, boolean overwrite)
+			throws IOException {
+		this.sessionId = UUID.randomUUID().toString();
+		this.originFileName = originFileName;
+		this.fileSize = fileSize;
+		this.subDir = subDir;
+		this.newFileName = newFileName;
+		this.overwrite = overwrite;
+		this.partFile = partDir.resolve(this.sessionId + ".part");
+		
+		//预分配文件大小，之后各分块按偏移量直接写入
+		try(RandomAccessFile file=new RandomAccessFile(this.partFile.toFile(), "rw")){
+			file.setLength(fileSize);
+		}
+		this.channel = FileChannel.open(this.partFile, StandardOpenOption.WRITE);
+		this.lastAccessTime = System.currentTimeMillis();
+	}
+
+
+
+	//=================getters====================
+	public String getSessionId() {
+		return this.sessionId;
+	}
+
+	public String getOriginFileName() {
+		return this.originFileName;
+	}
+
+	public long getFileSize() {
+		return this.fileSize;
+	}
+
+	public String getSubDir() {
+		return this.subDir;
+	}
+
+	public String getNewFileName() {
+		return this.newFileName;
+	}
+
+	public boolean isOverwrite() {
+		return this.overwrite;
+	}
+
+	public long getLastAccessTime() {
+		return this.lastAccessTime;
+	}
+
+	Path getPartFile() {
+		return this.partFile;
+	}
+
+	TenantQuota getQuota() {
+		return this.quota;
+	}
+
+	void setQuota(TenantQuota quota) {
+		this.quota = quota;
+	}
+
+
+	/**
+	 * @return 已收到的字节数
+	 */
+	public long getReceivedBytes() {
+		long received=0;
+		for(ByteRange range : this.getRanges(this.receivedRanges)){
+			received += range.getLength();
+		}
+		return received;
+	}
+
+
+	/**
+	 * @return 尚未收到的字节区间，按偏移量升序排列
+	 */
+	public List<ByteRange> getMissingRanges() {
+		synchronized(this.receivedRanges){
+			return this.getRanges(this.receivedRanges.complement().subRangeSet(Range.closedOpen(0L, this.fileSize)));
+		}
+	}
+
+
+	/**
+	 * @return 是否已收到全部字节
+	 */
+	public boolean isComplete() {
+		synchronized(this.receivedRanges){
+			return this.fileSize==0 || this.receivedRanges.encloses(Range.closedOpen(0L, this.fileSize));
+		}
+	}
+
+
+
+	//==============chunk write and close================
+	/**
+	 * 将输入流中的length个字节写入文件的offset位置。可以被多个线程并发调用。
+	 * 如果输入流提前结束，已写入的部分仍然被记录，之后抛出IOException，客户端可查询缺失区间后重传。
+	 * @param offset 分块在文件中的起始偏移量
+	 * @param inputStream 分块数据的输入流，该方法不负责关闭输入流
+	 * @param length 分块的字节数
+	 * @return 写入的字节数
+	 * @throws IOException
+	 */
+	long writeChunk(long offset, InputStream inputStream, long length) throws IOException {
+		Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+		Preconditions.checkArgument(offset>=0 && length>=0 && offset+length<=this.fileSize, 
+				"分块[" + offset + ", " + (offset+length) + ")超出了文件大小" + this.fileSize);
+		Preconditions.checkState(!this.finished, "会话已上传完整并开始提交，不再接受分块");
+		this.lastAccessTime = System.currentTimeMillis();
+		
+		ReadableByteChannel source=Channels.newChannel(inputStream);
+		ByteBuffer buffer=BUFFER.get();
+		long written=0;
+		try{
+			while(written<length){
+				buffer.clear();
+				buffer.limit((int)Math.min(buffer.capacity(), length-written));
+				if(source.read(buffer)<0){
+					throw new IOException("分块数据不完整，期望" + length + "字节，实际收到" + written + "字节");
+				}
+				buffer.flip();
+				while(buffer.hasRemaining()){
+					written += this.channel.write(buffer, offset+written);
+				}
+			}
+		}finally{
+			if(written>0){
+				synchronized(this.receivedRanges){
+					this.receivedRanges.add(Range.closedOpen(offset, offset+written));
+				}
+			}
+		}
+		return written;
+	}
+
+
+	/**
+	 * 将已写入的数据刷到磁盘并关闭文件。提交失败后重新提交时会再次调用，已关闭时什么也不做
+	 * @throws IOException
+	 */
+	synchronized void finish() throws IOException {
+		this.finished = true;
+		this.lastAccessTime = System.currentTimeMillis();
+		if(this.channel.isOpen()){
+			this.channel.force(false);
+			this.channel.close();
+		}
+	}
+
+
+	/**
+	 * 关闭并删除临时文件
+	 * @throws IOException
+	 */
+	void abort() throws IOException {
+		this.channel.close();
+		Files.deleteIfExists(this.partFile);
+	}
+
+
+
+	//==================private functions===================
+	private List<ByteRange> getRanges(RangeSet<Long> rangeSet){
+		synchronized(this.receivedRanges){
+			List<ByteRange> ranges=new ArrayList<>();
+			for(Range<Long> range : rangeSet.asRanges()){
+				ranges.add(new ByteRange(range.lowerEndpoint(), range.upperEndpoint()));
+			}
+			return ranges;
+		}
+	}
+
+}
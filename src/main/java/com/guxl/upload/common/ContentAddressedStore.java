@@ -0,0 +1,163 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 按内容寻址的文件存储。每份不同的文件内容只在“{baseDir}/ab/cd/{摘要}”下保存一份（称为blob），
+ * 每次保存相同内容的上传文件时，只在目标路径上创建一个指向该blob的硬链接，不再重复写入数据。
+ * <p> blob的引用计数即文件系统维护的硬链接数（减去blob自身），由文件系统原子地维护，进程重启后也不会丢失。
+ * 删除上传文件时只删除其链接，当blob不再被任何上传文件引用时，再删除blob。
+ * <p> 当文件系统不支持硬链接时，退化为直接把文件移动到目标路径，不做去重。
+ * @author xiangligu
+ *
+ */
+public class ContentAddressedStore {
+
+	//写入过程中的临时文件所在的子目录
+	private static final String TEMP_DIR = "tmp";
+	//生成blob时，与并发的保存和删除交错的情况下的最大重试次数
+	private static final int MAX_LINK_RETRIES = 3;
+
+	private final Path baseDir;
+	private final Path tempDir;
+	private final DirectoryRegistry directoryRegistry;
+
+
+	public ContentAddressedStore(Path baseDir, DirectoryRegistry directoryRegistry) {
+		this.baseDir = Preconditions.checkNotNull(baseDir, "参数baseDir不允许为null");
+		this.tempDir = baseDir.resolve(TEMP_DIR);
+		this.directoryRegistry = Preconditions.checkNotNull(directoryRegistry, "参数directoryRegistry不允许为null");
+	}
+
+
+	public Path getBaseDir() {
+		return this.baseDir;
+	}
+
+	public Path getTempDir() {
+		return this.tempDir;
+	}
+
+
+	/**
+	 * 生成一个供写入上传文件内容的临时文件路径，该路径与blob在同一文件系统下
+	 * @return 临时文件路径（文件本身尚未创建）
+	 * @throws IOException
+	 */
+	public Path newTempFile() throws IOException {
+		this.directoryRegistry.ensureDirectory(this.tempDir);
+		return this.tempDir.resolve(UUID.randomUUID().toString());
+	}
+
+
+	/**
+	 * 将已写入完毕的临时文件放入存储，并在target上创建指向对应blob的硬链接。无论成功与否，调用后临时文件都不再存在。
+	 * @param tempFile newTempFile()返回的、已写入内容的临时文件
+	 * @param contentHash 文件内容的摘要（十六进制字符串）
+	 * @param target 上传文件最终的保存路径，该路径下不应存在文件
+	 * @return 如果存储中已有相同内容的blob（即本次保存被去重），返回true
+	 * @throws IOException
+	 */
+	public boolean link(Path tempFile, String contentHash, Path target) throws IOException {
+		Preconditions.checkNotNull(tempFile, "参数tempFile不允许为null");
+		Preconditions.checkNotNull(target, "参数target不允许为null");
+
+		Path blob=this.getBlobPath(contentHash);
+		try{
+			if(Files.exists(blob)){
+				try{
+					Files.createLink(target, blob);
+					return true;
+				}catch(NoSuchFileException e){
+					//blob在检查之后恰好被release删除，改为用本次写入的临时文件重新生成blob
+				}
+			}
+			
+			//先让target链接到临时文件，再为临时文件创建blob链接，保证blob出现时其链接数已大于1，不会被并发的release误删。
+			//创建链接不会覆盖已有的blob，并发保存相同内容时只有一个临时文件成为blob，其他target改为指向该blob
+			Files.createLink(target, tempFile);
+			this.directoryRegistry.ensureDirectory(blob.getParent());
+			for(int retries=0; ; retries++){
+				try{
+					Files.createLink(blob, tempFile);
+					return false;
+				}catch(FileAlreadyExistsException e){
+					if(this.relink(target, blob)){
+						return true;
+					}
+					if(retries>=MAX_LINK_RETRIES){
+						//blob反复被并发地删除和生成，target保留本次写入的内容，只是没有去重
+						return false;
+					}
+				}
+			}
+		}catch(UnsupportedOperationException e){
+			//文件系统不支持硬链接，不做去重
+			Files.move(tempFile, target);
+			return false;
+		}finally{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+
+	/**
+	 * 释放一次对contentHash对应blob的引用（对应的上传文件应已被删除）。当blob不再被任何上传文件引用时删除blob。
+	 * <p> 即使与link并发执行也是安全的：删除blob只是删除了一个目录项，已链接到该blob的上传文件的数据不受影响。
+	 * @param contentHash 文件内容的摘要（十六进制字符串）
+	 * @throws IOException
+	 */
+	public void release(String contentHash) throws IOException {
+		Path blob=this.getBlobPath(contentHash);
+		try{
+			Integer links=(Integer)Files.getAttribute(blob, "unix:nlink");
+			if(links<=1){
+				Files.deleteIfExists(blob);
+			}
+		}catch(NoSuchFileException e){
+			//blob已不存在
+		}catch(UnsupportedOperationException | IllegalArgumentException e){
+			//无法获取链接数（如windows系统），保留blob
+		}
+	}
+
+
+	/**
+	 * @param contentHash 文件内容的摘要（十六进制字符串）
+	 * @return contentHash对应的blob的路径，形式为“{baseDir}/ab/cd/{contentHash}”
+	 */
+	public Path getBlobPath(String contentHash) {
+		Preconditions.checkNotNull(contentHash, "参数contentHash不允许为null");
+		Preconditions.checkArgument(contentHash.length()>4, "参数contentHash不合法");
+		return this.baseDir.resolve(contentHash.substring(0, 2)).resolve(contentHash.substring(2, 4)).resolve(contentHash);
+	}
+
+
+
+	//==================private functions===================
+	//让已存在的target原子地改为指向blob：先在临时目录中创建blob的链接，再重命名为target。blob已被删除时返回false
+	private boolean relink(Path target, Path blob) throws IOException {
+		Path link=this.tempDir.resolve(UUID.randomUUID().toString());
+		try{
+			Files.createLink(link, blob);
+		}catch(NoSuchFileException e){
+			return false;
+		}
+		try{
+			Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			Files.deleteIfExists(link);
+		}
+		return true;
+	}
+
+}
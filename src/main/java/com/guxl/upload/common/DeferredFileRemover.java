@@ -0,0 +1,354 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 延迟删除上传文件的工具，由SimpleUploadManager.removeFilesLater使用：调用时只把文件标记为已删除，实际删除由后台线程完成。
+ * <p> 标记为删除的文件立即对下载不可见（UploadedFileLocator通过UploadManager.isRemovalPending检查）；
+ * 后台线程每删除一个文件前都要从RateLimiter取得许可，大批量删除时不会集中占用磁盘I/O。删除之前同一路径又被保存时，取消对该路径的删除。
+ * <p> 标记和取消都追加记入各存储卷上的日志文件（.remove/journal），removeFilesLater返回和取消删除之前都将日志同步到磁盘（fsync），
+ * 进程重启后重放日志，继续删除尚未删除的文件；没有待删除的文件时清空日志。
+ * <p> 删除失败的文件保持不可见，按指数退避（从1秒到10分钟）放回队列重试。
+ * @author xiangligu
+ *
+ */
+public class DeferredFileRemover {
+
+	private static final Logger logger = LoggerFactory.getLogger(DeferredFileRemover.class);
+
+	//日志文件所在的目录（相对于各存储卷的基本路径）
+	private static final String JOURNAL_DIR = ".remove";
+	private static final String JOURNAL_FILE = "journal";
+	//删除失败后第一次重试的延迟，之后每次加倍，不超过MAX_RETRY_DELAY_MILLIS
+	private static final long FIRST_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final SimpleUploadManager uploadManager;
+	//与uploadManager的各存储卷一一对应
+	private final List<Journal> journals = new ArrayList<>();
+	//已标记为删除、尚未实际删除的文件（规范化后的完整路径）
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	private final DelayQueue<Removal> queue = new DelayQueue<>();
+	//shutdown放入队列、让后台线程退出的标记。不中断后台线程：线程在写入日志时被中断会关闭日志文件的FileChannel
+	private final Removal stop = new Removal(null);
+	private final Thread deleter = new Thread(this::deleteLoop, "upload-deferred-remover");
+	private volatile RateLimiter rateLimiter = RateLimiter.create(500);
+	private volatile boolean running = true;
+	private final LongAdder removedFiles = new LongAdder();
+	private final LongAdder failedRemovals = new LongAdder();
+
+
+	/**
+	 * 打开各存储卷上的日志文件，重放其中尚未删除的文件
+	 * @param uploadManager 提供各存储卷，并在路径锁内实际删除文件
+	 * @throws IOException
+	 */
+	public DeferredFileRemover(SimpleUploadManager uploadManager) throws IOException {
+		this.uploadManager = Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		for(StorageVolume volume : uploadManager.getVolumes()){
+			Journal journal=Journal.open(volume.getBasePath().resolve(JOURNAL_DIR).resolve(JOURNAL_FILE));
+			this.journals.add(journal);
+			for(String relativePath : journal.getReplayed()){
+				String path=volume.getBasePath().resolve(relativePath).toString();
+				this.pending.add(path);
+				this.queue.add(new Removal(path));
+			}
+		}
+		if(!this.pending.isEmpty()){
+			logger.info("从日志中恢复了{}个待删除的文件", this.pending.size());
+		}
+	}
+
+
+	/**
+	 * @param filesPerSecond 每秒最多实际删除的文件数
+	 */
+	public void setFilesPerSecond(double filesPerSecond) {
+		Preconditions.checkArgument(filesPerSecond>0, "参数filesPerSecond必须为正数");
+		this.rateLimiter = RateLimiter.create(filesPerSecond);
+	}
+
+
+	/**
+	 * @return 已标记为删除、尚未实际删除的文件数
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * @return 后台线程已实际删除的文件数
+	 */
+	public long getRemovedFiles() {
+		return this.removedFiles.sum();
+	}
+
+	/**
+	 * @return 后台线程删除文件失败（之后会重试）的次数
+	 */
+	public long getFailedRemovals() {
+		return this.failedRemovals.sum();
+	}
+
+
+	/**
+	 * 启动实际删除文件的后台线程
+	 */
+	public void start() {
+		this.deleter.setDaemon(true);
+		this.deleter.start();
+	}
+
+
+	/**
+	 * 停止后台线程并关闭日志文件，尚未删除的文件在下次启动后继续删除
+	 */
+	public void shutdown() throws InterruptedException, IOException {
+		this.running = false;
+		this.queue.add(this.stop);
+		this.deleter.join(TimeUnit.SECONDS.toMillis(10));
+		synchronized(this){
+			for(Journal journal : this.journals){
+				journal.close();
+			}
+		}
+	}
+
+
+	/**
+	 * @param fullPathFileName 文件的完整路径
+	 * @return 文件是否已标记为删除、但尚未实际删除
+	 */
+	public boolean isPending(String fullPathFileName) {
+		return !this.pending.isEmpty() && this.pending.contains(normalize(fullPathFileName));
+	}
+
+
+	/**
+	 * 将之前追加的日志写入文件并同步到磁盘
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		for(Journal journal : this.journals){
+			journal.flush();
+		}
+	}
+
+
+
+	//==============called by SimpleUploadManager================
+	//将文件标记为删除并放入删除队列，调用者应持有路径锁；文件已被标记过时返回false
+	synchronized boolean mark(String fullPathFileName) throws IOException {
+		String path=normalize(fullPathFileName);
+		StorageVolume volume=this.uploadManager.findVolume(path);
+		if(this.pending.contains(path)){
+			return false;
+		}
+		this.journals.get(volume.getIndex()).append('+', volume.getBasePath().relativize(Paths.get(path)).toString());
+		this.pending.add(path);
+		this.queue.add(new Removal(path));
+		return true;
+	}
+
+
+	//文件已被删除或重新保存，取消对它的删除，调用者应持有路径锁。每次保存都会调用，未标记删除的文件不加锁直接返回：
+	//调用者持有路径锁，检查之后同一路径不会被其他线程标记
+	void unmark(String fullPathFileName) {
+		String path=normalize(fullPathFileName);
+		if(this.pending.isEmpty() || !this.pending.contains(path)){
+			return;
+		}
+		synchronized(this){
+			if(!this.pending.remove(path)){
+				return;
+			}
+			try{
+				StorageVolume volume=this.uploadManager.findVolume(path);
+				this.journals.get(volume.getIndex()).append('-', volume.getBasePath().relativize(Paths.get(path)).toString());
+				if(this.pending.isEmpty()){
+					for(Journal journal : this.journals){
+						journal.clear();
+					}
+				}else{
+					this.flush();
+				}
+			}catch(IOException e){
+				logger.error("记录取消删除文件" + path + "时出错", e);
+			}
+		}
+	}
+
+
+
+	//==================private functions===================
+	private void deleteLoop() {
+		while(this.running){
+			Removal removal;
+			try{
+				removal=this.queue.take();
+			}catch(InterruptedException e){
+				return;
+			}
+			if(removal==this.stop){
+				return;
+			}
+			if(!this.pending.contains(removal.path)){
+				//删除之前已被重新保存或同步删除
+				continue;
+			}
+			this.rateLimiter.acquire();
+			try{
+				if(this.uploadManager.removeMarkedFile(removal.path)){
+					this.removedFiles.increment();
+				}
+			}catch(IOException | RuntimeException e){
+				//文件保持不可见，延迟之后重试
+				this.failedRemovals.increment();
+				Removal retry=removal.retry();
+				logger.error("删除已标记为删除的文件" + removal.path + "时出错，" + retry.delayMillis + "毫秒后重试", e);
+				this.queue.add(retry);
+			}
+		}
+	}
+
+	private static String normalize(String fullPathFileName) {
+		Preconditions.checkNotNull(fullPathFileName, "参数fullPathFileName不允许为null");
+		return Paths.get(fullPathFileName).normalize().toString();
+	}
+
+
+
+	//存储卷上的日志文件，每行为“+相对路径”（标记删除）或“-相对路径”（已删除或取消删除）
+	private static final class Journal {
+
+		private final Set<String> replayed = new LinkedHashSet<>();
+		private FileChannel channel;
+		private Writer writer;
+		private boolean empty;
+
+		private Journal() {
+		}
+
+		//重放日志，并用其中尚未删除的文件重写日志
+		static Journal open(Path file) throws IOException {
+			Journal journal=new Journal();
+			Files.createDirectories(file.getParent());
+			if(Files.exists(file)){
+				for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)){
+					if(line.startsWith("+")){
+						journal.replayed.add(line.substring(1));
+					}else if(line.startsWith("-")){
+						journal.replayed.remove(line.substring(1));
+					}
+				}
+			}
+			Path tempFile=file.resolveSibling(JOURNAL_FILE + ".tmp");
+			try(FileChannel channel=FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)){
+				Writer writer=Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1);
+				for(String relativePath : journal.replayed){
+					writer.write('+');
+					writer.write(relativePath);
+					writer.write('\n');
+				}
+				writer.flush();
+				channel.force(false);
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			journal.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			journal.writer = Channels.newWriter(journal.channel, StandardCharsets.UTF_8.newEncoder(), -1);
+			journal.empty = journal.replayed.isEmpty();
+			return journal;
+		}
+
+		Set<String> getReplayed() {
+			return this.replayed;
+		}
+
+		void append(char operation, String relativePath) throws IOException {
+			this.writer.write(operation);
+			this.writer.write(relativePath);
+			this.writer.write('\n');
+			this.empty = false;
+		}
+
+		void flush() throws IOException {
+			this.writer.flush();
+			this.channel.force(false);
+		}
+
+		//没有待删除的文件时清空日志
+		void clear() throws IOException {
+			if(this.empty){
+				return;
+			}
+			this.writer.flush();
+			this.channel.truncate(0);
+			this.channel.force(false);
+			this.empty = true;
+		}
+
+		void close() throws IOException {
+			this.writer.close();
+		}
+	}
+
+
+
+	//队列中待删除的文件，删除失败后按退避的延迟重新放入队列
+	private static final class Removal implements Delayed {
+
+		private final String path;
+		private final long delayMillis;
+		private final long dueNanos;
+
+		Removal(String path) {
+			this(path, 0);
+		}
+
+		private Removal(String path, long delayMillis) {
+			this.path = path;
+			this.delayMillis = delayMillis;
+			this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		}
+
+		Removal retry() {
+			return new Removal(this.path, Math.min(Math.max(this.delayMillis * 2, FIRST_RETRY_DELAY_MILLIS), MAX_RETRY_DELAY_MILLIS));
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(this.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(this.dueNanos, ((Removal)other).dueNanos);
+		}
+	}
+
+}
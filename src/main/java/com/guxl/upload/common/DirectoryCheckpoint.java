@@ -0,0 +1,63 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * 记录一个存储卷上已处理完的目录（相对路径），每行一个。UploadSweeper和UploadScrubber用它在进程重启后从上次中断的位置继续遍历。
+ * @author xiangligu
+ *
+ */
+final class DirectoryCheckpoint {
+
+	private final Path file;
+	private final Set<String> done = ConcurrentHashMap.newKeySet();
+	private Writer writer;
+
+	private DirectoryCheckpoint(Path file) {
+		this.file = file;
+	}
+
+	static DirectoryCheckpoint open(Path file) throws IOException {
+		DirectoryCheckpoint checkpoint=new DirectoryCheckpoint(file);
+		Files.createDirectories(file.getParent());
+		if(Files.exists(file)){
+			checkpoint.done.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+		}
+		checkpoint.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return checkpoint;
+	}
+
+	int getDoneCount() {
+		return this.done.size();
+	}
+
+	boolean isDone(String relativePath) {
+		return this.done.contains(relativePath);
+	}
+
+	synchronized void markDone(String relativePath) throws IOException {
+		this.writer.write(relativePath);
+		this.writer.write('\n');
+		this.writer.flush();
+		this.done.add(relativePath);
+	}
+
+	//全部目录都已处理完，删除检查点，下次从头开始
+	synchronized void finish() throws IOException {
+		this.writer.close();
+		Files.deleteIfExists(this.file);
+	}
+
+	synchronized void close() throws IOException {
+		this.writer.close();
+	}
+
+}
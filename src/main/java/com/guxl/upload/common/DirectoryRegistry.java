@@ -0,0 +1,69 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * 记录已确认存在的目录。保存文件时先在内存中查找目标目录，只有第一次用到某个目录时才访问文件系统检查或创建，
+ * 避免每次保存文件都对路径中的各级目录执行stat。
+ * <p> 最多记录最近用到的MAX_DIRECTORIES个目录，被淘汰的目录下次用到时重新检查。
+ * <p> 注意：fsBasePath下的目录不应在程序运行期间被外部删除，否则需要调用forget()或clear()。
+ * @author xiangligu
+ *
+ */
+public class DirectoryRegistry {
+
+	//最多记录的目录数
+	private static final int MAX_DIRECTORIES = 200000;
+
+	private final Cache<Path, Boolean> knownDirectories = CacheBuilder.newBuilder().maximumSize(MAX_DIRECTORIES).build();
+
+
+	/**
+	 * 确保dir目录存在，不存在时创建该目录及其上级目录
+	 * @param dir 目录的完整路径
+	 * @return dir
+	 * @throws IOException
+	 */
+	public Path ensureDirectory(Path dir) throws IOException {
+		Preconditions.checkNotNull(dir, "参数dir不允许为null");
+		if(this.knownDirectories.getIfPresent(dir)==null){
+			Files.createDirectories(dir);
+			this.knownDirectories.put(dir, Boolean.TRUE);
+		}
+		return dir;
+	}
+
+
+	/**
+	 * 不再记录dir目录存在，下次用到时重新检查
+	 * @param dir 目录的完整路径
+	 */
+	public void forget(Path dir) {
+		Preconditions.checkNotNull(dir, "参数dir不允许为null");
+		this.knownDirectories.invalidate(dir);
+	}
+
+
+	/**
+	 * @return 已确认存在的目录数
+	 */
+	public long size() {
+		return this.knownDirectories.size();
+	}
+
+
+	/**
+	 * 清空已记录的目录，之后再次用到各目录时会重新检查
+	 */
+	public void clear() {
+		this.knownDirectories.invalidateAll();
+	}
+
+}
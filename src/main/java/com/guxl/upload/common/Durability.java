@@ -0,0 +1,28 @@
+package com.guxl.upload.common;
+
+
+/**
+ * 保存文件时的持久化级别。无论哪个级别，文件都先写入同一目录下的临时文件，写完后原子地重命名为目标文件，
+ * 因此读取方不会看到写了一半的文件；各级别的区别在于重命名前后是否调用fsync。
+ * @author xiangligu
+ *
+ */
+public enum Durability {
+
+	/**
+	 * 不调用fsync，由操作系统决定何时写入磁盘。系统崩溃时最近保存的文件可能丢失或为空。
+	 */
+	NONE,
+
+	/**
+	 * 由保存文件的线程对文件内容和所在目录分别调用fsync后才返回，每个文件至少两次fsync。
+	 */
+	PER_FILE,
+
+	/**
+	 * 将fsync交给GroupCommitScheduler，与同一时间段内其他线程保存的文件一起提交：各文件的fsync集中连续执行，共享文件系统日志的提交和磁盘缓存的刷新，
+	 * 同一目录只fsync一次。返回时文件同样已经持久化，但平均每个文件的fsync开销远小于PER_FILE。
+	 */
+	GROUP
+
+}
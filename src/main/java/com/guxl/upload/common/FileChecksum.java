@@ -0,0 +1,101 @@
+package com.guxl.upload.common;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 上传文件的校验和，以“算法:十六进制值”的格式保存，如“crc32c:1a2b3c4d”。
+ * <br> 默认使用CRC32C：JDK 9及以上的java.util.zip.CRC32C由CPU指令加速，通过反射创建，因此在JDK 8下也可以编译运行；
+ * 没有CRC32C时使用CRC32。校验时按保存的校验和中的算法重新计算，更换JDK后之前保存的校验和仍然有效（算法不可用时无法校验）。
+ * @author xiangligu
+ *
+ */
+public class FileChecksum {
+
+	public static final String CRC32C = "crc32c";
+	public static final String CRC32 = "crc32";
+
+	private static final Constructor<? extends Checksum> CRC32C_CONSTRUCTOR = FileChecksum.findCrc32c();
+
+
+
+	/**
+	 * @return 保存文件时使用的算法：JDK支持时为crc32c，否则为crc32
+	 */
+	public final static String getDefaultAlgorithm(){
+		return CRC32C_CONSTRUCTOR!=null ? CRC32C : CRC32;
+	}
+
+
+	/**
+	 * @param algorithm 算法名称
+	 * @return 当前JDK是否可以计算该算法的校验和
+	 */
+	public final static boolean isSupported(String algorithm){
+		return CRC32.equals(algorithm) || (CRC32C.equals(algorithm) && CRC32C_CONSTRUCTOR!=null);
+	}
+
+
+	/**
+	 * @param algorithm 算法名称，必须是当前JDK支持的算法
+	 * @return 新的Checksum对象
+	 */
+	public final static Checksum newChecksum(String algorithm){
+		Preconditions.checkArgument(FileChecksum.isSupported(algorithm), "不支持校验和算法" + algorithm);
+		if(CRC32.equals(algorithm)){
+			return new CRC32();
+		}
+		try{
+			return CRC32C_CONSTRUCTOR.newInstance();
+		}catch(ReflectiveOperationException e){
+			throw new IllegalStateException("创建CRC32C失败", e);
+		}
+	}
+
+
+	/**
+	 * @return 按默认算法计算的新的Checksum对象
+	 */
+	public final static Checksum newChecksum(){
+		return FileChecksum.newChecksum(FileChecksum.getDefaultAlgorithm());
+	}
+
+
+	/**
+	 * @param algorithm 算法名称
+	 * @param checksum 已计算完的Checksum对象
+	 * @return “算法:十六进制值”格式的校验和
+	 */
+	public final static String format(String algorithm, Checksum checksum){
+		Preconditions.checkNotNull(algorithm, "参数algorithm不允许为null");
+		Preconditions.checkNotNull(checksum, "参数checksum不允许为null");
+		return algorithm + ":" + String.format("%08x", checksum.getValue());
+	}
+
+
+	/**
+	 * @param checksum “算法:十六进制值”格式的校验和
+	 * @return 校验和中的算法名称，格式不正确时返回null
+	 */
+	public final static String getAlgorithm(String checksum){
+		Preconditions.checkNotNull(checksum, "参数checksum不允许为null");
+		int colon=checksum.indexOf(':');
+		return colon>0 ? checksum.substring(0, colon) : null;
+	}
+
+
+
+	//==================private functions===================
+	private final static Constructor<? extends Checksum> findCrc32c(){
+		try{
+			return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+		}catch(ReflectiveOperationException e){
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.guxl.upload.common;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+
+/**
+ * 决定上传文件是否压缩保存，并在写入时进行压缩。以下文件在写入文件系统时被压缩为gzip格式：
+ * <br> 扩展名在fileTypes中的文件（如csv、json、log、txt、svg等文本类型）；
+ * <br> 开启了内容检测时，其他扩展名的文件中，开头的SNIFF_BYTES个字节看起来是文本的文件（不含0字节，控制字符不超过1%）。
+ * <p> 不足MIN_FILE_BYTES的文件压缩后反而可能变大，不压缩。压缩保存的文件的contentEncoding为gzip，fileSize为压缩前的大小，storedSize为压缩后的大小。
+ * @author xiangligu
+ *
+ */
+public class FileCompressor {
+
+	public static final String GZIP = "gzip";
+	//判断文件大小和检测内容时预读的字节数
+	private static final int SNIFF_BYTES = 512;
+	private static final int MIN_FILE_BYTES = 256;
+
+	private final Set<String> fileTypes;
+	private boolean sniffContent = true;
+	private int level = 6;
+
+
+	/**
+	 * @param fileTypes 按扩展名压缩的文件类型，不区分大小写
+	 */
+	public FileCompressor(Collection<String> fileTypes) {
+		Preconditions.checkNotNull(fileTypes, "参数fileTypes不允许为null");
+		this.fileTypes = fileTypes.stream().map(fileType -> fileType.trim().toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+	}
+
+
+	/**
+	 * @param sniffContent 扩展名不在fileTypes中的文件是否根据内容判断是否压缩
+	 */
+	public void setSniffContent(boolean sniffContent) {
+		this.sniffContent = sniffContent;
+	}
+
+
+	/**
+	 * @param level 压缩级别，1（最快）～9（压缩率最高）
+	 */
+	public void setLevel(int level) {
+		Preconditions.checkArgument(level>=1 && level<=9, "参数level必须在1～9之间");
+		this.level = level;
+	}
+
+
+	public Set<String> getFileTypes() {
+		return this.fileTypes;
+	}
+
+	public boolean isSniffContent() {
+		return this.sniffContent;
+	}
+
+	public int getLevel() {
+		return this.level;
+	}
+
+
+	/**
+	 * @param fileType 文件的扩展名
+	 * @return 扩展名为fileType的文件是否一定按扩展名压缩
+	 */
+	public boolean isCompressible(String fileType) {
+		return fileType!=null && this.fileTypes.contains(fileType.toLowerCase(Locale.ROOT));
+	}
+
+
+	/**
+	 * @param fileType 文件的扩展名
+	 * @return 扩展名为fileType的文件是否可能被压缩（按扩展名或内容）
+	 */
+	public boolean mayCompress(String fileType) {
+		return this.sniffContent || this.isCompressible(fileType);
+	}
+
+
+	/**
+	 * 预读inputStream开头的数据，判断文件是否需要压缩
+	 * @param inputStream 上传文件的输入流
+	 * @param fileType 文件的扩展名
+	 * @return 需要压缩时返回GzipCompressingInputStream，从中读出的是压缩后的数据；否则返回与inputStream内容相同的输入流
+	 * @throws IOException
+	 */
+	public InputStream wrap(InputStream inputStream, String fileType) throws IOException {
+		Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+		if(!this.mayCompress(fileType)){
+			return inputStream;
+		}
+
+		BufferedInputStream buffered=new BufferedInputStream(inputStream, SNIFF_BYTES);
+		buffered.mark(SNIFF_BYTES);
+		byte[] head=new byte[SNIFF_BYTES];
+		int length=ByteStreams.read(buffered, head, 0, head.length);
+		buffered.reset();
+		if(length<MIN_FILE_BYTES || !(this.isCompressible(fileType) || looksLikeText(head, length))){
+			return buffered;
+		}
+		return new GzipCompressingInputStream(buffered, this.level);
+	}
+
+
+
+	//==================private functions===================
+	//不含0字节，且除制表符、换行、换页和回车以外的控制字符不超过1%；非ASCII字节视为UTF-8等编码的文本
+	private static boolean looksLikeText(byte[] head, int length){
+		int controls=0;
+		for(int i=0; i<length; i++){
+			int b=head[i] & 0xff;
+			if(b==0){
+				return false;
+			}
+			if((b<0x20 && b!='\t' && b!='\n' && b!='\f' && b!='\r') || b==0x7f){
+				controls++;
+			}
+		}
+		return controls*100<=length;
+	}
+
+}
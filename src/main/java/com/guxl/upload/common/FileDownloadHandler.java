@@ -0,0 +1,576 @@
+package com.guxl.upload.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.HttpRequestHandler;
+import org.springframework.web.util.UrlPathHelper;
+
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * 下载已上传文件的处理器，映射到“{urlBasePath}**”，替代通用的ResourceHttpRequestHandler：
+ * <br> 响应头（Content-Length、Last-Modified、ETag）直接由UploadedFileLocator提供的文件信息生成，不需要每次请求都读取文件属性；
+ * <br> 支持If-None-Match和If-Modified-Since，文件未变化时返回304；
+ * <br> 支持单个和多个区间的Range请求（返回206，多个区间时使用multipart/byteranges），以及If-Range；
+ * <br> web服务器支持时（如tomcat的NIO connector）使用sendfile零拷贝发送文件，否则使用FileChannel.transferTo发送；
+ * <br> 设置了HotFileCache时，小文件从缓存在内存中的内容发送，不访问文件系统；打包保存在段文件中的小文件直接从段文件的内存映射发送；
+ * <br> 设置了UploadMetrics时，记录每次下载的耗时、发送的字节数和错误；
+ * <br> 压缩保存的文件（contentEncoding为gzip）不支持Range：客户端接受gzip时直接发送文件系统中的内容并返回Content-Encoding: gzip，不需要每次请求都压缩；
+ * 否则边读边解压发送，不返回Content-Length；
+ * <br> 设置了ImageDerivativeService时，图片的url带有w和h参数（如“?w=256&h=256”）时发送该尺寸的缩略图；
+ * 缩略图尚未生成时排队生成，不占用请求线程等待，立即返回503和Retry-After，客户端稍后重试时发送已生成的缩略图；生成队列已满时同样返回503。
+ * <p> ETag优先使用文件内容的摘要，没有摘要时由文件大小和修改时间生成；压缩保存的文件以gzip编码发送时，ETag加上“-gzip”后缀。
+ * @author xiangligu
+ *
+ */
+public class FileDownloadHandler implements HttpRequestHandler {
+
+	//tomcat的sendfile相关的request attribute
+	private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+	//小于该字节数的响应不使用sendfile，直接写出的开销更小
+	private static final long SENDFILE_MIN_BYTES = 48 * 1024;
+	//一个Range请求中最多允许的区间数，超过时忽略Range，返回整个文件
+	private static final int MAX_RANGES = 16;
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	//缩略图正在生成时建议客户端重试的秒数
+	private static final String DERIVATIVE_RETRY_AFTER_SECONDS = "1";
+
+	private final UploadedFileLocator fileLocator;
+	private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+	private HotFileCache hotFileCache;
+	private UploadMetrics metrics;
+	private ImageDerivativeService derivativeService;
+
+
+	public FileDownloadHandler(UploadedFileLocator fileLocator) {
+		this.fileLocator = Preconditions.checkNotNull(fileLocator, "参数fileLocator不允许为null");
+	}
+
+
+	/**
+	 * @param hotFileCache 小文件的读缓存，为null时总是从文件系统读取
+	 */
+	public void setHotFileCache(HotFileCache hotFileCache) {
+		this.hotFileCache = hotFileCache;
+	}
+
+
+	/**
+	 * @param metrics 记录下载指标的UploadMetrics，为null时不记录
+	 */
+	public void setMetrics(UploadMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * @param derivativeService 生成图片缩略图的ImageDerivativeService，为null时忽略w和h参数
+	 */
+	public void setDerivativeService(ImageDerivativeService derivativeService) {
+		this.derivativeService = derivativeService;
+	}
+
+
+	@Override
+	public void handleRequest(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		if(this.metrics==null){
+			this.serve(request, response);
+			return;
+		}
+		
+		long start=System.nanoTime();
+		long sentBytes=0;
+		this.metrics.downloadStarted();
+		try{
+			sentBytes=this.serve(request, response);
+		}catch(IOException | RuntimeException e){
+			this.metrics.recordError(e);
+			throw e;
+		}finally{
+			this.metrics.record(UploadMetrics.Stage.DOWNLOAD, start);
+			this.metrics.downloadFinished(sentBytes);
+		}
+	}
+
+
+
+	//==================private functions===================
+	//处理一次下载请求，返回发送的文件内容的字节数
+	private long serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		boolean headRequest="HEAD".equals(request.getMethod());
+		if(!headRequest && !"GET".equals(request.getMethod())){
+			response.setHeader(HttpHeaders.ALLOW, "GET, HEAD");
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return 0;
+		}
+		
+		UploadedFileInfo fileInfo=this.fileLocator.locate(this.urlPathHelper.getPathWithinApplication(request));
+		if(fileInfo==null){
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return 0;
+		}
+		
+		//缩略图在图片被覆盖时直接删除，不放入HotFileCache，以免发送已失效的缓存
+		boolean derived=this.derivativeService!=null && (request.getParameter("w")!=null || request.getParameter("h")!=null);
+		if(derived){
+			fileInfo=this.getDerivative(request, response, fileInfo);
+			if(fileInfo==null){
+				return 0;
+			}
+		}
+		
+		long fileSize=fileInfo.getFileSize();
+		long lastModified=fileInfo.getSaveTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		boolean compressed=FileCompressor.GZIP.equals(fileInfo.getContentEncoding());
+		boolean sendEncoded=compressed && this.acceptsGzip(request);
+		String eTag=this.getETag(fileInfo, lastModified, sendEncoded);
+		response.setHeader(HttpHeaders.ETAG, eTag);
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		if(compressed){
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, compressed ? "none" : "bytes");
+		
+		if(this.isNotModified(request, eTag, lastModified)){
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return 0;
+		}
+		
+		String contentType=request.getServletContext().getMimeType(fileInfo.getFilePath());
+		contentType=contentType!=null ? contentType : DEFAULT_CONTENT_TYPE;
+		
+		if(compressed){
+			try{
+				return this.sendCompressed(request, response, fileInfo, contentType, sendEncoded, headRequest);
+			}catch(NoSuchFileException e){
+				if(!response.isCommitted()){
+					response.reset();
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				}
+				return 0;
+			}
+		}
+		
+		List<ByteRange> ranges=this.getRequestedRanges(request, eTag, lastModified, fileSize);
+		if(ranges!=null && ranges.isEmpty()){
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return 0;
+		}
+		
+		Path path=Paths.get(fileInfo.getFilePath());
+		try{
+			ByteBuffer cached=headRequest || derived ? null : this.getCachedContent(fileInfo);
+			if(ranges==null){
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(contentType);
+				this.sendRange(request, response, path, cached, new ByteRange(0, fileSize), headRequest);
+				return headRequest ? 0 : fileSize;
+			}else if(ranges.size()==1){
+				ByteRange range=ranges.get(0);
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setContentType(contentType);
+				response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range.getStart() + "-" + (range.getEnd()-1) + "/" + fileSize);
+				this.sendRange(request, response, path, cached, range, headRequest);
+				return headRequest ? 0 : range.getLength();
+			}else{
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				this.sendMultipartRanges(response, path, cached, ranges, contentType, fileSize, headRequest);
+				return headRequest ? 0 : ranges.stream().mapToLong(ByteRange::getLength).sum();
+			}
+		}catch(NoSuchFileException e){
+			//文件在查找到信息之后被删除
+			if(!response.isCommitted()){
+				response.reset();
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			}
+			return 0;
+		}
+	}
+	
+	
+	//取得请求的缩略图的文件信息；参数不合法、不能生成或尚未生成完成时发送错误响应并返回null
+	private UploadedFileInfo getDerivative(HttpServletRequest request, HttpServletResponse response, UploadedFileInfo original) 
+			throws IOException{
+		ImageDerivativeService.Size size;
+		try{
+			size=new ImageDerivativeService.Size(Integer.parseInt(String.valueOf(request.getParameter("w"))), 
+					Integer.parseInt(String.valueOf(request.getParameter("h"))));
+		}catch(IllegalArgumentException e){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "参数w和h必须为正整数");
+			return null;
+		}
+		if(!this.derivativeService.isImage(original.getFileType()) || !this.derivativeService.isAllowed(size)){
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "不支持的图片类型或缩略图尺寸，允许的尺寸为" + this.derivativeService.getSizes());
+			return null;
+		}
+		
+		Path variant;
+		try{
+			CompletableFuture<Path> future=this.derivativeService.getVariant(original, size);
+			if(!future.isDone()){
+				//生成任务在后台继续执行，不占用请求线程等待
+				response.setHeader(HttpHeaders.RETRY_AFTER, DERIVATIVE_RETRY_AFTER_SECONDS);
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return null;
+			}
+			variant=future.get();
+		}catch(UploadQueueFullException e){
+			response.setHeader(HttpHeaders.RETRY_AFTER, DERIVATIVE_RETRY_AFTER_SECONDS);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return null;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("读取缩略图的生成结果时被中断");
+		}catch(ExecutionException e){
+			Throwable cause=e.getCause();
+			if(cause instanceof UploadQueueFullException){
+				response.setHeader(HttpHeaders.RETRY_AFTER, DERIVATIVE_RETRY_AFTER_SECONDS);
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				return null;
+			}
+			if(cause instanceof NoSuchFileException){
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return null;
+			}
+			if(cause instanceof IllegalArgumentException){
+				response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, cause.getMessage());
+				return null;
+			}
+			throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+		}
+		
+		BasicFileAttributes attributes;
+		try{
+			attributes=Files.readAttributes(variant, BasicFileAttributes.class);
+		}catch(NoSuchFileException e){
+			//缩略图在生成之后被删除（图片被覆盖或删除）
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+		UploadedFileInfo fileInfo=new UploadedFileInfo();
+		fileInfo.setFileName(original.getFileName());
+		fileInfo.setFileType(original.getFileType());
+		fileInfo.setFilePath(variant.toString());
+		fileInfo.setUrlPath(original.getUrlPath());
+		fileInfo.setFileSize(attributes.size());
+		fileInfo.setSaveTime(LocalDateTime.ofInstant(attributes.lastModifiedTime().toInstant(), ZoneId.systemDefault()));
+		fileInfo.setVolume(original.getVolume());
+		return fileInfo;
+	}
+	
+	
+	//同一文件以gzip编码发送和解压后发送是不同的表示，ETag不能相同
+	private String getETag(UploadedFileInfo fileInfo, long lastModified, boolean encoded){
+		String suffix=encoded ? "-" + FileCompressor.GZIP : "";
+		if(fileInfo.getContentHash()!=null){
+			return "\"" + fileInfo.getContentHash() + suffix + "\"";
+		}
+		return "\"" + Long.toHexString(fileInfo.getFileSize()) + "-" + Long.toHexString(lastModified) + suffix + "\"";
+	}
+	
+	
+	//Accept-Encoding中是否包含q值不为0的gzip（或x-gzip、*）
+	private boolean acceptsGzip(HttpServletRequest request){
+		String acceptEncoding=request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		if(acceptEncoding==null){
+			return false;
+		}
+		for(String coding : acceptEncoding.split(",")){
+			String[] params=coding.split(";");
+			String name=params[0].trim();
+			if(!name.equalsIgnoreCase(FileCompressor.GZIP) && !name.equalsIgnoreCase("x-gzip") && !name.equals("*")){
+				continue;
+			}
+			boolean rejected=false;
+			for(int i=1; i<params.length; i++){
+				String param=params[i].trim();
+				if(param.startsWith("q=")){
+					try{
+						rejected=Double.parseDouble(param.substring(2).trim())<=0;
+					}catch(NumberFormatException e){
+						rejected=true;
+					}
+				}
+			}
+			if(!rejected){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	//发送压缩保存的文件：sendEncoded为true时直接发送文件系统中的gzip数据，否则边读边解压发送
+	private long sendCompressed(HttpServletRequest request, HttpServletResponse response, UploadedFileInfo fileInfo, String contentType, 
+			boolean sendEncoded, boolean headRequest) throws IOException{
+		Path path=Paths.get(fileInfo.getFilePath());
+		ByteBuffer cached=headRequest ? null : this.getCachedContent(fileInfo);
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(contentType);
+		if(sendEncoded){
+			long storedSize=getStoredSize(fileInfo);
+			response.setHeader(HttpHeaders.CONTENT_ENCODING, FileCompressor.GZIP);
+			this.sendRange(request, response, path, cached, new ByteRange(0, storedSize), headRequest);
+			return headRequest ? 0 : storedSize;
+		}
+		
+		//从文件系统读取属性得到的压缩前大小可能不准确（模2^32），不返回Content-Length
+		if(headRequest){
+			return 0;
+		}
+		InputStream stored;
+		if(cached!=null){
+			byte[] content=new byte[cached.remaining()];
+			cached.duplicate().get(content);
+			stored=new ByteArrayInputStream(content);
+		}else{
+			stored=Files.newInputStream(path);
+		}
+		try(InputStream decompressed=new GZIPInputStream(stored, 8192)){
+			return ByteStreams.copy(decompressed, response.getOutputStream());
+		}
+	}
+	
+	
+	//文件在文件系统中占用的字节数，没有记录时与文件大小相同
+	private static long getStoredSize(UploadedFileInfo fileInfo){
+		return fileInfo.getStoredSize()!=null ? fileInfo.getStoredSize() : fileInfo.getFileSize();
+	}
+	
+	
+	//取得已在内存中的文件内容（压缩保存的文件为压缩后的内容）：打包保存的小文件直接使用段文件的内存映射，其他文件从HotFileCache中取得；
+	//文件不可缓存或缓存的内容与文件信息不一致时返回null
+	private ByteBuffer getCachedContent(UploadedFileInfo fileInfo) throws IOException{
+		long storedSize=getStoredSize(fileInfo);
+		ByteBuffer packed=this.fileLocator.getUploadManager().getFileWriter().readPackedFile(fileInfo.getFilePath());
+		if(packed!=null && packed.remaining()==storedSize){
+			return packed;
+		}
+		if(this.hotFileCache==null){
+			return null;
+		}
+		ByteBuffer cached=this.hotFileCache.get(fileInfo);
+		if(cached!=null && cached.remaining()!=storedSize){
+			this.hotFileCache.invalidate(fileInfo.getFilePath());
+			return null;
+		}
+		return cached;
+	}
+	
+	
+	//根据If-None-Match和If-Modified-Since判断客户端缓存的文件是否仍然有效，If-None-Match优先
+	private boolean isNotModified(HttpServletRequest request, String eTag, long lastModified){
+		String ifNoneMatch=request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if(ifNoneMatch!=null){
+			for(String tag : ifNoneMatch.split(",")){
+				tag=tag.trim();
+				if(tag.startsWith("W/")){
+					tag=tag.substring(2);
+				}
+				if(tag.equals("*") || tag.equals(eTag)){
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		long ifModifiedSince=this.getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+		//http日期只精确到秒
+		return ifModifiedSince>=0 && lastModified/1000 <= ifModifiedSince/1000;
+	}
+	
+	
+	/**
+	 * 解析Range请求头
+	 * @return 没有Range请求头、格式不正确或If-Range不满足时返回null，表示返回整个文件；没有可满足的区间时返回空列表
+	 */
+	private List<ByteRange> getRequestedRanges(HttpServletRequest request, String eTag, long lastModified, long fileSize){
+		String rangeHeader=request.getHeader(HttpHeaders.RANGE);
+		if(rangeHeader==null || !rangeHeader.startsWith("bytes=")){
+			return null;
+		}
+		
+		String ifRange=request.getHeader(HttpHeaders.IF_RANGE);
+		if(ifRange!=null){
+			if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+				if(!ifRange.equals(eTag)){
+					return null;
+				}
+			}else if(this.getDateHeader(request, HttpHeaders.IF_RANGE)/1000 != lastModified/1000){
+				return null;
+			}
+		}
+		
+		String[] specs=rangeHeader.substring("bytes=".length()).split(",");
+		if(specs.length>MAX_RANGES){
+			return null;
+		}
+		List<ByteRange> ranges=new ArrayList<>(specs.length);
+		try{
+			for(String spec : specs){
+				spec=spec.trim();
+				int dash=spec.indexOf('-');
+				if(dash<0){
+					return null;
+				}
+				String first=spec.substring(0, dash).trim();
+				String last=spec.substring(dash+1).trim();
+				if(first.isEmpty()){
+					//后缀区间，如“-500”表示最后500个字节
+					long suffixLength=Long.parseLong(last);
+					if(suffixLength>0 && fileSize>0){
+						ranges.add(new ByteRange(Math.max(0, fileSize-suffixLength), fileSize));
+					}
+					continue;
+				}
+				long start=Long.parseLong(first);
+				long end=last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+				if(end<start){
+					return null;
+				}
+				if(start<fileSize){
+					ranges.add(new ByteRange(start, Math.min(end, fileSize-1)+1));
+				}
+			}
+		}catch(NumberFormatException e){
+			return null;
+		}
+		return ranges;
+	}
+	
+	
+	//发送文件中的一个区间，文件已缓存时从缓存发送，能使用sendfile时交给web服务器发送
+	private void sendRange(HttpServletRequest request, HttpServletResponse response, Path path, ByteBuffer cached, ByteRange range, 
+			boolean headRequest) throws IOException{
+		response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(range.getLength()));
+		if(headRequest){
+			return;
+		}
+		
+		if(cached!=null){
+			this.transfer(cached, range, Channels.newChannel(response.getOutputStream()));
+			return;
+		}
+		
+		if(range.getLength()>=SENDFILE_MIN_BYTES && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))){
+			request.setAttribute(SENDFILE_FILENAME_ATTR, path.toAbsolutePath().toString());
+			request.setAttribute(SENDFILE_START_ATTR, range.getStart());
+			request.setAttribute(SENDFILE_END_ATTR, range.getEnd());
+			return;
+		}
+		
+		try(FileChannel source=FileChannel.open(path, StandardOpenOption.READ)){
+			this.transfer(source, range, Channels.newChannel(response.getOutputStream()));
+		}
+	}
+	
+	
+	//以multipart/byteranges格式发送多个区间
+	private void sendMultipartRanges(HttpServletResponse response, Path path, ByteBuffer cached, List<ByteRange> ranges, 
+			String contentType, long fileSize, boolean headRequest) throws IOException{
+		String boundary=UUID.randomUUID().toString().replace("-", "");
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		
+		List<byte[]> partHeaders=new ArrayList<>(ranges.size());
+		long contentLength=0;
+		for(ByteRange range : ranges){
+			byte[] partHeader=("\r\n--" + boundary + "\r\n" 
+					+ HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+					+ HttpHeaders.CONTENT_RANGE + ": bytes " + range.getStart() + "-" + (range.getEnd()-1) + "/" + fileSize + "\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(partHeader);
+			contentLength += partHeader.length + range.getLength();
+		}
+		byte[] closing=("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += closing.length;
+		response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(contentLength));
+		if(headRequest){
+			return;
+		}
+		
+		OutputStream out=response.getOutputStream();
+		WritableByteChannel target=Channels.newChannel(out);
+		if(cached!=null){
+			for(int i=0; i<ranges.size(); i++){
+				out.write(partHeaders.get(i));
+				this.transfer(cached, ranges.get(i), target);
+			}
+		}else{
+			try(FileChannel source=FileChannel.open(path, StandardOpenOption.READ)){
+				for(int i=0; i<ranges.size(); i++){
+					out.write(partHeaders.get(i));
+					this.transfer(source, ranges.get(i), target);
+				}
+			}
+		}
+		out.write(closing);
+	}
+	
+	
+	private void transfer(FileChannel source, ByteRange range, WritableByteChannel target) throws IOException{
+		long position=range.getStart();
+		while(position<range.getEnd()){
+			long transferred=source.transferTo(position, range.getEnd()-position, target);
+			if(transferred<=0){
+				//文件在发送过程中被截断
+				throw new IOException("文件长度小于记录的大小");
+			}
+			position += transferred;
+		}
+	}
+	
+	
+	private void transfer(ByteBuffer cached, ByteRange range, WritableByteChannel target) throws IOException{
+		ByteBuffer slice=cached.duplicate();
+		slice.limit((int)range.getEnd()).position((int)range.getStart());
+		while(slice.hasRemaining()){
+			target.write(slice);
+		}
+	}
+	
+	
+	private long getDateHeader(HttpServletRequest request, String name){
+		try{
+			return request.getDateHeader(name);
+		}catch(IllegalArgumentException e){
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,16 @@
+package com.guxl.upload.common;
+
+
+/**
+ * 生成保存上传文件时使用的文件名称（不含扩展名）。实现类必须是线程安全的，且生成的名称在fsBasePath下不重复。
+ * @author xiangligu
+ *
+ */
+public interface FileIdGenerator {
+
+	/**
+	 * @return 新的文件名称，只包含可以用于文件名和url的字符
+	 */
+	String nextId();
+
+}
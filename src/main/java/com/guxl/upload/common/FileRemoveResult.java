@@ -0,0 +1,55 @@
+package com.guxl.upload.common;
+
+
+/**
+ * 批量删除文件时单个文件的删除结果。删除失败时errorType和errorMessage记录失败原因。
+ * @author xiangligu
+ *
+ */
+public class FileRemoveResult {
+
+	private final int index;					//文件在请求列表中的序号
+	private final String filePath;				//文件的完整路径
+	private final String errorType;				//删除失败时的异常类型
+	private final String errorMessage;			//删除失败时的异常信息
+
+
+	private FileRemoveResult(int index, String filePath, Exception error) {
+		this.index = index;
+		this.filePath = filePath;
+		this.errorType = error==null ? null : error.getClass().getSimpleName();
+		this.errorMessage = error==null ? null : error.getMessage();
+	}
+
+
+	public static FileRemoveResult success(int index, String filePath) {
+		return new FileRemoveResult(index, filePath, null);
+	}
+
+	public static FileRemoveResult failure(int index, String filePath, Exception error) {
+		return new FileRemoveResult(index, filePath, error);
+	}
+
+
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public String getFilePath() {
+		return this.filePath;
+	}
+
+	public String getErrorType() {
+		return this.errorType;
+	}
+
+	public String getErrorMessage() {
+		return this.errorMessage;
+	}
+
+	public boolean isSuccess() {
+		return this.errorType == null;
+	}
+
+}
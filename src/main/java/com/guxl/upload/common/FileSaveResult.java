@@ -0,0 +1,61 @@
+package com.guxl.upload.common;
+
+
+/**
+ * 批量保存文件时单个文件的保存结果。保存成功时fileInfo不为null，失败时errorType和errorMessage记录失败原因。
+ * @author xiangligu
+ *
+ */
+public class FileSaveResult {
+
+	private final int index;					//文件在请求列表中的序号
+	private final String originFileName;		//文件的原始名称
+	private final UploadedFileInfo fileInfo;	//保存成功时的文件信息
+	private final String errorType;				//保存失败时的异常类型
+	private final String errorMessage;			//保存失败时的异常信息
+
+
+	private FileSaveResult(int index, String originFileName, UploadedFileInfo fileInfo, Exception error) {
+		this.index = index;
+		this.originFileName = originFileName;
+		this.fileInfo = fileInfo;
+		this.errorType = error==null ? null : error.getClass().getSimpleName();
+		this.errorMessage = error==null ? null : error.getMessage();
+	}
+
+
+	public static FileSaveResult success(int index, String originFileName, UploadedFileInfo fileInfo) {
+		return new FileSaveResult(index, originFileName, fileInfo, null);
+	}
+
+	public static FileSaveResult failure(int index, String originFileName, Exception error) {
+		return new FileSaveResult(index, originFileName, null, error);
+	}
+
+
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public String getOriginFileName() {
+		return this.originFileName;
+	}
+
+	public UploadedFileInfo getFileInfo() {
+		return this.fileInfo;
+	}
+
+	public String getErrorType() {
+		return this.errorType;
+	}
+
+	public String getErrorMessage() {
+		return this.errorMessage;
+	}
+
+	public boolean isSuccess() {
+		return this.fileInfo != null;
+	}
+
+}
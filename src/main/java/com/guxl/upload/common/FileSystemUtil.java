@@ -5,13 +5,19 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 
-import com.google.common.base.Joiner;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 
 public class FileSystemUtil {
 
+	//操作系统在运行期间不会改变，只在加载类时判断一次
+	private final static boolean MICROSOFT_WINDOWS = FileSystemUtil.getOsName().toUpperCase().indexOf("WINDOWS") != -1;
+	private final static char PATH_SPLIT_CHAR = MICROSOFT_WINDOWS ? '\\' : '/';
+	private final static Splitter PATH_SPLITTER = Splitter.on("/").trimResults().omitEmptyStrings();
+	
+	
 	/**
 	 * 获取当前java程序所运行在的操作系统名称
 	 * @return
@@ -26,12 +32,7 @@ public class FileSystemUtil {
 	 * @return
 	 */
 	public final static boolean isMicrosoftWindows(){
-		String osName = FileSystemUtil.getOsName();
-		if(osName.toUpperCase().indexOf("WINDOWS") != -1){
-			return true;
-		}else{
-			return false;
-		}
+		return MICROSOFT_WINDOWS;
 	}
 	
 	
@@ -45,9 +46,9 @@ public class FileSystemUtil {
 		Preconditions.checkNotNull(fileName,"参数fileName不允许为null");
 		Preconditions.checkArgument(fileName.trim().length()>0, "参数fileName不允许为空格或空字符串");
 		
-		String[] nameSplit = fileName.trim().split("\\.");
-		String extName = nameSplit.length > 0 ? nameSplit[nameSplit.length - 1] : "";
-		return extName;
+		String trimmedName = fileName.trim();
+		int dotIndex = trimmedName.lastIndexOf('.');
+		return dotIndex < 0 ? "" : trimmedName.substring(dotIndex + 1);
 	}
 	
 	
@@ -70,15 +71,8 @@ public class FileSystemUtil {
 	 * @return 处理后的绝对路径
 	 */
 	public final static String getRegularFullPath(String fullPath){
-		ArrayList<String> pathPartList=FileSystemUtil.getFullPathParts(fullPath);
-		String pathSplitChar=FileSystemUtil.getPathSplitChar();
-		
-		String tempStr=Joiner.on(pathSplitChar).skipNulls().join(pathPartList);
-		if(FileSystemUtil.isMicrosoftWindows()){
-			return tempStr + pathSplitChar;
-		}else{
-			return pathSplitChar + tempStr + pathSplitChar;
-		}
+		//windows的绝对路径以盘符开头，前面不加分隔符
+		return FileSystemUtil.joinPathParts(fullPath, PATH_SPLIT_CHAR, !MICROSOFT_WINDOWS, true);
 	}
 	
 	
@@ -89,9 +83,23 @@ public class FileSystemUtil {
 	 * @return 处理后的绝对虚拟路径
 	 */
 	public final static String getRegularFullUrlPath(String fullUrlPath){
-		ArrayList<String> pathPartList=FileSystemUtil.getFullPathParts(fullUrlPath);
-		String tempStr=Joiner.on("/").skipNulls().join(pathPartList);
-		return "/" + tempStr + "/";
+		return FileSystemUtil.joinPathParts(fullUrlPath, '/', true, true);
+	}
+	
+	
+	
+	/**
+	 * 将相对路径参数进行格式化，规则与getRegularFullPath相同，但使用“/”作为分隔符，且首尾都不带分隔符，如“ ab//cd/ ”格式化为“ab/cd”。
+	 * <br>参数已经是规范的相对路径时（如ShardLayout生成的子目录）直接返回参数本身，不创建新的字符串。
+	 * @param relativePath 待处理的相对路径
+	 * @return 处理后的相对路径
+	 */
+	public final static String getRegularRelativePath(String relativePath){
+		Preconditions.checkNotNull(relativePath, "参数relativePath不允许为null");
+		if(FileSystemUtil.isRegularRelativePath(relativePath)){
+			return relativePath;
+		}
+		return FileSystemUtil.joinPathParts(relativePath, '/', false, false);
 	}
 	
 	
@@ -148,11 +156,7 @@ public class FileSystemUtil {
 	 * @return
 	 */
 	private final static String getPathSplitChar(){
-		if(FileSystemUtil.isMicrosoftWindows()){
-			return "\\";
-		}else{
-			return "/";
-		}
+		return String.valueOf(PATH_SPLIT_CHAR);
 	}
 	
 	
@@ -167,7 +171,7 @@ public class FileSystemUtil {
 		Preconditions.checkArgument(fullPath.trim().length()>0, "参数fullPath不允许为空格或空字符串");
 		
 		String tempPath=FileSystemUtil.convertWindowsPathToUnixPath(fullPath);
-		ArrayList<String> pathPartList=Lists.newArrayList(Splitter.on("/").trimResults().omitEmptyStrings().split(tempPath));
+		ArrayList<String> pathPartList=Lists.newArrayList(PATH_SPLITTER.split(tempPath));
 		if(pathPartList.size()==0){
 			throw new IllegalArgumentException("参数fullPath："+fullPath+"不是合法的路径");
 		}
@@ -175,6 +179,78 @@ public class FileSystemUtil {
 	}
 	
 	
+	/**
+	 * 与getFullPathParts的拆分规则相同，但不创建中间的集合，直接将各级目录名称以splitChar连接起来
+	 * @param path 待处理的路径，“/”和“\”都视为路径分隔符
+	 * @param leadingSplitChar 结果是否以splitChar开头
+	 * @param trailingSplitChar 结果是否以splitChar结尾
+	 * @return 连接后的路径
+	 */
+	private final static String joinPathParts(String path, char splitChar, boolean leadingSplitChar, boolean trailingSplitChar){
+		Preconditions.checkNotNull(path, "参数fullPath不允许为null");
+		Preconditions.checkArgument(path.trim().length()>0, "参数fullPath不允许为空格或空字符串");
+		
+		StringBuilder result=new StringBuilder(path.length() + 2);
+		int length=path.length();
+		int partCount=0;
+		int i=0;
+		while(i<length){
+			while(i<length && FileSystemUtil.isSplitChar(path.charAt(i))){
+				i++;
+			}
+			int start=i;
+			while(i<length && !FileSystemUtil.isSplitChar(path.charAt(i))){
+				i++;
+			}
+			int end=i;
+			//删除目录名称首尾的空白字符，与Splitter.trimResults()相同
+			while(start<end && CharMatcher.WHITESPACE.matches(path.charAt(start))){
+				start++;
+			}
+			while(end>start && CharMatcher.WHITESPACE.matches(path.charAt(end-1))){
+				end--;
+			}
+			if(end>start){
+				if(partCount>0 || leadingSplitChar){
+					result.append(splitChar);
+				}
+				result.append(path, start, end);
+				partCount++;
+			}
+		}
+		if(partCount==0){
+			throw new IllegalArgumentException("参数fullPath："+path+"不是合法的路径");
+		}
+		if(trailingSplitChar){
+			result.append(splitChar);
+		}
+		return result.toString();
+	}
+	
+	
+	//判断路径是否已经是规范的相对路径：非空，只使用“/”作为分隔符，首尾不是分隔符，没有连续的分隔符，目录名称首尾没有空白字符
+	private final static boolean isRegularRelativePath(String path){
+		int length=path.length();
+		if(length==0){
+			return false;
+		}
+		boolean partStart=true;
+		for(int i=0; i<length; i++){
+			char c=path.charAt(i);
+			boolean partEnd=i==length-1 || path.charAt(i+1)=='/';
+			if(c=='\\' || (c=='/' && (partStart || partEnd)) || ((partStart || partEnd) && CharMatcher.WHITESPACE.matches(c))){
+				return false;
+			}
+			partStart= c=='/';
+		}
+		return true;
+	}
+	
+	private final static boolean isSplitChar(char c){
+		return c=='/' || c=='\\';
+	}
+	
+	
 	
 	
 }
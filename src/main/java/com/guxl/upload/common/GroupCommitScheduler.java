@@ -0,0 +1,384 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.guxl.upload.common.UploadMetrics.Stage;
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * 将写入临时文件的数据提交为目标文件：按Durability调用fsync，然后原子地重命名为目标文件，必要时再对目标目录调用fsync。
+ * <p> Durability.GROUP时，文件内容的fsync、重命名和目录的fsync都由一个提交线程批量执行（group commit）：取出队列中已有的全部请求（最多maxBatchSize个），
+ * 先连续地fsync各临时文件（共享文件系统日志的提交和磁盘缓存的刷新），再依次重命名，然后对涉及的每个目录只fsync一次，再唤醒全部等待的线程。
+ * 保存线程在等待期间不关闭临时文件的channel，提交线程使用同一个channel调用fsync。提交一批的同时到达的请求组成下一批，
+ * 因此并发保存的文件越多，每个文件分摊的目录fsync越少，PER_FILE时每个文件都要单独fsync一次目录。maxDelayMicros大于0时，第一个请求到达后还会再等待最多这么长时间以凑成更大的批次。
+ * <p> 有多个提交线程时，按目录的哈希值把请求分给各提交线程，同一目录的请求总是由同一个线程提交；
+ * 文件分布在多块磁盘上时，各磁盘的目录fsync可以并行执行。提交线程在第一次使用时启动。
+ * @author xiangligu
+ *
+ */
+public class GroupCommitScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(GroupCommitScheduler.class);
+
+	//临时文件名的后缀，以“.”开头的临时文件不会被FileDownloadHandler访问到
+	public static final String TEMP_FILE_SUFFIX = ".tmp";
+	//保存线程等待提交完成的最长时间，提交线程因磁盘故障等原因长时间无响应时不会无限期地占用保存线程
+	private static final long COMMIT_TIMEOUT_SECONDS = 60;
+
+	private final long maxDelayMicros;
+	private final int maxBatchSize;
+	//每个提交线程一个请求队列
+	private final List<BlockingQueue<Request>> queues;
+	private UploadMetrics metrics;
+	private volatile List<Thread> committers;
+	private volatile boolean running = true;
+
+
+	public GroupCommitScheduler() {
+		this(0, 256, 1);
+	}
+
+
+	/**
+	 * @param maxDelayMicros 一批提交中第一个请求额外等待的最大微秒数，为0时不额外等待，越大每批的文件越多，单个文件的延迟也越大
+	 * @param maxBatchSize 一批提交的最大请求数
+	 * @param threads 提交线程数，通常与保存文件的磁盘数相同
+	 */
+	public GroupCommitScheduler(long maxDelayMicros, int maxBatchSize, int threads) {
+		Preconditions.checkArgument(maxDelayMicros>=0, "参数maxDelayMicros不允许为负数");
+		Preconditions.checkArgument(maxBatchSize>0, "参数maxBatchSize必须为正整数");
+		Preconditions.checkArgument(threads>0, "参数threads必须为正整数");
+		this.maxDelayMicros = maxDelayMicros;
+		this.maxBatchSize = maxBatchSize;
+		List<BlockingQueue<Request>> queues=new ArrayList<>(threads);
+		for(int i=0; i<threads; i++){
+			queues.add(new LinkedBlockingQueue<>());
+		}
+		this.queues = queues;
+	}
+
+
+	/**
+	 * @param metrics 设置后，等待fsync的时间计入Stage.FSYNC
+	 */
+	public void setMetrics(UploadMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+
+	/**
+	 * @param target 目标文件
+	 * @return 与目标文件在同一目录下的新临时文件路径（文件尚未创建），形如“.xxx.jpg.1a2b3c4d5e6f7a8b.tmp”，同时写入同一目标文件的线程各自使用不同的临时文件
+	 */
+	public static Path newTempFile(Path target) {
+		return target.resolveSibling("." + target.getFileName() + "." 
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong()) + TEMP_FILE_SUFFIX);
+	}
+
+
+	/**
+	 * 将已写完的临时文件提交为目标文件。无论成功与否，都不会关闭channel；失败时临时文件由调用者删除。
+	 * @param channel 临时文件的channel，用于fsync，为null时表示临时文件的内容已经持久化（或不需要持久化）
+	 * @param tempFile 临时文件，必须与target在同一目录下
+	 * @param target 目标文件
+	 * @param overwrite 目标文件已存在时是否覆盖，不覆盖时抛出SameFileNameExistException
+	 * @param durability 持久化级别
+	 * @throws IOException
+	 */
+	public void commit(FileChannel channel, Path tempFile, Path target, boolean overwrite, Durability durability) throws IOException {
+		Preconditions.checkNotNull(tempFile, "参数tempFile不允许为null");
+		Preconditions.checkNotNull(target, "参数target不允许为null");
+		Preconditions.checkNotNull(durability, "参数durability不允许为null");
+		
+		long start=System.nanoTime();
+		switch(durability){
+		case NONE:
+			rename(tempFile, target, overwrite);
+			return;
+		case PER_FILE:
+			if(channel!=null){
+				channel.force(false);
+			}
+			rename(tempFile, target, overwrite);
+			syncDirectory(target.getParent());
+			break;
+		case GROUP:
+			this.await(new Request(channel, tempFile, target, overwrite, null));
+			break;
+		}
+		if(this.metrics!=null){
+			this.metrics.record(Stage.FSYNC, start);
+		}
+	}
+
+
+	/**
+	 * 使目录中新建、删除或重命名的目录项持久化，用于不经过commit而直接在目录中创建的文件（如硬链接）
+	 * @param directories 需要fsync的目录
+	 * @param durability 持久化级别，为NONE时什么也不做
+	 * @throws IOException
+	 */
+	public void syncDirectories(Set<Path> directories, Durability durability) throws IOException {
+		Preconditions.checkNotNull(directories, "参数directories不允许为null");
+		Preconditions.checkNotNull(durability, "参数durability不允许为null");
+		
+		if(directories.isEmpty()){
+			return;
+		}
+		long start=System.nanoTime();
+		switch(durability){
+		case NONE:
+			return;
+		case PER_FILE:
+			for(Path directory : directories){
+				syncDirectory(directory);
+			}
+			break;
+		case GROUP:
+			this.await(new Request(null, null, null, false, directories));
+			break;
+		}
+		if(this.metrics!=null){
+			this.metrics.record(Stage.FSYNC, start);
+		}
+	}
+
+
+	/**
+	 * 停止提交线程，已提交的请求处理完后才返回；此后的Durability.GROUP请求抛出IllegalStateException
+	 * @throws InterruptedException
+	 */
+	public synchronized void shutdown() throws InterruptedException {
+		this.running=false;
+		//不中断提交线程：FileChannel是可中断的，中断正在fsync的提交线程会关闭保存线程的channel；提交线程最多1秒后发现running为false
+		if(this.committers!=null){
+			for(Thread committer : this.committers){
+				committer.join();
+			}
+		}
+	}
+
+
+
+	//==================private functions===================
+	//将请求交给提交线程，并等待其完成
+	private void await(Request request) throws IOException {
+		Path directory=request.target!=null ? request.target.getParent() : request.directories.iterator().next();
+		this.enqueue(this.queues.get(Math.floorMod(directory.hashCode(), this.queues.size())), request);
+		try{
+			request.done.get(COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			//提交线程此后跳过该请求，临时文件由调用者删除
+			request.done.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("等待提交文件时被中断");
+		}catch(TimeoutException e){
+			request.done.cancel(false);
+			throw new IOException("等待提交文件超过" + COMMIT_TIMEOUT_SECONDS + "秒", e);
+		}catch(CancellationException e){
+			throw new IOException("提交文件的请求已取消", e);
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof IOException){
+				throw (IOException)e.getCause();
+			}
+			if(e.getCause() instanceof RuntimeException){
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	//与shutdown互斥地加入队列：shutdown之后不再接受请求，之前加入的请求一定会被提交线程处理完
+	private synchronized void enqueue(BlockingQueue<Request> queue, Request request) {
+		Preconditions.checkState(this.running, "GroupCommitScheduler已停止");
+		this.ensureStarted();
+		queue.add(request);
+	}
+	
+	private void ensureStarted() {
+		if(this.committers==null){
+			List<Thread> committers=new ArrayList<>(this.queues.size());
+			for(int i=0; i<this.queues.size(); i++){
+				BlockingQueue<Request> queue=this.queues.get(i);
+				Thread thread=new Thread(() -> this.commitLoop(queue), "upload-group-commit-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				committers.add(thread);
+			}
+			this.committers=committers;
+		}
+	}
+	
+	//提交线程：收集一批请求，先fsync各临时文件，再依次重命名，最后每个目录fsync一次
+	private void commitLoop(BlockingQueue<Request> queue) {
+		List<Request> batch=new ArrayList<>(this.maxBatchSize);
+		while(this.running || !queue.isEmpty()){
+			try{
+				Request first=queue.poll(1, TimeUnit.SECONDS);
+				if(first==null){
+					continue;
+				}
+				batch.add(first);
+				long deadline=System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(this.maxDelayMicros);
+				while(batch.size()<this.maxBatchSize){
+					queue.drainTo(batch, this.maxBatchSize - batch.size());
+					long remaining=deadline - System.nanoTime();
+					if(batch.size()>=this.maxBatchSize || remaining<=0){
+						break;
+					}
+					Request next=queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if(next==null){
+						break;
+					}
+					batch.add(next);
+				}
+			}catch(InterruptedException e){
+				//shutdown不会中断提交线程，被意外中断时处理完已取出的请求后继续
+			}
+			
+			if(!batch.isEmpty()){
+				this.commitBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+	
+	private void commitBatch(List<Request> batch) {
+		//已超时或被中断的请求不再提交，调用者会删除其临时文件
+		batch.removeIf(request -> request.done.isDone());
+		for(Request request : batch){
+			if(request.channel!=null){
+				try{
+					request.channel.force(false);
+				}catch(IOException | RuntimeException e){
+					request.done.completeExceptionally(e);
+				}
+			}
+		}
+		
+		Set<Path> directories=new LinkedHashSet<>();
+		for(Request request : batch){
+			if(request.done.isDone()){
+				continue;
+			}
+			try{
+				if(request.tempFile!=null){
+					rename(request.tempFile, request.target, request.overwrite);
+					directories.add(request.target.getParent());
+				}
+				if(request.directories!=null){
+					directories.addAll(request.directories);
+				}
+			}catch(IOException | RuntimeException e){
+				request.done.completeExceptionally(e);
+			}
+		}
+		
+		Map<Path, IOException> directoryErrors=new HashMap<>();
+		for(Path directory : directories){
+			try{
+				syncDirectory(directory);
+			}catch(IOException e){
+				logger.error("fsync目录" + directory + "时出错", e);
+				directoryErrors.put(directory, e);
+			}
+		}
+		
+		for(Request request : batch){
+			if(request.done.isDone()){
+				continue;
+			}
+			IOException directoryError=request.tempFile!=null ? directoryErrors.get(request.target.getParent()) : null;
+			if(request.directories!=null){
+				for(Path directory : request.directories){
+					directoryError=directoryError!=null ? directoryError : directoryErrors.get(directory);
+				}
+			}
+			if(directoryError!=null){
+				request.done.completeExceptionally(directoryError);
+			}else{
+				request.done.complete(null);
+			}
+		}
+	}
+	
+	//将临时文件原子地重命名为目标文件；不允许覆盖时，目标文件已存在则抛出SameFileNameExistException
+	private static void rename(Path tempFile, Path target, boolean overwrite) throws IOException {
+		if(overwrite){
+			Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+		//不覆盖时不能使用rename（会替换已存在的目标文件），先创建硬链接再删除临时文件，创建链接本身是原子的
+		try{
+			Files.createLink(target, tempFile);
+		}catch(FileAlreadyExistsException e){
+			throw new SameFileNameExistException();
+		}catch(UnsupportedOperationException e){
+			if(Files.exists(target)){
+				throw new SameFileNameExistException();
+			}
+			Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+		Files.delete(tempFile);
+	}
+	
+	//fsync目录，使其中的目录项持久化；不支持以只读方式打开目录的系统（如windows）忽略。PackStore创建段文件时也使用
+	static void syncDirectory(Path directory) throws IOException {
+		try(FileChannel channel=FileChannel.open(directory, StandardOpenOption.READ)){
+			channel.force(true);
+		}catch(IOException e){
+			if(FileSystemUtil.isMicrosoftWindows()){
+				return;
+			}
+			throw e;
+		}
+	}
+
+
+
+	//一个提交请求：fsync channel后将tempFile重命名为target，然后fsync target所在的目录以及directories
+	private static class Request {
+		final FileChannel channel;
+		final Path tempFile;
+		final Path target;
+		final boolean overwrite;
+		final Set<Path> directories;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Request(FileChannel channel, Path tempFile, Path target, boolean overwrite, Set<Path> directories) {
+			this.channel = channel;
+			this.tempFile = tempFile;
+			this.target = target;
+			this.overwrite = overwrite;
+			this.directories = directories;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.guxl.upload.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 读取时压缩的输入流：从中读出的是源输入流的数据压缩后的gzip格式数据（RFC 1952），可以直接交给UploadedFileWriter写入文件系统，
+ * 不需要先把原始数据或压缩后的数据全部放在内存或临时文件中。
+ * <p> 读到末尾时释放Deflater占用的本地内存；中途放弃读取时应调用close()。
+ * @author xiangligu
+ *
+ */
+public class GzipCompressingInputStream extends InputStream {
+
+	//gzip头：魔数、压缩方法deflate，不带文件名和修改时间，操作系统未知
+	private static final byte[] HEADER = {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+	private static final int BUFFER_BYTES = 8192;
+
+	private final CheckedInputStream source;
+	private final Deflater deflater;
+	private final InputStream header = new ByteArrayInputStream(HEADER);
+	private final InputStream deflated;
+	private InputStream trailer;
+	private long inputBytes = -1;
+	private boolean finished;
+
+
+	/**
+	 * @param in 源输入流，关闭该流时一并关闭
+	 * @param level 压缩级别，0～9，或Deflater.DEFAULT_COMPRESSION
+	 */
+	public GzipCompressingInputStream(InputStream in, int level) {
+		Preconditions.checkNotNull(in, "参数in不允许为null");
+		this.source = new CheckedInputStream(in, new CRC32());
+		this.deflater = new Deflater(level, true);
+		this.deflated = new DeflaterInputStream(this.source, this.deflater, BUFFER_BYTES);
+	}
+
+
+	/**
+	 * @return 已从源输入流读取（压缩前）的字节数
+	 */
+	public long getInputBytes() {
+		return this.inputBytes>=0 ? this.inputBytes : this.deflater.getBytesRead();
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		byte[] b=new byte[1];
+		int n=this.read(b, 0, 1);
+		return n<0 ? -1 : b[0] & 0xff;
+	}
+
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		Preconditions.checkPositionIndexes(off, off+len, b.length);
+		if(len==0){
+			return 0;
+		}
+		if(this.finished){
+			return -1;
+		}
+
+		int n=this.header.read(b, off, len);
+		if(n>0){
+			return n;
+		}
+		if(this.trailer==null){
+			n=this.deflated.read(b, off, len);
+			if(n>0){
+				return n;
+			}
+			this.trailer=new ByteArrayInputStream(this.finish());
+		}
+		n=this.trailer.read(b, off, len);
+		if(n<0){
+			this.finished=true;
+		}
+		return n;
+	}
+
+
+	@Override
+	public void close() throws IOException {
+		this.finished=true;
+		this.deflater.end();
+		this.source.close();
+	}
+
+
+
+	//==================private functions===================
+	//压缩数据已全部读出，释放Deflater并生成gzip尾：原始数据的CRC32和长度（模2^32），均为小端序
+	private byte[] finish(){
+		this.inputBytes=this.deflater.getBytesRead();
+		this.deflater.end();
+		long crc=this.source.getChecksum().getValue();
+		byte[] result=new byte[8];
+		for(int i=0; i<4; i++){
+			result[i]=(byte)(crc >>> (8*i));
+			result[4+i]=(byte)(this.inputBytes >>> (8*i));
+		}
+		return result;
+	}
+
+}
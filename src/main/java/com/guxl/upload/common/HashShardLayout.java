@@ -0,0 +1,97 @@
+package com.guxl.upload.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 按文件标识的哈希值分片的目录布局。子目录共depth级，每级目录名为width位十六进制字符，
+ * 如depth=2、width=2时，子目录形如“ab/cd”，共256*256个。
+ * <p> 默认的depth=1、width=2即为256个两位十六进制字符组成的子目录。
+ * @author xiangligu
+ *
+ */
+public class HashShardLayout implements ShardLayout {
+
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+	//可以预先创建的子目录的最大数量（以二进制位数表示）
+	private static final int MAX_PRECREATE_BITS = 20;
+
+	private final int depth;
+	private final int width;
+
+
+	public HashShardLayout(int depth, int width) {
+		Preconditions.checkArgument(depth>0 && width>0, "参数depth和width必须为正整数");
+		Preconditions.checkArgument(depth*width<=8, "depth*width不允许超过8（即32位哈希值的十六进制位数）");
+		this.depth = depth;
+		this.width = width;
+	}
+
+
+	public int getDepth() {
+		return this.depth;
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+
+	@Override
+	public String getSubDir(String fileId) {
+		Preconditions.checkNotNull(fileId, "参数fileId不允许为null");
+		return this.format(this.mix(fileId.hashCode()));
+	}
+
+
+	/**
+	 * 子目录超过MAX_PRECREATE_BITS位（约100万个）时返回空列表，不预先创建
+	 */
+	@Override
+	public List<String> getAllSubDirs() {
+		int bits=this.depth * this.width * 4;
+		if(bits>MAX_PRECREATE_BITS){
+			return new ArrayList<>();
+		}
+		int count=1 << bits;
+		List<String> subDirs=new ArrayList<>(count);
+		for(int i=0; i<count; i++){
+			subDirs.add(this.format(i << (32-bits)));
+		}
+		return subDirs;
+	}
+
+
+
+	//==================private functions===================
+	//将哈希值的高位按每级width位十六进制字符格式化为子目录
+	private String format(int hash){
+		char[] chars=new char[this.depth*this.width + this.depth-1];
+		int pos=0;
+		int shift=28;
+		for(int level=0; level<this.depth; level++){
+			if(level>0){
+				chars[pos++]='/';
+			}
+			for(int i=0; i<this.width; i++){
+				chars[pos++]=HEX_CHARS[(hash >>> shift) & 0xf];
+				shift -= 4;
+			}
+		}
+		return new String(chars);
+	}
+
+	//murmur3的finalizer，使String.hashCode的各位分布均匀
+	private int mix(int h){
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
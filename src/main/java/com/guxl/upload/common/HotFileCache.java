@@ -0,0 +1,171 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+
+/**
+ * 小文件的读缓存。下载时把不超过maxFileBytes的文件整个读入堆内存，之后对同一文件的下载直接从内存发送，不再访问文件系统。
+ * <p> 缓存的总字节数不超过budgetBytes，超过时按LRU淘汰。缓存使用堆内存而不是direct ByteBuffer：被淘汰的direct ByteBuffer
+ * 要等到GC时才释放，堆外内存的实际占用并不受budgetBytes限制，而堆内存已由-Xmx限制。
+ * <p> 通过getFileListener()返回的监听器注册到UploadManager后，文件被删除或覆盖保存时对应的缓存会失效。
+ * 每个路径（按哈希值分段）有一个失效计数，读取文件之前和放入缓存之后各检查一次，读取期间文件被覆盖或删除时不缓存读到的内容，
+ * 因此与失效同时进行的读取不会把旧的内容重新放入缓存。
+ * @author xiangligu
+ *
+ */
+public class HotFileCache {
+
+	private final long budgetBytes;
+	private final long maxFileBytes;
+	private final AtomicLong cachedBytes = new AtomicLong();
+	private final Cache<String, ByteBuffer> cache;
+	//按路径的哈希值分段的失效计数，每次invalidate时递增
+	private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+	private static final int VERSION_STRIPES = 1024;
+
+
+	/**
+	 * @param budgetBytes 缓存的总字节数上限，为0时不缓存任何文件
+	 * @param maxFileBytes 可以被缓存的单个文件的最大字节数
+	 */
+	public HotFileCache(long budgetBytes, long maxFileBytes) {
+		Preconditions.checkArgument(budgetBytes>=0, "参数budgetBytes不允许为负数");
+		Preconditions.checkArgument(maxFileBytes>0 && maxFileBytes<=Integer.MAX_VALUE, "参数maxFileBytes必须为正数且不超过2Gb");
+		this.budgetBytes = budgetBytes;
+		this.maxFileBytes = maxFileBytes;
+		this.cache = CacheBuilder.newBuilder()
+				.maximumWeight(budgetBytes)
+				.<String, ByteBuffer>weigher((filePath, buffer) -> buffer.capacity())
+				.removalListener(notification -> this.cachedBytes.addAndGet(-notification.getValue().capacity()))
+				.recordStats()
+				.build();
+	}
+
+
+	/**
+	 * @param fileInfo 要读取的文件的信息
+	 * @return 文件在文件系统中的全部内容（只读，position为0，压缩保存的文件为压缩后的内容），
+	 * 文件（按fileInfo中的大小或磁盘上的实际大小）超过maxFileBytes或不缓存任何文件时返回null
+	 * @throws IOException
+	 */
+	public ByteBuffer get(UploadedFileInfo fileInfo) throws IOException {
+		Preconditions.checkNotNull(fileInfo, "参数fileInfo不允许为null");
+		Long storedSize=fileInfo.getStoredSize()!=null ? fileInfo.getStoredSize() : fileInfo.getFileSize();
+		if(this.budgetBytes==0 || storedSize==null || storedSize>this.maxFileBytes){
+			return null;
+		}
+		
+		String filePath=fileInfo.getFilePath();
+		ByteBuffer cached=this.cache.getIfPresent(filePath);
+		if(cached!=null){
+			return cached.duplicate();
+		}
+		
+		//读取期间失效计数发生变化时，读到的可能是被覆盖前的内容，只用于本次下载，不留在缓存中
+		int stripe=stripe(filePath);
+		long version=this.versions.get(stripe);
+		ByteBuffer loaded=this.load(filePath);
+		if(loaded==null){
+			return null;
+		}
+		if(this.versions.get(stripe)==version){
+			this.cachedBytes.addAndGet(loaded.capacity());
+			this.cache.put(filePath, loaded);
+			if(this.versions.get(stripe)!=version){
+				this.cache.invalidate(filePath);
+			}
+		}
+		return loaded.duplicate();
+	}
+
+
+	/**
+	 * 使filePath对应的缓存失效，正在读取的该文件的内容也不会再放入缓存
+	 * @param filePath 文件的完整路径
+	 */
+	public void invalidate(String filePath) {
+		this.versions.incrementAndGet(stripe(filePath));
+		this.cache.invalidate(filePath);
+	}
+
+
+	/**
+	 * @return 缓存的文件占用的字节数
+	 */
+	public long getCachedBytes() {
+		return this.cachedBytes.get();
+	}
+
+
+	/**
+	 * @return 缓存的统计信息：命中数、未命中数、命中率、淘汰数、缓存的文件数和字节数
+	 */
+	public Map<String, Object> getStats() {
+		CacheStats stats=this.cache.stats();
+		Map<String, Object> result=new LinkedHashMap<>();
+		result.put("hitCount", stats.hitCount());
+		result.put("missCount", stats.missCount());
+		result.put("hitRate", stats.hitRate());
+		result.put("evictionCount", stats.evictionCount());
+		result.put("cachedFiles", this.cache.size());
+		result.put("cachedBytes", this.cachedBytes.get());
+		result.put("budgetBytes", this.budgetBytes);
+		result.put("maxFileBytes", this.maxFileBytes);
+		return result;
+	}
+
+
+	/**
+	 * @return 用于在文件删除或覆盖保存时使缓存失效的监听器，应注册到UploadManager
+	 */
+	public UploadedFileListener getFileListener() {
+		return new UploadedFileListener() {
+			@Override
+			public void fileSaved(UploadedFileInfo fileInfo) {
+				HotFileCache.this.invalidate(fileInfo.getFilePath());
+			}
+
+			@Override
+			public void fileRemoved(String fullPathFileName) {
+				HotFileCache.this.invalidate(fullPathFileName);
+			}
+		};
+	}
+
+
+
+	//==================private functions===================
+	private static int stripe(String filePath) {
+		return (filePath.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+	}
+	
+	//读取文件的全部内容。文件在磁盘上已超过maxFileBytes（如fileInfo中的大小已过时）时返回null，由调用者直接从文件系统发送。
+	//包内可见，以便测试在读取过程中覆盖文件
+	ByteBuffer load(String filePath) throws IOException {
+		try(FileChannel channel=FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)){
+			long size=channel.size();
+			if(size>this.maxFileBytes){
+				return null;
+			}
+			ByteBuffer buffer=ByteBuffer.allocate((int)size);
+			while(buffer.hasRemaining() && channel.read(buffer)>=0){
+			}
+			buffer.flip();
+			return buffer.asReadOnlyBuffer();
+		}
+	}
+
+}
@@ -0,0 +1,499 @@
+package com.guxl.upload.common;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * 生成上传图片的缩略图（按比例缩小到不超过指定的宽和高，不放大）。缩略图保存在原图所在存储卷的.derivative目录下，
+ * 与上传目录的分片布局相同，如原图“{卷}/ab/xxx.jpg”的256x256缩略图为“{卷}/.derivative/ab/xxx.jpg/256x256.jpg”。
+ * <p> 生成任务在固定大小的线程池中执行，排队的任务数有上限，队列已满时抛出UploadQueueFullException：
+ * <br> 通过getFileListener()返回的监听器注册到UploadManager后，图片保存时为eagerSizes中的尺寸排队生成缩略图，队列已满时跳过，留待第一次请求时生成；
+ * 图片被覆盖或删除时，同步删除它的全部缩略图。
+ * <br> getVariant返回已生成的缩略图，或排队生成；对同一缩略图的并发请求共用同一个生成任务。
+ * <p> 只允许生成sizes中的尺寸，避免任意尺寸的请求生成大量文件。
+ * <p> 解码之前先从图片头读取宽和高，像素数超过maxPixels的图片不解码（以IllegalArgumentException失败），避免解压炸弹耗尽内存；
+ * 其余图片按缩略图尺寸隔行隔列采样解码（不小于缩略图的2倍），大图不需要完整解码。生成失败的结果保留一段时间，期间的请求直接返回失败，不反复解码。
+ * @author xiangligu
+ *
+ */
+public class ImageDerivativeService {
+
+	private static final Logger logger = LoggerFactory.getLogger(ImageDerivativeService.class);
+
+	//缩略图所在的目录（相对于各存储卷的基本路径）
+	private static final String DERIVATIVE_DIR = ".derivative";
+	//生成期间原图被修改时最多重新生成的次数
+	private static final int MAX_ATTEMPTS = 3;
+	//生成失败的结果保留的秒数和最大个数
+	private static final long FAILURE_TTL_SECONDS = 60;
+	private static final long MAX_FAILURES = 10000;
+
+	private final SimpleUploadManager uploadManager;
+	private final ThreadPoolExecutor executor;
+	//正在生成的缩略图，键为缩略图的路径
+	private final ConcurrentMap<Path, CompletableFuture<Path>> generating = new ConcurrentHashMap<>();
+	//最近生成失败的缩略图，键为缩略图的路径
+	private final Cache<Path, CompletableFuture<Path>> failures = CacheBuilder.newBuilder()
+			.expireAfterWrite(FAILURE_TTL_SECONDS, TimeUnit.SECONDS).maximumSize(MAX_FAILURES).build();
+	private volatile Set<String> fileTypes = ImmutableSet.of("jpg", "jpeg", "png", "gif", "bmp");
+	private volatile List<Size> sizes = ImmutableList.of(new Size(128, 128), new Size(256, 256), new Size(512, 512));
+	private volatile List<Size> eagerSizes = ImmutableList.of(new Size(256, 256));
+	private volatile long maxPixels = 50_000_000;
+	private final LongAdder generatedCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+
+
+	/**
+	 * @param uploadManager 提供存储卷，并读取打包保存的原图
+	 * @param threads 生成缩略图的线程数
+	 * @param queueCapacity 允许排队等待的生成任务数
+	 */
+	public ImageDerivativeService(SimpleUploadManager uploadManager, int threads, int queueCapacity) {
+		Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		Preconditions.checkArgument(threads>0, "参数threads必须为正整数");
+		Preconditions.checkArgument(queueCapacity>0, "参数queueCapacity必须为正整数");
+		this.uploadManager = uploadManager;
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+				new ThreadFactoryBuilder().setNameFormat("upload-derivative-%d").setDaemon(true).build());
+	}
+
+
+	/**
+	 * @param fileTypes 生成缩略图的图片扩展名，不区分大小写
+	 */
+	public void setFileTypes(Collection<String> fileTypes) {
+		Preconditions.checkNotNull(fileTypes, "参数fileTypes不允许为null");
+		this.fileTypes = ImmutableSet.copyOf(fileTypes.stream().map(fileType -> fileType.trim().toLowerCase(Locale.ROOT)).collect(Collectors.toSet()));
+	}
+
+
+	/**
+	 * @param sizes 允许生成的缩略图尺寸
+	 * @param eagerSizes 图片保存后立即排队生成的缩略图尺寸，必须包含在sizes中
+	 */
+	public void setSizes(Collection<Size> sizes, Collection<Size> eagerSizes) {
+		Preconditions.checkNotNull(sizes, "参数sizes不允许为null");
+		Preconditions.checkNotNull(eagerSizes, "参数eagerSizes不允许为null");
+		Preconditions.checkArgument(sizes.containsAll(eagerSizes), "参数eagerSizes中的尺寸必须包含在sizes中");
+		this.sizes = ImmutableList.copyOf(sizes);
+		this.eagerSizes = ImmutableList.copyOf(eagerSizes);
+	}
+
+
+	/**
+	 * @param maxPixels 允许生成缩略图的原图的最大像素数（宽×高），超过时不解码
+	 */
+	public void setMaxPixels(long maxPixels) {
+		Preconditions.checkArgument(maxPixels>0, "参数maxPixels必须为正数");
+		this.maxPixels = maxPixels;
+	}
+
+
+	public Set<String> getFileTypes() {
+		return this.fileTypes;
+	}
+
+	public List<Size> getSizes() {
+		return this.sizes;
+	}
+
+	public List<Size> getEagerSizes() {
+		return this.eagerSizes;
+	}
+
+	public long getMaxPixels() {
+		return this.maxPixels;
+	}
+
+	/**
+	 * @return 排队等待执行的生成任务数
+	 */
+	public int getQueuedCount() {
+		return this.executor.getQueue().size();
+	}
+
+	/**
+	 * @return 已生成的缩略图数
+	 */
+	public long getGeneratedCount() {
+		return this.generatedCount.sum();
+	}
+
+	/**
+	 * @return 因队列已满未能排队的生成任务数
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.sum();
+	}
+
+
+	/**
+	 * @param fileType 文件的扩展名
+	 * @return 是否为可以生成缩略图的图片
+	 */
+	public boolean isImage(String fileType) {
+		return fileType!=null && this.fileTypes.contains(fileType.toLowerCase(Locale.ROOT));
+	}
+
+
+	/**
+	 * @param size 缩略图的尺寸
+	 * @return 是否允许生成该尺寸的缩略图
+	 */
+	public boolean isAllowed(Size size) {
+		return this.sizes.contains(size);
+	}
+
+
+	/**
+	 * 取得原图的缩略图，尚未生成时排队生成。对同一缩略图的并发调用返回同一个future。
+	 * @param original 原图的文件信息
+	 * @param size 缩略图的尺寸，必须是允许的尺寸
+	 * @return 完成时为缩略图的路径；原图不存在时以NoSuchFileException完成，原图无法解码或像素数超过上限时以IllegalArgumentException完成
+	 * @throws UploadQueueFullException 排队的生成任务已达上限
+	 */
+	public CompletableFuture<Path> getVariant(UploadedFileInfo original, Size size) {
+		Preconditions.checkNotNull(original, "参数original不允许为null");
+		Preconditions.checkArgument(this.isImage(original.getFileType()), "文件" + original.getFilePath() + "不是可以生成缩略图的图片");
+		Preconditions.checkArgument(this.isAllowed(size), "不允许生成" + size + "的缩略图");
+
+		Path path=Paths.get(original.getFilePath());
+		Path variant=this.resolveVariant(path, size, original.getFileType());
+		if(Files.exists(variant)){
+			return CompletableFuture.completedFuture(variant);
+		}
+		CompletableFuture<Path> failure=this.failures.getIfPresent(variant);
+		if(failure!=null){
+			return failure;
+		}
+		return this.generate(path, variant, size, original.getFileType());
+	}
+
+
+	/**
+	 * @return 图片保存时排队生成缩略图、图片被覆盖或删除时删除缩略图的监听器，应注册到UploadManager
+	 */
+	public UploadedFileListener getFileListener() {
+		return new UploadedFileListener() {
+			@Override
+			public void fileSaved(UploadedFileInfo fileInfo) {
+				if(!ImageDerivativeService.this.isImage(fileInfo.getFileType())){
+					return;
+				}
+				Path path=Paths.get(fileInfo.getFilePath());
+				ImageDerivativeService.this.invalidate(path);
+				for(Size size : ImageDerivativeService.this.eagerSizes){
+					Path variant=ImageDerivativeService.this.resolveVariant(path, size, fileInfo.getFileType());
+					try{
+						ImageDerivativeService.this.generate(path, variant, size, fileInfo.getFileType());
+					}catch(UploadQueueFullException e){
+						//第一次请求时再生成
+						return;
+					}
+				}
+			}
+
+			@Override
+			public void fileRemoved(String fullPathFileName) {
+				if(ImageDerivativeService.this.isImage(FileSystemUtil.getFileExtent(Paths.get(fullPathFileName).getFileName().toString()))){
+					ImageDerivativeService.this.invalidate(Paths.get(fullPathFileName));
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * 停止生成缩略图，丢弃排队的任务
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		this.executor.shutdownNow();
+		this.executor.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+
+
+	//==================private functions===================
+	//排队生成缩略图，同一缩略图已在生成时返回正在执行的任务
+	private CompletableFuture<Path> generate(Path original, Path variant, Size size, String fileType) {
+		CompletableFuture<Path> future=new CompletableFuture<>();
+		CompletableFuture<Path> running=this.generating.putIfAbsent(variant, future);
+		if(running!=null){
+			return running;
+		}
+		try{
+			this.executor.execute(() -> {
+				try{
+					Path result=this.render(original, variant, size, fileType);
+					this.generatedCount.increment();
+					future.complete(result);
+				}catch(IOException | RuntimeException e){
+					this.failures.put(variant, future);
+					future.completeExceptionally(e);
+				}finally{
+					this.generating.remove(variant, future);
+				}
+			});
+		}catch(RejectedExecutionException e){
+			this.generating.remove(variant, future);
+			this.rejectedCount.increment();
+			UploadQueueFullException queueFull=new UploadQueueFullException("缩略图生成队列已满，请稍后重试", e);
+			future.completeExceptionally(queueFull);
+			throw queueFull;
+		}
+		return future;
+	}
+
+	//读取原图并生成缩略图，先写入临时文件再重命名；生成期间原图被覆盖或缩略图被删除时重新生成
+	private Path render(Path original, Path variant, Size size, String fileType) throws IOException {
+		String format=fileType.toLowerCase(Locale.ROOT);
+		for(int attempt=1; ; attempt++){
+			Object version=this.getVersion(original);
+			BufferedImage image=this.readImage(original, size);
+			//jpeg和bmp不支持透明通道
+			BufferedImage resized=resize(image, size, format.equals("jpg") || format.equals("jpeg") || format.equals("bmp"));
+
+			Files.createDirectories(variant.getParent());
+			Path tempFile=GroupCommitScheduler.newTempFile(variant);
+			try{
+				if(!ImageIO.write(resized, format, tempFile.toFile())){
+					throw new IOException("没有可以写入" + format + "格式的ImageWriter");
+				}
+				Files.move(tempFile, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				if(Objects.equals(version, this.getVersion(original))){
+					return variant;
+				}
+				Files.deleteIfExists(variant);
+			}catch(NoSuchFileException e){
+				//原图被删除时由getVersion抛出；缩略图目录被同时删除时重新生成
+				if(!Files.exists(original) && this.uploadManager.getFileWriter().getPackLocation(original.toString())==null){
+					throw e;
+				}
+			}finally{
+				Files.deleteIfExists(tempFile);
+			}
+			if(attempt>=MAX_ATTEMPTS){
+				throw new IOException("生成缩略图期间原图" + original + "被反复修改");
+			}
+		}
+	}
+
+	//原图的版本：打包保存的图片为保存时间，其他为文件的修改时间；原图不存在时抛出NoSuchFileException
+	private Object getVersion(Path original) throws IOException {
+		PackLocation location=this.uploadManager.getFileWriter().getPackLocation(original.toString());
+		return location!=null ? location.getSaveTime() : Files.getLastModifiedTime(original);
+	}
+
+	//先读取宽和高检查像素数，再按缩略图尺寸采样解码；不是可以解码的图片或像素数超过上限时抛出IllegalArgumentException
+	private BufferedImage readImage(Path original, Size size) throws IOException {
+		ByteBuffer packed=this.uploadManager.getFileWriter().readPackedFile(original.toString());
+		ImageInputStream input;
+		if(packed==null){
+			if(!Files.exists(original)){
+				throw new NoSuchFileException(original.toString());
+			}
+			input=ImageIO.createImageInputStream(original.toFile());
+		}else{
+			byte[] content=new byte[packed.remaining()];
+			packed.duplicate().get(content);
+			input=ImageIO.createImageInputStream(new ByteArrayInputStream(content));
+		}
+		if(input==null){
+			throw new IOException("无法读取文件" + original);
+		}
+		try{
+			Iterator<ImageReader> readers=ImageIO.getImageReaders(input);
+			if(!readers.hasNext()){
+				throw new IllegalArgumentException("文件" + original + "不是可以解码的图片");
+			}
+			ImageReader reader=readers.next();
+			try{
+				reader.setInput(input, true, true);
+				int width=reader.getWidth(0);
+				int height=reader.getHeight(0);
+				if((long)width*height>this.maxPixels){
+					throw new IllegalArgumentException("图片" + original + "的像素数（" + width + "x" + height + "）超过上限" + this.maxPixels);
+				}
+				//采样后不小于缩略图尺寸的2倍，之后再逐次缩小
+				int subsampling=Math.max(1, Math.min(width / (size.getWidth()*2), height / (size.getHeight()*2)));
+				ImageReadParam param=reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				return reader.read(0, param);
+			}finally{
+				reader.dispose();
+			}
+		}finally{
+			input.close();
+		}
+	}
+
+	//“{卷}/.derivative/{原图相对于卷的路径}/{宽}x{高}.{扩展名}”
+	private Path resolveVariant(Path original, Size size, String fileType) {
+		return this.resolveVariantDirectory(original).resolve(size + "." + fileType);
+	}
+
+	private Path resolveVariantDirectory(Path original) {
+		Path basePath=this.uploadManager.findVolume(original.toString()).getBasePath();
+		return basePath.resolve(DERIVATIVE_DIR).resolve(basePath.relativize(original.normalize()));
+	}
+
+	//删除原图的全部缩略图和生成失败的结果，缩略图数量很少，在调用线程中同步删除
+	private void invalidate(Path original) {
+		if(this.failures.size()>0){
+			String fileType=FileSystemUtil.getFileExtent(original.getFileName().toString());
+			for(Size size : this.sizes){
+				this.failures.invalidate(this.resolveVariant(original, size, fileType));
+			}
+		}
+		Path directory=this.resolveVariantDirectory(original);
+		if(!Files.isDirectory(directory)){
+			return;
+		}
+		try{
+			try(DirectoryStream<Path> variants=Files.newDirectoryStream(directory)){
+				for(Path variant : variants){
+					Files.deleteIfExists(variant);
+				}
+			}
+			Files.deleteIfExists(directory);
+		}catch(IOException e){
+			logger.error("删除" + original + "的缩略图时出错", e);
+		}
+	}
+
+	//按比例缩小到不超过size，每次最多缩小一半，以减少锯齿
+	private static BufferedImage resize(BufferedImage source, Size size, boolean opaque) {
+		double scale=Math.min(1.0, Math.min((double)size.getWidth()/source.getWidth(), (double)size.getHeight()/source.getHeight()));
+		int targetWidth=Math.max(1, (int)Math.round(source.getWidth()*scale));
+		int targetHeight=Math.max(1, (int)Math.round(source.getHeight()*scale));
+		int type=opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+
+		BufferedImage current=source;
+		int width=source.getWidth();
+		int height=source.getHeight();
+		do{
+			width=Math.max(targetWidth, width/2);
+			height=Math.max(targetHeight, height/2);
+			BufferedImage next=new BufferedImage(width, height, type);
+			Graphics2D graphics=next.createGraphics();
+			try{
+				graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				if(opaque){
+					graphics.setColor(Color.WHITE);
+					graphics.fillRect(0, 0, width, height);
+				}
+				graphics.drawImage(current, 0, 0, width, height, null);
+			}finally{
+				graphics.dispose();
+			}
+			current=next;
+		}while(width!=targetWidth || height!=targetHeight);
+		return current;
+	}
+
+
+
+	/**
+	 * 缩略图的尺寸，字符串形式为“{宽}x{高}”
+	 */
+	public static final class Size {
+
+		private final int width;
+		private final int height;
+
+		public Size(int width, int height) {
+			Preconditions.checkArgument(width>0 && height>0, "缩略图的宽和高必须为正整数");
+			this.width = width;
+			this.height = height;
+		}
+
+		/**
+		 * @param size “{宽}x{高}”，如“256x256”
+		 * @return
+		 */
+		public static Size parse(String size) {
+			Preconditions.checkNotNull(size, "参数size不允许为null");
+			List<String> parts=Splitter.on('x').trimResults().splitToList(size.toLowerCase(Locale.ROOT));
+			Preconditions.checkArgument(parts.size()==2, "缩略图尺寸" + size + "的格式应为“{宽}x{高}”");
+			try{
+				return new Size(Integer.parseInt(parts.get(0)), Integer.parseInt(parts.get(1)));
+			}catch(NumberFormatException e){
+				throw new IllegalArgumentException("缩略图尺寸" + size + "的格式应为“{宽}x{高}”", e);
+			}
+		}
+
+		public int getWidth() {
+			return this.width;
+		}
+
+		public int getHeight() {
+			return this.height;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Size)){
+				return false;
+			}
+			Size other=(Size)obj;
+			return this.width==other.width && this.height==other.height;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.width*31 + this.height;
+		}
+
+		@Override
+		public String toString() {
+			return this.width + "x" + this.height;
+		}
+	}
+
+}
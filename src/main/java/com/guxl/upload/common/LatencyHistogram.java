@@ -0,0 +1,115 @@
+package com.guxl.upload.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * 记录耗时分布的直方图，分桶方式与HdrHistogram相同：每个2的幂区间[2^m, 2^(m+1))再等分为4个子桶，
+ * 因此任意耗时的相对误差不超过25%，而桶的总数固定，与记录的次数无关。
+ * <p> 每个桶使用LongAdder计数，多个线程同时记录时几乎没有竞争，记录一次只需要一次加法。耗时的单位为纳秒。
+ * @author xiangligu
+ *
+ */
+public class LatencyHistogram {
+
+	//每个2的幂区间等分为2^SUB_BUCKET_BITS个子桶
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+
+	public LatencyHistogram() {
+		for(int i=0; i<BUCKETS; i++){
+			this.counts[i]=new LongAdder();
+		}
+	}
+
+
+	/**
+	 * 记录一次耗时
+	 * @param nanos 耗时的纳秒数，负数按0记录
+	 */
+	public void record(long nanos) {
+		nanos=Math.max(0, nanos);
+		this.counts[indexOf(nanos)].increment();
+		this.count.increment();
+		this.sumNanos.add(nanos);
+	}
+
+
+	/**
+	 * @return 记录的次数
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+
+	/**
+	 * @return 全部耗时的纳秒数之和
+	 */
+	public long getSumNanos() {
+		return this.sumNanos.sum();
+	}
+
+
+	/**
+	 * @param percentile 百分位，取值范围为(0, 100]，如99表示p99
+	 * @return 不小于该百分位上的耗时的桶上界（纳秒），没有任何记录时返回0
+	 */
+	public long getPercentileNanos(double percentile) {
+		long total=this.getCount();
+		if(total==0){
+			return 0;
+		}
+		long target=Math.max(1, (long)Math.ceil(total * percentile / 100));
+		long cumulative=0;
+		for(int i=0; i<BUCKETS; i++){
+			cumulative += this.counts[i].sum();
+			if(cumulative>=target){
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(BUCKETS-1);
+	}
+
+
+	/**
+	 * @param nanos 必须为2的幂，即某个桶的边界
+	 * @return 耗时小于nanos的记录次数，用于生成Prometheus的累计桶“le”
+	 */
+	public long getCountBelow(long nanos) {
+		long cumulative=0;
+		for(int i=0, end=indexOf(nanos); i<end; i++){
+			cumulative += this.counts[i].sum();
+		}
+		return cumulative;
+	}
+
+
+
+	//==================private functions===================
+	private static int indexOf(long nanos){
+		if(nanos<SUB_BUCKETS){
+			return (int)nanos;
+		}
+		int magnitude=63 - Long.numberOfLeadingZeros(nanos);
+		int shift=magnitude - SUB_BUCKET_BITS;
+		return (shift+1) * SUB_BUCKETS + (int)((nanos >>> shift) - SUB_BUCKETS);
+	}
+
+	//桶i中耗时的上界（不含）
+	private static long upperBoundOf(int index){
+		if(index<SUB_BUCKETS){
+			return index + 1;
+		}
+		int shift=index / SUB_BUCKETS - 1;
+		long lower=((long)(SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+		return lower + (1L << shift) > 0 ? lower + (1L << shift) : Long.MAX_VALUE;
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.guxl.upload.common;
+
+
+/**
+ * 打包保存的小文件在段文件中的位置，即PackStore索引中的一项。对象不可变，更新位置时用新的对象替换。
+ * @author xiangligu
+ *
+ */
+public final class PackLocation {
+
+	private final int segment;
+	private final long offset;
+	private final int length;
+	private final long saveTime;
+
+
+	/**
+	 * @param segment 段文件的编号
+	 * @param offset 文件内容在段文件中的起始位置
+	 * @param length 文件内容的字节数
+	 * @param saveTime 保存时间（毫秒）
+	 */
+	public PackLocation(int segment, long offset, int length, long saveTime) {
+		this.segment = segment;
+		this.offset = offset;
+		this.length = length;
+		this.saveTime = saveTime;
+	}
+
+
+	public int getSegment() {
+		return this.segment;
+	}
+
+	public long getOffset() {
+		return this.offset;
+	}
+
+	public int getLength() {
+		return this.length;
+	}
+
+	public long getSaveTime() {
+		return this.saveTime;
+	}
+
+
+	@Override
+	public String toString() {
+		return this.segment + "@" + this.offset + "+" + this.length;
+	}
+
+}
@@ -0,0 +1,689 @@
+package com.guxl.upload.common;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * 将小文件追加保存在大的段文件中的存储，每个存储卷一个，段文件位于卷上的.pack目录下（seg-00000001.pack、seg-00000002.pack……）。
+ * <p> 段文件由一条条记录组成，每条记录依次为：魔数、路径长度、内容长度（删除标记为-1）、保存时间、内容的CRC32、相对于卷的路径、内容。
+ * 记录只追加不修改：覆盖文件时追加新的记录，删除文件时追加删除标记（tombstone）。内存中的索引只保存每个路径最新内容的位置，
+ * 启动时按顺序读取各段文件的记录头重建；最后一个段文件末尾不完整或校验失败的记录（写入时宕机）会被截掉。
+ * <p> 已写满的段文件不再变化，读取时返回其只读内存映射的一部分，不复制数据；当前追加记录的段文件仍在增长，按位置读取到堆内存中，
+ * 不会因为读取刚追加的记录而反复重新映射整个段文件。被覆盖或删除的记录占用的空间由compact回收：
+ * 把无效数据比例较高的段文件中仍有效的记录复制到当前段文件末尾，然后删除原段文件。删除标记本身只在其所在段文件是最早的段文件时才可以丢弃，
+ * 因此不计入无效数据，否则只有删除标记的段文件会被反复压缩、删除标记被反复复制。
+ * <p> 索引的键是路径的UTF-8字节（而不是String的UTF-16字符），大量小文件时键占用的堆内存约少三分之一。
+ * @author xiangligu
+ *
+ */
+public class PackStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(PackStore.class);
+
+	//段文件所在的目录（相对于卷的基本路径）
+	public static final String PACK_DIR = ".pack";
+
+	private static final String SEGMENT_PREFIX = "seg-";
+	private static final String SEGMENT_SUFFIX = ".pack";
+	private static final int RECORD_MAGIC = 0x55504b31;
+	private static final int TOMBSTONE = -1;
+	//记录头的字节数：魔数4、路径长度2、内容长度4、保存时间8、CRC32 4
+	private static final int HEADER_BYTES = 22;
+
+	private final Path basePath;
+	private final Path directory;
+	private final long maxSegmentBytes;
+	//相对于basePath的路径 -> 最新内容的位置
+	private final ConcurrentMap<Key, PackLocation> index = new ConcurrentHashMap<>();
+	private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	//追加记录和修改索引都在该锁内进行，保证段文件中记录的先后与索引修改的先后一致
+	private final ReentrantLock appendLock = new ReentrantLock();
+	//当前追加记录的段文件，编号最大
+	private volatile Segment activeSegment;
+
+
+	/**
+	 * 打开basePath卷上的段文件并重建索引，.pack目录不存在时创建
+	 * @param basePath 存储卷的基本路径，文件按相对于该路径的路径保存
+	 * @param maxSegmentBytes 单个段文件的最大字节数，超过时新建段文件，不能超过2Gb（内存映射的上限）
+	 * @throws IOException
+	 */
+	public PackStore(Path basePath, long maxSegmentBytes) throws IOException {
+		Preconditions.checkNotNull(basePath, "参数basePath不允许为null");
+		Preconditions.checkArgument(maxSegmentBytes>0 && maxSegmentBytes<=Integer.MAX_VALUE, "参数maxSegmentBytes必须为正数且不超过2Gb");
+		this.basePath = basePath.normalize();
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.directory = Files.createDirectories(this.basePath.resolve(PACK_DIR));
+		this.load();
+	}
+
+
+	public Path getBasePath() {
+		return this.basePath;
+	}
+
+	public long getMaxSegmentBytes() {
+		return this.maxSegmentBytes;
+	}
+
+
+	/**
+	 * 判断pathFileName是否可以保存在该存储中：必须位于basePath下，且路径中不包含以“.”开头的目录或文件名（内部使用的临时文件等）
+	 * @param pathFileName 包含完整路径的文件名称
+	 * @return
+	 */
+	public boolean accepts(String pathFileName) {
+		Path path=Paths.get(pathFileName).normalize();
+		if(!path.startsWith(this.basePath) || path.equals(this.basePath)){
+			return false;
+		}
+		for(Path name : this.basePath.relativize(path)){
+			if(name.toString().startsWith(".")){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * 将data的前length个字节追加保存为pathFileName
+	 * @param pathFileName 包含完整路径的文件名称，accepts(pathFileName)必须为true
+	 * @param data 文件内容
+	 * @param length 文件的字节数
+	 * @param overwrite 已保存有pathFileName时是否覆盖，为false时抛出SameFileNameExistException
+	 * @param durability 为NONE以外的值时，返回前fsync段文件
+	 * @return 文件内容在段文件中的位置
+	 * @throws IOException
+	 */
+	public PackLocation put(String pathFileName, byte[] data, int length, boolean overwrite, Durability durability) throws IOException {
+		Preconditions.checkNotNull(data, "参数data不允许为null");
+		Preconditions.checkArgument(length>=0 && length<=data.length, "参数length超出data的范围");
+		Preconditions.checkNotNull(durability, "参数durability不允许为null");
+
+		Key key=this.toIndexKey(pathFileName);
+		byte[] keyBytes=key.bytes;
+		CRC32 crc=new CRC32();
+		crc.update(data, 0, length);
+		ByteBuffer record=newRecord(keyBytes, length, System.currentTimeMillis(), (int)crc.getValue(), ByteBuffer.wrap(data, 0, length));
+
+		PackLocation location;
+		this.appendLock.lock();
+		try{
+			if(!overwrite && this.index.containsKey(key)){
+				throw new SameFileNameExistException();
+			}
+			location=this.append(record, keyBytes.length);
+			this.markDead(this.index.put(key, location), keyBytes.length);
+		}finally{
+			this.appendLock.unlock();
+		}
+
+		Segment segment=this.segments.get(location.getSegment());
+		if(durability!=Durability.NONE && segment!=null){
+			//并发保存的各线程各自fsync同一个段文件，文件系统会把它们合并到同一次日志提交中；段文件已被compact时，复制的记录已经持久化
+			segment.channel.force(false);
+		}
+		return location;
+	}
+
+
+	/**
+	 * 删除pathFileName：追加一条删除标记并从索引中移除，原内容占用的空间由compact回收
+	 * @param pathFileName 包含完整路径的文件名称
+	 * @return 该存储中是否保存有pathFileName
+	 * @throws IOException
+	 */
+	public boolean remove(String pathFileName) throws IOException {
+		Key key=this.toIndexKey(pathFileName);
+		if(!this.index.containsKey(key)){
+			return false;
+		}
+
+		byte[] keyBytes=key.bytes;
+		ByteBuffer record=newRecord(keyBytes, TOMBSTONE, System.currentTimeMillis(), 0, null);
+		this.appendLock.lock();
+		try{
+			PackLocation location=this.index.get(key);
+			if(location==null){
+				return false;
+			}
+			this.append(record, keyBytes.length);
+			this.index.remove(key);
+			this.markDead(location, keyBytes.length);
+			return true;
+		}finally{
+			this.appendLock.unlock();
+		}
+	}
+
+
+	/**
+	 * @param pathFileName 包含完整路径的文件名称
+	 * @return pathFileName的内容在段文件中的位置，未保存在该存储中时返回null
+	 */
+	public PackLocation getLocation(String pathFileName) {
+		return this.index.get(this.toIndexKey(pathFileName));
+	}
+
+
+	/**
+	 * 读取pathFileName的内容
+	 * @param pathFileName 包含完整路径的文件名称
+	 * @return 文件内容的只读ByteBuffer（已写满的段文件为其内存映射的一部分），未保存在该存储中时返回null
+	 * @throws IOException
+	 */
+	public ByteBuffer read(String pathFileName) throws IOException {
+		Key key=this.toIndexKey(pathFileName);
+		PackLocation location=this.index.get(key);
+		while(location!=null){
+			Segment segment=this.segments.get(location.getSegment());
+			if(segment!=null){
+				try{
+					return segment.slice(location.getOffset(), location.getLength());
+				}catch(ClosedChannelException e){
+					//段文件刚被compact删除，文件已复制到新的位置
+				}
+			}
+			PackLocation current=this.index.get(key);
+			if(current==location){
+				return null;
+			}
+			location=current;
+		}
+		return null;
+	}
+
+
+	/**
+	 * 压缩无效数据（被覆盖或删除的记录）比例不低于minDeadRatio的段文件，当前追加记录的段文件除外
+	 * @param minDeadRatio 0到1之间的比例
+	 * @return 回收的字节数
+	 * @throws IOException
+	 */
+	public long compact(double minDeadRatio) throws IOException {
+		Preconditions.checkArgument(minDeadRatio>=0 && minDeadRatio<=1, "参数minDeadRatio必须在0到1之间");
+
+		long reclaimed=0;
+		for(Segment segment : this.segments.values()){
+			long size=segment.size;
+			if(segment==this.activeSegment || segment.deadBytes.get() < size*minDeadRatio){
+				continue;
+			}
+			reclaimed += this.compact(segment);
+		}
+		return reclaimed;
+	}
+
+
+	/**
+	 * @return 保存的文件数
+	 */
+	public long getFileCount() {
+		return this.index.size();
+	}
+
+	/**
+	 * 统计directory目录下（含各级子目录）保存的文件。需要遍历整个索引，只用于偶尔的统计
+	 * @param directory 包含完整路径的目录
+	 * @return 文件的总字节数和文件数
+	 */
+	public long[] getUsage(String directory) {
+		byte[] prefix=toKeyBytes(this.toKey(directory) + File.separator);
+		long bytes=0;
+		long files=0;
+		for(Map.Entry<Key, PackLocation> entry : this.index.entrySet()){
+			if(entry.getKey().startsWith(prefix)){
+				bytes += entry.getValue().getLength();
+				files++;
+			}
+		}
+		return new long[]{bytes, files};
+	}
+
+	/**
+	 * 列出directory目录下（含各级子目录）保存的文件。需要遍历整个索引，只用于打包下载等偶尔的操作
+	 * @param directory 包含完整路径的目录
+	 * @return 文件的完整路径
+	 */
+	public List<String> listFiles(String directory) {
+		byte[] prefix=toKeyBytes(this.toKey(directory) + File.separator);
+		List<String> files=new ArrayList<>();
+		for(Key key : this.index.keySet()){
+			if(key.startsWith(prefix)){
+				files.add(this.basePath.resolve(key.toString()).toString());
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @return 段文件数
+	 */
+	public long getSegmentCount() {
+		return this.segments.size();
+	}
+
+	/**
+	 * @return 全部段文件的字节数
+	 */
+	public long getTotalBytes() {
+		return this.segments.values().stream().mapToLong(segment -> segment.size).sum();
+	}
+
+	/**
+	 * @return 被覆盖或删除、等待compact回收的字节数，不含删除标记
+	 */
+	public long getDeadBytes() {
+		return this.segments.values().stream().mapToLong(segment -> segment.deadBytes.get()).sum();
+	}
+
+
+	/**
+	 * 关闭全部段文件
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.appendLock.lock();
+		try{
+			for(Segment segment : this.segments.values()){
+				segment.channel.close();
+			}
+		}finally{
+			this.appendLock.unlock();
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		return this.directory.toString();
+	}
+
+
+
+	//==================private functions===================
+	//按编号顺序读取全部段文件，重建索引
+	private void load() throws IOException {
+		List<Integer> ids=new ArrayList<>();
+		try(DirectoryStream<Path> stream=Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)){
+			for(Path path : stream){
+				String fileName=path.getFileName().toString();
+				try{
+					ids.add(Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length()-SEGMENT_SUFFIX.length())));
+				}catch(NumberFormatException e){
+					logger.warn("忽略无法识别的段文件{}", path);
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		for(int i=0; i<ids.size(); i++){
+			boolean last=i==ids.size()-1;
+			Segment segment=new Segment(ids.get(i), this.getSegmentPath(ids.get(i)), false);
+			this.segments.put(segment.id, segment);
+			long end=this.scan(segment, last, record -> this.replay(segment, record));
+			long fileSize=segment.channel.size();
+			if(end<fileSize){
+				if(last){
+					logger.warn("截掉段文件{}末尾不完整的{}字节", segment.path, fileSize-end);
+					segment.channel.truncate(end);
+				}else{
+					logger.warn("段文件{}从位置{}开始的{}字节无法识别，视为无效数据", segment.path, end, fileSize-end);
+					segment.deadBytes.addAndGet(fileSize-end);
+					end=fileSize;
+				}
+			}
+			segment.size=end;
+			segment.sealed=!last;
+		}
+		this.activeSegment=ids.isEmpty() ? this.createSegment(1) : this.segments.lastEntry().getValue();
+	}
+
+	//按读取到的一条记录更新索引
+	private void replay(Segment segment, Record record) {
+		if(record.length==TOMBSTONE){
+			this.markDead(this.index.remove(record.key), record.keyBytes.length);
+		}else{
+			PackLocation location=new PackLocation(segment.id, record.dataOffset, record.length, record.saveTime);
+			this.markDead(this.index.put(record.key, location), record.keyBytes.length);
+		}
+	}
+
+	//依次读取段文件中的记录交给visitor，遇到不完整的记录（或verify为true时校验失败的记录）时停止，返回最后一条完整记录的结束位置
+	private long scan(Segment segment, boolean verify, RecordVisitor visitor) throws IOException {
+		FileChannel channel=segment.channel;
+		long fileSize=channel.size();
+		ByteBuffer header=ByteBuffer.allocate(HEADER_BYTES);
+		long position=0;
+		while(position+HEADER_BYTES<=fileSize){
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			if(header.getInt()!=RECORD_MAGIC){
+				break;
+			}
+			int keyLength=header.getShort() & 0xffff;
+			int length=header.getInt();
+			long saveTime=header.getLong();
+			int crc=header.getInt();
+			long dataOffset=position+HEADER_BYTES+keyLength;
+			if(length<TOMBSTONE || dataOffset+Math.max(length, 0)>fileSize){
+				break;
+			}
+
+			ByteBuffer keyBytes=ByteBuffer.allocate(keyLength);
+			readFully(channel, keyBytes, position+HEADER_BYTES);
+			if(verify && length>0){
+				ByteBuffer data=ByteBuffer.allocate(length);
+				readFully(channel, data, dataOffset);
+				data.flip();
+				CRC32 actual=new CRC32();
+				actual.update(data);
+				if((int)actual.getValue()!=crc){
+					break;
+				}
+			}
+			visitor.visit(new Record(keyBytes.array(), dataOffset, length, saveTime, crc));
+			position=dataOffset+Math.max(length, 0);
+		}
+		return position;
+	}
+
+	//把segment中仍有效的记录和仍需保留的删除标记复制到当前段文件末尾，然后删除segment，返回回收的字节数
+	private long compact(Segment segment) throws IOException {
+		List<Record> records=new ArrayList<>();
+		this.scan(segment, false, records::add);
+		//最早的段文件之前没有记录，其中的删除标记可以丢弃；否则删除标记要保留，以免更早的段文件中同一路径的记录在重建索引时复活
+		boolean oldest=this.segments.firstKey()==segment.id;
+
+		long copiedBytes=0;
+		Set<Segment> written=new LinkedHashSet<>();
+		for(Record record : records){
+			if(record.length==TOMBSTONE){
+				if(!oldest && !this.index.containsKey(record.key)){
+					copiedBytes += this.copyTombstone(record, written);
+				}
+			}else{
+				PackLocation location=this.index.get(record.key);
+				if(location!=null && location.getSegment()==segment.id && location.getOffset()==record.dataOffset){
+					copiedBytes += this.copyRecord(segment, record, location, written);
+				}
+			}
+		}
+
+		//复制的记录持久化之后才能删除原段文件
+		for(Segment target : written){
+			target.channel.force(false);
+		}
+		this.segments.remove(segment.id);
+		segment.channel.close();
+		try{
+			Files.delete(segment.path);
+		}catch(IOException e){
+			//留下的段文件在重建索引时先于复制后的记录读取，不影响结果
+			logger.warn("删除段文件{}失败：{}", segment.path, e.toString());
+		}
+		logger.info("压缩段文件{}，复制{}字节，回收{}字节", segment.path, copiedBytes, segment.size-copiedBytes);
+		return segment.size-copiedBytes;
+	}
+
+	//把仍有效的记录复制到当前段文件末尾并更新索引，返回复制的字节数；记录已被覆盖或删除时不复制
+	private long copyRecord(Segment segment, Record record, PackLocation location, Set<Segment> written) throws IOException {
+		ByteBuffer data=segment.slice(record.dataOffset, record.length);
+		ByteBuffer copy=newRecord(record.keyBytes, record.length, record.saveTime, record.crc, data);
+		this.appendLock.lock();
+		try{
+			if(this.index.get(record.key)!=location){
+				return 0;
+			}
+			int recordBytes=copy.remaining();
+			this.index.put(record.key, this.append(copy, record.keyBytes.length));
+			written.add(this.activeSegment);
+			return recordBytes;
+		}finally{
+			this.appendLock.unlock();
+		}
+	}
+
+	//把删除标记复制到当前段文件末尾，返回复制的字节数；路径已被重新保存时不复制
+	private long copyTombstone(Record record, Set<Segment> written) throws IOException {
+		ByteBuffer copy=newRecord(record.keyBytes, TOMBSTONE, record.saveTime, 0, null);
+		this.appendLock.lock();
+		try{
+			if(this.index.containsKey(record.key)){
+				return 0;
+			}
+			int recordBytes=copy.remaining();
+			this.append(copy, record.keyBytes.length);
+			written.add(this.activeSegment);
+			return recordBytes;
+		}finally{
+			this.appendLock.unlock();
+		}
+	}
+
+	//在appendLock内调用：把record追加到当前段文件末尾，当前段文件写满时新建段文件，返回记录内容的位置
+	private PackLocation append(ByteBuffer record, int keyLength) throws IOException {
+		Segment segment=this.activeSegment;
+		if(segment.size>0 && segment.size+record.remaining()>this.maxSegmentBytes){
+			Segment full=segment;
+			segment=this.createSegment(segment.id+1);
+			this.activeSegment=segment;
+			full.sealed=true;
+		}
+
+		long start=segment.size;
+		int length=record.getInt(record.position()+6);
+		long saveTime=record.getLong(record.position()+10);
+		long position=start;
+		while(record.hasRemaining()){
+			position += segment.channel.write(record, position);
+		}
+		//写入失败时size不变，后续的记录会覆盖不完整的部分
+		segment.size=position;
+		return new PackLocation(segment.id, start+HEADER_BYTES+keyLength, length, saveTime);
+	}
+
+	private Segment createSegment(int id) throws IOException {
+		Segment segment=new Segment(id, this.getSegmentPath(id), true);
+		GroupCommitScheduler.syncDirectory(this.directory);
+		this.segments.put(id, segment);
+		return segment;
+	}
+
+	private Path getSegmentPath(int id) {
+		return this.directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	//location所指的记录已失效，计入其所在段文件的无效数据
+	private void markDead(PackLocation location, int keyLength) {
+		if(location==null){
+			return;
+		}
+		Segment segment=this.segments.get(location.getSegment());
+		if(segment!=null){
+			segment.deadBytes.addAndGet(HEADER_BYTES + keyLength + location.getLength());
+		}
+	}
+
+	private Key toIndexKey(String pathFileName) {
+		return new Key(toKeyBytes(this.toKey(pathFileName)));
+	}
+
+	//相对于basePath的路径
+	private String toKey(String pathFileName) {
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Path path=Paths.get(pathFileName).normalize();
+		Preconditions.checkArgument(path.startsWith(this.basePath), "文件" + pathFileName + "不在" + this.basePath + "下");
+		return this.basePath.relativize(path).toString();
+	}
+
+	private static byte[] toKeyBytes(String key) {
+		byte[] keyBytes=key.getBytes(StandardCharsets.UTF_8);
+		Preconditions.checkArgument(keyBytes.length<=0xffff, "文件路径过长：" + key);
+		return keyBytes;
+	}
+
+	private static ByteBuffer newRecord(byte[] keyBytes, int length, long saveTime, int crc, ByteBuffer data) {
+		ByteBuffer record=ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + Math.max(length, 0));
+		record.putInt(RECORD_MAGIC).putShort((short)keyBytes.length).putInt(length).putLong(saveTime).putInt(crc).put(keyBytes);
+		if(data!=null){
+			record.put(data);
+		}
+		record.flip();
+		return record;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()){
+			int read=channel.read(buffer, position);
+			if(read<0){
+				throw new EOFException();
+			}
+			position += read;
+		}
+	}
+
+
+
+	//一个段文件
+	private static final class Segment {
+		final int id;
+		final Path path;
+		final FileChannel channel;
+		//已写入的完整记录的字节数，只在appendLock内增加
+		volatile long size;
+		//被覆盖或删除的记录的字节数，不含删除标记
+		final AtomicLong deadBytes = new AtomicLong();
+		//已写满、不再追加记录
+		volatile boolean sealed;
+		//写满后映射的整个段文件
+		private volatile MappedByteBuffer mapped;
+
+		Segment(int id, Path path, boolean create) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.channel = create ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+					: FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		//仍在追加记录时按位置读取（记录不超过maxPackedBytes），写满后只映射一次
+		ByteBuffer slice(long offset, int length) throws IOException {
+			if(!this.sealed){
+				ByteBuffer data=ByteBuffer.allocate(length);
+				readFully(this.channel, data, offset);
+				data.flip();
+				return data.asReadOnlyBuffer();
+			}
+			MappedByteBuffer mapped=this.mapped;
+			if(mapped==null){
+				synchronized(this){
+					mapped=this.mapped;
+					if(mapped==null){
+						mapped=this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+						this.mapped=mapped;
+					}
+				}
+			}
+			ByteBuffer slice=mapped.duplicate();
+			slice.limit((int)(offset+length)).position((int)offset);
+			return slice.slice();
+		}
+	}
+
+	//索引的键：相对于basePath的路径的UTF-8字节
+	private static final class Key {
+		final byte[] bytes;
+		private final int hash;
+
+		Key(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = Arrays.hashCode(bytes);
+		}
+
+		boolean startsWith(byte[] prefix) {
+			if(this.bytes.length<prefix.length){
+				return false;
+			}
+			for(int i=0; i<prefix.length; i++){
+				if(this.bytes[i]!=prefix[i]){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(this.bytes, ((Key)obj).bytes);
+		}
+
+		@Override
+		public String toString() {
+			return new String(this.bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	//段文件中的一条记录
+	private static final class Record {
+		final byte[] keyBytes;
+		final Key key;
+		final long dataOffset;
+		final int length;
+		final long saveTime;
+		final int crc;
+
+		Record(byte[] keyBytes, long dataOffset, int length, long saveTime, int crc) {
+			this.keyBytes = keyBytes;
+			this.key = new Key(keyBytes);
+			this.dataOffset = dataOffset;
+			this.length = length;
+			this.saveTime = saveTime;
+			this.crc = crc;
+		}
+	}
+
+	@FunctionalInterface
+	private interface RecordVisitor {
+		void visit(Record record) throws IOException;
+	}
+
+}
@@ -0,0 +1,276 @@
+package com.guxl.upload.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * 把小文件打包保存在段文件中的UploadedFileWriter实现。大量几十Kb的小文件各自保存为一个文件时，inode和目录查找的开销超过了读写数据本身，
+ * 该类把不超过maxPackedBytes的文件追加到所在存储卷的PackStore中，只在内存索引中记录其位置；更大的文件以及内部使用的临时文件仍交给fileWriter单独保存。
+ * <p> 同一路径在段文件中和单独的文件中最多只有一份：覆盖保存时，写入新内容后删除另一种方式保存的旧内容。对同一路径的提交和删除应由调用者串行化（SimpleUploadManager在commitHook中获取路径锁）。
+ * <p> 删除打包保存的文件只追加删除标记，由scheduleCompaction启动的后台线程定期压缩段文件回收空间。
+ * @author xiangligu
+ *
+ */
+public class PackedUploadedFileWriter implements UploadedFileWriter {
+
+	private static final Logger logger = LoggerFactory.getLogger(PackedUploadedFileWriter.class);
+
+	private final UploadedFileWriter fileWriter;
+	private final List<PackStore> packStores;
+	private final int maxPackedBytes;
+	private ScheduledExecutorService compactor;
+
+
+	/**
+	 * @param fileWriter 保存大文件的UploadedFileWriter
+	 * @param packStores 各存储卷上的PackStore
+	 * @param maxPackedBytes 打包保存的单个文件的最大字节数，不能超过段文件的大小
+	 */
+	public PackedUploadedFileWriter(UploadedFileWriter fileWriter, List<PackStore> packStores, int maxPackedBytes) {
+		this.fileWriter = Preconditions.checkNotNull(fileWriter, "参数fileWriter不允许为null");
+		this.packStores = ImmutableList.copyOf(Preconditions.checkNotNull(packStores, "参数packStores不允许为null"));
+		Preconditions.checkArgument(maxPackedBytes>0, "参数maxPackedBytes必须为正整数");
+		for(PackStore packStore : this.packStores){
+			Preconditions.checkArgument(maxPackedBytes<packStore.getMaxSegmentBytes(), "参数maxPackedBytes必须小于段文件的大小");
+		}
+		this.maxPackedBytes = maxPackedBytes;
+	}
+
+
+	public List<PackStore> getPackStores() {
+		return this.packStores;
+	}
+
+	public int getMaxPackedBytes() {
+		return this.maxPackedBytes;
+	}
+
+
+	@Override
+	public void setCommitScheduler(GroupCommitScheduler commitScheduler) {
+		this.fileWriter.setCommitScheduler(commitScheduler);
+	}
+
+
+	@Override
+	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability)
+			throws IOException{
+		this.writeFile(multipartFile, pathFileName, overwrite, durability, CommitHook.NONE);
+	}
+
+
+	@Override
+	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException{
+		Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Preconditions.checkNotNull(commitHook, "参数commitHook不允许为null");
+
+		PackStore packStore=this.findPackStore(pathFileName);
+		if(packStore==null || multipartFile.getSize()>this.maxPackedBytes){
+			this.checkNotPacked(packStore, pathFileName, overwrite);
+			this.fileWriter.writeFile(multipartFile, pathFileName, overwrite, durability, commitHook);
+			this.afterUnpackedCommit(packStore, pathFileName, overwrite);
+			return;
+		}
+		byte[] data=multipartFile.getBytes();
+		commitHook.beforeCommit();
+		this.writePacked(packStore, pathFileName, data, data.length, overwrite, durability);
+	}
+
+
+	@Override
+	public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability)
+			throws IOException{
+		return this.writeFile(inputStream, pathFileName, overwrite, durability, CommitHook.NONE);
+	}
+
+
+	@Override
+	public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException{
+		Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Preconditions.checkNotNull(commitHook, "参数commitHook不允许为null");
+
+		PackStore packStore=this.findPackStore(pathFileName);
+		if(packStore==null){
+			return this.fileWriter.writeFile(inputStream, pathFileName, overwrite, durability, commitHook);
+		}
+
+		//多读一个字节，以判断文件是否超过maxPackedBytes
+		byte[] buffer=new byte[this.maxPackedBytes+1];
+		int length=ByteStreams.read(inputStream, buffer, 0, buffer.length);
+		if(length<=this.maxPackedBytes){
+			commitHook.beforeCommit();
+			this.writePacked(packStore, pathFileName, buffer, length, overwrite, durability);
+			return length;
+		}
+		this.checkNotPacked(packStore, pathFileName, overwrite);
+		InputStream wholeStream=new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), inputStream);
+		long size=this.fileWriter.writeFile(wholeStream, pathFileName, overwrite, durability, commitHook);
+		this.afterUnpackedCommit(packStore, pathFileName, overwrite);
+		return size;
+	}
+
+
+	/**
+	 * 删除pathFileName：文件打包保存时追加删除标记，否则交给fileWriter删除。
+	 * 同一路径暂时在两处都有内容时（如分块上传覆盖了打包保存的文件），只删除段文件中的内容
+	 */
+	@Override
+	public void removeFile(String pathFileName) throws IOException {
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Preconditions.checkArgument(pathFileName.trim().length()>0, "参数pathFileName不允许为空格或空字符串");
+
+		PackStore packStore=this.findPackStore(pathFileName);
+		if(packStore==null || !packStore.remove(pathFileName)){
+			this.fileWriter.removeFile(pathFileName);
+		}
+	}
+
+
+	@Override
+	public PackLocation getPackLocation(String pathFileName) {
+		PackStore packStore=this.findPackStore(pathFileName);
+		return packStore==null ? null : packStore.getLocation(pathFileName);
+	}
+
+
+	@Override
+	public ByteBuffer readPackedFile(String pathFileName) throws IOException {
+		PackStore packStore=this.findPackStore(pathFileName);
+		return packStore==null ? null : packStore.read(pathFileName);
+	}
+
+
+	@Override
+	public long[] getPackedUsage(String directory) {
+		PackStore packStore=this.findPackStore(directory);
+		return packStore==null ? new long[]{0, 0} : packStore.getUsage(directory);
+	}
+
+
+	@Override
+	public List<String> listPackedFiles(String directory) {
+		PackStore packStore=this.findPackStore(directory);
+		return packStore==null ? Collections.emptyList() : packStore.listFiles(directory);
+	}
+
+
+	/**
+	 * 启动后台线程，每隔intervalSeconds秒压缩各PackStore中无效数据比例不低于minDeadRatio的段文件
+	 * @param intervalSeconds 压缩的间隔秒数
+	 * @param minDeadRatio 0到1之间的比例
+	 */
+	public synchronized void scheduleCompaction(long intervalSeconds, double minDeadRatio) {
+		Preconditions.checkArgument(intervalSeconds>0, "参数intervalSeconds必须为正整数");
+		Preconditions.checkArgument(minDeadRatio>=0 && minDeadRatio<=1, "参数minDeadRatio必须在0到1之间");
+		Preconditions.checkState(this.compactor==null, "已经启动了压缩线程");
+
+		this.compactor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("upload-pack-compactor-%d").setDaemon(true).build());
+		this.compactor.scheduleWithFixedDelay(() -> this.compact(minDeadRatio), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+
+	/**
+	 * 立即压缩各PackStore中无效数据比例不低于minDeadRatio的段文件，某个卷压缩失败不影响其他卷
+	 * @param minDeadRatio 0到1之间的比例
+	 * @return 回收的字节数
+	 */
+	public long compact(double minDeadRatio) {
+		long reclaimed=0;
+		for(PackStore packStore : this.packStores){
+			try{
+				reclaimed += packStore.compact(minDeadRatio);
+			}catch(IOException | RuntimeException e){
+				logger.error("压缩" + packStore + "中的段文件失败", e);
+			}
+		}
+		return reclaimed;
+	}
+
+
+	/**
+	 * 停止压缩线程并关闭全部段文件
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public synchronized void shutdown() throws InterruptedException, IOException {
+		if(this.compactor!=null){
+			this.compactor.shutdownNow();
+			this.compactor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		for(PackStore packStore : this.packStores){
+			packStore.close();
+		}
+	}
+
+
+
+	//==================private functions===================
+	//返回可以保存pathFileName的PackStore，pathFileName不在任何卷上或是内部文件时返回null
+	private PackStore findPackStore(String pathFileName) {
+		for(PackStore packStore : this.packStores){
+			if(packStore.accepts(pathFileName)){
+				return packStore;
+			}
+		}
+		return null;
+	}
+
+	private void writePacked(PackStore packStore, String pathFileName, byte[] data, int length, boolean overwrite, Durability durability)
+			throws IOException{
+		if(!overwrite && Files.exists(Paths.get(pathFileName))){
+			throw new SameFileNameExistException();
+		}
+		packStore.put(pathFileName, data, length, overwrite, durability);
+		if(overwrite){
+			//之前单独保存的同名文件
+			this.fileWriter.removeFile(pathFileName);
+		}
+	}
+
+	//不允许覆盖时，同名文件已打包保存则抛出SameFileNameExistException
+	private void checkNotPacked(PackStore packStore, String pathFileName, boolean overwrite) {
+		if(!overwrite && packStore!=null && packStore.getLocation(pathFileName)!=null){
+			throw new SameFileNameExistException();
+		}
+	}
+
+	//单独保存的文件已提交（调用者仍持有提交时获取的路径锁）后，删除之前打包保存的同名文件。
+	//写入临时文件时不持有路径锁，不允许覆盖而同名文件在此期间被打包保存时，撤销刚提交的文件
+	private void afterUnpackedCommit(PackStore packStore, String pathFileName, boolean overwrite) throws IOException {
+		if(packStore==null){
+			return;
+		}
+		if(!overwrite && packStore.getLocation(pathFileName)!=null){
+			this.fileWriter.removeFile(pathFileName);
+			throw new SameFileNameExistException();
+		}
+		packStore.remove(pathFileName);
+	}
+
+}
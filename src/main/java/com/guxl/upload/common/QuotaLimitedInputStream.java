@@ -0,0 +1,78 @@
+package com.guxl.upload.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 按租户配额限制读取的输入流。每次读取后按租户的bytesPerSecond限速，并检查已用字节数加上已读取的字节数是否超过配额，
+ * 超过时立即抛出QuotaExceededException，不必等到整个文件接收完毕。
+ * @author xiangligu
+ *
+ */
+public class QuotaLimitedInputStream extends FilterInputStream {
+
+	private final TenantQuota quota;
+	private long readBytes;
+
+
+	public QuotaLimitedInputStream(InputStream in, TenantQuota quota) {
+		super(Preconditions.checkNotNull(in, "参数in不允许为null"));
+		this.quota = Preconditions.checkNotNull(quota, "参数quota不允许为null");
+	}
+
+
+	/**
+	 * @return 目前为止已读取的字节数
+	 */
+	public long getReadBytes() {
+		return this.readBytes;
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b != -1){
+			this.count(1);
+		}
+		return b;
+	}
+
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if(n > 0){
+			this.count(n);
+		}
+		return n;
+	}
+
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		this.count(skipped);
+		return skipped;
+	}
+
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+
+
+	//==================private functions===================
+	private void count(long n){
+		this.readBytes += n;
+		this.quota.checkBytes(this.readBytes);
+		this.quota.throttle(n);
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.guxl.upload.common;
+
+import java.util.List;
+
+
+/**
+ * 上传文件在fsBasePath下的分片目录布局。UploadManager随机生成文件名称后，由ShardLayout决定文件保存所在的子目录，
+ * 使大量文件均匀地分布在多个目录中，避免单个目录下的文件数过多。
+ * @author xiangligu
+ *
+ */
+public interface ShardLayout {
+	
+	/**
+	 * @param fileId 文件的标识，如随机生成的文件名称或文件内容的摘要
+	 * @return 文件保存所在的子目录（相对于fsBasePath），多级目录使用“/”分隔，如“ab/cd”
+	 */
+	String getSubDir(String fileId);
+	
+	
+	/**
+	 * @return 该布局可能产生的全部子目录，用于启动时预先创建目录。如果子目录的数量不固定，返回空列表
+	 */
+	List<String> getAllSubDirs();
+
+}
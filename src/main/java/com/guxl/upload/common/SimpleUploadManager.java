@@ -1,50 +1,142 @@
 package com.guxl.upload.common;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
+import java.util.zip.CheckedInputStream;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.commons.codec.binary.Hex;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.guxl.upload.common.UploadMetrics.Stage;
 import com.guxl.upload.common.exception.FileSizeExceedLimitException;
 import com.guxl.upload.common.exception.SameFileNameExistException;
+import com.guxl.upload.common.exception.UploadSessionNotFoundException;
 
 
 /**
  * 用于上传文件管理的简单实现类。该类定义了几个属性：
- * <br> fsBasePath：用于保存文件上传的文件系统完整路径。
+ * <br> fsBasePath和fsBasePaths：用于保存文件上传的文件系统完整路径。有多个路径（通常各在一块数据盘上）时，每个文件按其标识保存在其中一个路径下，fsBasePath为第一个路径。
  * <br> urlBasePath：将fsBasePath路径映射出可供web访问的虚拟路径，后续通过浏览器访问文件时将会使用到该参数。
  * <br> sizeLimit和sizeLimitBytes：上传文件的大小，只接受kb或mb单位的设值。
  * <br> fileWriter：将上传的文件写入或删除的UploadedFileWriter的实现。
+ * <br> fileListeners：文件保存和删除后需要通知的监听器，如UploadedFileMetadataStore。
+ * <br> metrics：记录各阶段耗时、上传字节数和错误数的UploadMetrics。
+ * <br> fileIdGenerator和shardLayout：随机生成文件名称及其所在子目录的方式。
+ * <br> durability和commitScheduler：保存文件时默认的持久化级别，以及Durability.GROUP时合并fsync的GroupCommitScheduler。
+ * <br> deferredRemover：removeFilesLater标记删除的文件由其在后台实际删除，不设置时removeFilesLater立即删除文件。
+ * <br> quotaManager：按租户（调用方指定的subDir的第一级目录）检查存储配额、限制写入带宽并更新已用量，不设置时不限制。
+ * <br> fileCompressor：决定哪些文件压缩保存，并在写入时压缩，不设置时不压缩。分块上传和按内容去重保存的文件不压缩。
+ * <br> checksumEnabled：是否在写入的同时计算文件的校验和（见FileChecksum），默认为true。校验和在写入的复制过程中按固定大小的缓冲区边读边计算，
+ * 不需要额外读取文件，计算的就是写入的数据；代价是web服务器已缓存到磁盘的multipart上传文件不再使用transferTo零拷贝写入，需要零拷贝时应关闭该属性。
+ * 分块上传的分块可以乱序并发写入，不计算校验和。
  * 
- * <p> 以上四个属性，除了fileWriter属性，在本程序中使用Autowired实现自动注入，其余三个属性留待更高层次的调用代码在使用时按需进行配置。
+ * <p> 以上属性均留待更高层次的调用代码在使用时按需进行配置。UploadManagerConfiguration按upload.*配置项设置这些属性：fileWriter根据upload.writer选择，
+ * fileIdGenerator、shardLayout、durability、fileCompressor和checksumEnabled各有对应的配置项，deferredRemover和quotaManager在启用时才设置，
+ * fileListeners由各个需要感知文件变化的组件自行注册。
  * @author xiangligu
  *
  */
 public class SimpleUploadManager implements UploadManager {
 
+	private static final Logger logger = LoggerFactory.getLogger(SimpleUploadManager.class);
+
 	private String fsBasePath;
+	private List<String> fsBasePaths;
 	private String urlBasePath;
+	//由fsBasePaths生成的存储卷，以及格式化后的urlBasePath，在设置时计算一次，保存文件时直接使用
+	private List<StorageVolume> volumes;
+	private String regularUrlBasePath;
 	private String sizeLimit;
 	private long sizeLimitBytes;
 	private UploadedFileWriter fileWriter;
+	private ShardLayout shardLayout = new HashShardLayout(1, 2);
+	private FileIdGenerator fileIdGenerator = new UuidFileIdGenerator();
+	private final DirectoryRegistry directoryRegistry = new DirectoryRegistry();
+	private ExecutorService batchExecutor;
+	private final List<UploadedFileListener> fileListeners = new CopyOnWriteArrayList<>();
+	private UploadMetrics metrics = new UploadMetrics();
+	private Durability durability = Durability.NONE;
+	private GroupCommitScheduler commitScheduler = new GroupCommitScheduler();
+	private DeferredFileRemover deferredRemover;
+	private TenantQuotaManager quotaManager;
+	private FileCompressor fileCompressor;
+	private boolean checksumEnabled = true;
+	//按完整路径分段的锁。同一路径上的保存（提交为目标文件和随后通知监听器，不包括写入临时文件）和删除在锁内依次执行，不同路径只在哈希到同一段时才会竞争
+	private final Striped<Lock> pathLocks = Striped.lock(PATH_LOCK_STRIPES);
+	private static final int PATH_LOCK_STRIPES = 1024;
+	
+	//分块上传的会话，sessionId -> session
+	private final ConcurrentMap<String, ChunkedUploadSession> uploadSessions = new ConcurrentHashMap<>();
+	//分块上传的会话在多长时间内没有任何分块写入时即视为过期
+	private static final long UPLOAD_SESSION_EXPIRE_MILLIS = 24L * 60 * 60 * 1000;
+	//分块上传的临时文件所在的目录（相对于各存储卷的基本路径）
+	static final String UPLOAD_SESSION_DIR = ".chunked";
+	//定期清理过期会话的线程
+	private final ScheduledExecutorService sessionPurger = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("upload-session-purger-%d").setDaemon(true).build());
 	
 	
 	//================setters===================
 	@Override
 	public void setFsBasePath(String fsBasePath) {
 		Preconditions.checkNotNull(fsBasePath, "参数fsBasePath不允许为null");
-		Preconditions.checkArgument(fsBasePath.trim().length()>0, "参数fsBasePath不允许为空格或空字符串");
-		this.fsBasePath = fsBasePath;
+		this.setFsBasePaths(Collections.singletonList(fsBasePath));
+	}
+
+	@Override
+	public void setFsBasePaths(List<String> fsBasePaths) {
+		Preconditions.checkNotNull(fsBasePaths, "参数fsBasePaths不允许为null");
+		Preconditions.checkArgument(!fsBasePaths.isEmpty(), "参数fsBasePaths不允许为空");
+		
+		List<StorageVolume> volumes=new ArrayList<>(fsBasePaths.size());
+		Set<Path> basePaths=new HashSet<>();
+		for(String fsBasePath : fsBasePaths){
+			Preconditions.checkNotNull(fsBasePath, "参数fsBasePath不允许为null");
+			Preconditions.checkArgument(fsBasePath.trim().length()>0, "参数fsBasePath不允许为空格或空字符串");
+			Path basePath=Paths.get(FileSystemUtil.getRegularFullPath(fsBasePath));
+			Preconditions.checkArgument(basePaths.add(basePath), "参数fsBasePaths中的路径" + fsBasePath + "重复");
+			volumes.add(new StorageVolume(volumes.size(), basePath, this.directoryRegistry));
+		}
+		this.fsBasePath = fsBasePaths.get(0);
+		this.fsBasePaths = Collections.unmodifiableList(new ArrayList<>(fsBasePaths));
+		this.volumes = Collections.unmodifiableList(volumes);
 	}
 
 	@Override
@@ -52,6 +144,7 @@ public class SimpleUploadManager implements UploadManager {
 		Preconditions.checkNotNull(urlBasePath, "参数urlBasePath不允许为null");
 		Preconditions.checkArgument(urlBasePath.trim().length()>0, "参数urlBasePath不允许为空格或空字符串");
 		this.urlBasePath = urlBasePath;
+		this.regularUrlBasePath = FileSystemUtil.getRegularFullUrlPath(urlBasePath);
 	}
 
 	@Override
@@ -75,11 +168,7 @@ public class SimpleUploadManager implements UploadManager {
 	}
 
 	
-	/**
-	 * 注意：该set方法使用了@Autowired注解，表示fileWriter不需要人为设置，将会由spring自动注入。且required=true，表示必须被注入。
-	 */
 	@Override
-	@Autowired(required=true)
 	public void setFileWriter(UploadedFileWriter writer) {
 		Preconditions.checkNotNull(writer, "参数writer不允许为null");
 		this.fileWriter = writer;
@@ -88,11 +177,112 @@ public class SimpleUploadManager implements UploadManager {
 	
 	
 	
+	/**
+	 * 设置随机生成子目录时所使用的分片目录布局，默认为256个两位十六进制字符组成的子目录
+	 * @param shardLayout
+	 */
+	public void setShardLayout(ShardLayout shardLayout) {
+		Preconditions.checkNotNull(shardLayout, "参数shardLayout不允许为null");
+		this.shardLayout = shardLayout;
+	}
+	
+	/**
+	 * 设置随机生成文件名称时所使用的FileIdGenerator，默认为UuidFileIdGenerator
+	 * @param fileIdGenerator
+	 */
+	public void setFileIdGenerator(FileIdGenerator fileIdGenerator) {
+		Preconditions.checkNotNull(fileIdGenerator, "参数fileIdGenerator不允许为null");
+		this.fileIdGenerator = fileIdGenerator;
+	}
+	
+	/**
+	 * 设置批量保存文件时并行写入所使用的线程池。不设置时批量保存的文件将在调用线程中依次写入。
+	 * 线程池应使用有界队列，并在拒绝任务时由调用线程执行；线程池由调用方负责关闭。
+	 * @param batchExecutor
+	 */
+	public void setBatchExecutor(ExecutorService batchExecutor) {
+		this.batchExecutor = batchExecutor;
+	}
+	
+	/**
+	 * 设置记录运行指标的UploadMetrics，不设置时使用一个独立的UploadMetrics对象
+	 * @param metrics
+	 */
+	public void setMetrics(UploadMetrics metrics) {
+		Preconditions.checkNotNull(metrics, "参数metrics不允许为null");
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public void setDurability(Durability durability) {
+		Preconditions.checkNotNull(durability, "参数durability不允许为null");
+		this.durability = durability;
+	}
+	
+	/**
+	 * 设置用于合并fsync的GroupCommitScheduler，应与fileWriter使用同一个
+	 * @param commitScheduler
+	 */
+	public void setCommitScheduler(GroupCommitScheduler commitScheduler) {
+		Preconditions.checkNotNull(commitScheduler, "参数commitScheduler不允许为null");
+		this.commitScheduler = commitScheduler;
+	}
+	
+	/**
+	 * 设置延迟删除文件的DeferredFileRemover，应使用本对象创建
+	 * @param deferredRemover
+	 */
+	public void setDeferredRemover(DeferredFileRemover deferredRemover) {
+		this.deferredRemover = deferredRemover;
+	}
+	
+	/**
+	 * 设置按租户管理配额的TenantQuotaManager，应使用本对象创建
+	 * @param quotaManager
+	 */
+	public void setQuotaManager(TenantQuotaManager quotaManager) {
+		this.quotaManager = quotaManager;
+	}
+	
+	/**
+	 * 设置压缩保存文件的FileCompressor，为null时不压缩
+	 * @param fileCompressor
+	 */
+	public void setFileCompressor(FileCompressor fileCompressor) {
+		this.fileCompressor = fileCompressor;
+	}
+	
+	/**
+	 * 设置是否在写入时计算文件的校验和
+	 * @param checksumEnabled
+	 */
+	public void setChecksumEnabled(boolean checksumEnabled) {
+		this.checksumEnabled = checksumEnabled;
+	}
+	
+	@Override
+	public void addFileListener(UploadedFileListener listener) {
+		Preconditions.checkNotNull(listener, "参数listener不允许为null");
+		this.fileListeners.add(listener);
+	}
+	
+	
+	
+	
 	//=================getters====================
 	public String getFsBasePath() {
 		return this.fsBasePath;
 	}
 
+	@Override
+	public List<String> getFsBasePaths() {
+		return this.fsBasePaths;
+	}
+	
+	public List<StorageVolume> getVolumes() {
+		return this.volumes;
+	}
+
 	public String getUrlBasePath() {
 		return this.urlBasePath;
 	}
@@ -109,80 +299,1006 @@ public class SimpleUploadManager implements UploadManager {
 		return this.fileWriter;
 	}
 	
+	public ShardLayout getShardLayout() {
+		return this.shardLayout;
+	}
+	
+	public FileIdGenerator getFileIdGenerator() {
+		return this.fileIdGenerator;
+	}
+	
+	@Override
+	public Durability getDurability() {
+		return this.durability;
+	}
+	
+	public GroupCommitScheduler getCommitScheduler() {
+		return this.commitScheduler;
+	}
+	
+	public UploadMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	public DeferredFileRemover getDeferredRemover() {
+		return this.deferredRemover;
+	}
+	
+	public TenantQuotaManager getQuotaManager() {
+		return this.quotaManager;
+	}
+	
+	@Override
+	public FileCompressor getFileCompressor() {
+		return this.fileCompressor;
+	}
+	
+	public boolean isChecksumEnabled() {
+		return this.checksumEnabled;
+	}
+	
+	
+	/**
+	 * 在每个存储卷上预先创建shardLayout的全部子目录，并记录到目录注册表中，之后保存文件时不再需要检查这些目录是否存在
+	 * @return 每个卷上预先创建的子目录数
+	 * @throws IOException
+	 */
+	public int precreateShardDirectories() throws IOException {
+		List<String> subDirs=this.shardLayout.getAllSubDirs();
+		for(StorageVolume volume : this.volumes){
+			for(String subDir : subDirs){
+				volume.precreateDirectory(subDir);
+			}
+		}
+		return subDirs.size();
+	}
+	
+	
+	/**
+	 * 选择标识为fileId的文件所在的存储卷，同一fileId总是对应同一个卷
+	 * @param fileId 保存时使用的文件名称（不含扩展名）
+	 * @return
+	 */
+	public StorageVolume selectVolume(String fileId) {
+		return this.volumes.get(StorageVolume.selectIndex(fileId.trim(), this.volumes.size()));
+	}
+	
 	
 	
 	
 	//==============save and remove implementation================
 	@Override
-	public UploadedFileInfo saveFile(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite)
+	public UploadedFileInfo saveFile(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite, Durability durability)
 			throws IOException{
+		return this.saveFile(multipartFile, subDir, newFileName, overwrite, durability, true);
+	}
+
+	
+	@Override
+	public UploadedFileInfo saveFile(MultipartFile multipartFile)
+			throws NoSuchAlgorithmException, IOException{
+		Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
+		String newFileName=this.generateFileName();
+		String subDir=this.shardLayout.getSubDir(newFileName);
+		//随机生成的文件名不会被其他线程同时保存或删除，不需要路径锁
+		return this.saveFile(multipartFile, subDir, newFileName, true, this.durability, false);
+	}
+	
+	
+	//lockPath为true时，在路径锁内提交文件并通知监听器
+	private UploadedFileInfo saveFile(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite, Durability durability, 
+			boolean lockPath) throws IOException{
+		long start=System.nanoTime();
+		long savedBytes=-1;
+		this.metrics.uploadStarted();
+		try{
+			Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
+			this.checkSubDirAndFileName(subDir, newFileName);
+			Preconditions.checkNotNull(durability, "参数durability不允许为null");
+			
+			if(multipartFile.getSize()>this.sizeLimitBytes){
+				throw new FileSizeExceedLimitException();
+			}
+			
+			//只有调用方指定的子目录属于租户
+			TenantQuota quota=lockPath ? this.acquireQuota(subDir) : null;
+			if(quota!=null){
+				quota.checkQuota(multipartFile.getSize());
+			}
+			
+			String originFileName=multipartFile.getOriginalFilename();
+			String fileType=FileSystemUtil.getFileExtent(originFileName);
+			start=this.metrics.record(Stage.VALIDATION, start);
+			String fullPathFileName=this.prepareFullPathFileName(subDir, newFileName, fileType, overwrite);
+			start=this.metrics.record(Stage.DIRECTORY, start);
+			if(quota!=null){
+				//文件已由web服务器完整接收，写入前一次取得全部许可；超出的部分由该租户之后的写入等待
+				quota.throttle(multipartFile.getSize());
+			}
+			
+			//临时文件在锁外写入，只有提交、更新租户已用量和通知监听器在路径锁内执行
+			UploadedFileInfo fileInfo;
+			PathCommit commit=lockPath ? new PathCommit(fullPathFileName, quota!=null) : null;
+			try{
+				fileInfo=this.writeFile(multipartFile, fileType, fullPathFileName, overwrite, durability, subDir, newFileName, 
+						commit!=null ? commit : UploadedFileWriter.CommitHook.NONE);
+				this.metrics.record(Stage.WRITE, start);
+				if(quota!=null){
+					quota.fileSaved(fileInfo.getStoredSize(), commit.getReplacedBytes());
+				}
+				
+				this.fireFileSaved(fileInfo);
+			}finally{
+				if(commit!=null){
+					commit.unlock();
+				}
+			}
+			savedBytes=fileInfo.getFileSize();
+			return fileInfo;
+		}catch(IOException | RuntimeException e){
+			this.metrics.recordError(e);
+			this.forgetMissingDirectory(e, subDir, newFileName);
+			throw e;
+		}finally{
+			this.metrics.uploadFinished(savedBytes);
+		}
+	}
+	
+	
+	@Override
+	public List<FileSaveResult> saveFiles(List<MultipartFile> multipartFiles, String subDir) {
+		Preconditions.checkNotNull(multipartFiles, "参数multipartFiles不允许为null");
+		if(subDir!=null){
+			Preconditions.checkArgument(subDir.trim().length()>0, "参数subDir不允许为空格或空字符串");
+		}
+		
+		//各文件在不同线程中并行写入，Durability.GROUP时它们的fsync会被合并提交
+		Durability durability=this.durability;
+		FileSaveResult[] results=new FileSaveResult[multipartFiles.size()];
+		List<Runnable> writeTasks=new ArrayList<>(multipartFiles.size());
+		
+		//先校验全部文件，并为通过校验的文件生成保存路径；每个子目录只准备一次
+		for(int i=0; i<multipartFiles.size(); i++){
+			long start=System.nanoTime();
+			MultipartFile multipartFile=multipartFiles.get(i);
+			String originFileName=multipartFile==null ? null : multipartFile.getOriginalFilename();
+			try{
+				Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
+				if(multipartFile.getSize()>this.sizeLimitBytes){
+					throw new FileSizeExceedLimitException();
+				}
+				TenantQuota quota=subDir!=null ? this.acquireQuota(subDir) : null;
+				if(quota!=null){
+					quota.checkQuota(multipartFile.getSize());
+				}
+				String fileType=FileSystemUtil.getFileExtent(originFileName);
+				String newFileName=this.generateFileName();
+				String fileSubDir=subDir!=null ? subDir : this.shardLayout.getSubDir(newFileName);
+				start=this.metrics.record(Stage.VALIDATION, start);
+				
+				String fullPathFileName=joinFileName(this.selectVolume(newFileName).resolveDirectory(fileSubDir), null, newFileName, fileType);
+				this.metrics.record(Stage.DIRECTORY, start);
+				int index=i;
+				writeTasks.add(() -> {
+					long savedBytes=-1;
+					this.metrics.uploadStarted();
+					try{
+						if(quota!=null){
+							quota.throttle(multipartFile.getSize());
+						}
+						long writeStart=System.nanoTime();
+						UploadedFileInfo fileInfo=this.writeFile(multipartFile, fileType, fullPathFileName, true, durability, 
+								fileSubDir, newFileName, UploadedFileWriter.CommitHook.NONE);
+						this.metrics.record(Stage.WRITE, writeStart);
+						if(quota!=null){
+							quota.fileSaved(fileInfo.getStoredSize(), -1);
+						}
+						results[index]=FileSaveResult.success(index, originFileName, this.fireFileSaved(fileInfo));
+						savedBytes=fileInfo.getFileSize();
+					}catch(IOException | RuntimeException e){
+						this.metrics.recordError(e);
+						this.forgetMissingDirectory(e, fileSubDir, newFileName);
+						results[index]=FileSaveResult.failure(index, originFileName, e);
+					}finally{
+						this.metrics.uploadFinished(savedBytes);
+					}
+				});
+			}catch(IOException | RuntimeException e){
+				this.metrics.recordError(e);
+				results[i]=FileSaveResult.failure(i, originFileName, e);
+			}
+		}
+		
+		//并行写入，单个文件失败不影响其他文件
+		this.runAll(writeTasks);
+		return Arrays.asList(results);
+	}
+	
+	
+	@Override
+	public UploadedFileInfo saveFile(InputStream inputStream, String originFileName, String subDir, String newFileName, boolean overwrite, 
+			Durability durability) throws IOException{
+		return this.saveFile(inputStream, originFileName, subDir, newFileName, overwrite, durability, true);
+	}
+	
+	
+	@Override
+	public UploadedFileInfo saveFile(InputStream inputStream, String originFileName)
+			throws NoSuchAlgorithmException, IOException{
+		String newFileName=this.generateFileName();
+		String subDir=this.shardLayout.getSubDir(newFileName);
+		return this.saveFile(inputStream, originFileName, subDir, newFileName, true, this.durability, false);
+	}
+	
+	
+	//lockPath为true时，在路径锁内提交文件并通知监听器
+	private UploadedFileInfo saveFile(InputStream inputStream, String originFileName, String subDir, String newFileName, boolean overwrite, 
+			Durability durability, boolean lockPath) throws IOException{
+		long start=System.nanoTime();
+		long savedBytes=-1;
+		this.metrics.uploadStarted();
+		try{
+			Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+			Preconditions.checkNotNull(originFileName, "参数originFileName不允许为null");
+			this.checkSubDirAndFileName(subDir, newFileName);
+			Preconditions.checkNotNull(durability, "参数durability不允许为null");
+			
+			TenantQuota quota=lockPath ? this.acquireQuota(subDir) : null;
+			if(quota!=null){
+				quota.checkQuota(0);
+			}
+			String fileType=FileSystemUtil.getFileExtent(originFileName);
+			start=this.metrics.record(Stage.VALIDATION, start);
+			String fullPathFileName=this.prepareFullPathFileName(subDir, newFileName, fileType, overwrite);
+			start=this.metrics.record(Stage.DIRECTORY, start);
+			
+			//临时文件在锁外写入（按租户的带宽限制读取时可能较慢），只有提交、更新租户已用量和通知监听器在路径锁内执行
+			UploadedFileInfo fileInfo;
+			PathCommit commit=lockPath ? new PathCommit(fullPathFileName, quota!=null) : null;
+			try{
+				//边读边计数，超过sizeLimitBytes或租户的配额时立即中止，由writer删除已写入的部分；同时按租户的带宽限制读取。
+				//sizeLimitBytes限制压缩前的大小，租户的配额和带宽按压缩后实际写入的字节数计算
+				InputStream source=new SizeLimitedInputStream(inputStream, this.sizeLimitBytes);
+				if(this.fileCompressor!=null){
+					source=this.fileCompressor.wrap(source, fileType);
+				}
+				InputStream limitedStream=this.checked(quota!=null ? new QuotaLimitedInputStream(source, quota) : source);
+				long storedSize=this.fileWriter.writeFile(limitedStream, fullPathFileName, overwrite, durability, 
+						commit!=null ? commit : UploadedFileWriter.CommitHook.NONE);
+				this.metrics.record(Stage.WRITE, start);
+				if(quota!=null){
+					quota.fileSaved(storedSize, commit.getReplacedBytes());
+				}
+				
+				fileInfo=this.fireFileSaved(this.recordChecksum(this.recordCompression(
+						this.createFileInfo(originFileName, fileType, fullPathFileName, storedSize, subDir, newFileName), source), limitedStream));
+			}finally{
+				if(commit!=null){
+					commit.unlock();
+				}
+			}
+			savedBytes=fileInfo.getFileSize();
+			return fileInfo;
+		}catch(IOException | RuntimeException e){
+			this.metrics.recordError(e);
+			this.forgetMissingDirectory(e, subDir, newFileName);
+			throw e;
+		}finally{
+			this.metrics.uploadFinished(savedBytes);
+		}
+	}
+
+	
+	@Override
+	public UploadedFileInfo saveFileDeduplicated(MultipartFile multipartFile)
+			throws NoSuchAlgorithmException, IOException{
 		Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
-		Preconditions.checkNotNull(subDir, "参数subDir不允许为null");
-		Preconditions.checkArgument(subDir.trim().length()>0, "参数subDir不允许为空格或空字符串");
-		Preconditions.checkNotNull(newFileName, "参数newFileName不允许为null");
-		Preconditions.checkArgument(newFileName.trim().length()>0, "参数newFileName不允许为空格或空字符串");
 		
 		if(multipartFile.getSize()>this.sizeLimitBytes){
 			throw new FileSizeExceedLimitException();
 		}
 		
-		String originFileName=multipartFile.getOriginalFilename();
-		String fileType=FileSystemUtil.getFileExtent(originFileName);
+		try(InputStream inputStream=multipartFile.getInputStream()){
+			return this.saveFileDeduplicated(inputStream, multipartFile.getOriginalFilename());
+		}
+	}
+	
+	
+	@Override
+	public UploadedFileInfo saveFileDeduplicated(InputStream inputStream, String originFileName)
+			throws NoSuchAlgorithmException, IOException{
+		long start=System.nanoTime();
+		long savedBytes=-1;
+		this.metrics.uploadStarted();
+		try{
+			Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+			Preconditions.checkNotNull(originFileName, "参数originFileName不允许为null");
+			
+			String fileType=FileSystemUtil.getFileExtent(originFileName);
+			start=this.metrics.record(Stage.VALIDATION, start);
+			
+			//先写入临时文件，写入的同时计算摘要。临时文件、blob和最终的文件都在按文件名称选择的卷上，因此只在同一卷内去重
+			String newFileName=this.generateFileName();
+			ContentAddressedStore contentStore=this.selectVolume(newFileName).getContentStore();
+			Path tempFile=contentStore.newTempFile();
+			DigestInputStream digestStream=new DigestInputStream(new SizeLimitedInputStream(inputStream, this.sizeLimitBytes), 
+					MessageDigest.getInstance("SHA-256"));
+			InputStream checkedStream=this.checked(digestStream);
+			long fileSize=this.fileWriter.writeFile(checkedStream, tempFile.toString(), true, this.durability);
+			String contentHash=new String(Hex.encodeHex(digestStream.getMessageDigest().digest()));
+			start=this.metrics.record(Stage.WRITE, start);
+			
+			//子目录由摘要决定
+			String subDir=this.shardLayout.getSubDir(contentHash);
+			String fullPathFileName;
+			try{
+				fullPathFileName=this.prepareFullPathFileName(subDir, newFileName, fileType, true);
+			}catch(IOException | RuntimeException e){
+				Files.deleteIfExists(tempFile);
+				throw e;
+			}
+			Path target=Paths.get(fullPathFileName);
+			contentStore.link(tempFile, contentHash, target);
+			//blob的内容已在写入临时文件时持久化，这里只需持久化新建的目录项
+			this.commitScheduler.syncDirectories(ImmutableSet.of(contentStore.getBlobPath(contentHash).getParent(), target.getParent()), 
+					this.durability);
+			this.metrics.record(Stage.DIRECTORY, start);
+			
+			UploadedFileInfo fileInfo=this.createFileInfo(originFileName, fileType, fullPathFileName, fileSize, subDir, newFileName);
+			fileInfo.setContentHash(contentHash);
+			this.fireFileSaved(this.recordChecksum(fileInfo, checkedStream));
+			savedBytes=fileSize;
+			return fileInfo;
+		}catch(NoSuchAlgorithmException | IOException | RuntimeException e){
+			this.metrics.recordError(e);
+			throw e;
+		}finally{
+			this.metrics.uploadFinished(savedBytes);
+		}
+	}
+
+	
+	@Override
+	public void removeFile(String fullPathFileName) throws IOException {
+		this.removeFile(fullPathFileName, null);
+	}
+	
+	
+	@Override
+	public void removeFile(UploadedFileInfo fileInfo) throws IOException {
+		Preconditions.checkNotNull(fileInfo, "参数fileInfo不允许为null");
+		this.removeFile(fileInfo.getFilePath(), fileInfo.getContentHash());
+	}
+	
+	
+	/**
+	 * 删除文件并通知监听器。文件是按内容寻址保存的文件时，同时释放对其blob的引用
+	 * @param fullPathFileName
+	 * @param contentHash 已知的文件内容摘要，为null时由链接数判断是否需要释放blob
+	 * @throws IOException
+	 */
+	private void removeFile(String fullPathFileName, String contentHash) throws IOException {
+		Preconditions.checkNotNull(fullPathFileName, "参数fullPathFileName不允许为null");
+		long start=System.nanoTime();
+		Lock lock=this.lockPath(fullPathFileName);
+		try{
+			try{
+				this.removeFromDisk(fullPathFileName, contentHash);
+			}catch(IOException | RuntimeException e){
+				this.metrics.recordError(e);
+				throw e;
+			}
+			this.metrics.record(Stage.REMOVE, start);
+			if(this.deferredRemover!=null){
+				this.deferredRemover.unmark(fullPathFileName);
+			}
+			this.fireFileRemoved(fullPathFileName);
+		}finally{
+			lock.unlock();
+		}
+	}
+	
+	
+	@Override
+	public List<FileRemoveResult> removeFiles(Collection<String> fullPathFileNames) {
+		Preconditions.checkNotNull(fullPathFileNames, "参数fullPathFileNames不允许为null");
 		
-		//判断fsBasePath下的subDir目录是否存在，不存在则创建
-		String regularFullPath=FileSystemUtil.getRegularFullPath(this.fsBasePath + "/" + subDir.trim());
-		if (!Files.exists(Paths.get(regularFullPath))){
-			FileSystemUtil.createDirectoryIfNotExistRecursively(regularFullPath);
+		List<String> paths=new ArrayList<>(fullPathFileNames);
+		FileRemoveResult[] results=new FileRemoveResult[paths.size()];
+		//按所在目录分组：同一目录下的文件在一个任务中依次删除，不同目录（分布在各个子目录和存储卷上）中的文件并行删除，
+		//避免多个线程同时修改同一个目录
+		Map<Path, List<Integer>> groups=new LinkedHashMap<>();
+		for(int i=0; i<paths.size(); i++){
+			try{
+				Preconditions.checkNotNull(paths.get(i), "参数fullPathFileName不允许为null");
+				groups.computeIfAbsent(Paths.get(paths.get(i)).getParent(), directory -> new ArrayList<>()).add(i);
+			}catch(RuntimeException e){
+				this.metrics.recordError(e);
+				results[i]=FileRemoveResult.failure(i, paths.get(i), e);
+			}
 		}
 		
-		//如果要保存的路径下存在同名的文件，且不允许覆盖，则抛出异常
-		String fullPathFileName = regularFullPath + newFileName.trim() + "." + fileType;
-		if(Files.exists(Paths.get(fullPathFileName)) && !overwrite){
-			throw new SameFileNameExistException();
+		List<Runnable> removeTasks=new ArrayList<>(groups.size());
+		for(List<Integer> group : groups.values()){
+			removeTasks.add(() -> {
+				for(int index : group){
+					String fullPathFileName=paths.get(index);
+					try{
+						this.removeFile(fullPathFileName);
+						results[index]=FileRemoveResult.success(index, fullPathFileName);
+					}catch(IOException | RuntimeException e){
+						results[index]=FileRemoveResult.failure(index, fullPathFileName, e);
+					}
+				}
+			});
+		}
+		this.runAll(removeTasks);
+		return Arrays.asList(results);
+	}
+	
+	
+	@Override
+	public List<FileRemoveResult> removeFilesLater(Collection<String> fullPathFileNames) {
+		if(this.deferredRemover==null){
+			return this.removeFiles(fullPathFileNames);
 		}
+		Preconditions.checkNotNull(fullPathFileNames, "参数fullPathFileNames不允许为null");
 		
-		this.fileWriter.writeFile(multipartFile, fullPathFileName, overwrite);
+		List<FileRemoveResult> results=new ArrayList<>(fullPathFileNames.size());
+		for(String fullPathFileName : fullPathFileNames){
+			int index=results.size();
+			try{
+				Preconditions.checkNotNull(fullPathFileName, "参数fullPathFileName不允许为null");
+				//与保存同一路径的操作串行化，保证监听器收到的最后一次事件与文件的最终状态一致
+				Lock lock=this.lockPath(fullPathFileName);
+				try{
+					if(this.deferredRemover.mark(fullPathFileName)){
+						this.fireFileRemoved(fullPathFileName);
+					}
+				}finally{
+					lock.unlock();
+				}
+				results.add(FileRemoveResult.success(index, fullPathFileName));
+			}catch(IOException | RuntimeException e){
+				this.metrics.recordError(e);
+				results.add(FileRemoveResult.failure(index, fullPathFileName, e));
+			}
+		}
+		try{
+			this.deferredRemover.flush();
+		}catch(IOException e){
+			logger.error("写入延迟删除的日志时出错", e);
+		}
+		return results;
+	}
+	
+	
+	@Override
+	public boolean isRemovalPending(String fullPathFileName) {
+		return this.deferredRemover!=null && this.deferredRemover.isPending(fullPathFileName);
+	}
+	
+	
+	/**
+	 * 由DeferredFileRemover的后台线程调用，在路径锁内实际删除已标记为删除的文件。删除之前已被重新保存或同步删除时什么也不做。
+	 * @param fullPathFileName
+	 * @return 是否删除了文件
+	 * @throws IOException
+	 */
+	boolean removeMarkedFile(String fullPathFileName) throws IOException {
+		long start=System.nanoTime();
+		Lock lock=this.lockPath(fullPathFileName);
+		try{
+			if(!this.deferredRemover.isPending(fullPathFileName)){
+				return false;
+			}
+			try{
+				this.removeFromDisk(fullPathFileName, null);
+			}catch(IOException | RuntimeException e){
+				this.metrics.recordError(e);
+				throw e;
+			}
+			this.metrics.record(Stage.REMOVE, start);
+			this.deferredRemover.unmark(fullPathFileName);
+			return true;
+		}finally{
+			lock.unlock();
+		}
+	}
+	
+	
+	
+	//==============chunked upload implementation================
+	@Override
+	public ChunkedUploadSession createUploadSession(String originFileName, long fileSize, String subDir, String newFileName, boolean overwrite)
+			throws IOException{
+		Preconditions.checkNotNull(originFileName, "参数originFileName不允许为null");
+		Preconditions.checkArgument(fileSize>=0, "参数fileSize不允许为负数");
+		this.checkSubDirAndFileName(subDir, newFileName);
 		
-		UploadedFileInfo fileInfo=new UploadedFileInfo();
-		fileInfo.setFileName(originFileName);
-		fileInfo.setFilePath(fullPathFileName);
-		fileInfo.setFileSize(multipartFile.getSize());
-		fileInfo.setFileType(fileType);
-		fileInfo.setSaveTime(LocalDateTime.now());
-		fileInfo.setUrlPath(FileSystemUtil.getRegularFullUrlPath(this.urlBasePath + "/" + subDir.trim()) + newFileName.trim() + "." + fileType);
-		return fileInfo;
+		if(fileSize>this.sizeLimitBytes){
+			throw new FileSizeExceedLimitException();
+		}
+		TenantQuota quota=this.acquireQuota(subDir);
+		if(quota!=null){
+			quota.checkQuota(fileSize);
+		}
+		
+		return this.createUploadSession(originFileName, fileSize, subDir, newFileName, overwrite, quota);
 	}
-
+	
 	
 	@Override
-	public UploadedFileInfo saveFile(MultipartFile multipartFile)
+	public ChunkedUploadSession createUploadSession(String originFileName, long fileSize)
 			throws NoSuchAlgorithmException, IOException{
-		String subDir=this.generateSubDirRandomly(multipartFile);
-		String newFileName=this.generateFileNameWithUuid();
-		return this.saveFile(multipartFile, subDir, newFileName, true);
+		Preconditions.checkNotNull(originFileName, "参数originFileName不允许为null");
+		Preconditions.checkArgument(fileSize>=0, "参数fileSize不允许为负数");
+		if(fileSize>this.sizeLimitBytes){
+			throw new FileSizeExceedLimitException();
+		}
+		
+		String newFileName=this.generateFileName();
+		String subDir=this.shardLayout.getSubDir(newFileName);
+		return this.createUploadSession(originFileName, fileSize, subDir, newFileName, true, null);
 	}
-
+	
 	
 	@Override
-	public void removeFile(String fullPathFileName) throws IOException {
-		this.fileWriter.removeFile(fullPathFileName);
+	public ChunkedUploadSession getUploadSession(String sessionId) {
+		Preconditions.checkNotNull(sessionId, "参数sessionId不允许为null");
+		ChunkedUploadSession session=this.uploadSessions.get(sessionId);
+		if(session==null){
+			throw new UploadSessionNotFoundException();
+		}
+		return session;
+	}
+	
+	
+	@Override
+	public ChunkedUploadSession writeChunk(String sessionId, long offset, InputStream inputStream, long length)
+			throws IOException{
+		ChunkedUploadSession session=this.getUploadSession(sessionId);
+		TenantQuota quota=session.getQuota();
+		session.writeChunk(offset, quota!=null ? new QuotaLimitedInputStream(inputStream, quota) : inputStream, length);
+		return session;
+	}
+	
+	
+	@Override
+	public UploadedFileInfo commitUploadSession(String sessionId) throws IOException{
+		ChunkedUploadSession session=this.getUploadSession(sessionId);
+		if(!session.isComplete()){
+			throw new IllegalStateException("文件尚未上传完整，缺失的区间为：" + session.getMissingRanges());
+		}
+		if(!this.uploadSessions.remove(sessionId, session)){
+			throw new UploadSessionNotFoundException();
+		}
+		
+		long start=System.nanoTime();
+		long savedBytes=-1;
+		this.metrics.uploadStarted();
+		String fileType=FileSystemUtil.getFileExtent(session.getOriginFileName());
+		boolean finished=false;
+		try{
+			session.finish();
+			finished=true;
+			String fullPathFileName=this.prepareFullPathFileName(session.getSubDir(), session.getNewFileName(), fileType, session.isOverwrite());
+			start=this.metrics.record(Stage.DIRECTORY, start);
+			
+			UploadedFileInfo fileInfo;
+			Lock lock=this.lockPath(fullPathFileName);
+			try{
+				//分块上传不经过fileWriter，同名文件已打包保存在段文件中时，不允许覆盖则失败，允许覆盖则在提交后删除段文件中的旧内容
+				boolean packed=this.fileWriter.getPackLocation(fullPathFileName)!=null;
+				if(packed && !session.isOverwrite()){
+					throw new SameFileNameExistException();
+				}
+				TenantQuota quota=session.getQuota();
+				long replacedBytes=quota!=null ? this.sizeOf(fullPathFileName) : -1;
+				//临时文件与目标文件在同一文件系统下，直接重命名即可，不需要再复制数据；finish()已对临时文件调用过fsync
+				this.commitScheduler.commit(null, session.getPartFile(), Paths.get(fullPathFileName), session.isOverwrite(), this.durability);
+				if(packed){
+					this.fileWriter.removeFile(fullPathFileName);
+				}
+				this.metrics.record(Stage.WRITE, start);
+				if(quota!=null){
+					quota.fileSaved(session.getFileSize(), replacedBytes);
+				}
+				fileInfo=this.fireFileSaved(this.createFileInfo(session.getOriginFileName(), fileType, fullPathFileName, session.getFileSize(), 
+						session.getSubDir(), session.getNewFileName()));
+			}finally{
+				lock.unlock();
+			}
+			savedBytes=session.getFileSize();
+			return fileInfo;
+		}catch(IOException | RuntimeException e){
+			this.metrics.recordError(e);
+			//已上传的数据完整保存在临时文件中时（如同名文件已存在、重命名失败），重新登记会话，客户端处理后可以重新提交而不需要重传；
+			//临时文件未能刷到磁盘（数据可能已丢失）时放弃会话
+			if(finished && Files.exists(session.getPartFile())){
+				this.uploadSessions.put(sessionId, session);
+			}else{
+				session.abort();
+			}
+			throw e;
+		}finally{
+			this.metrics.uploadFinished(savedBytes);
+		}
+	}
+	
+	
+	@Override
+	public void abortUploadSession(String sessionId) throws IOException{
+		ChunkedUploadSession session=this.getUploadSession(sessionId);
+		if(this.uploadSessions.remove(sessionId, session)){
+			session.abort();
+		}
+	}
+	
+	
+	
+	/**
+	 * 删除超过UPLOAD_SESSION_EXPIRE_MILLIS没有分块写入的会话及其临时文件。创建会话时会调用，也应由scheduleSessionPurge定期调用，
+	 * 否则不再创建新会话时过期会话的临时文件会一直占用磁盘
+	 * @return 删除的会话数
+	 */
+	public int purgeExpiredUploadSessions() {
+		long expireTime=System.currentTimeMillis() - UPLOAD_SESSION_EXPIRE_MILLIS;
+		int purged=0;
+		for(ChunkedUploadSession session : this.uploadSessions.values()){
+			if(session.getLastAccessTime()<expireTime && this.uploadSessions.remove(session.getSessionId(), session)){
+				try{
+					session.abort();
+					purged++;
+				}catch(IOException e){
+					logger.error("删除过期的分块上传会话" + session.getSessionId() + "的临时文件时出错", e);
+				}
+			}
+		}
+		return purged;
+	}
+	
+	
+	/**
+	 * 启动后台线程，定期执行purgeExpiredUploadSessions()
+	 * @param intervalMinutes 两次清理之间间隔的分钟数
+	 */
+	public void scheduleSessionPurge(long intervalMinutes) {
+		Preconditions.checkArgument(intervalMinutes>0, "参数intervalMinutes必须为正整数");
+		this.sessionPurger.scheduleWithFixedDelay(() -> {
+			int purged=this.purgeExpiredUploadSessions();
+			if(purged>0){
+				logger.info("删除了{}个过期的分块上传会话", purged);
+			}
+		}, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+	
+	
+	/**
+	 * 停止定期清理过期会话的后台线程
+	 */
+	public void shutdown() {
+		this.sessionPurger.shutdownNow();
 	}
 	
 	
 	
 	//==================private functions===================
-	//根据文件上传时间、文件原始名称、文件大小，使用md5算法随机生成两位字符（a~z, A~Z, 0~9）组成的子目录
-	private String generateSubDirRandomly(MultipartFile multipartFile) throws NoSuchAlgorithmException {
-		MessageDigest digest=MessageDigest.getInstance("MD5");
-		String randomSeedStr = LocalDateTime.now().toString() + multipartFile.getOriginalFilename() + multipartFile.getSize();
-		String subDir=new String(Hex.encodeHex(digest.digest(randomSeedStr.getBytes()))).substring(0,2);
-		return subDir;
+	//在batchExecutor中并行执行全部任务并等待其结束；没有设置batchExecutor或只有一个任务时在当前线程中执行
+	private void runAll(List<Runnable> tasks){
+		if(this.batchExecutor==null || tasks.size()<=1){
+			tasks.forEach(Runnable::run);
+			return;
+		}
+		
+		List<Future<?>> futures=new ArrayList<>(tasks.size());
+		for(Runnable task : tasks){
+			futures.add(this.batchExecutor.submit(task));
+		}
+		for(Future<?> future : futures){
+			try{
+				future.get();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("执行批量任务时被中断", e);
+			}catch(ExecutionException e){
+				//任务内部已处理全部异常，不会执行到这里
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+	
+	private ChunkedUploadSession createUploadSession(String originFileName, long fileSize, String subDir, String newFileName, boolean overwrite, 
+			TenantQuota quota) throws IOException{
+		this.purgeExpiredUploadSessions();
+		
+		//临时文件与最终的文件在同一个卷上，提交时只需重命名
+		Path partDir=this.selectVolume(newFileName).ensureDirectory(UPLOAD_SESSION_DIR);
+		
+		ChunkedUploadSession session=new ChunkedUploadSession(partDir, originFileName.trim(), fileSize, subDir, newFileName, overwrite);
+		session.setQuota(quota);
+		this.uploadSessions.put(session.getSessionId(), session);
+		return session;
+	}
+	
+	//将multipart上传文件写入fullPathFileName并生成文件信息，提交前调用commitHook。不压缩也不计算校验和时由fileWriter直接写入（可以零拷贝），
+	//否则从输入流边读边压缩、边计算校验和写入
+	private UploadedFileInfo writeFile(MultipartFile multipartFile, String fileType, String fullPathFileName, boolean overwrite, 
+			Durability durability, String subDir, String newFileName, UploadedFileWriter.CommitHook commitHook) throws IOException{
+		String originFileName=multipartFile.getOriginalFilename();
+		boolean compress=this.fileCompressor!=null && this.fileCompressor.mayCompress(fileType);
+		if(!compress && !this.checksumEnabled){
+			this.fileWriter.writeFile(multipartFile, fullPathFileName, overwrite, durability, commitHook);
+			return this.createFileInfo(originFileName, fileType, fullPathFileName, multipartFile.getSize(), subDir, newFileName);
+		}
+		try(InputStream inputStream=multipartFile.getInputStream();
+				InputStream source=compress ? this.fileCompressor.wrap(inputStream, fileType) : inputStream){
+			InputStream checkedStream=this.checked(source);
+			long storedSize=this.fileWriter.writeFile(checkedStream, fullPathFileName, overwrite, durability, commitHook);
+			return this.recordChecksum(this.recordCompression(
+					this.createFileInfo(originFileName, fileType, fullPathFileName, storedSize, subDir, newFileName), source), checkedStream);
+		}
+	}
+	
+	//checksumEnabled为true时返回边读边计算校验和的输入流，计算的是写入文件系统的数据
+	private InputStream checked(InputStream inputStream){
+		return this.checksumEnabled ? new CheckedInputStream(inputStream, FileChecksum.newChecksum()) : inputStream;
+	}
+	
+	//source为checked返回的输入流、且已全部写入时，在fileInfo中记录校验和
+	private UploadedFileInfo recordChecksum(UploadedFileInfo fileInfo, InputStream source){
+		if(source instanceof CheckedInputStream){
+			fileInfo.setChecksum(FileChecksum.format(FileChecksum.getDefaultAlgorithm(), ((CheckedInputStream)source).getChecksum()));
+		}
+		return fileInfo;
+	}
+	
+	//source为压缩后写入的数据时，在fileInfo中记录压缩前的大小和内容编码
+	private UploadedFileInfo recordCompression(UploadedFileInfo fileInfo, InputStream source){
+		if(source instanceof GzipCompressingInputStream){
+			fileInfo.setFileSize(((GzipCompressingInputStream)source).getInputBytes());
+			fileInfo.setContentEncoding(FileCompressor.GZIP);
+		}
+		return fileInfo;
+	}
+	
+	//保存时目录不存在（已被外部删除）导致失败时，使该目录的缓存失效，之后的保存会重新创建目录
+	private void forgetMissingDirectory(Exception e, String subDir, String newFileName){
+		if(e instanceof NoSuchFileException && subDir!=null && newFileName!=null){
+			this.selectVolume(newFileName).forgetDirectory(subDir);
+		}
+	}
+	
+	//返回调用方指定的subDir所属租户的配额，没有设置quotaManager或租户不需要跟踪时返回null
+	private TenantQuota acquireQuota(String subDir) throws IOException{
+		return this.quotaManager==null ? null : this.quotaManager.acquireQuota(subDir);
+	}
+	
+	//由fileWriter删除文件，文件属于已跟踪的租户时从其已用量中减去文件的字节数；文件是按内容寻址保存的文件时释放对其blob的引用。
+	//contentHash为null时由链接数判断文件是否为blob的链接。调用者应持有路径锁
+	private void removeFromDisk(String fullPathFileName, String contentHash) throws IOException{
+		TenantQuota quota=this.quotaManager==null ? null : this.quotaManager.findQuota(fullPathFileName);
+		long removedBytes=quota!=null ? this.sizeOf(fullPathFileName) : -1;
+		if(contentHash==null){
+			contentHash=this.findLastBlobLink(fullPathFileName);
+		}
+		this.fileWriter.removeFile(fullPathFileName);
+		if(quota!=null){
+			quota.fileRemoved(removedBytes);
+		}
+		if(contentHash!=null){
+			this.findVolume(fullPathFileName).getContentStore().release(contentHash);
+		}
 	}
 	
-	//使用uuid算法随机生成字符串作为保存时使用的文件名称
-	private String generateFileNameWithUuid(){
-		return UUID.randomUUID().toString();
+	//文件是所在存储卷中某个blob的最后一个上传文件链接时返回其内容摘要，否则返回null。
+	//只有链接数为2（文件本身和blob）时才读取文件计算摘要；链接数更多时blob仍被其他文件引用，删除后不需要释放
+	private String findLastBlobLink(String fullPathFileName) throws IOException{
+		Path path=Paths.get(fullPathFileName);
+		try{
+			if(!Files.isRegularFile(path) || (Integer)Files.getAttribute(path, "unix:nlink")!=2){
+				return null;
+			}
+		}catch(NoSuchFileException e){
+			//文件已不存在或保存在段文件中
+			return null;
+		}catch(UnsupportedOperationException | IllegalArgumentException e){
+			//无法获取链接数（如windows系统），此时也不会创建blob的链接
+			return null;
+		}
+		MessageDigest digest;
+		try{
+			digest=MessageDigest.getInstance("SHA-256");
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+		try(InputStream inputStream=new DigestInputStream(Files.newInputStream(path), digest)){
+			byte[] buffer=new byte[8192];
+			while(inputStream.read(buffer)>=0){
+				//读取过程中计算摘要
+			}
+		}
+		String contentHash=new String(Hex.encodeHex(digest.digest()));
+		try{
+			return Files.isSameFile(path, this.findVolume(fullPathFileName).getContentStore().getBlobPath(contentHash)) ? contentHash : null;
+		}catch(NoSuchFileException | IllegalArgumentException e){
+			//没有对应的blob（文件有其他硬链接），或文件不在任何存储卷下
+			return null;
+		}
 	}
 	
+	//返回文件当前的字节数（打包保存的文件为其在段文件中的长度），文件不存在时返回-1
+	private long sizeOf(String fullPathFileName) throws IOException{
+		PackLocation location=this.fileWriter.getPackLocation(fullPathFileName);
+		if(location!=null){
+			return location.getLength();
+		}
+		try{
+			return Files.size(Paths.get(fullPathFileName));
+		}catch(NoSuchFileException e){
+			return -1;
+		}
+	}
+	
+	private void checkSubDirAndFileName(String subDir, String newFileName){
+		Preconditions.checkNotNull(subDir, "参数subDir不允许为null");
+		Preconditions.checkArgument(subDir.trim().length()>0, "参数subDir不允许为空格或空字符串");
+		Preconditions.checkNotNull(newFileName, "参数newFileName不允许为null");
+		Preconditions.checkArgument(newFileName.trim().length()>0, "参数newFileName不允许为空格或空字符串");
+	}
+	
+	//获取并锁定fullPathFileName对应的路径锁
+	private Lock lockPath(String fullPathFileName){
+		Lock lock=this.pathLocks.get(fullPathFileName);
+		lock.lock();
+		return lock;
+	}
+	
+	//确保按newFileName选择的卷上的subDir目录存在，并返回文件要保存的完整路径
+	private String prepareFullPathFileName(String subDir, String newFileName, String fileType, boolean overwrite) throws IOException{
+		String fullPathFileName = joinFileName(this.selectVolume(newFileName).resolveDirectory(subDir), null, newFileName, fileType);
+		
+		//如果要保存的路径下存在同名的文件，且不允许覆盖，则抛出异常；允许覆盖时不需要访问文件系统。
+		//这里只是提前失败，并发保存同名文件时由writer以创建硬链接的方式原子地保证只有一个成功
+		if(!overwrite && (Files.exists(Paths.get(fullPathFileName)) || this.fileWriter.getPackLocation(fullPathFileName)!=null)){
+			throw new SameFileNameExistException();
+		}
+		return fullPathFileName;
+	}
+	
+	//将单独保存的文件fullPathFileName移到同一存储卷上的target（如UploadSweeper的隔离目录），对外的效果与removeFile相同：
+	//更新租户已用量、取消延迟删除并通知监听器；target的最后修改时间设为移动的时间
+	void moveOut(String fullPathFileName, Path target) throws IOException{
+		Preconditions.checkNotNull(fullPathFileName, "参数fullPathFileName不允许为null");
+		Preconditions.checkNotNull(target, "参数target不允许为null");
+		Lock lock=this.lockPath(fullPathFileName);
+		try{
+			TenantQuota quota=this.quotaManager==null ? null : this.quotaManager.findQuota(fullPathFileName);
+			long removedBytes=quota!=null ? this.sizeOf(fullPathFileName) : -1;
+			Files.createDirectories(target.getParent());
+			Files.move(Paths.get(fullPathFileName), target, StandardCopyOption.ATOMIC_MOVE);
+			Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+			if(quota!=null){
+				quota.fileRemoved(removedBytes);
+			}
+			if(this.deferredRemover!=null){
+				this.deferredRemover.unmark(fullPathFileName);
+			}
+			this.fireFileRemoved(fullPathFileName);
+		}finally{
+			lock.unlock();
+		}
+	}
+	
+	//返回fullPathFileName所在的存储卷
+	StorageVolume findVolume(String fullPathFileName){
+		Path path=Paths.get(fullPathFileName);
+		for(StorageVolume volume : this.volumes){
+			if(path.startsWith(volume.getBasePath())){
+				return volume;
+			}
+		}
+		throw new IllegalArgumentException("文件" + fullPathFileName + "不在任何fsBasePath下");
+	}
+	
+	//拼接“目录/子目录/文件名.扩展名”，subDir为null时不拼接子目录，扩展名为空时不拼接“.”
+	private static String joinFileName(String directory, String subDir, String newFileName, String fileType){
+		newFileName=newFileName.trim();
+		int length=directory.length() + newFileName.length() + (subDir!=null ? subDir.length()+1 : 0) + (fileType.isEmpty() ? 0 : fileType.length()+1);
+		StringBuilder result=new StringBuilder(length);
+		result.append(directory);
+		if(subDir!=null){
+			result.append(subDir).append('/');
+		}
+		result.append(newFileName);
+		if(!fileType.isEmpty()){
+			result.append('.').append(fileType);
+		}
+		return result.toString();
+	}
+	
+	//通知所有监听器文件已保存，监听器出错不影响保存结果；文件之前被标记为延迟删除时取消删除
+	private UploadedFileInfo fireFileSaved(UploadedFileInfo fileInfo){
+		long start=System.nanoTime();
+		if(this.deferredRemover!=null){
+			this.deferredRemover.unmark(fileInfo.getFilePath());
+		}
+		for(UploadedFileListener listener : this.fileListeners){
+			try{
+				listener.fileSaved(fileInfo);
+			}catch(RuntimeException e){
+				logger.error("通知监听器文件" + fileInfo.getFilePath() + "已保存时出错", e);
+			}
+		}
+		this.metrics.record(Stage.METADATA, start);
+		return fileInfo;
+	}
+	
+	//通知所有监听器文件已删除，监听器出错不影响删除结果
+	private void fireFileRemoved(String fullPathFileName){
+		for(UploadedFileListener listener : this.fileListeners){
+			try{
+				listener.fileRemoved(fullPathFileName);
+			}catch(RuntimeException e){
+				logger.error("通知监听器文件" + fullPathFileName + "已删除时出错", e);
+			}
+		}
+	}
+	
+	private UploadedFileInfo createFileInfo(String originFileName, String fileType, String fullPathFileName, long fileSize, 
+			String subDir, String newFileName){
+		UploadedFileInfo fileInfo=new UploadedFileInfo();
+		fileInfo.setFileName(originFileName);
+		fileInfo.setFilePath(fullPathFileName);
+		fileInfo.setFileSize(fileSize);
+		fileInfo.setStoredSize(fileSize);
+		fileInfo.setFileType(fileType);
+		fileInfo.setSaveTime(LocalDateTime.now());
+		fileInfo.setUrlPath(joinFileName(this.regularUrlBasePath, FileSystemUtil.getRegularRelativePath(subDir), newFileName, fileType));
+		fileInfo.setVolume(this.selectVolume(newFileName).getIndex());
+		fileInfo.setPackLocation(this.fileWriter.getPackLocation(fullPathFileName));
+		return fileInfo;
+	}
+	
+	//由fileIdGenerator生成保存时使用的文件名称
+	private String generateFileName(){
+		return this.fileIdGenerator.nextId();
+	}
+
+
+
+	//保存文件时只在提交阶段持有的路径锁：writer写完临时文件、提交之前获取锁并记录将被覆盖的旧文件的字节数，保存完成（包括通知监听器）或失败后由unlock释放
+	private class PathCommit implements UploadedFileWriter.CommitHook {
+		private final String fullPathFileName;
+		private final boolean trackReplaced;
+		private Lock lock;
+		private long replacedBytes = -1;
+
+		PathCommit(String fullPathFileName, boolean trackReplaced) {
+			this.fullPathFileName = fullPathFileName;
+			this.trackReplaced = trackReplaced;
+		}
+
+		@Override
+		public void beforeCommit() throws IOException {
+			Preconditions.checkState(this.lock==null, "已经获取了路径锁");
+			this.lock=lockPath(this.fullPathFileName);
+			if(this.trackReplaced){
+				this.replacedBytes=sizeOf(this.fullPathFileName);
+			}
+		}
+
+		//被覆盖的旧文件的字节数，没有旧文件或不需要记录时为-1
+		long getReplacedBytes() {
+			return this.replacedBytes;
+		}
+
+		void unlock() {
+			if(this.lock!=null){
+				this.lock.unlock();
+				this.lock=null;
+			}
+		}
+	}
 
 }
@@ -1,11 +1,17 @@
 package com.guxl.upload.common;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
@@ -17,24 +23,85 @@ import com.guxl.upload.common.exception.SameFileNameExistException;
 @Qualifier("simpleUploadedFileWriter")
 public class SimpleUploadedFileWriter implements UploadedFileWriter {
 
+	private GroupCommitScheduler commitScheduler = new GroupCommitScheduler();
+	
+	
+	@Override
+	public void setCommitScheduler(GroupCommitScheduler commitScheduler) {
+		Preconditions.checkNotNull(commitScheduler, "参数commitScheduler不允许为null");
+		this.commitScheduler = commitScheduler;
+	}
+	
 	
 	@Override
-	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite)
+	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability)
+			throws IOException{
+		this.writeFile(multipartFile, pathFileName, overwrite, durability, CommitHook.NONE);
+	}
+	
+	
+	@Override
+	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
 			throws IOException{
 		Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
 		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
 		Preconditions.checkArgument(pathFileName.trim().length()>0, "参数pathFileName不允许为空格或空字符串");
+		Preconditions.checkNotNull(commitHook, "参数commitHook不允许为null");
+		
+		//if file exists and overwriting not allowed, throw customized exception
+		//this check only fails fast; the commit links the temp file without replacing, so concurrent writers of one name cannot both succeed
+		if(!overwrite && Files.exists(Paths.get(pathFileName))){
+			throw new SameFileNameExistException();
+		}
+		
+		Path path=Paths.get(pathFileName);
+		Path tempFile=GroupCommitScheduler.newTempFile(path);
+		try(FileChannel channel=FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)){
+			ByteBuffer buffer=ByteBuffer.wrap(multipartFile.getBytes());
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+			commitHook.beforeCommit();
+			this.commitScheduler.commit(channel, tempFile, path, overwrite, durability);
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+	}
+	
+	
+	@Override
+	public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability)
+			throws IOException{
+		return this.writeFile(inputStream, pathFileName, overwrite, durability, CommitHook.NONE);
+	}
+	
+	
+	@Override
+	public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException{
+		Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Preconditions.checkArgument(pathFileName.trim().length()>0, "参数pathFileName不允许为空格或空字符串");
+		Preconditions.checkNotNull(commitHook, "参数commitHook不允许为null");
 		
 		//if file exists and overwriting not allowed, throw customized exception
+		//this check only fails fast; the commit links the temp file without replacing, so concurrent writers of one name cannot both succeed
 		if(!overwrite && Files.exists(Paths.get(pathFileName))){
 			throw new SameFileNameExistException();
 		}
 		
-		Files.write(Paths.get(pathFileName), 
-					multipartFile.getBytes(), 
-					StandardOpenOption.WRITE, 
-					StandardOpenOption.TRUNCATE_EXISTING, 
-					StandardOpenOption.CREATE);
+		Path path=Paths.get(pathFileName);
+		Path tempFile=GroupCommitScheduler.newTempFile(path);
+		try(FileChannel channel=FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)){
+			long size=ByteStreams.copy(inputStream, Channels.newOutputStream(channel));
+			commitHook.beforeCommit();
+			this.commitScheduler.commit(channel, tempFile, path, overwrite, durability);
+			return size;
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
 	}
 	
 	
@@ -0,0 +1,82 @@
+package com.guxl.upload.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.base.Preconditions;
+
+import com.guxl.upload.common.exception.FileSizeExceedLimitException;
+
+
+/**
+ * 限制读取字节数的输入流。在读取过程中累计已读取的字节数，一旦超过limitBytes立即抛出FileSizeExceedLimitException，
+ * 从而不必等到整个文件接收完毕才判断文件大小。
+ * @author xiangligu
+ *
+ */
+public class SizeLimitedInputStream extends FilterInputStream {
+
+	private final long limitBytes;
+	private long readBytes;
+
+
+	public SizeLimitedInputStream(InputStream in, long limitBytes) {
+		super(Preconditions.checkNotNull(in, "参数in不允许为null"));
+		Preconditions.checkArgument(limitBytes>0, "参数limitBytes必须为正数");
+		this.limitBytes = limitBytes;
+	}
+
+
+	/**
+	 * @return 目前为止已读取的字节数
+	 */
+	public long getReadBytes() {
+		return this.readBytes;
+	}
+
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b != -1){
+			this.count(1);
+		}
+		return b;
+	}
+
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if(n > 0){
+			this.count(n);
+		}
+		return n;
+	}
+
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		this.count(skipped);
+		return skipped;
+	}
+
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+
+
+	//==================private functions===================
+	private void count(long n){
+		this.readBytes += n;
+		if(this.readBytes > this.limitBytes){
+			throw new FileSizeExceedLimitException();
+		}
+	}
+
+}
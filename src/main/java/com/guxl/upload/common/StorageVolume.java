@@ -0,0 +1,182 @@
+package com.guxl.upload.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * 保存上传文件的一个存储卷，即upload.fsBasePaths中的一个基本路径，通常各自位于一块独立的数据盘上。
+ * <p> 每个卷各自缓存已创建的子目录，并有各自的内容寻址存储，保证创建硬链接和重命名都发生在同一文件系统内。
+ * 预先创建的分片子目录数量固定，一直缓存；调用方指定的子目录（可能由租户任意生成）只在LRU缓存中保留最近使用的MAX_CACHED_SUBDIRS个，
+ * 目录被外部删除导致保存失败时，由forgetDirectory使缓存失效。
+ * <p> 文件保存在哪个卷上由selectIndex按文件标识决定（rendezvous hashing）：同一标识总是对应同一个卷，各卷分到的文件数大致相同；
+ * 在卷列表末尾追加新卷时，只有约1/n的标识改变所对应的卷，已有卷的顺序不应调整。
+ * @author xiangligu
+ *
+ */
+public class StorageVolume {
+
+	//按内容寻址保存的文件，其内容实际存放的目录（相对于卷的基本路径）
+	private static final String CONTENT_STORE_DIR = ".cas";
+
+	//调用方指定的子目录最多缓存的个数
+	private static final int MAX_CACHED_SUBDIRS = 10000;
+
+	private final int index;
+	private final Path basePath;
+	private final DirectoryRegistry directoryRegistry;
+	private final ContentAddressedStore contentStore;
+	//已确认存在的子目录，subDir -> 以路径分隔符结尾的完整路径：预先创建的分片子目录，以及最近使用的其他子目录
+	private final ConcurrentMap<String, String> shardDirPaths = new ConcurrentHashMap<>();
+	private final Cache<String, String> subDirPaths = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_SUBDIRS).build();
+
+
+	/**
+	 * @param index 卷在upload.fsBasePaths中的序号
+	 * @param basePath 格式化后的基本路径
+	 * @param directoryRegistry
+	 */
+	public StorageVolume(int index, Path basePath, DirectoryRegistry directoryRegistry) {
+		Preconditions.checkArgument(index>=0, "参数index不允许为负数");
+		this.index = index;
+		this.basePath = Preconditions.checkNotNull(basePath, "参数basePath不允许为null");
+		this.directoryRegistry = Preconditions.checkNotNull(directoryRegistry, "参数directoryRegistry不允许为null");
+		this.contentStore = new ContentAddressedStore(basePath.resolve(CONTENT_STORE_DIR), directoryRegistry);
+	}
+
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public Path getBasePath() {
+		return this.basePath;
+	}
+
+	public ContentAddressedStore getContentStore() {
+		return this.contentStore;
+	}
+
+
+	/**
+	 * @return 卷上可用的字节数，无法获取时返回-1
+	 */
+	public long getUsableSpace() {
+		try{
+			return Files.getFileStore(this.basePath).getUsableSpace();
+		}catch(IOException e){
+			return -1;
+		}
+	}
+
+
+	/**
+	 * 返回卷上subDir目录的完整路径（以路径分隔符结尾），目录不存在时创建；结果按subDir缓存，已确认存在过的目录不再访问文件系统
+	 * @param subDir 相对于卷的基本路径的子目录
+	 * @return
+	 * @throws IOException
+	 */
+	public String resolveDirectory(String subDir) throws IOException {
+		String directory=this.shardDirPaths.get(subDir);
+		if(directory==null){
+			directory=this.subDirPaths.getIfPresent(subDir);
+		}
+		if(directory==null){
+			directory=this.createDirectory(subDir);
+			this.subDirPaths.put(subDir, directory);
+		}
+		return directory;
+	}
+
+
+	/**
+	 * 创建分片子目录并一直缓存，不受MAX_CACHED_SUBDIRS的限制
+	 * @param subDir ShardLayout生成的子目录
+	 * @throws IOException
+	 */
+	public void precreateDirectory(String subDir) throws IOException {
+		this.shardDirPaths.put(subDir, this.createDirectory(subDir));
+	}
+
+
+	/**
+	 * 使subDir的缓存失效，下次resolveDirectory时重新检查并创建目录。目录被外部删除、保存文件因此失败时调用
+	 * @param subDir 相对于卷的基本路径的子目录
+	 */
+	public void forgetDirectory(String subDir) {
+		this.shardDirPaths.remove(subDir);
+		this.subDirPaths.invalidate(subDir);
+		this.directoryRegistry.forget(this.basePath.resolve(FileSystemUtil.getRegularRelativePath(subDir)));
+	}
+
+
+	/**
+	 * 确保卷上的dir子目录存在，用于分块上传临时文件等内部目录
+	 * @param dir 相对于卷的基本路径的目录
+	 * @return 目录的完整路径
+	 * @throws IOException
+	 */
+	public Path ensureDirectory(String dir) throws IOException {
+		return this.directoryRegistry.ensureDirectory(this.basePath.resolve(dir));
+	}
+
+
+	/**
+	 * 按rendezvous hashing选择key所对应的卷：对每个卷计算key的权重，取权重最大的卷
+	 * @param key 文件标识，如保存时使用的文件名称（不含扩展名）
+	 * @param volumeCount 卷的数量
+	 * @return 卷的序号
+	 */
+	public static int selectIndex(String key, int volumeCount) {
+		Preconditions.checkNotNull(key, "参数key不允许为null");
+		Preconditions.checkArgument(volumeCount>0, "参数volumeCount必须为正整数");
+		if(volumeCount==1){
+			return 0;
+		}
+		long hash=key.hashCode();
+		int selected=0;
+		long maxWeight=Long.MIN_VALUE;
+		for(int i=0; i<volumeCount; i++){
+			long weight=mix(hash ^ ((i+1) * 0x9e3779b97f4a7c15L));
+			if(weight>maxWeight){
+				maxWeight=weight;
+				selected=i;
+			}
+		}
+		return selected;
+	}
+
+
+	@Override
+	public String toString() {
+		return this.basePath.toString();
+	}
+
+
+
+	//==================private functions===================
+	private String createDirectory(String subDir) throws IOException {
+		Path path=this.basePath.resolve(FileSystemUtil.getRegularRelativePath(subDir));
+		this.directoryRegistry.ensureDirectory(path);
+		return path.toString() + File.separator;
+	}
+
+	//murmur3的64位finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.guxl.upload.common;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.base.Preconditions;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * 以流的方式保存上传文件的UploadedFileWriter实现。与SimpleUploadedFileWriter不同，该类不会调用multipartFile.getBytes()把整个文件读入堆内存，
+ * 而是通过FileChannel在上传文件的输入流和目标文件之间直接传输数据：
+ * <br> 当web服务器已将上传文件缓存为临时文件时，使用FileChannel.transferTo实现零拷贝传输；
+ * <br> 其他情况下（包括SimpleUploadManager为边写入边计算校验和传入的CheckedInputStream），使用FileChannel.transferFrom按固定大小分块传输，
+ * 数据经固定大小的缓冲区读出、计算后写入，只读取一遍。
+ * <p> 因此，每个上传文件写入时占用的内存是固定的，与文件大小无关。数据先写入同一目录下的临时文件，由GroupCommitScheduler提交为目标文件。
+ * @author xiangligu
+ *
+ */
+@Component
+@Qualifier("streamingUploadedFileWriter")
+public class StreamingUploadedFileWriter implements UploadedFileWriter {
+
+	//每次调用transferTo/transferFrom时最多传输的字节数
+	private static final long TRANSFER_CHUNK_BYTES = 8L * 1024 * 1024;
+	
+	private GroupCommitScheduler commitScheduler = new GroupCommitScheduler();
+
+
+	@Override
+	public void setCommitScheduler(GroupCommitScheduler commitScheduler) {
+		Preconditions.checkNotNull(commitScheduler, "参数commitScheduler不允许为null");
+		this.commitScheduler = commitScheduler;
+	}
+
+
+	@Override
+	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability)
+			throws IOException{
+		this.writeFile(multipartFile, pathFileName, overwrite, durability, CommitHook.NONE);
+	}
+	
+	
+	@Override
+	public void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException{
+		Preconditions.checkNotNull(multipartFile, "参数multipartFile不允许为null");
+		
+		try(InputStream inputStream=multipartFile.getInputStream()){
+			this.writeFile(inputStream, pathFileName, overwrite, durability, commitHook);
+		}
+	}
+	
+	
+	@Override
+	public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability)
+			throws IOException{
+		return this.writeFile(inputStream, pathFileName, overwrite, durability, CommitHook.NONE);
+	}
+	
+	
+	@Override
+	public long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException{
+		Preconditions.checkNotNull(inputStream, "参数inputStream不允许为null");
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Preconditions.checkArgument(pathFileName.trim().length()>0, "参数pathFileName不允许为空格或空字符串");
+		Preconditions.checkNotNull(commitHook, "参数commitHook不允许为null");
+
+		//if file exists and overwriting not allowed, throw customized exception
+		//this check only fails fast; the commit links the temp file without replacing, so concurrent writers of one name cannot both succeed
+		Path path=Paths.get(pathFileName);
+		if(!overwrite && Files.exists(path)){
+			throw new SameFileNameExistException();
+		}
+
+		Path tempFile=GroupCommitScheduler.newTempFile(path);
+		try(FileChannel target=FileChannel.open(tempFile,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE_NEW)){
+			long size=this.transfer(inputStream, target);
+			commitHook.beforeCommit();
+			this.commitScheduler.commit(target, tempFile, path, overwrite, durability);
+			return size;
+		}catch(IOException | RuntimeException e){
+			//写入中途失败（包括超过大小限制）时，删除写了一半的临时文件，目标文件不受影响
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+	}
+
+
+	@Override
+	public void removeFile(String pathFileName) throws IOException {
+		Preconditions.checkNotNull(pathFileName, "参数pathFileName不允许为null");
+		Preconditions.checkArgument(pathFileName.trim().length()>0, "参数pathFileName不允许为空格或空字符串");
+
+		Files.deleteIfExists(Paths.get(pathFileName));
+	}
+
+
+
+	//==================private functions===================
+	//将输入流中的全部数据传输到target中，返回传输的字节数
+	private long transfer(InputStream inputStream, FileChannel target) throws IOException{
+		//上传文件已被web服务器缓存到磁盘上，直接在两个文件之间传输，由操作系统完成零拷贝
+		if(inputStream instanceof FileInputStream){
+			FileChannel source=((FileInputStream)inputStream).getChannel();
+			long start=source.position();
+			long size=source.size();
+			long position=start;
+			while(position<size){
+				position += source.transferTo(position, Math.min(TRANSFER_CHUNK_BYTES, size-position), target);
+			}
+			return position-start;
+		}
+
+		//上传文件在内存中或来自其他类型的流，按块传输，transferFrom内部只使用固定大小的缓冲区
+		ReadableByteChannel source=Channels.newChannel(inputStream);
+		long position=0;
+		long transferred;
+		while((transferred=target.transferFrom(source, position, TRANSFER_CHUNK_BYTES))>0){
+			position += transferred;
+		}
+		return position;
+	}
+
+}
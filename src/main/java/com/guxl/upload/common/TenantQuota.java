@@ -0,0 +1,134 @@
+package com.guxl.upload.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+
+import com.guxl.upload.common.exception.QuotaExceededException;
+
+
+/**
+ * 一个租户（subDir的第一级目录）的配额和已用量。已用的字节数和文件数用LongAdder累计，保存和删除文件时只更新计数，
+ * 检查配额时只需读取计数，不需要遍历目录。各项限制为0时表示不限制。
+ * <p> 配额是软限制：并发保存的文件各自检查时都未超过配额，全部保存后可能略微超过。
+ * @author xiangligu
+ *
+ */
+public class TenantQuota {
+
+	private final String tenant;
+	private volatile long maxBytes;
+	private volatile long maxFiles;
+	private volatile long bytesPerSecond;
+	private volatile RateLimiter rateLimiter;
+	private final LongAdder usedBytes = new LongAdder();
+	private final LongAdder usedFiles = new LongAdder();
+
+
+	TenantQuota(String tenant) {
+		this.tenant = Preconditions.checkNotNull(tenant, "参数tenant不允许为null");
+	}
+
+
+	public String getTenant() {
+		return this.tenant;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	public long getMaxFiles() {
+		return this.maxFiles;
+	}
+
+	public long getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	public long getUsedBytes() {
+		return this.usedBytes.sum();
+	}
+
+	public long getUsedFiles() {
+		return this.usedFiles.sum();
+	}
+
+
+	/**
+	 * 检查再保存一个additionalBytes字节的文件是否会超过配额，超过时抛出QuotaExceededException
+	 * @param additionalBytes 要保存的文件的字节数，未知时为0
+	 */
+	public void checkQuota(long additionalBytes) {
+		if(this.maxFiles>0 && this.usedFiles.sum()+1>this.maxFiles){
+			throw new QuotaExceededException("租户" + this.tenant + "的文件数已达到配额" + this.maxFiles);
+		}
+		this.checkBytes(additionalBytes);
+	}
+
+
+	/**
+	 * 检查再写入pendingBytes字节是否会超过字节数配额，超过时抛出QuotaExceededException
+	 * @param pendingBytes 正在保存的文件已写入的字节数
+	 */
+	public void checkBytes(long pendingBytes) {
+		if(this.maxBytes>0 && this.usedBytes.sum()+pendingBytes>this.maxBytes){
+			throw new QuotaExceededException("租户" + this.tenant + "的存储字节数将超过配额" + this.maxBytes);
+		}
+	}
+
+
+	/**
+	 * 按bytesPerSecond限制写入带宽，写入bytes字节前调用，必要时阻塞
+	 * @param bytes
+	 */
+	public void throttle(long bytes) {
+		RateLimiter rateLimiter=this.rateLimiter;
+		while(rateLimiter!=null && bytes>0){
+			int permits=(int)Math.min(bytes, Integer.MAX_VALUE);
+			rateLimiter.acquire(permits);
+			bytes -= permits;
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		return this.tenant + "(" + this.getUsedBytes() + " bytes, " + this.getUsedFiles() + " files)";
+	}
+
+
+
+	//==============called by TenantQuotaManager================
+	void setLimits(long maxBytes, long maxFiles, long bytesPerSecond) {
+		this.maxBytes = maxBytes;
+		this.maxFiles = maxFiles;
+		if(bytesPerSecond!=this.bytesPerSecond || (bytesPerSecond>0)!=(this.rateLimiter!=null)){
+			this.rateLimiter = bytesPerSecond>0 ? RateLimiter.create(bytesPerSecond) : null;
+		}
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	void add(long bytes, long files) {
+		this.usedBytes.add(bytes);
+		this.usedFiles.add(files);
+	}
+
+	//保存了savedBytes字节的文件，替换了replacedBytes字节的同名文件（没有同名文件时为-1）
+	void fileSaved(long savedBytes, long replacedBytes) {
+		if(replacedBytes<0){
+			this.add(savedBytes, 1);
+		}else{
+			this.add(savedBytes-replacedBytes, 0);
+		}
+	}
+
+	//删除了removedBytes字节的文件（文件不存在时为-1）
+	void fileRemoved(long removedBytes) {
+		if(removedBytes>=0){
+			this.add(-removedBytes, -1);
+		}
+	}
+
+}
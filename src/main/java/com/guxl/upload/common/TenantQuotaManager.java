@@ -0,0 +1,309 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 按租户管理存储配额和写入带宽的工具。多个租户共用一个SimpleUploadManager时，租户即调用方指定的subDir的第一级目录，
+ * 如subDir为“tenantA/2024”时租户为“tenantA”；子目录随机生成的保存（包括按内容寻址保存）不属于任何租户，不受配额限制。
+ * <p> 各租户的已用字节数和文件数由SimpleUploadManager在保存、覆盖和删除文件时增量更新，检查配额只需读取计数，不需要遍历目录。
+ * 计数定期以及关闭时保存到第一个存储卷上的快照文件（.quota/usage），启动时从中恢复；快照中没有的租户在第一次保存文件时统计一次其目录。
+ * 进程异常退出时会丢失最后一次保存快照之后的变化，可以调用recount重新统计。
+ * <p> 只跟踪设置了配额（setQuota，或setDefaultQuota后的全部租户）以及快照中已有的租户。
+ * @author xiangligu
+ *
+ */
+public class TenantQuotaManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(TenantQuotaManager.class);
+
+	//快照文件所在的目录（相对于第一个存储卷的基本路径）
+	private static final String SNAPSHOT_DIR = ".quota";
+	private static final String SNAPSHOT_FILE = "usage";
+
+	private final SimpleUploadManager uploadManager;
+	private final Path snapshotFile;
+	//已跟踪的租户，tenant -> quota
+	private final ConcurrentMap<String, TenantQuota> quotas = new ConcurrentHashMap<>();
+	//setQuota设置的各租户的限制，以及其他租户使用的默认限制（为null时不跟踪其他租户），均为{maxBytes, maxFiles, bytesPerSecond}
+	private final ConcurrentMap<String, long[]> limits = new ConcurrentHashMap<>();
+	private volatile long[] defaultLimits;
+	private ScheduledExecutorService persister;
+
+
+	/**
+	 * 从快照文件中恢复各租户的已用量
+	 * @param uploadManager 提供各存储卷，以及统计打包保存的文件所用的fileWriter
+	 * @throws IOException
+	 */
+	public TenantQuotaManager(SimpleUploadManager uploadManager) throws IOException {
+		this.uploadManager = Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		this.snapshotFile = uploadManager.getVolumes().get(0).getBasePath().resolve(SNAPSHOT_DIR).resolve(SNAPSHOT_FILE);
+		this.load();
+	}
+
+
+	/**
+	 * 设置租户的配额，各项为0时表示不限制
+	 * @param tenant 租户，即subDir的第一级目录
+	 * @param maxBytes 最多占用的字节数
+	 * @param maxFiles 最多保存的文件数
+	 * @param bytesPerSecond 每秒最多写入的字节数
+	 */
+	public void setQuota(String tenant, long maxBytes, long maxFiles, long bytesPerSecond) {
+		Preconditions.checkNotNull(tenant, "参数tenant不允许为null");
+		this.limits.put(tenant, checkLimits(maxBytes, maxFiles, bytesPerSecond));
+		TenantQuota quota=this.quotas.get(tenant);
+		if(quota!=null){
+			quota.setLimits(maxBytes, maxFiles, bytesPerSecond);
+		}
+	}
+
+
+	/**
+	 * 设置未单独调用setQuota的租户所使用的配额，设置后全部租户都被跟踪，各项为0时表示不限制
+	 * @param maxBytes 最多占用的字节数
+	 * @param maxFiles 最多保存的文件数
+	 * @param bytesPerSecond 每秒最多写入的字节数
+	 */
+	public void setDefaultQuota(long maxBytes, long maxFiles, long bytesPerSecond) {
+		this.defaultLimits = checkLimits(maxBytes, maxFiles, bytesPerSecond);
+		for(TenantQuota quota : this.quotas.values()){
+			if(!this.limits.containsKey(quota.getTenant())){
+				quota.setLimits(maxBytes, maxFiles, bytesPerSecond);
+			}
+		}
+	}
+
+
+	/**
+	 * @param subDir 调用方指定的子目录
+	 * @return subDir所属的租户，即其第一级目录；subDir为空或以“.”开头时返回null
+	 */
+	public static String getTenant(String subDir) {
+		if(subDir==null){
+			return null;
+		}
+		int start=0;
+		while(start<subDir.length() && (subDir.charAt(start)=='/' || subDir.charAt(start)=='\\')){
+			start++;
+		}
+		int end=start;
+		while(end<subDir.length() && subDir.charAt(end)!='/' && subDir.charAt(end)!='\\'){
+			end++;
+		}
+		String tenant=subDir.substring(start, end).trim();
+		return tenant.isEmpty() || tenant.startsWith(".") ? null : tenant;
+	}
+
+
+	/**
+	 * @param tenant
+	 * @return 租户的配额和已用量，租户未被跟踪时返回null
+	 */
+	public TenantQuota getQuota(String tenant) {
+		return tenant==null ? null : this.quotas.get(tenant);
+	}
+
+	/**
+	 * @return 全部已跟踪的租户的配额和已用量
+	 */
+	public Collection<TenantQuota> getQuotas() {
+		return Collections.unmodifiableCollection(this.quotas.values());
+	}
+
+
+	/**
+	 * 返回保存到subDir下的文件所属租户的配额。租户设置了配额但尚未被跟踪时开始跟踪，快照中没有该租户时统计一次其目录
+	 * @param subDir 调用方指定的子目录
+	 * @return 租户的配额，租户不需要跟踪时返回null
+	 * @throws IOException
+	 */
+	public TenantQuota acquireQuota(String subDir) throws IOException {
+		String tenant=getTenant(subDir);
+		if(tenant==null){
+			return null;
+		}
+		TenantQuota quota=this.quotas.get(tenant);
+		if(quota!=null || (this.defaultLimits==null && !this.limits.containsKey(tenant))){
+			return quota;
+		}
+
+		//在computeIfAbsent之外统计，不阻塞其他租户；并发统计同一租户时只保留先完成的结果
+		TenantQuota counted=this.newQuota(tenant);
+		this.count(counted);
+		quota=this.quotas.putIfAbsent(tenant, counted);
+		if(quota!=null){
+			return quota;
+		}
+		logger.info("开始跟踪租户{}的存储用量，目前为{}", tenant, counted);
+		return counted;
+	}
+
+
+	/**
+	 * 重新统计租户的目录，修正进程异常退出后可能不准确的已用量。统计期间保存和删除的文件可能未被计入或被重复计入
+	 * @param tenant
+	 * @return 租户的配额和已用量，租户未被跟踪时返回null
+	 * @throws IOException
+	 */
+	public TenantQuota recount(String tenant) throws IOException {
+		TenantQuota quota=this.getQuota(tenant);
+		if(quota==null){
+			return null;
+		}
+		TenantQuota counted=this.newQuota(tenant);
+		this.count(counted);
+		quota.add(counted.getUsedBytes()-quota.getUsedBytes(), counted.getUsedFiles()-quota.getUsedFiles());
+		return quota;
+	}
+
+
+	/**
+	 * 将各租户的已用量写入快照文件
+	 * @throws IOException
+	 */
+	public synchronized void persist() throws IOException {
+		Files.createDirectories(this.snapshotFile.getParent());
+		Path tempFile=this.snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+		try(Writer writer=Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)){
+			for(TenantQuota quota : this.quotas.values()){
+				writer.write(quota.getTenant() + "\t" + quota.getUsedBytes() + "\t" + quota.getUsedFiles() + "\n");
+			}
+		}
+		Files.move(tempFile, this.snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * 启动后台线程，每隔intervalSeconds秒保存一次快照
+	 * @param intervalSeconds
+	 */
+	public synchronized void schedulePersist(long intervalSeconds) {
+		Preconditions.checkArgument(intervalSeconds>0, "参数intervalSeconds必须为正整数");
+		Preconditions.checkState(this.persister==null, "已经启动了保存快照的线程");
+
+		this.persister = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("upload-quota-persister-%d").setDaemon(true).build());
+		this.persister.scheduleWithFixedDelay(() -> {
+			try{
+				this.persist();
+			}catch(IOException | RuntimeException e){
+				logger.error("保存租户用量的快照时出错", e);
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+
+	/**
+	 * 停止后台线程，并保存最后一次快照
+	 */
+	public void shutdown() throws InterruptedException, IOException {
+		ScheduledExecutorService persister;
+		synchronized(this){
+			persister=this.persister;
+		}
+		//不在持有锁时等待，正在执行的persist()也需要该锁
+		if(persister!=null){
+			persister.shutdownNow();
+			persister.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		this.persist();
+	}
+
+
+
+	//==============called by SimpleUploadManager================
+	//返回fullPathFileName所属的已跟踪的租户的配额，不属于任何已跟踪的租户时返回null
+	TenantQuota findQuota(String fullPathFileName) {
+		if(this.quotas.isEmpty()){
+			return null;
+		}
+		Path path=Paths.get(fullPathFileName).normalize();
+		for(StorageVolume volume : this.uploadManager.getVolumes()){
+			if(path.startsWith(volume.getBasePath())){
+				Path relativePath=volume.getBasePath().relativize(path);
+				return relativePath.getNameCount()<2 ? null : this.quotas.get(relativePath.getName(0).toString());
+			}
+		}
+		return null;
+	}
+
+
+
+	//==================private functions===================
+	//读取快照文件，快照中的租户均开始跟踪
+	private void load() throws IOException {
+		if(!Files.exists(this.snapshotFile)){
+			return;
+		}
+		for(String line : Files.readAllLines(this.snapshotFile, StandardCharsets.UTF_8)){
+			String[] fields=line.split("\t");
+			if(fields.length!=3){
+				continue;
+			}
+			TenantQuota quota=this.newQuota(fields[0]);
+			quota.add(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+			this.quotas.put(quota.getTenant(), quota);
+		}
+		logger.info("从快照中恢复了{}个租户的存储用量", this.quotas.size());
+	}
+
+	private static long[] checkLimits(long maxBytes, long maxFiles, long bytesPerSecond) {
+		Preconditions.checkArgument(maxBytes>=0, "参数maxBytes不允许为负数");
+		Preconditions.checkArgument(maxFiles>=0, "参数maxFiles不允许为负数");
+		Preconditions.checkArgument(bytesPerSecond>=0, "参数bytesPerSecond不允许为负数");
+		return new long[]{maxBytes, maxFiles, bytesPerSecond};
+	}
+
+	//按租户单独的限制或默认限制创建配额，均未设置时不限制
+	private TenantQuota newQuota(String tenant) {
+		TenantQuota quota=new TenantQuota(tenant);
+		long[] tenantLimits=this.limits.getOrDefault(tenant, this.defaultLimits);
+		if(tenantLimits!=null){
+			quota.setLimits(tenantLimits[0], tenantLimits[1], tenantLimits[2]);
+		}
+		return quota;
+	}
+
+	//统计租户在各存储卷上的目录中的文件，包括打包保存在段文件中的文件，不包括以“.”开头的临时文件
+	private void count(TenantQuota quota) throws IOException {
+		for(StorageVolume volume : this.uploadManager.getVolumes()){
+			Path directory=volume.getBasePath().resolve(quota.getTenant());
+			if(!Files.isDirectory(directory)){
+				continue;
+			}
+			List<Path> files=new ArrayList<>();
+			try(Stream<Path> paths=Files.walk(directory)){
+				paths.filter(path -> !path.getFileName().toString().startsWith(".") && Files.isRegularFile(path)).forEach(files::add);
+			}
+			for(Path file : files){
+				quota.add(Files.size(file), 1);
+			}
+			long[] packed=this.uploadManager.getFileWriter().getPackedUsage(directory.toString());
+			quota.add(packed[0], packed[1]);
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.guxl.upload.common;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 按文件名称中的时间戳分片的目录布局，与UlidFileIdGenerator配合使用。子目录形如“2016/08/25”（按天）或“2016/08/25/13”（按小时），
+ * 同一时间段内保存的文件集中在同一个目录中，最近的文件所在的目录总是被缓存，按时间范围查找或清理文件时只需要访问对应的目录。
+ * <p> 文件标识不是ULID（如saveFileDeduplicated使用的内容摘要）时，由fallback布局决定子目录。
+ * @author xiangligu
+ *
+ */
+public class TimeShardLayout implements ShardLayout {
+
+	private final ChronoUnit unit;
+	private final ZoneId zone;
+	private final DateTimeFormatter formatter;
+	private final ShardLayout fallback;
+	//最近一次使用的时间段，绝大多数文件都落在当前时间段内，不需要重新格式化
+	private volatile Bucket lastBucket = new Bucket(0, 0, null);
+
+
+	/**
+	 * @param unit 每个子目录对应的时间段，只能为ChronoUnit.DAYS或ChronoUnit.HOURS
+	 * @param zone 格式化时间所使用的时区
+	 * @param fallback 文件标识不是ULID时使用的布局
+	 */
+	public TimeShardLayout(ChronoUnit unit, ZoneId zone, ShardLayout fallback) {
+		Preconditions.checkArgument(unit==ChronoUnit.DAYS || unit==ChronoUnit.HOURS, "参数unit只能为DAYS或HOURS");
+		Preconditions.checkNotNull(zone, "参数zone不允许为null");
+		Preconditions.checkNotNull(fallback, "参数fallback不允许为null");
+		this.unit = unit;
+		this.zone = zone;
+		this.formatter = DateTimeFormatter.ofPattern(unit==ChronoUnit.DAYS ? "yyyy/MM/dd" : "yyyy/MM/dd/HH");
+		this.fallback = fallback;
+	}
+
+
+	public ChronoUnit getUnit() {
+		return this.unit;
+	}
+
+
+	@Override
+	public String getSubDir(String fileId) {
+		Preconditions.checkNotNull(fileId, "参数fileId不允许为null");
+		long timestamp=UlidFileIdGenerator.getTimestamp(fileId);
+		if(timestamp<0){
+			return this.fallback.getSubDir(fileId);
+		}
+		
+		Bucket bucket=this.lastBucket;
+		if(timestamp<bucket.start || timestamp>=bucket.end){
+			ZonedDateTime start=Instant.ofEpochMilli(timestamp).atZone(this.zone).truncatedTo(this.unit);
+			bucket=new Bucket(start.toInstant().toEpochMilli(), start.plus(1, this.unit).toInstant().toEpochMilli(), this.formatter.format(start));
+			this.lastBucket=bucket;
+		}
+		return bucket.subDir;
+	}
+
+
+	/**
+	 * 子目录随时间增加，数量不固定，只预先创建fallback布局的子目录
+	 */
+	@Override
+	public List<String> getAllSubDirs() {
+		return new ArrayList<>(this.fallback.getAllSubDirs());
+	}
+
+
+
+	//一个时间段[start, end)及其子目录
+	private static class Bucket {
+		final long start;
+		final long end;
+		final String subDir;
+
+		Bucket(long start, long end, String subDir) {
+			this.start = start;
+			this.end = end;
+			this.subDir = subDir;
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.guxl.upload.common;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+
+/**
+ * 生成ULID作为文件名称：26个Crockford base32字符，前10个字符为48位的毫秒时间戳，后16个字符为80位随机数。
+ * <br> 名称按字符串排序即按生成时间排序，同一时间段内保存的文件名称相邻，文件名（及filePath上的索引）的插入接近于追加；
+ * <br> 同一线程在同一毫秒内生成的多个名称，随机部分依次加1，保证单调递增；
+ * <br> 时间戳和随机数的状态都是线程独享的，生成名称时不需要任何锁。不同线程的随机部分相互独立，80位随机数使重复的概率可以忽略。
+ * <p> TimeShardLayout通过getTimestamp取得名称中的时间戳，按时间划分子目录。
+ * @author xiangligu
+ *
+ */
+public class UlidFileIdGenerator implements FileIdGenerator {
+
+	public static final int ID_LENGTH = 26;
+	private static final int TIMESTAMP_LENGTH = 10;
+	private static final char[] ENCODING_CHARS = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+	private static final byte[] DECODING_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(DECODING_VALUES, (byte)-1);
+		for(int i=0; i<ENCODING_CHARS.length; i++){
+			DECODING_VALUES[ENCODING_CHARS[i]]=(byte)i;
+			DECODING_VALUES[Character.toLowerCase(ENCODING_CHARS[i])]=(byte)i;
+		}
+	}
+
+	private static final ThreadLocal<State> THREAD_STATE = ThreadLocal.withInitial(State::new);
+
+
+	@Override
+	public String nextId() {
+		State state=THREAD_STATE.get();
+		state.advance(System.currentTimeMillis());
+		return state.encode();
+	}
+
+
+	/**
+	 * @param id 文件名称，可以包含扩展名
+	 * @return 名称中的毫秒时间戳；名称不是ULID时返回-1
+	 */
+	public static long getTimestamp(String id) {
+		if(id==null || id.length()<ID_LENGTH || (id.length()>ID_LENGTH && id.charAt(ID_LENGTH)!='.')){
+			return -1;
+		}
+		long timestamp=0;
+		for(int i=0; i<ID_LENGTH; i++){
+			char c=id.charAt(i);
+			int value=c<128 ? DECODING_VALUES[c] : -1;
+			if(value<0 || (i==0 && value>7)){
+				return -1;
+			}
+			if(i<TIMESTAMP_LENGTH){
+				timestamp=(timestamp << 5) | value;
+			}
+		}
+		return timestamp;
+	}
+
+
+
+	//每个线程生成名称时的状态，包内可见以便测试同一毫秒内随机部分的进位
+	static class State {
+		final SecureRandom random = UuidFileIdGenerator.newThreadSecureRandom();
+		final char[] chars = new char[ID_LENGTH];
+		long lastMillis = -1;
+		int randomHigh;
+		long randomLow;
+
+		//时间前进时重新生成随机部分；同一毫秒内（或系统时间回拨时）沿用上一个时间戳，随机部分加1
+		void advance(long now) {
+			if(now>this.lastMillis){
+				this.lastMillis=now;
+				this.randomHigh=this.random.nextInt() & 0xffff;
+				this.randomLow=this.random.nextLong();
+				return;
+			}
+			this.randomLow++;
+			if(this.randomLow==0){
+				this.randomHigh=(this.randomHigh + 1) & 0xffff;
+				if(this.randomHigh==0){
+					//80位随机数溢出，使用下一毫秒
+					this.lastMillis++;
+					this.randomLow=this.random.nextLong();
+				}
+			}
+		}
+
+		//将当前的时间戳和随机部分编码为名称
+		String encode() {
+			long timestamp=this.lastMillis;
+			for(int i=TIMESTAMP_LENGTH-1; i>=0; i--){
+				this.chars[i]=ENCODING_CHARS[(int)timestamp & 31];
+				timestamp >>>= 5;
+			}
+			//80位随机数 = randomHigh的低16位 + randomLow的64位，每次取最低5位
+			long low=this.randomLow;
+			int high=this.randomHigh;
+			for(int i=ID_LENGTH-1; i>=TIMESTAMP_LENGTH; i--){
+				this.chars[i]=ENCODING_CHARS[(int)low & 31];
+				low=(low >>> 5) | ((long)high << 59);
+				high >>>= 5;
+			}
+			return new String(this.chars);
+		}
+	}
+
+}
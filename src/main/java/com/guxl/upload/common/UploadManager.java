@@ -1,7 +1,10 @@
 package com.guxl.upload.common;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
 
 import org.springframework.web.multipart.MultipartFile;
 
@@ -15,6 +18,14 @@ public interface UploadManager {
 	void setFsBasePath(String fsBasePath);
 	
 	
+	/**
+	 * 设置多个保存上传文件的基本路径（通常各在一块数据盘上），每个文件按其标识保存在其中一个路径下，并且总是同一个。
+	 * 增加路径时应追加到列表末尾，已有路径的顺序不应调整。
+	 * @param fsBasePaths
+	 */
+	void setFsBasePaths(List<String> fsBasePaths);
+	
+	
 	/**
 	 * 设置保存上传文件的基本路径所映射出来的虚拟路径。保存上传文件后同时会利用该参数生成文件访问的虚拟路径，以供后续下载
 	 * @param urlBasePath
@@ -24,8 +35,9 @@ public interface UploadManager {
 	
 	/**
 	 * 设置文件上传的大小限制。
-	 * <p>注意：所允许上传的文件的大小，除了受该参数的限制外，还同时会受到web服务器（如内嵌的tomcat）的配置参数multipart.maxFileSize和multipart.maxRequestSize
+	 * <p>注意：通过MultipartFile保存文件时，所允许上传的文件的大小，除了受该参数的限制外，还同时会受到web服务器（如内嵌的tomcat）的配置参数multipart.maxFileSize和multipart.maxRequestSize
 	 * 的影响，对于springboot所内置的tomcat服务器，如果不设置这两个参数，则默认参数值为10Mb。
+	 * 通过InputStream保存文件时（如StreamingUploadController），该参数在读取数据的过程中即生效。
 	 * @param sizeLimit 形式如：100kb，10mb等，单位只取“Kb”和“Mb”两种
 	 */
 	void setFileSizeLimit(String sizeLimit);
@@ -38,14 +50,31 @@ public interface UploadManager {
 	void setFileWriter(UploadedFileWriter writer);
 	
 	
+	/**
+	 * 添加文件保存和删除事件的监听器
+	 * @param listener
+	 */
+	void addFileListener(UploadedFileListener listener);
+	
+	
+	/**
+	 * 设置保存文件时默认的持久化级别，未单独指定durability的保存方法均使用该级别
+	 * @param durability
+	 */
+	void setDurability(Durability durability);
+	
+	
 	
 	
 	
 	String getFsBasePath();
+	List<String> getFsBasePaths();
 	String getUrlBasePath();
 	String getSizeLimit();
 	long getSizeLimitBytes();
 	UploadedFileWriter getFileWriter();
+	Durability getDurability();
+	FileCompressor getFileCompressor();
 	
 	
 	
@@ -60,7 +89,17 @@ public interface UploadManager {
 	 * @param overwrite 如果要保存的路径下存在同名文件时，是否覆盖。如果为false，但存在同名文件时，该方法可能抛出SameFileNameExistException异常
 	 * @return 包含上传文件保存信息的UploadedFileInfo对象
 	 */
-	UploadedFileInfo saveFile(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite) 
+	default UploadedFileInfo saveFile(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite) 
+			throws IOException{
+		return this.saveFile(multipartFile, subDir, newFileName, overwrite, this.getDurability());
+	}
+	
+	
+	/**
+	 * 按指定的持久化级别保存上传文件的方法，其余同saveFile(MultipartFile, String, String, boolean)。
+	 * @param durability 持久化级别，如对个别重要文件使用Durability.PER_FILE或Durability.GROUP
+	 */
+	UploadedFileInfo saveFile(MultipartFile multipartFile, String subDir, String newFileName, boolean overwrite, Durability durability) 
 			throws IOException;
 	
 	
@@ -89,6 +128,145 @@ public interface UploadManager {
 	
 	
 	
+	/**
+	 * 批量保存上传文件的方法。先校验全部文件（如文件大小），再为每个文件随机生成文件名称，并在多个线程中并行写入。
+	 * 同一子目录只准备一次，单个文件保存失败不影响其他文件。
+	 * @param multipartFiles 上传的文件的MultipartFile对象列表
+	 * @param subDir 文件要保存所在的子目录，为null时每个文件的子目录随机生成
+	 * @return 与multipartFiles一一对应的保存结果列表
+	 */
+	List<FileSaveResult> saveFiles(List<MultipartFile> multipartFiles, String subDir);
+	
+	
+	/**
+	 * 批量保存上传文件的方法。保存时使用的子目录和文件名称为程序随机生成。
+	 * <p> 该方法默认实现为调用 saveFiles(multipartFiles, null). 
+	 * @param multipartFiles 上传的文件的MultipartFile对象列表
+	 * @return 与multipartFiles一一对应的保存结果列表
+	 */
+	default List<FileSaveResult> saveFiles(List<MultipartFile> multipartFiles) {
+		return this.saveFiles(multipartFiles, null);
+	}
+	
+	
+	/**
+	 * 以流的方式保存上传文件的方法。与saveFile(MultipartFile...)不同，该方法在读取输入流的同时检查文件大小，
+	 * 一旦读取的字节数超过sizeLimit，立即抛出FileSizeExceedLimitException并删除已写入的部分，不需要web服务器预先缓存整个文件。
+	 * @param inputStream 上传文件的输入流，该方法不负责关闭输入流
+	 * @param originFileName 上传文件的原始名称，用于获取文件扩展名
+	 * @param subDir 文件要保存所在的子目录。文件最终将保存在 “/{fsBasePath}/{subDir}/” 目录下
+	 * @param newFileName 保存文件时所使用的文件名称，可以不同于原始文件名称。注意，传递该参数不要包含扩展名部分。
+	 * @param overwrite 如果要保存的路径下存在同名文件时，是否覆盖。如果为false，但存在同名文件时，该方法可能抛出SameFileNameExistException异常
+	 * @return 包含上传文件保存信息的UploadedFileInfo对象
+	 */
+	default UploadedFileInfo saveFile(InputStream inputStream, String originFileName, String subDir, String newFileName, boolean overwrite) 
+			throws IOException{
+		return this.saveFile(inputStream, originFileName, subDir, newFileName, overwrite, this.getDurability());
+	}
+	
+	
+	/**
+	 * 按指定的持久化级别以流的方式保存上传文件的方法，其余同saveFile(InputStream, String, String, String, boolean)。
+	 * @param durability 持久化级别
+	 */
+	UploadedFileInfo saveFile(InputStream inputStream, String originFileName, String subDir, String newFileName, boolean overwrite, 
+			Durability durability) throws IOException;
+	
+	
+	/**
+	 * 以流的方式保存上传文件的方法。保存时使用的子目录和文件名称为程序随机生成。当子目录下存在同名文件时，默认覆盖旧文件。
+	 * @param inputStream 上传文件的输入流，该方法不负责关闭输入流
+	 * @param originFileName 上传文件的原始名称，用于获取文件扩展名
+	 * @return 包含上传文件保存信息的UploadedFileInfo对象
+	 */
+	UploadedFileInfo saveFile(InputStream inputStream, String originFileName) 
+			throws NoSuchAlgorithmException,IOException;
+	
+	
+	
+	/**
+	 * 按内容寻址保存上传文件的方法。在写入数据的同时计算文件内容的SHA-256摘要，保存所在的子目录由摘要决定，文件名称为程序随机生成。
+	 * 如果之前已保存过相同内容的文件，本次保存只创建一个指向已有数据的链接，不再重复占用磁盘空间。
+	 * <p> 删除按内容寻址保存的文件时，在没有文件再引用该内容时释放其占用的空间。通过removeFile(UploadedFileInfo)删除时使用其中的摘要，
+	 * 其他删除方法需要读取最后一个引用该内容的文件来计算摘要。
+	 * @param multipartFile 上传的文件的MultipartFile对象
+	 * @return 包含上传文件保存信息的UploadedFileInfo对象，其contentHash为文件内容的摘要
+	 */
+	UploadedFileInfo saveFileDeduplicated(MultipartFile multipartFile) 
+			throws NoSuchAlgorithmException,IOException;
+	
+	
+	/**
+	 * 以流的方式按内容寻址保存上传文件的方法。读取输入流的同时检查文件大小并计算摘要，其余同saveFileDeduplicated(MultipartFile)。
+	 * @param inputStream 上传文件的输入流，该方法不负责关闭输入流
+	 * @param originFileName 上传文件的原始名称，用于获取文件扩展名
+	 * @return 包含上传文件保存信息的UploadedFileInfo对象，其contentHash为文件内容的摘要
+	 */
+	UploadedFileInfo saveFileDeduplicated(InputStream inputStream, String originFileName) 
+			throws NoSuchAlgorithmException,IOException;
+	
+	
+	
+	/**
+	 * 创建分块上传的会话。之后客户端可以按任意顺序、并行地上传各个分块，上传失败时可以查询缺失的区间后只重传缺失部分，
+	 * 全部分块上传完成后调用commitUploadSession得到与saveFile相同的UploadedFileInfo。
+	 * @param originFileName 上传文件的原始名称，用于获取文件扩展名
+	 * @param fileSize 文件的总字节数，不允许超过sizeLimit
+	 * @param subDir 文件要保存所在的子目录。文件最终将保存在 “/{fsBasePath}/{subDir}/” 目录下
+	 * @param newFileName 保存文件时所使用的文件名称，可以不同于原始文件名称。注意，传递该参数不要包含扩展名部分。
+	 * @param overwrite 提交时如果要保存的路径下存在同名文件，是否覆盖。如果为false，但存在同名文件时，提交时可能抛出SameFileNameExistException异常
+	 * @return 分块上传的会话
+	 */
+	ChunkedUploadSession createUploadSession(String originFileName, long fileSize, String subDir, String newFileName, boolean overwrite)
+			throws IOException;
+	
+	
+	/**
+	 * 创建分块上传的会话。保存时使用的子目录和文件名称为程序随机生成，提交时如存在同名文件则覆盖。
+	 * @param originFileName 上传文件的原始名称，用于获取文件扩展名
+	 * @param fileSize 文件的总字节数，不允许超过sizeLimit
+	 * @return 分块上传的会话
+	 */
+	ChunkedUploadSession createUploadSession(String originFileName, long fileSize)
+			throws NoSuchAlgorithmException, IOException;
+	
+	
+	/**
+	 * @param sessionId 分块上传的会话id
+	 * @return 分块上传的会话，可通过该对象查询已收到的字节数和缺失的区间。会话不存在时抛出UploadSessionNotFoundException
+	 */
+	ChunkedUploadSession getUploadSession(String sessionId);
+	
+	
+	/**
+	 * 将一个分块写入到会话的offset位置，可以被多个线程并发调用。
+	 * @param sessionId 分块上传的会话id
+	 * @param offset 分块在文件中的起始偏移量
+	 * @param inputStream 分块数据的输入流，该方法不负责关闭输入流
+	 * @param length 分块的字节数
+	 * @return 分块上传的会话
+	 */
+	ChunkedUploadSession writeChunk(String sessionId, long offset, InputStream inputStream, long length)
+			throws IOException;
+	
+	
+	/**
+	 * 提交分块上传的会话，将已上传完整的文件移动到最终的保存路径下。文件尚未上传完整时抛出IllegalStateException。
+	 * <br> 提交失败（如同名文件已存在且不允许覆盖）但已上传的数据仍然完整时，会话保留，可以再次提交而不需要重传分块。
+	 * @param sessionId 分块上传的会话id
+	 * @return 包含上传文件保存信息的UploadedFileInfo对象
+	 */
+	UploadedFileInfo commitUploadSession(String sessionId) throws IOException;
+	
+	
+	/**
+	 * 放弃分块上传的会话，删除已上传的数据
+	 * @param sessionId 分块上传的会话id
+	 */
+	void abortUploadSession(String sessionId) throws IOException;
+	
+	
+	
 	/**
 	 * @param fullPathFileName 要删除的已上传的文件的完整的路径
 	 */
@@ -96,6 +274,7 @@ public interface UploadManager {
 	
 	
 	/**
+	 * 删除已上传的文件。对于按内容寻址保存的文件（fileInfo的contentHash不为null），同时释放对其内容的引用。
 	 * @param fileInfo 要删除的已上传的文件的UploadedFileInfo对象
 	 */
 	default void removeFile(UploadedFileInfo fileInfo) throws IOException {
@@ -103,4 +282,35 @@ public interface UploadManager {
 	}
 	
 	
+	/**
+	 * 批量删除已上传的文件。同一目录下的文件依次删除，不同目录中的文件在多个线程中并行删除，单个文件删除失败不影响其他文件。
+	 * <p> 只删除文件本身，按内容寻址保存的文件不再被引用的内容由UploadSweeper清理。
+	 * @param fullPathFileNames 要删除的已上传的文件的完整路径
+	 * @return 与fullPathFileNames的迭代顺序一一对应的删除结果列表
+	 */
+	List<FileRemoveResult> removeFiles(Collection<String> fullPathFileNames);
+	
+	
+	/**
+	 * 延迟删除已上传的文件。只把文件标记为已删除并通知各监听器，文件立即对下载不可见，实际删除由后台线程按限定的速率完成，
+	 * 调用方不必等待大量文件的删除，也不会因集中删除占用磁盘I/O。实际删除之前同一路径又被保存时，取消对该路径的删除。
+	 * <p> 实际删除之前，以不覆盖的方式保存同名文件仍会抛出SameFileNameExistException。
+	 * <p> 该方法默认实现为调用 removeFiles(fullPathFileNames)，即立即删除。
+	 * @param fullPathFileNames 要删除的已上传的文件的完整路径
+	 * @return 与fullPathFileNames的迭代顺序一一对应的标记结果列表
+	 */
+	default List<FileRemoveResult> removeFilesLater(Collection<String> fullPathFileNames) {
+		return this.removeFiles(fullPathFileNames);
+	}
+	
+	
+	/**
+	 * @param fullPathFileName 已上传的文件的完整路径
+	 * @return 文件是否已被removeFilesLater标记为删除、但尚未实际删除
+	 */
+	default boolean isRemovalPending(String fullPathFileName) {
+		return false;
+	}
+	
+	
 }
@@ -1,13 +1,32 @@
 package com.guxl.upload.common;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
-import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
-import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.handler.SimpleUrlHandlerMapping;
 
 //import com.guxl.upload.UploadApplication;
 
@@ -15,55 +34,461 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter
 /**
  * 配置SimpleUploadManager对象的 java Config类。该类读取application.properties文件中的配置项有：
  * <br>upload.fsBasePath：上传文件存放的路径。如果无该配置项，则默认存放在项目目录下的uploaded子目录中。
+ * <br>upload.fsBasePaths：以逗号分隔的多个上传文件存放路径，通常各在一块数据盘上，每个文件按其名称固定保存在其中一个路径下。设置该配置项时忽略upload.fsBasePath。
  * <br>upload.urlBasePath：上传文件存放路径所映射出的虚拟路径。如果无该配置项，则默认映射为/upload/。
  * <br>upload.sizeLimit：限制上传文件的大小。如果无该配置项，则默认为10Mb。
+ * <br>upload.writer：保存文件所使用的UploadedFileWriter，可选值为streaming（流式写入，内存占用与文件大小无关）、simple（一次性读入内存后写入）和packed（小文件打包保存在段文件中，其他文件流式写入）。如果无该配置项，则默认为streaming。
+ * <br>upload.pack.maxFileBytes：upload.writer=packed时打包保存的单个文件的最大字节数。如果无该配置项，则默认为65536（64Kb）。
+ * <br>upload.pack.segmentBytes：upload.writer=packed时单个段文件的最大字节数，不能超过2Gb。如果无该配置项，则默认为268435456（256Mb）。
+ * <br>upload.pack.compactIntervalSeconds和upload.pack.compactRatio：upload.writer=packed时压缩段文件的间隔秒数，以及需要压缩的段文件中被覆盖或删除的数据所占的最低比例。如果无该配置项，则默认为300和0.5。
+ * <br>upload.durability：保存文件时默认的持久化级别，可选值为none（不调用fsync）、per_file（每个文件单独fsync）和group（合并并发保存的文件的fsync）。如果无该配置项，则默认为none。
+ * <br>upload.groupCommit.maxDelayMicros和upload.groupCommit.maxBatchSize：durability为group时，一批fsync额外等待的最大微秒数和最多包含的文件数。如果无该配置项，则默认为0（只合并上一批提交期间到达的请求）和256。
+ * <br>upload.groupCommit.threads：durability为group时执行目录fsync的提交线程数。如果无该配置项，则默认与上传文件存放路径的个数相同。
+ * <br>upload.fileId：随机生成文件名称的方式，可选值为ulid（按时间排序的ULID）和uuid（随机uuid）。如果无该配置项，则默认为ulid。
+ * <br>upload.shard.layout：随机生成子目录的方式，可选值为hash（按文件名称的哈希值）和time（按ULID文件名称中的时间，需要upload.fileId=ulid）。如果无该配置项，则默认为hash。
+ * <br>upload.shard.timeUnit：upload.shard.layout=time时每个子目录对应的时间段，可选值为day和hour。如果无该配置项，则默认为day。
+ * <br>upload.shard.depth和upload.shard.width：按哈希值生成的子目录的级数和每级目录名的十六进制字符数。如果无该配置项，则默认为1级2位，即256个子目录。
+ * <br>upload.shard.precreate：是否在启动时预先创建全部子目录。如果无该配置项，则默认为true。
+ * <br>upload.chunked.purgeIntervalMinutes：定期删除过期（超过24小时没有分块写入）的分块上传会话及其临时文件的间隔分钟数。如果无该配置项，则默认为60。
+ * <br>upload.batch.threads：批量保存文件时并行写入的线程数。如果无该配置项，则默认为8。
+ * <br>upload.batch.queueCapacity：批量保存和删除文件时排队等待执行的任务数的上限，超过时由调用线程自己执行。如果无该配置项，则默认为1000。
+ * <br>upload.async.threads：AsyncUploadManager执行磁盘写入的线程数。如果无该配置项，则默认为16。
+ * <br>upload.async.queueCapacity：AsyncUploadManager中允许排队等待的操作数，超过时拒绝新的操作。如果无该配置项，则默认为200。
+ * <br>upload.async.virtualThreads：JDK支持时是否使用虚拟线程执行磁盘写入。如果无该配置项，则默认为false。
+ * <br>upload.cache.maxBytes：下载时缓存在内存中的小文件的总字节数上限，为0时不缓存。如果无该配置项，则默认为67108864（64Mb）。
+ * <br>upload.cache.maxFileBytes：可以被缓存的单个文件的最大字节数。如果无该配置项，则默认为262144（256Kb）。
+ * <br>upload.sweeper.intervalMinutes和upload.sweeper.initialDelayMinutes：后台清理上传目录的间隔分钟数（为0时不清理）和启动后第一次清理前等待的分钟数。如果无该配置项，则默认为1440和10。
+ * <br>upload.sweeper.delete：是否处理清理时找到的文件：孤立文件移到隔离目录，过期的临时文件直接删除；为false时只在日志中报告。如果无该配置项，则默认为false。
+ * <br>upload.sweeper.quarantineMinutes：孤立文件在隔离目录（各存储卷的.sweep/quarantine）中保留多少分钟后才被删除。如果无该配置项，则默认为10080。
+ * <br>upload.sweeper.orphanAgeMinutes和upload.sweeper.tempFileAgeMinutes：最后修改时间早于多少分钟的孤立文件和临时文件才被处理。如果无该配置项，则默认均为1440。
+ * <br>upload.sweeper.threads和upload.sweeper.filesPerSecond：清理时并行遍历目录的线程数和每秒最多读取的目录项数。如果无该配置项，则默认为2和2000。
+ * <br>upload.checksum.enabled：是否在保存文件时计算文件的校验和（JDK支持时为CRC32C，否则为CRC32）并记录在元数据中。如果无该配置项，则默认为true。
+ * <br>upload.scrub.intervalMinutes和upload.scrub.initialDelayMinutes：后台按校验和检查文件是否损坏的间隔分钟数（为0时不定期检查）和启动后第一次检查前等待的分钟数。如果无该配置项，则默认为10080和60。
+ * <br>upload.scrub.mbPerSecond：检查文件时每个存储卷每秒最多读取的Mb数。如果无该配置项，则默认为20。
+ * <br>upload.remove.filesPerSecond：removeFilesLater标记删除的文件，后台每秒最多实际删除的文件数。如果无该配置项，则默认为500。
+ * <br>upload.quota.default.maxBytes、upload.quota.default.maxFiles和upload.quota.default.bytesPerSecond：每个租户（subDir的第一级目录）最多占用的字节数、最多保存的文件数和每秒最多写入的字节数，为0时不限制。
+ * 设置了其中任何一项时跟踪全部租户的用量，否则只跟踪upload.quota.tenants中的租户。如果无该配置项，则默认均为0。
+ * <br>upload.quota.tenants：以逗号分隔的单独设置了配额的租户，每个租户的配额由upload.quota.tenant.{租户}.maxBytes、maxFiles和bytesPerSecond设置，未设置的项为0。
+ * <br>upload.quota.persistIntervalSeconds：保存各租户已用量快照的间隔秒数。如果无该配置项，则默认为60。
+ * <br>upload.compress.enabled：是否将可压缩的文件以gzip格式压缩保存。如果无该配置项，则默认为false。
+ * <br>upload.compress.types：以逗号分隔的按扩展名压缩的文件类型。如果无该配置项，则默认为txt,csv,tsv,json,xml,log,svg,html,htm,css,js,md,yml,yaml。
+ * <br>upload.compress.sniff：扩展名不在upload.compress.types中的文件是否根据开头的内容判断是否为文本并压缩。如果无该配置项，则默认为true。
+ * <br>upload.compress.level：压缩级别，1～9。如果无该配置项，则默认为6。
+ * <br>upload.derivative.sizes：以逗号分隔的允许生成的缩略图尺寸（{宽}x{高}），为空时不生成缩略图。如果无该配置项，则默认为128x128,256x256,512x512。
+ * <br>upload.derivative.eagerSizes：图片保存后立即在后台生成的缩略图尺寸，必须包含在upload.derivative.sizes中。如果无该配置项，则默认为256x256。
+ * <br>upload.derivative.types：以逗号分隔的生成缩略图的图片扩展名。如果无该配置项，则默认为jpg,jpeg,png,gif,bmp。
+ * <br>upload.derivative.threads和upload.derivative.queueCapacity：生成缩略图的线程数和允许排队等待的生成任务数。如果无该配置项，则默认为2和100。
+ * <br>upload.derivative.maxPixels：允许生成缩略图的原图的最大像素数（宽×高），超过时不解码，请求缩略图返回415。如果无该配置项，则默认为50000000。
+ * <br>upload.zip.maxStreams：同时进行的打包下载数的上限，超过时返回503。如果无该配置项，则默认为8。
+ * <br>upload.zip.storedTypes：以逗号分隔的本身已经压缩的文件类型，打包下载时不再压缩。如果无该配置项，则默认为jpg,jpeg,png,gif,webp,zip,gz,tgz,bz2,xz,7z,rar,mp3,mp4,m4a,mov,avi,mkv,webm,docx,xlsx,pptx。
+ * <br>upload.zip.level：打包下载时其他文件的压缩级别，1～9。如果无该配置项，则默认为6。
  * @author xiangligu
  *
  */
 @Configuration
 @ComponentScan
 //@ComponentScan(basePackageClasses = {UploadApplication.class})
-public class UploadManagerConfiguration extends WebMvcConfigurerAdapter{
+public class UploadManagerConfiguration {
 	
 	@Autowired
 	Environment env;
 	
+	@Autowired
+	Map<String, UploadedFileWriter> fileWriters;
+	
+	@Autowired(required=false)
+	List<UploadedFileListener> fileListeners;
+	
 	
 	/**
-	 * 获取系统环境变量，用来实例化SimpleUploadManager对象，供后续代码注入或自动绑定。
+	 * 实例化UploadMetrics对象，记录上传和下载的运行指标，由MetricsController以Prometheus格式输出。
 	 * @return
 	 */
 	@Bean
+	public UploadMetrics getUploadMetrics(){
+		return new UploadMetrics();
+	}
+	
+	
+	/**
+	 * 实例化GroupCommitScheduler对象，SimpleUploadManager和各UploadedFileWriter共用，合并并发保存的文件的fsync。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public GroupCommitScheduler getGroupCommitScheduler(UploadMetrics uploadMetrics){
+		GroupCommitScheduler commitScheduler=new GroupCommitScheduler(
+				env.getProperty("upload.groupCommit.maxDelayMicros", Long.class, 0L), 
+				env.getProperty("upload.groupCommit.maxBatchSize", Integer.class, 256), 
+				env.getProperty("upload.groupCommit.threads", Integer.class, this.getRegularFsBasePaths().size()));
+		commitScheduler.setMetrics(uploadMetrics);
+		this.fileWriters.values().forEach(writer -> writer.setCommitScheduler(commitScheduler));
+		return commitScheduler;
+	}
+	
+	
+	/**
+	 * upload.writer=packed时实例化PackedUploadedFileWriter对象，在每个上传文件存放路径下打开PackStore，大文件仍由StreamingUploadedFileWriter保存。
+	 * @return
+	 */
+	@Bean(name="packedUploadedFileWriter", destroyMethod="shutdown")
+	@ConditionalOnProperty(name="upload.writer", havingValue="packed")
+	public PackedUploadedFileWriter getPackedUploadedFileWriter(StreamingUploadedFileWriter streamingUploadedFileWriter, 
+			UploadMetrics uploadMetrics) throws IOException{
+		long segmentBytes=env.getProperty("upload.pack.segmentBytes", Long.class, 256L * 1024 * 1024);
+		List<PackStore> packStores=new ArrayList<>();
+		for(String fsBasePath : this.getRegularFsBasePaths()){
+			packStores.add(new PackStore(Paths.get(fsBasePath), segmentBytes));
+		}
+		PackedUploadedFileWriter packedWriter=new PackedUploadedFileWriter(streamingUploadedFileWriter, packStores, 
+				env.getProperty("upload.pack.maxFileBytes", Integer.class, 64 * 1024));
+		packedWriter.scheduleCompaction(env.getProperty("upload.pack.compactIntervalSeconds", Long.class, 300L), 
+				env.getProperty("upload.pack.compactRatio", Double.class, 0.5));
+		uploadMetrics.registerGauge("upload_pack_files", "Files stored in pack segments", 
+				() -> packStores.stream().mapToLong(PackStore::getFileCount).sum());
+		uploadMetrics.registerGauge("upload_pack_bytes", "Bytes held by pack segments", 
+				() -> packStores.stream().mapToLong(PackStore::getTotalBytes).sum());
+		uploadMetrics.registerGauge("upload_pack_dead_bytes", "Pack segment bytes waiting for compaction", 
+				() -> packStores.stream().mapToLong(PackStore::getDeadBytes).sum());
+		return packedWriter;
+	}
+	
+	
+	/**
+	 * 实例化批量保存和删除文件时并行执行任务的线程池。队列已满或线程池已关闭时由提交任务的线程自己执行，
+	 * 大批量删除（每个目录一个任务）不会在内存中无限积压任务。
+	 * @return
+	 */
+	@Bean(name="uploadBatchExecutor", destroyMethod="shutdown")
+	public ThreadPoolExecutor getUploadBatchExecutor(){
+		int threads=env.getProperty("upload.batch.threads", Integer.class, 8);
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(env.getProperty("upload.batch.queueCapacity", Integer.class, 1000)), 
+				new ThreadFactoryBuilder().setNameFormat("upload-batch-%d").setDaemon(true).build(), 
+				//与CallerRunsPolicy不同，线程池关闭后也在调用线程中执行，等待任务结果的调用方不会一直等待
+				(task, executor) -> task.run());
+	}
+	
+	
+	/**
+	 * 获取系统环境变量，用来实例化SimpleUploadManager对象，供后续代码注入或自动绑定。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
 	@Qualifier("simpleUploadManager")
-	public SimpleUploadManager getUploadManager(){
+	public SimpleUploadManager getUploadManager(UploadMetrics uploadMetrics, GroupCommitScheduler commitScheduler, 
+			ObjectProvider<PackedUploadedFileWriter> packedWriter, @Qualifier("uploadBatchExecutor") ThreadPoolExecutor batchExecutor) throws IOException{
 		SimpleUploadManager simpleUploadManager=new SimpleUploadManager();
 		
-		String fsBasePath=this.getRegularFsBasePath();
+		List<String> fsBasePaths=this.getRegularFsBasePaths();
 		String urlBasePath=this.getRegularUrlBasePath();
 		String sizeLimit=env.getProperty("upload.sizeLimit", "10Mb");
 		
 		simpleUploadManager.setFileSizeLimit(sizeLimit);
-		simpleUploadManager.setFsBasePath(fsBasePath);
+		simpleUploadManager.setFsBasePaths(fsBasePaths);
 		simpleUploadManager.setUrlBasePath(urlBasePath);
+		simpleUploadManager.setFileWriter(this.getFileWriter(packedWriter));
+		simpleUploadManager.setMetrics(uploadMetrics);
+		simpleUploadManager.setCommitScheduler(commitScheduler);
+		simpleUploadManager.setDurability(this.getDurability());
+		simpleUploadManager.setFileIdGenerator(this.getFileIdGenerator());
+		simpleUploadManager.setShardLayout(this.getShardLayout());
+		simpleUploadManager.setFileCompressor(this.getFileCompressor());
+		simpleUploadManager.setChecksumEnabled(env.getProperty("upload.checksum.enabled", Boolean.class, true));
+		simpleUploadManager.setBatchExecutor(batchExecutor);
+		simpleUploadManager.scheduleSessionPurge(env.getProperty("upload.chunked.purgeIntervalMinutes", Long.class, 60L));
+		if(env.getProperty("upload.shard.precreate", Boolean.class, true)){
+			simpleUploadManager.precreateShardDirectories();
+		}
+		if(this.fileListeners!=null){
+			this.fileListeners.forEach(simpleUploadManager::addFileListener);
+		}
 		
 		return simpleUploadManager;
 	}
 	
 	
-	//将文件系统路径fsBasePath映射到虚拟路径urlBasePath
-	@Override
-	public void addResourceHandlers(ResourceHandlerRegistry registry) {
-		registry
-			.addResourceHandler(this.getRegularUrlBasePath() + "**")
-			.addResourceLocations("file:///" + this.getRegularFsBasePath());
+	/**
+	 * 实例化AsyncUploadManager对象，将SimpleUploadManager的保存和删除操作交给独立的I/O线程异步执行。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public AsyncUploadManager getAsyncUploadManager(SimpleUploadManager simpleUploadManager, UploadMetrics uploadMetrics){
+		AsyncUploadManager asyncUploadManager=new AsyncUploadManager(simpleUploadManager, 
+				env.getProperty("upload.async.threads", Integer.class, 16), 
+				env.getProperty("upload.async.queueCapacity", Integer.class, 200), 
+				env.getProperty("upload.async.virtualThreads", Boolean.class, false));
+		asyncUploadManager.setMetrics(uploadMetrics);
+		uploadMetrics.registerGauge("upload_async_pending", "Async operations running or queued", asyncUploadManager::getPendingCount);
+		uploadMetrics.registerGauge("upload_async_capacity", "Max async operations running or queued", asyncUploadManager::getCapacity);
+		return asyncUploadManager;
+	}
+	
+	
+	/**
+	 * 实例化UploadedFileLocator对象，下载文件时根据url路径查找文件信息。
+	 * @return
+	 */
+	@Bean
+	public UploadedFileLocator getUploadedFileLocator(SimpleUploadManager simpleUploadManager, UploadedFileMetadataStore metadataStore){
+		UploadedFileLocator fileLocator=new UploadedFileLocator(simpleUploadManager, metadataStore);
+		simpleUploadManager.addFileListener(fileLocator.getFileListener());
+		simpleUploadManager.getMetrics().registerGauge("upload_metadata_pending", "Metadata operations waiting to be written", 
+				metadataStore::getPendingCount);
+		simpleUploadManager.getMetrics().registerGauge("upload_metadata_failed_writes", "Metadata transactions that failed and were retried", 
+				metadataStore::getFailedWriteCount);
+		return fileLocator;
+	}
+	
+	
+	/**
+	 * 实例化HotFileCache对象，下载时将小文件缓存在内存中。
+	 * @return
+	 */
+	@Bean
+	public HotFileCache getHotFileCache(SimpleUploadManager simpleUploadManager){
+		HotFileCache hotFileCache=new HotFileCache(env.getProperty("upload.cache.maxBytes", Long.class, 64L * 1024 * 1024), env.getProperty("upload.cache.maxFileBytes", Long.class, 256L * 1024));
+		simpleUploadManager.addFileListener(hotFileCache.getFileListener());
+		simpleUploadManager.getMetrics().registerGauge("download_cache_bytes", "Bytes held by the hot-file cache", 
+				hotFileCache::getCachedBytes);
+		return hotFileCache;
+	}
+	
+	
+	/**
+	 * 实例化UploadSweeper对象，在后台定期查找并报告（或隔离、删除）孤立文件和过期的临时文件。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public UploadSweeper getUploadSweeper(SimpleUploadManager simpleUploadManager, UploadedFileMetadataStore metadataStore){
+		UploadSweeper sweeper=new UploadSweeper(simpleUploadManager, metadataStore, env.getProperty("upload.sweeper.threads", Integer.class, 2));
+		sweeper.setDeleteEnabled(env.getProperty("upload.sweeper.delete", Boolean.class, false));
+		sweeper.setOrphanAge(Duration.ofMinutes(env.getProperty("upload.sweeper.orphanAgeMinutes", Long.class, 1440L)));
+		sweeper.setTempFileAge(Duration.ofMinutes(env.getProperty("upload.sweeper.tempFileAgeMinutes", Long.class, 1440L)));
+		sweeper.setQuarantineAge(Duration.ofMinutes(env.getProperty("upload.sweeper.quarantineMinutes", Long.class, 10080L)));
+		sweeper.setFilesPerSecond(env.getProperty("upload.sweeper.filesPerSecond", Double.class, 2000.0));
+		long intervalMinutes=env.getProperty("upload.sweeper.intervalMinutes", Long.class, 1440L);
+		if(intervalMinutes>0){
+			sweeper.schedule(env.getProperty("upload.sweeper.initialDelayMinutes", Long.class, 10L), intervalMinutes);
+		}
+		UploadMetrics uploadMetrics=simpleUploadManager.getMetrics();
+		uploadMetrics.registerGauge("upload_sweep_scanned_files", "Files checked by the current or last sweep", sweeper::getScannedFiles);
+		uploadMetrics.registerGauge("upload_sweep_orphan_files", "Orphan files found by the current or last sweep", sweeper::getOrphanFiles);
+		uploadMetrics.registerGauge("upload_sweep_quarantined_files", "Orphan files moved to quarantine by the current or last sweep", 
+				sweeper::getQuarantinedFiles);
+		uploadMetrics.registerGauge("upload_sweep_stale_temp_files", "Stale temp files found by the current or last sweep", 
+				sweeper::getStaleTempFiles);
+		uploadMetrics.registerGauge("upload_sweep_missing_files", "Recorded files missing on disk in the current or last sweep", 
+				sweeper::getMissingFiles);
+		uploadMetrics.registerGauge("upload_sweep_deleted_files", "Files or records deleted by the current or last sweep", 
+				sweeper::getDeletedFiles);
+		return sweeper;
+	}
+	
+	
+	/**
+	 * 实例化UploadScrubber对象，在后台按记录的校验和定期检查文件是否损坏。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public UploadScrubber getUploadScrubber(SimpleUploadManager simpleUploadManager, UploadedFileMetadataStore metadataStore){
+		UploadScrubber scrubber=new UploadScrubber(simpleUploadManager, metadataStore);
+		scrubber.setBytesPerSecond(env.getProperty("upload.scrub.mbPerSecond", Double.class, 20.0) * 1024 * 1024);
+		simpleUploadManager.addFileListener(scrubber.getFileListener());
+		long intervalMinutes=env.getProperty("upload.scrub.intervalMinutes", Long.class, 10080L);
+		if(intervalMinutes>0){
+			scrubber.schedule(env.getProperty("upload.scrub.initialDelayMinutes", Long.class, 60L), intervalMinutes);
+		}
+		UploadMetrics uploadMetrics=simpleUploadManager.getMetrics();
+		uploadMetrics.registerGauge("upload_scrub_scanned_files", "Files verified by the current or last scrub", scrubber::getScannedFiles);
+		uploadMetrics.registerGauge("upload_scrub_scanned_bytes", "Bytes verified by the current or last scrub", scrubber::getScannedBytes);
+		uploadMetrics.registerGauge("upload_scrub_mismatched_files", "Checksum mismatches found by the current or last scrub", 
+				scrubber::getMismatchedFiles);
+		uploadMetrics.registerGauge("upload_scrub_corrupt_files", "Files with a checksum mismatch that have not been overwritten or removed", 
+				scrubber::getMismatchCount);
+		return scrubber;
+	}
+	
+	
+	/**
+	 * 实例化DeferredFileRemover对象，在后台按限定的速率删除removeFilesLater标记删除的文件。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public DeferredFileRemover getDeferredFileRemover(SimpleUploadManager simpleUploadManager) throws IOException{
+		DeferredFileRemover deferredRemover=new DeferredFileRemover(simpleUploadManager);
+		deferredRemover.setFilesPerSecond(env.getProperty("upload.remove.filesPerSecond", Double.class, 500.0));
+		simpleUploadManager.setDeferredRemover(deferredRemover);
+		deferredRemover.start();
+		UploadMetrics uploadMetrics=simpleUploadManager.getMetrics();
+		uploadMetrics.registerGauge("upload_remove_pending", "Files marked deleted and waiting to be unlinked", 
+				deferredRemover::getPendingCount);
+		uploadMetrics.registerGauge("upload_remove_deleted_files", "Marked files unlinked by the background remover", 
+				deferredRemover::getRemovedFiles);
+		uploadMetrics.registerGauge("upload_remove_failed_attempts", "Background unlinks that failed and were queued for a retry",
+				deferredRemover::getFailedRemovals);
+		return deferredRemover;
+	}
+	
+	
+	/**
+	 * 实例化TenantQuotaManager对象，按租户检查存储配额、限制写入带宽，并增量维护各租户的已用量。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public TenantQuotaManager getTenantQuotaManager(SimpleUploadManager simpleUploadManager) throws IOException{
+		TenantQuotaManager quotaManager=new TenantQuotaManager(simpleUploadManager);
+		if(env.containsProperty("upload.quota.default.maxBytes") || env.containsProperty("upload.quota.default.maxFiles") 
+				|| env.containsProperty("upload.quota.default.bytesPerSecond")){
+			quotaManager.setDefaultQuota(env.getProperty("upload.quota.default.maxBytes", Long.class, 0L), 
+					env.getProperty("upload.quota.default.maxFiles", Long.class, 0L), 
+					env.getProperty("upload.quota.default.bytesPerSecond", Long.class, 0L));
+		}
+		for(String tenant : Splitter.on(',').trimResults().omitEmptyStrings().split(env.getProperty("upload.quota.tenants", ""))){
+			String prefix="upload.quota.tenant." + tenant + ".";
+			quotaManager.setQuota(tenant, env.getProperty(prefix + "maxBytes", Long.class, 0L), 
+					env.getProperty(prefix + "maxFiles", Long.class, 0L), 
+					env.getProperty(prefix + "bytesPerSecond", Long.class, 0L));
+		}
+		quotaManager.schedulePersist(env.getProperty("upload.quota.persistIntervalSeconds", Long.class, 60L));
+		simpleUploadManager.setQuotaManager(quotaManager);
+		simpleUploadManager.getMetrics().registerGauge("upload_quota_tenants", "Tenants whose storage usage is tracked", 
+				() -> quotaManager.getQuotas().size());
+		return quotaManager;
+	}
+	
+	
+	/**
+	 * upload.derivative.sizes不为空时实例化ImageDerivativeService对象，在后台生成上传图片的缩略图，并在下载时按w和h参数发送缩略图。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	@ConditionalOnExpression("!'${upload.derivative.sizes:128x128,256x256,512x512}'.trim().isEmpty()")
+	public ImageDerivativeService getImageDerivativeService(SimpleUploadManager simpleUploadManager){
+		ImageDerivativeService derivativeService=new ImageDerivativeService(simpleUploadManager, 
+				env.getProperty("upload.derivative.threads", Integer.class, 2), 
+				env.getProperty("upload.derivative.queueCapacity", Integer.class, 100));
+		derivativeService.setFileTypes(Splitter.on(',').trimResults().omitEmptyStrings()
+				.splitToList(env.getProperty("upload.derivative.types", "jpg,jpeg,png,gif,bmp")));
+		derivativeService.setSizes(this.getDerivativeSizes("upload.derivative.sizes", "128x128,256x256,512x512"), 
+				this.getDerivativeSizes("upload.derivative.eagerSizes", "256x256"));
+		derivativeService.setMaxPixels(env.getProperty("upload.derivative.maxPixels", Long.class, 50_000_000L));
+		simpleUploadManager.addFileListener(derivativeService.getFileListener());
+		UploadMetrics uploadMetrics=simpleUploadManager.getMetrics();
+		uploadMetrics.registerGauge("upload_derivative_queued", "Thumbnail jobs waiting for a worker", derivativeService::getQueuedCount);
+		uploadMetrics.registerGauge("upload_derivative_generated", "Thumbnails generated", derivativeService::getGeneratedCount);
+		uploadMetrics.registerGauge("upload_derivative_rejected", "Thumbnail jobs rejected because the queue was full", 
+				derivativeService::getRejectedCount);
+		return derivativeService;
+	}
+	
+	
+	/**
+	 * 实例化ZipArchiveStreamer对象，把多个文件或一个子目录边读边打包为ZIP发送给客户端。
+	 * @return
+	 */
+	@Bean(destroyMethod="shutdown")
+	public ZipArchiveStreamer getZipArchiveStreamer(UploadedFileLocator fileLocator, UploadMetrics uploadMetrics){
+		ZipArchiveStreamer zipArchiveStreamer=new ZipArchiveStreamer(fileLocator, env.getProperty("upload.zip.maxStreams", Integer.class, 8));
+		String storedTypes=env.getProperty("upload.zip.storedTypes", 
+				"jpg,jpeg,png,gif,webp,zip,gz,tgz,bz2,xz,7z,rar,mp3,mp4,m4a,mov,avi,mkv,webm,docx,xlsx,pptx");
+		zipArchiveStreamer.setStoredTypes(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(storedTypes));
+		zipArchiveStreamer.setLevel(env.getProperty("upload.zip.level", Integer.class, 6));
+		uploadMetrics.registerGauge("download_zip_active", "ZIP downloads in progress", zipArchiveStreamer::getActiveCount);
+		uploadMetrics.registerGauge("download_zip_rejected", "ZIP downloads rejected because too many were in progress", 
+				zipArchiveStreamer::getRejectedCount);
+		return zipArchiveStreamer;
+	}
+	
+	
+	//将虚拟路径urlBasePath映射到FileDownloadHandler，由其从文件系统路径fsBasePath中读取文件
+	@Bean
+	public SimpleUrlHandlerMapping getFileDownloadHandlerMapping(UploadedFileLocator fileLocator, HotFileCache hotFileCache, 
+			UploadMetrics uploadMetrics, ObjectProvider<ImageDerivativeService> derivativeService){
+		FileDownloadHandler downloadHandler=new FileDownloadHandler(fileLocator);
+		downloadHandler.setHotFileCache(hotFileCache);
+		downloadHandler.setMetrics(uploadMetrics);
+		downloadHandler.setDerivativeService(derivativeService.getIfAvailable());
+		
+		SimpleUrlHandlerMapping handlerMapping=new SimpleUrlHandlerMapping();
+		handlerMapping.setOrder(1);
+		handlerMapping.setUrlMap(Collections.singletonMap(this.getRegularUrlBasePath() + "**", downloadHandler));
+		return handlerMapping;
 	}
 	
 	
-	//获取格式化后的fsBasePath
-	private String getRegularFsBasePath(){
-		String userDir=System.getProperty("user.dir");
-		String fsBasePath=env.getProperty("upload.fsBasePath", userDir + "/uploaded/");
-		return FileSystemUtil.getRegularFullPath(fsBasePath);
+	//根据upload.writer配置项选择保存文件所使用的UploadedFileWriter；PackedUploadedFileWriter由本类创建，不在自动注入的fileWriters中
+	private UploadedFileWriter getFileWriter(ObjectProvider<PackedUploadedFileWriter> packedWriter){
+		String writerName=env.getProperty("upload.writer", "streaming").trim();
+		UploadedFileWriter writer=writerName.equals("packed") ? packedWriter.getIfAvailable() : this.fileWriters.get(writerName + "UploadedFileWriter");
+		Preconditions.checkArgument(writer!=null, "配置项upload.writer的值" + writerName + "无效，可选值为streaming、simple或packed");
+		return writer;
+	}
+	
+	//根据upload.durability配置项选择保存文件时默认的持久化级别
+	private Durability getDurability(){
+		String durability=env.getProperty("upload.durability", "none").trim();
+		for(Durability value : Durability.values()){
+			if(value.name().equalsIgnoreCase(durability)){
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("配置项upload.durability的值" + durability + "无效，可选值为none、per_file或group");
+	}
+	
+	//根据upload.fileId配置项选择生成文件名称的FileIdGenerator
+	private FileIdGenerator getFileIdGenerator(){
+		String fileId=env.getProperty("upload.fileId", "ulid").trim();
+		if(fileId.equals("ulid")){
+			return new UlidFileIdGenerator();
+		}
+		Preconditions.checkArgument(fileId.equals("uuid"), "配置项upload.fileId的值" + fileId + "无效，可选值为ulid或uuid");
+		return new UuidFileIdGenerator();
+	}
+	
+	//根据upload.shard.*配置项创建分片目录布局；按时间分片时，非ULID的文件标识（如内容摘要）仍按哈希值分片
+	private ShardLayout getShardLayout(){
+		ShardLayout hashShardLayout=new HashShardLayout(
+				env.getProperty("upload.shard.depth", Integer.class, 1), 
+				env.getProperty("upload.shard.width", Integer.class, 2));
+		String layout=env.getProperty("upload.shard.layout", "hash").trim();
+		if(layout.equals("hash")){
+			return hashShardLayout;
+		}
+		Preconditions.checkArgument(layout.equals("time"), "配置项upload.shard.layout的值" + layout + "无效，可选值为hash或time");
+		String timeUnit=env.getProperty("upload.shard.timeUnit", "day").trim();
+		Preconditions.checkArgument(timeUnit.equals("day") || timeUnit.equals("hour"), "配置项upload.shard.timeUnit的值" + timeUnit + "无效，可选值为day或hour");
+		return new TimeShardLayout(timeUnit.equals("day") ? ChronoUnit.DAYS : ChronoUnit.HOURS, ZoneId.systemDefault(), hashShardLayout);
+	}
+	
+	//upload.compress.enabled为true时根据upload.compress.*配置项创建FileCompressor，否则返回null
+	private FileCompressor getFileCompressor(){
+		if(!env.getProperty("upload.compress.enabled", Boolean.class, false)){
+			return null;
+		}
+		String fileTypes=env.getProperty("upload.compress.types", "txt,csv,tsv,json,xml,log,svg,html,htm,css,js,md,yml,yaml");
+		FileCompressor fileCompressor=new FileCompressor(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(fileTypes));
+		fileCompressor.setSniffContent(env.getProperty("upload.compress.sniff", Boolean.class, true));
+		fileCompressor.setLevel(env.getProperty("upload.compress.level", Integer.class, 6));
+		return fileCompressor;
+	}
+	
+	//解析以逗号分隔的缩略图尺寸配置项
+	private List<ImageDerivativeService.Size> getDerivativeSizes(String name, String defaultValue){
+		return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(env.getProperty(name, defaultValue)).stream()
+				.map(ImageDerivativeService.Size::parse)
+				.collect(Collectors.toList());
+	}
+	
+	//获取格式化后的fsBasePaths，无upload.fsBasePaths配置项时只有upload.fsBasePath一个路径
+	private List<String> getRegularFsBasePaths(){
+		String fsBasePaths=env.getProperty("upload.fsBasePaths");
+		if(fsBasePaths==null || fsBasePaths.trim().isEmpty()){
+			String userDir=System.getProperty("user.dir");
+			fsBasePaths=env.getProperty("upload.fsBasePath", userDir + "/uploaded/");
+		}
+		return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(fsBasePaths).stream()
+				.map(FileSystemUtil::getRegularFullPath)
+				.collect(Collectors.toList());
 	}
 	
 	//获取格式化后的urlBasePath
@@ -0,0 +1,238 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.google.common.base.Preconditions;
+
+
+/**
+ * 上传和下载的运行指标，包括：
+ * <br> 各阶段的耗时分布（LatencyHistogram），阶段见Stage；
+ * <br> 上传和下载的次数、字节数（对字节数计数器求rate即为吞吐量）、正在进行的上传和下载数；
+ * <br> 按异常类型统计的错误次数，如FileSizeExceedLimitException、SameFileNameExistException；
+ * <br> 通过registerGauge注册的瞬时值，如AsyncUploadManager的排队数。
+ * <p> 记录时只做LongAdder的加法，不加锁，可以在每次上传中调用。writePrometheus以Prometheus的文本格式输出全部指标。
+ * @author xiangligu
+ *
+ */
+public class UploadMetrics {
+
+	/**
+	 * 记录耗时的阶段
+	 */
+	public enum Stage {
+		//参数和文件大小的校验
+		VALIDATION,
+		//确保子目录存在、检查同名文件
+		DIRECTORY,
+		//UploadedFileWriter写入文件
+		WRITE,
+		//强制将文件内容写入磁盘
+		FSYNC,
+		//生成文件信息并通知监听器（包括UploadedFileMetadataStore）
+		METADATA,
+		//UploadedFileWriter删除文件
+		REMOVE,
+		//下载一个文件的全部处理时间
+		DOWNLOAD
+	}
+
+	//Prometheus直方图输出的桶边界：1微秒到约34秒之间的2的幂纳秒
+	private static final int MIN_BUCKET_SHIFT = 10;
+	private static final int MAX_BUCKET_SHIFT = 35;
+
+	private final Map<Stage, LatencyHistogram> stageLatencies = new EnumMap<>(Stage.class);
+	private final LongAdder uploads = new LongAdder();
+	private final LongAdder uploadedBytes = new LongAdder();
+	private final LongAdder uploadsInFlight = new LongAdder();
+	private final LongAdder downloads = new LongAdder();
+	private final LongAdder downloadedBytes = new LongAdder();
+	private final LongAdder downloadsInFlight = new LongAdder();
+	private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+	private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+
+	public UploadMetrics() {
+		for(Stage stage : Stage.values()){
+			this.stageLatencies.put(stage, new LatencyHistogram());
+		}
+	}
+
+
+	/**
+	 * 记录某个阶段从startNanos到现在的耗时
+	 * @param stage 阶段
+	 * @param startNanos 阶段开始时System.nanoTime()的值
+	 * @return 当前的System.nanoTime()，可以作为下一个阶段的开始时间
+	 */
+	public long record(Stage stage, long startNanos) {
+		long now=System.nanoTime();
+		this.stageLatencies.get(stage).record(now - startNanos);
+		return now;
+	}
+
+
+	/**
+	 * 一次上传开始，必须与uploadFinished成对调用
+	 */
+	public void uploadStarted() {
+		this.uploadsInFlight.increment();
+	}
+
+
+	/**
+	 * 一次上传结束
+	 * @param savedBytes 保存的字节数，上传失败时为-1
+	 */
+	public void uploadFinished(long savedBytes) {
+		this.uploadsInFlight.decrement();
+		if(savedBytes>=0){
+			this.uploads.increment();
+			this.uploadedBytes.add(savedBytes);
+		}
+	}
+
+
+	/**
+	 * 一次下载开始，必须与downloadFinished成对调用
+	 */
+	public void downloadStarted() {
+		this.downloadsInFlight.increment();
+	}
+
+
+	/**
+	 * 一次下载结束
+	 * @param sentBytes 发送的文件内容的字节数
+	 */
+	public void downloadFinished(long sentBytes) {
+		this.downloadsInFlight.decrement();
+		this.downloads.increment();
+		this.downloadedBytes.add(sentBytes);
+	}
+
+
+	/**
+	 * 按异常类型记录一次错误
+	 * @param error
+	 */
+	public void recordError(Throwable error) {
+		Preconditions.checkNotNull(error, "参数error不允许为null");
+		this.errors.computeIfAbsent(error.getClass().getSimpleName(), type -> new LongAdder()).increment();
+	}
+
+
+	/**
+	 * 注册一个瞬时值，输出指标时调用supplier取值。同名的瞬时值会被替换。
+	 * @param name 指标名，应符合Prometheus的命名规则
+	 * @param help 指标的说明
+	 * @param supplier
+	 */
+	public void registerGauge(String name, String help, LongSupplier supplier) {
+		Preconditions.checkNotNull(name, "参数name不允许为null");
+		Preconditions.checkArgument(name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*"), "参数name不是有效的指标名");
+		Preconditions.checkNotNull(supplier, "参数supplier不允许为null");
+		this.gauges.put(name, new Gauge(help, supplier));
+	}
+
+
+	public LatencyHistogram getLatency(Stage stage) {
+		return this.stageLatencies.get(stage);
+	}
+
+
+	/**
+	 * @return 便于查看的指标摘要：各阶段的次数、p50和p99（毫秒），以及计数器和错误数
+	 */
+	public Map<String, Object> getSummary() {
+		Map<String, Object> result=new LinkedHashMap<>();
+		for(Stage stage : Stage.values()){
+			LatencyHistogram histogram=this.stageLatencies.get(stage);
+			Map<String, Object> latency=new LinkedHashMap<>();
+			latency.put("count", histogram.getCount());
+			latency.put("p50Millis", histogram.getPercentileNanos(50) / 1e6);
+			latency.put("p99Millis", histogram.getPercentileNanos(99) / 1e6);
+			result.put(stage.name().toLowerCase(), latency);
+		}
+		result.put("uploads", this.uploads.sum());
+		result.put("uploadedBytes", this.uploadedBytes.sum());
+		result.put("uploadsInFlight", this.uploadsInFlight.sum());
+		result.put("downloads", this.downloads.sum());
+		result.put("downloadedBytes", this.downloadedBytes.sum());
+		result.put("downloadsInFlight", this.downloadsInFlight.sum());
+		Map<String, Long> errorCounts=new LinkedHashMap<>();
+		this.errors.forEach((type, count) -> errorCounts.put(type, count.sum()));
+		result.put("errors", errorCounts);
+		return result;
+	}
+
+
+	/**
+	 * 以Prometheus的文本格式（text/plain; version=0.0.4）输出全部指标
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void writePrometheus(Writer writer) throws IOException {
+		writer.write("# HELP upload_stage_duration_seconds Latency of each upload/download stage\n");
+		writer.write("# TYPE upload_stage_duration_seconds histogram\n");
+		for(Stage stage : Stage.values()){
+			LatencyHistogram histogram=this.stageLatencies.get(stage);
+			String label="stage=\"" + stage.name().toLowerCase() + "\"";
+			//先取总数，保证各个累计桶的值不超过+Inf桶
+			long count=histogram.getCount();
+			for(int shift=MIN_BUCKET_SHIFT; shift<=MAX_BUCKET_SHIFT; shift++){
+				writer.write("upload_stage_duration_seconds_bucket{" + label + ",le=\"" + ((1L << shift) / 1e9) + "\"} " 
+						+ Math.min(count, histogram.getCountBelow(1L << shift)) + "\n");
+			}
+			writer.write("upload_stage_duration_seconds_bucket{" + label + ",le=\"+Inf\"} " + count + "\n");
+			writer.write("upload_stage_duration_seconds_sum{" + label + "} " + histogram.getSumNanos() / 1e9 + "\n");
+			writer.write("upload_stage_duration_seconds_count{" + label + "} " + count + "\n");
+		}
+		
+		this.writeSample(writer, "upload_files_total", "counter", "Files saved successfully", this.uploads.sum());
+		this.writeSample(writer, "upload_bytes_total", "counter", "Bytes saved successfully", this.uploadedBytes.sum());
+		this.writeSample(writer, "upload_in_flight", "gauge", "Uploads in progress", this.uploadsInFlight.sum());
+		this.writeSample(writer, "download_files_total", "counter", "Downloads served", this.downloads.sum());
+		this.writeSample(writer, "download_bytes_total", "counter", "File bytes sent to clients", this.downloadedBytes.sum());
+		this.writeSample(writer, "download_in_flight", "gauge", "Downloads in progress", this.downloadsInFlight.sum());
+		
+		writer.write("# HELP upload_errors_total Errors by exception type\n");
+		writer.write("# TYPE upload_errors_total counter\n");
+		for(Map.Entry<String, LongAdder> entry : this.errors.entrySet()){
+			writer.write("upload_errors_total{type=\"" + entry.getKey() + "\"} " + entry.getValue().sum() + "\n");
+		}
+		
+		for(Map.Entry<String, Gauge> entry : this.gauges.entrySet()){
+			this.writeSample(writer, entry.getKey(), "gauge", entry.getValue().help, entry.getValue().supplier.getAsLong());
+		}
+	}
+
+
+
+	//==================private functions===================
+	private void writeSample(Writer writer, String name, String type, String help, long value) throws IOException{
+		writer.write("# HELP " + name + " " + help + "\n");
+		writer.write("# TYPE " + name + " " + type + "\n");
+		writer.write(name + " " + value + "\n");
+	}
+
+
+	private static class Gauge {
+		final String help;
+		final LongSupplier supplier;
+
+		Gauge(String help, LongSupplier supplier) {
+			this.help = help;
+			this.supplier = supplier;
+		}
+	}
+
+}
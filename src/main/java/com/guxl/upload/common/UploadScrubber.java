@@ -0,0 +1,438 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Checksum;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 在后台重新读取已保存的文件，按数据库中记录的校验和（见FileChecksum）检查文件是否损坏，用于发现老化磁盘上的静默数据损坏。
+ * <p> 各存储卷由各自的线程同时检查，每个卷的读取速度分别限制在bytesPerSecond以内。逐个目录查询有校验和的记录并读取这些文件，
+ * 打包保存的小文件从段文件中读取；没有校验和的文件（如分块上传的文件）、已标记删除的文件和最近RECENT_MILLIS毫秒内修改过的文件（记录可能尚未写入数据库）跳过。
+ * 每个目录处理完后记入存储卷上的检查点文件（.scrub/checkpoint），进程重启后从检查点继续。
+ * <p> 校验和不一致时，再次查询记录并检查文件的最后修改时间，排除检查期间被覆盖的文件，确认后记入getMismatches()并输出错误日志。
+ * 通过getFileListener()返回的监听器注册到UploadManager后，不一致的文件被覆盖或删除时从getMismatches()中移除。
+ * @author xiangligu
+ *
+ */
+public class UploadScrubber {
+
+	private static final Logger logger = LoggerFactory.getLogger(UploadScrubber.class);
+
+	//检查点文件所在的目录（相对于各存储卷的基本路径）
+	private static final String CHECKPOINT_DIR = ".scrub";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int BUFFER_BYTES = 64 * 1024;
+	private static final long RECENT_MILLIS = 60 * 1000;
+	//最多保留的不一致文件数
+	private static final int MAX_MISMATCHES = 10000;
+
+	private final SimpleUploadManager uploadManager;
+	private final UploadedFileMetadataStore metadataStore;
+	private final ExecutorService volumeExecutor;
+	private final ScheduledExecutorService scheduler;
+	private volatile double bytesPerSecond = 20 * 1024 * 1024;
+	private volatile boolean running = true;
+	private final AtomicBoolean scrubbing = new AtomicBoolean();
+	private final ConcurrentMap<String, Mismatch> mismatches = new ConcurrentHashMap<>();
+
+	//最近一次（或正在进行的）检查的统计
+	private final LongAdder scannedFiles = new LongAdder();
+	private final LongAdder scannedBytes = new LongAdder();
+	private final LongAdder skippedFiles = new LongAdder();
+	private final LongAdder mismatchedFiles = new LongAdder();
+
+
+	/**
+	 * @param uploadManager 提供各存储卷，并读取打包保存的文件
+	 * @param metadataStore 文件元数据存储，提供文件的校验和
+	 */
+	public UploadScrubber(SimpleUploadManager uploadManager, UploadedFileMetadataStore metadataStore) {
+		this.uploadManager = Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		this.metadataStore = Preconditions.checkNotNull(metadataStore, "参数metadataStore不允许为null");
+		this.volumeExecutor = Executors.newFixedThreadPool(uploadManager.getVolumes().size(),
+				new ThreadFactoryBuilder().setNameFormat("upload-scrubber-%d").setDaemon(true).build());
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("upload-scrubber-scheduler-%d").setDaemon(true).build());
+	}
+
+
+	/**
+	 * @param bytesPerSecond 每个存储卷每秒最多读取的字节数
+	 */
+	public void setBytesPerSecond(double bytesPerSecond) {
+		Preconditions.checkArgument(bytesPerSecond>0, "参数bytesPerSecond必须为正数");
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+
+	public double getBytesPerSecond() {
+		return this.bytesPerSecond;
+	}
+
+	public long getScannedFiles() {
+		return this.scannedFiles.sum();
+	}
+
+	public long getScannedBytes() {
+		return this.scannedBytes.sum();
+	}
+
+	public long getSkippedFiles() {
+		return this.skippedFiles.sum();
+	}
+
+	/**
+	 * @return 最近一次检查中发现的不一致的文件数
+	 */
+	public long getMismatchedFiles() {
+		return this.mismatchedFiles.sum();
+	}
+
+	public boolean isScrubbing() {
+		return this.scrubbing.get();
+	}
+
+	/**
+	 * @return 已发现、且之后没有被覆盖或删除的不一致的文件，最多MAX_MISMATCHES个
+	 */
+	public Collection<Mismatch> getMismatches() {
+		return new ArrayList<>(this.mismatches.values());
+	}
+
+	/**
+	 * @return 当前getMismatches()中的文件数
+	 */
+	public int getMismatchCount() {
+		return this.mismatches.size();
+	}
+
+
+	/**
+	 * @return 在文件被覆盖或删除时，将其从getMismatches()中移除的监听器，应注册到UploadManager
+	 */
+	public UploadedFileListener getFileListener() {
+		return new UploadedFileListener() {
+			@Override
+			public void fileSaved(UploadedFileInfo fileInfo) {
+				UploadScrubber.this.mismatches.remove(fileInfo.getFilePath());
+			}
+
+			@Override
+			public void fileRemoved(String fullPathFileName) {
+				UploadScrubber.this.mismatches.remove(fullPathFileName);
+			}
+		};
+	}
+
+
+	/**
+	 * 启动后台线程，定期执行scrub()
+	 * @param initialDelayMinutes 第一次检查前等待的分钟数
+	 * @param intervalMinutes 两次检查之间间隔的分钟数
+	 */
+	public void schedule(long initialDelayMinutes, long intervalMinutes) {
+		Preconditions.checkArgument(initialDelayMinutes>=0, "参数initialDelayMinutes不允许为负数");
+		Preconditions.checkArgument(intervalMinutes>0, "参数intervalMinutes必须为正整数");
+		this.scheduler.scheduleWithFixedDelay(this::scrubQuietly, initialDelayMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+
+	/**
+	 * 在后台线程中立即开始一次检查
+	 * @return 已有检查正在进行时返回false
+	 */
+	public boolean scrubLater() {
+		if(this.isScrubbing()){
+			return false;
+		}
+		this.scheduler.execute(this::scrubQuietly);
+		return true;
+	}
+
+
+	/**
+	 * 检查全部存储卷上有校验和的文件，有检查点时从检查点继续。已有检查正在进行时直接返回false。
+	 * @return 是否检查完了全部目录
+	 * @throws IOException 读写检查点文件失败
+	 */
+	public boolean scrub() throws IOException {
+		if(!this.scrubbing.compareAndSet(false, true)){
+			return false;
+		}
+		try{
+			this.scannedFiles.reset();
+			this.scannedBytes.reset();
+			this.skippedFiles.reset();
+			this.mismatchedFiles.reset();
+			long start=System.currentTimeMillis();
+
+			//各存储卷同时检查，分别限速
+			List<DirectoryCheckpoint> checkpoints=new ArrayList<>();
+			List<Future<Boolean>> tasks=new ArrayList<>();
+			try{
+				for(StorageVolume volume : this.uploadManager.getVolumes()){
+					DirectoryCheckpoint checkpoint=DirectoryCheckpoint.open(volume.getBasePath().resolve(CHECKPOINT_DIR).resolve(CHECKPOINT_FILE));
+					checkpoints.add(checkpoint);
+					if(checkpoint.getDoneCount()>0){
+						logger.info("从检查点继续检查{}，已完成{}个目录", volume, checkpoint.getDoneCount());
+					}
+					RateLimiter rateLimiter=RateLimiter.create(this.bytesPerSecond);
+					tasks.add(this.volumeExecutor.submit(() -> this.scrubDirectory(volume, checkpoint, rateLimiter, volume.getBasePath())));
+				}
+
+				boolean completed=true;
+				for(int i=0; i<tasks.size(); i++){
+					if(this.join(tasks.get(i))){
+						checkpoints.get(i).finish();
+					}else{
+						completed=false;
+					}
+				}
+				logger.info("检查文件校验和{}，耗时{}ms，检查文件{}个共{}字节，跳过{}个，不一致{}个", completed ? "完成" : "中断",
+						System.currentTimeMillis()-start, this.getScannedFiles(), this.getScannedBytes(), this.getSkippedFiles(),
+						this.getMismatchedFiles());
+				return completed;
+			}finally{
+				for(DirectoryCheckpoint checkpoint : checkpoints){
+					checkpoint.close();
+				}
+			}
+		}finally{
+			this.scrubbing.set(false);
+		}
+	}
+
+
+	/**
+	 * 停止检查，正在进行的检查在处理完当前文件后结束，检查点保留到下次继续
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		this.running = false;
+		this.scheduler.shutdownNow();
+		this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		this.volumeExecutor.shutdown();
+		this.volumeExecutor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+
+
+	//==================private functions===================
+	private void scrubQuietly(){
+		try{
+			this.scrub();
+		}catch(IOException | RuntimeException e){
+			logger.error("检查文件校验和失败", e);
+		}
+	}
+
+	private boolean join(Future<Boolean> task){
+		try{
+			return task.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return false;
+		}catch(ExecutionException e){
+			logger.error("检查文件校验和失败", e.getCause());
+			return false;
+		}
+	}
+
+	//检查目录中有校验和的文件，再依次检查各子目录（不含以“.”开头的目录）；目录及其全部子目录都处理完时返回true并记入检查点
+	private boolean scrubDirectory(StorageVolume volume, DirectoryCheckpoint checkpoint, RateLimiter rateLimiter, Path directory) {
+		String relativePath=volume.getBasePath().relativize(directory).toString();
+		if(checkpoint.isDone(relativePath)){
+			return true;
+		}
+
+		List<Path> subDirectories=new ArrayList<>();
+		try{
+			for(Map.Entry<String, String> entry : this.metadataStore.findChecksumsIn(directory).entrySet()){
+				if(!this.running){
+					return false;
+				}
+				this.verify(entry.getKey(), entry.getValue(), rateLimiter);
+			}
+			try(DirectoryStream<Path> stream=Files.newDirectoryStream(directory,
+					path -> !path.getFileName().toString().startsWith(".") && Files.isDirectory(path))){
+				stream.forEach(subDirectories::add);
+			}
+		}catch(NoSuchFileException e){
+			//目录已被删除
+		}catch(IOException | RuntimeException e){
+			logger.error("检查目录" + directory + "失败", e);
+			return false;
+		}
+
+		for(Path subDirectory : subDirectories){
+			if(!this.scrubDirectory(volume, checkpoint, rateLimiter, subDirectory)){
+				return false;
+			}
+		}
+		try{
+			checkpoint.markDone(relativePath);
+		}catch(IOException e){
+			logger.error("写入检查点失败", e);
+			return false;
+		}
+		return true;
+	}
+
+	//按记录的校验和检查一个文件
+	private void verify(String filePath, String expected, RateLimiter rateLimiter) throws IOException {
+		String algorithm=FileChecksum.getAlgorithm(expected);
+		if(!FileChecksum.isSupported(algorithm) || this.uploadManager.isRemovalPending(filePath)){
+			this.skippedFiles.increment();
+			return;
+		}
+
+		UploadedFileWriter fileWriter=this.uploadManager.getFileWriter();
+		long now=System.currentTimeMillis();
+		PackLocation location=fileWriter.getPackLocation(filePath);
+		long modifiedTime;
+		String actual;
+		try{
+			if(location!=null){
+				modifiedTime=location.getSaveTime();
+				ByteBuffer packed=fileWriter.readPackedFile(filePath);
+				if(packed==null || now-modifiedTime<RECENT_MILLIS){
+					this.skippedFiles.increment();
+					return;
+				}
+				actual=this.checksum(algorithm, packed, rateLimiter);
+			}else{
+				Path path=Paths.get(filePath);
+				modifiedTime=Files.getLastModifiedTime(path).toMillis();
+				if(now-modifiedTime<RECENT_MILLIS){
+					this.skippedFiles.increment();
+					return;
+				}
+				actual=this.checksum(algorithm, path, rateLimiter);
+			}
+		}catch(NoSuchFileException e){
+			//缺失的文件由UploadSweeper报告
+			this.skippedFiles.increment();
+			return;
+		}
+		this.scannedFiles.increment();
+		if(actual.equals(expected)){
+			this.mismatches.remove(filePath);
+			return;
+		}
+
+		//排除检查期间被覆盖的文件：记录已改变，或文件的最后修改时间已改变
+		UploadedFileRecord record=this.metadataStore.findByFilePath(filePath);
+		PackLocation currentLocation=fileWriter.getPackLocation(filePath);
+		long currentModifiedTime;
+		try{
+			currentModifiedTime=currentLocation!=null ? currentLocation.getSaveTime() : Files.getLastModifiedTime(Paths.get(filePath)).toMillis();
+		}catch(NoSuchFileException e){
+			currentModifiedTime=-1;
+		}
+		if(record==null || !expected.equals(record.getChecksum()) || currentModifiedTime!=modifiedTime){
+			this.skippedFiles.increment();
+			return;
+		}
+		this.mismatchedFiles.increment();
+		logger.error("文件{}已损坏，记录的校验和为{}，实际为{}", filePath, expected, actual);
+		if(this.mismatches.size()<MAX_MISMATCHES){
+			this.mismatches.put(filePath, new Mismatch(filePath, expected, actual, LocalDateTime.now()));
+		}
+	}
+
+	//读取文件的全部内容计算校验和，每读取一块都从rateLimiter取得与字节数相同的许可
+	private String checksum(String algorithm, Path path, RateLimiter rateLimiter) throws IOException {
+		Checksum checksum=FileChecksum.newChecksum(algorithm);
+		ByteBuffer buffer=ByteBuffer.allocate(BUFFER_BYTES);
+		try(FileChannel channel=FileChannel.open(path, StandardOpenOption.READ)){
+			for(int n=channel.read(buffer); n>=0; n=channel.read(buffer)){
+				if(n>0){
+					rateLimiter.acquire(n);
+					checksum.update(buffer.array(), 0, n);
+					this.scannedBytes.add(n);
+				}
+				buffer.clear();
+			}
+		}
+		return FileChecksum.format(algorithm, checksum);
+	}
+
+	private String checksum(String algorithm, ByteBuffer content, RateLimiter rateLimiter) {
+		Checksum checksum=FileChecksum.newChecksum(algorithm);
+		ByteBuffer source=content.duplicate();
+		byte[] buffer=new byte[Math.min(BUFFER_BYTES, Math.max(source.remaining(), 1))];
+		while(source.hasRemaining()){
+			int n=Math.min(buffer.length, source.remaining());
+			rateLimiter.acquire(n);
+			source.get(buffer, 0, n);
+			checksum.update(buffer, 0, n);
+			this.scannedBytes.add(n);
+		}
+		return FileChecksum.format(algorithm, checksum);
+	}
+
+
+
+	/**
+	 * 校验和不一致的文件
+	 */
+	public static final class Mismatch {
+		private final String filePath;
+		private final String expectedChecksum;
+		private final String actualChecksum;
+		private final LocalDateTime detectedTime;
+
+		public Mismatch(String filePath, String expectedChecksum, String actualChecksum, LocalDateTime detectedTime) {
+			this.filePath = filePath;
+			this.expectedChecksum = expectedChecksum;
+			this.actualChecksum = actualChecksum;
+			this.detectedTime = detectedTime;
+		}
+
+		public String getFilePath() {
+			return this.filePath;
+		}
+
+		public String getExpectedChecksum() {
+			return this.expectedChecksum;
+		}
+
+		public String getActualChecksum() {
+			return this.actualChecksum;
+		}
+
+		public LocalDateTime getDetectedTime() {
+			return this.detectedTime;
+		}
+	}
+
+}
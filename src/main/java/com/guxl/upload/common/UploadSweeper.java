@@ -0,0 +1,488 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * 在后台清理上传目录的工具。并行遍历各存储卷上的全部子目录（每个目录一个ForkJoin任务），查找：
+ * <br> 孤立文件：数据库中没有记录的上传文件，以及不再被任何上传文件链接的blob；
+ * <br> 过期的临时文件：保存失败留下的“.*.tmp”、去重时写入的临时文件和已放弃的分块上传的“.part”文件；
+ * <br> 缺失的文件：数据库中有记录，但既不在文件系统中、也不在段文件中的文件。
+ * <p> 默认只在日志中报告，setDeleteEnabled(true)时删除过期的临时文件和不再被引用的blob，并删除缺失文件的记录。
+ * 孤立的上传文件不直接删除，而是移到存储卷上的隔离目录（.sweep/quarantine，保留原来的相对路径），隔离超过quarantineAge后才在之后的清理中删除；
+ * 隔离期间可以手动移回原路径，删除前如果数据库中已有原路径的记录（如记录写入失败后补写），则保留并报告。
+ * 只处理最后修改时间早于orphanAge或tempFileAge的文件，以免误删正在保存、或记录尚未写入数据库的文件。
+ * <p> 读取每个目录项前都要从RateLimiter取得许可，限制清理占用的磁盘I/O。每个目录处理完后记入存储卷上的检查点文件（.sweep/checkpoint），
+ * 进程重启后从检查点继续，只有全部目录处理完后才删除检查点。
+ * @author xiangligu
+ *
+ */
+public class UploadSweeper {
+
+	private static final Logger logger = LoggerFactory.getLogger(UploadSweeper.class);
+
+	//检查点文件所在的目录（相对于各存储卷的基本路径）
+	private static final String CHECKPOINT_DIR = ".sweep";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	//隔离孤立文件的目录（相对于检查点文件所在的目录）
+	private static final String QUARANTINE_DIR = "quarantine";
+
+	private final SimpleUploadManager uploadManager;
+	private final UploadedFileMetadataStore metadataStore;
+	private final ForkJoinPool pool;
+	private Duration orphanAge = Duration.ofDays(1);
+	private Duration tempFileAge = Duration.ofDays(1);
+	private Duration quarantineAge = Duration.ofDays(7);
+	private boolean deleteEnabled = false;
+	private RateLimiter rateLimiter = RateLimiter.create(2000);
+	private ScheduledExecutorService scheduler;
+	private volatile boolean running = true;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	//最近一次（或正在进行的）清理的统计
+	private final LongAdder scannedFiles = new LongAdder();
+	private final LongAdder orphanFiles = new LongAdder();
+	private final LongAdder quarantinedFiles = new LongAdder();
+	private final LongAdder staleTempFiles = new LongAdder();
+	private final LongAdder missingFiles = new LongAdder();
+	private final LongAdder deletedFiles = new LongAdder();
+
+
+	/**
+	 * @param uploadManager 提供各存储卷，并用于删除孤立的上传文件（以便通知各监听器）
+	 * @param metadataStore 文件元数据存储，为null时不查找孤立的上传文件和缺失的文件
+	 * @param parallelism 并行遍历目录的线程数
+	 */
+	public UploadSweeper(SimpleUploadManager uploadManager, UploadedFileMetadataStore metadataStore, int parallelism) {
+		this.uploadManager = Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		this.metadataStore = metadataStore;
+		Preconditions.checkArgument(parallelism>0, "参数parallelism必须为正整数");
+		this.pool = new ForkJoinPool(parallelism, pool -> {
+			ForkJoinWorkerThread thread=ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("upload-sweeper-" + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+	}
+
+
+	/**
+	 * @param orphanAge 最后修改时间早于该时长的、没有记录的文件才被视为孤立文件
+	 */
+	public void setOrphanAge(Duration orphanAge) {
+		this.orphanAge = Preconditions.checkNotNull(orphanAge, "参数orphanAge不允许为null");
+	}
+
+	/**
+	 * @param tempFileAge 最后修改时间早于该时长的临时文件才被视为过期，应长于分块上传会话的过期时间
+	 */
+	public void setTempFileAge(Duration tempFileAge) {
+		this.tempFileAge = Preconditions.checkNotNull(tempFileAge, "参数tempFileAge不允许为null");
+	}
+
+	/**
+	 * @param quarantineAge 孤立的上传文件在隔离目录中保留的时长，超过后才被删除
+	 */
+	public void setQuarantineAge(Duration quarantineAge) {
+		this.quarantineAge = Preconditions.checkNotNull(quarantineAge, "参数quarantineAge不允许为null");
+	}
+
+	/**
+	 * @param deleteEnabled 为true时隔离孤立文件、删除其他找到的文件，为false时只报告
+	 */
+	public void setDeleteEnabled(boolean deleteEnabled) {
+		this.deleteEnabled = deleteEnabled;
+	}
+
+	/**
+	 * @param filesPerSecond 每秒最多读取的目录项数
+	 */
+	public void setFilesPerSecond(double filesPerSecond) {
+		Preconditions.checkArgument(filesPerSecond>0, "参数filesPerSecond必须为正数");
+		this.rateLimiter = RateLimiter.create(filesPerSecond);
+	}
+
+
+	public long getScannedFiles() {
+		return this.scannedFiles.sum();
+	}
+
+	public long getOrphanFiles() {
+		return this.orphanFiles.sum();
+	}
+
+	public long getQuarantinedFiles() {
+		return this.quarantinedFiles.sum();
+	}
+
+	public long getStaleTempFiles() {
+		return this.staleTempFiles.sum();
+	}
+
+	public long getMissingFiles() {
+		return this.missingFiles.sum();
+	}
+
+	public long getDeletedFiles() {
+		return this.deletedFiles.sum();
+	}
+
+	public boolean isSweeping() {
+		return this.sweeping.get();
+	}
+
+
+	/**
+	 * 启动后台线程，定期执行sweep()
+	 * @param initialDelayMinutes 第一次清理前等待的分钟数
+	 * @param intervalMinutes 两次清理之间间隔的分钟数
+	 */
+	public synchronized void schedule(long initialDelayMinutes, long intervalMinutes) {
+		Preconditions.checkArgument(initialDelayMinutes>=0, "参数initialDelayMinutes不允许为负数");
+		Preconditions.checkArgument(intervalMinutes>0, "参数intervalMinutes必须为正整数");
+		Preconditions.checkState(this.scheduler==null, "已经启动了清理线程");
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("upload-sweeper-scheduler-%d").setDaemon(true).build());
+		this.scheduler.scheduleWithFixedDelay(() -> {
+			try{
+				this.sweep();
+			}catch(IOException | RuntimeException e){
+				logger.error("清理上传目录失败", e);
+			}
+		}, initialDelayMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+
+	/**
+	 * 遍历全部存储卷执行一次清理，有检查点时从检查点继续。已有清理正在进行时直接返回false。
+	 * @return 是否遍历完了全部目录
+	 * @throws IOException 读写检查点文件失败
+	 */
+	public boolean sweep() throws IOException {
+		if(!this.sweeping.compareAndSet(false, true)){
+			return false;
+		}
+		try{
+			this.scannedFiles.reset();
+			this.orphanFiles.reset();
+			this.quarantinedFiles.reset();
+			this.staleTempFiles.reset();
+			this.missingFiles.reset();
+			this.deletedFiles.reset();
+			long start=System.currentTimeMillis();
+
+			//各存储卷同时遍历
+			List<DirectoryCheckpoint> checkpoints=new ArrayList<>();
+			List<DirectoryTask> tasks=new ArrayList<>();
+			try{
+				for(StorageVolume volume : this.uploadManager.getVolumes()){
+					DirectoryCheckpoint checkpoint=DirectoryCheckpoint.open(volume.getBasePath().resolve(CHECKPOINT_DIR).resolve(CHECKPOINT_FILE));
+					checkpoints.add(checkpoint);
+					if(checkpoint.getDoneCount()>0){
+						logger.info("从检查点继续清理{}，已完成{}个目录", volume, checkpoint.getDoneCount());
+					}
+					tasks.add(this.submit(new DirectoryTask(volume, checkpoint, volume.getBasePath(), DirectoryKind.UPLOAD)));
+				}
+				//隔离目录单独遍历，与上传目录使用同一个检查点
+				for(int i=0; i<checkpoints.size(); i++){
+					StorageVolume volume=this.uploadManager.getVolumes().get(i);
+					Path quarantineDir=getQuarantineDir(volume);
+					if(Files.isDirectory(quarantineDir)){
+						tasks.add(this.submit(new DirectoryTask(volume, checkpoints.get(i), quarantineDir, DirectoryKind.QUARANTINE)));
+					}
+				}
+
+				boolean[] volumeCompleted=new boolean[checkpoints.size()];
+				Arrays.fill(volumeCompleted, true);
+				for(int i=0; i<tasks.size(); i++){
+					if(!tasks.get(i).join()){
+						volumeCompleted[tasks.get(i).volume.getIndex()]=false;
+					}
+				}
+				boolean completed=true;
+				for(int i=0; i<checkpoints.size(); i++){
+					if(volumeCompleted[i]){
+						checkpoints.get(i).finish();
+					}else{
+						completed=false;
+					}
+				}
+				logger.info("清理上传目录{}，耗时{}ms，检查文件{}个，孤立文件{}个，隔离{}个，过期临时文件{}个，缺失文件{}个，删除{}个",
+						completed ? "完成" : "中断", System.currentTimeMillis()-start, this.getScannedFiles(), this.getOrphanFiles(),
+						this.getQuarantinedFiles(), this.getStaleTempFiles(), this.getMissingFiles(), this.getDeletedFiles());
+				return completed;
+			}finally{
+				for(DirectoryCheckpoint checkpoint : checkpoints){
+					checkpoint.close();
+				}
+			}
+		}finally{
+			this.sweeping.set(false);
+		}
+	}
+
+
+	/**
+	 * 停止清理，正在进行的清理在处理完当前目录项后结束，检查点保留到下次继续
+	 * @throws InterruptedException
+	 */
+	public synchronized void shutdown() throws InterruptedException {
+		this.running = false;
+		if(this.scheduler!=null){
+			this.scheduler.shutdownNow();
+			this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		this.pool.shutdown();
+		this.pool.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+
+
+	//==================private functions===================
+	//处理目录中的一个文件
+	private void checkFile(StorageVolume volume, DirectoryKind kind, Path path, BasicFileAttributes attributes, Set<String> recorded)
+			throws IOException{
+		long ageMillis=System.currentTimeMillis() - attributes.lastModifiedTime().toMillis();
+		String fileName=path.getFileName().toString();
+		switch(kind){
+		case UPLOAD:
+			if(fileName.startsWith(".")){
+				if(fileName.endsWith(GroupCommitScheduler.TEMP_FILE_SUFFIX) && ageMillis>this.tempFileAge.toMillis()){
+					this.staleTempFiles.increment();
+					this.delete(path, "过期的临时文件");
+				}
+			}else if(recorded!=null && !recorded.contains(path.toString()) && ageMillis>this.orphanAge.toMillis()){
+				this.orphanFiles.increment();
+				logger.info("{}孤立文件{}", this.deleteEnabled ? "隔离" : "发现", path);
+				if(this.deleteEnabled){
+					Path quarantined=getQuarantineDir(volume).resolve(volume.getBasePath().relativize(path));
+					try{
+						this.uploadManager.moveOut(path.toString(), quarantined);
+						this.quarantinedFiles.increment();
+					}catch(NoSuchFileException e){
+						//文件在检查之后被删除
+					}
+				}
+			}
+			break;
+		case QUARANTINE:
+			//隔离时最后修改时间被设为隔离的时间
+			if(ageMillis>this.quarantineAge.toMillis()){
+				Path original=volume.getBasePath().resolve(getQuarantineDir(volume).relativize(path));
+				if(recorded!=null && recorded.contains(original.toString())){
+					logger.warn("隔离的文件{}已有记录，未删除，应移回{}", path, original);
+				}else{
+					this.delete(path, "隔离期满的孤立文件");
+				}
+			}
+			break;
+		case TEMP:
+			if(ageMillis>this.tempFileAge.toMillis()){
+				this.staleTempFiles.increment();
+				this.delete(path, "过期的临时文件");
+			}
+			break;
+		case CONTENT:
+			Object links=Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+			if(links instanceof Integer && (Integer)links<=1 && ageMillis>this.orphanAge.toMillis()){
+				this.orphanFiles.increment();
+				logger.info("{}不再被引用的blob{}", this.deleteEnabled ? "删除" : "发现", path);
+				if(this.deleteEnabled){
+					//release会再次检查链接数，期间被重新链接的blob不会被删除
+					volume.getContentStore().release(fileName);
+					this.deletedFiles.increment();
+				}
+			}
+			break;
+		}
+	}
+
+	//数据库中有记录、文件系统和段文件中都没有的文件
+	private void checkMissing(StorageVolume volume, Set<String> recorded) throws IOException {
+		UploadedFileWriter fileWriter=this.uploadManager.getFileWriter();
+		for(String filePath : recorded){
+			if(!this.running){
+				return;
+			}
+			if(fileWriter.getPackLocation(filePath)!=null || Files.exists(Paths.get(filePath))){
+				continue;
+			}
+			//隔离之后才写入记录的文件保留记录，由隔离目录的检查提示移回
+			Path path=Paths.get(filePath);
+			if(path.startsWith(volume.getBasePath())
+					&& Files.exists(getQuarantineDir(volume).resolve(volume.getBasePath().relativize(path)))){
+				continue;
+			}
+			this.missingFiles.increment();
+			logger.warn("{}缺失文件{}的记录", this.deleteEnabled ? "删除" : "发现", filePath);
+			if(this.deleteEnabled){
+				this.metadataStore.fileRemoved(filePath);
+				this.deletedFiles.increment();
+			}
+		}
+	}
+
+	private void delete(Path path, String description) throws IOException {
+		logger.info("{}{}{}", this.deleteEnabled ? "删除" : "发现", description, path);
+		if(this.deleteEnabled && Files.deleteIfExists(path)){
+			this.deletedFiles.increment();
+		}
+	}
+
+	private DirectoryTask submit(DirectoryTask task) {
+		this.pool.execute(task);
+		return task;
+	}
+
+	private static Path getQuarantineDir(StorageVolume volume) {
+		return volume.getBasePath().resolve(CHECKPOINT_DIR).resolve(QUARANTINE_DIR);
+	}
+
+	//目录中子目录的类型，不认识的以“.”开头的目录（如.pack、.sweep）返回null，不遍历
+	private static DirectoryKind getSubDirectoryKind(StorageVolume volume, DirectoryKind kind, Path directory) {
+		String name=directory.getFileName().toString();
+		if(kind==DirectoryKind.UPLOAD && directory.getParent().equals(volume.getBasePath())){
+			if(name.equals(SimpleUploadManager.UPLOAD_SESSION_DIR)){
+				return DirectoryKind.TEMP;
+			}
+			if(directory.equals(volume.getContentStore().getBaseDir())){
+				return DirectoryKind.CONTENT;
+			}
+		}
+		if(kind==DirectoryKind.CONTENT && directory.equals(volume.getContentStore().getTempDir())){
+			return DirectoryKind.TEMP;
+		}
+		return name.startsWith(".") ? null : kind;
+	}
+
+
+
+	//目录的类型
+	private enum DirectoryKind {
+		//上传文件所在的目录
+		UPLOAD,
+		//其中的文件都是临时文件
+		TEMP,
+		//按内容寻址保存的blob
+		CONTENT,
+		//隔离的孤立文件，保留其在上传目录中的相对路径
+		QUARANTINE
+	}
+
+
+	//处理一个目录：检查其中的文件，并为每个子目录创建一个子任务；目录及其全部子目录都处理完时返回true并记入检查点
+	private class DirectoryTask extends RecursiveTask<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final StorageVolume volume;
+		private final DirectoryCheckpoint checkpoint;
+		private final Path directory;
+		private final DirectoryKind kind;
+
+		DirectoryTask(StorageVolume volume, DirectoryCheckpoint checkpoint, Path directory, DirectoryKind kind) {
+			this.volume = volume;
+			this.checkpoint = checkpoint;
+			this.directory = directory;
+			this.kind = kind;
+		}
+
+		@Override
+		protected Boolean compute() {
+			String relativePath=this.volume.getBasePath().relativize(this.directory).toString();
+			if(this.checkpoint.isDone(relativePath)){
+				return true;
+			}
+
+			UploadSweeper sweeper=UploadSweeper.this;
+			List<DirectoryTask> subTasks=new ArrayList<>();
+			try{
+				//先查询记录再读取目录，之后才保存的文件最后修改时间较新，不会被当作孤立文件；隔离目录查询的是原目录的记录
+				Set<String> recorded=null;
+				if(sweeper.metadataStore!=null && this.kind==DirectoryKind.UPLOAD){
+					recorded=sweeper.metadataStore.findFilePathsIn(this.directory);
+				}else if(sweeper.metadataStore!=null && this.kind==DirectoryKind.QUARANTINE){
+					recorded=sweeper.metadataStore.findFilePathsIn(
+							this.volume.getBasePath().resolve(getQuarantineDir(this.volume).relativize(this.directory)));
+				}
+				try(DirectoryStream<Path> stream=Files.newDirectoryStream(this.directory)){
+					for(Path path : stream){
+						if(!sweeper.running){
+							return false;
+						}
+						sweeper.rateLimiter.acquire();
+						BasicFileAttributes attributes;
+						try{
+							attributes=Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						}catch(NoSuchFileException e){
+							continue;
+						}
+						if(attributes.isDirectory()){
+							DirectoryKind subKind=getSubDirectoryKind(this.volume, this.kind, path);
+							if(subKind!=null){
+								subTasks.add(new DirectoryTask(this.volume, this.checkpoint, path, subKind));
+							}
+						}else if(attributes.isRegularFile()){
+							sweeper.scannedFiles.increment();
+							sweeper.checkFile(this.volume, this.kind, path, attributes, recorded);
+							if(recorded!=null && this.kind==DirectoryKind.UPLOAD){
+								recorded.remove(path.toString());
+							}
+						}
+					}
+				}
+				if(recorded!=null && this.kind==DirectoryKind.UPLOAD){
+					sweeper.checkMissing(this.volume, recorded);
+				}
+			}catch(NoSuchFileException e){
+				//目录已被删除
+			}catch(IOException | RuntimeException e){
+				logger.error("清理目录" + this.directory + "失败", e);
+				return false;
+			}
+
+			boolean completed=true;
+			for(DirectoryTask subTask : ForkJoinTask.invokeAll(subTasks)){
+				completed &= subTask.join();
+			}
+			if(!completed || !sweeper.running){
+				return false;
+			}
+			try{
+				this.checkpoint.markDone(relativePath);
+			}catch(IOException e){
+				logger.error("写入检查点失败", e);
+				return false;
+			}
+			return true;
+		}
+	}
+
+}
@@ -11,8 +11,15 @@ public class UploadedFileInfo {
 	String fileType;			//文件类型(扩展名取lower)
 	String filePath;			//保存的文件路径（含完整目录和文件名）
 	String urlPath;				//保存的文件的url访问路径（含完整的虚拟路径和文件名），供后续下载使用
-	Long   fileSize;			//文件大小(bytes)
+	Long   fileSize;			//文件大小(bytes)，压缩保存的文件为压缩前的大小
+	Long   storedSize;			//文件在文件系统中占用的字节数，压缩保存的文件为压缩后的大小；为null时与fileSize相同
+	String contentEncoding;		//文件内容在文件系统中的编码，压缩保存的文件为gzip，未压缩时为null
 	LocalDateTime saveTime;		//文件保存时间
+	String contentHash;			//文件内容的SHA-256摘要（十六进制），只有按内容寻址保存的文件才有该值
+	String checksum;			//写入时计算的文件在文件系统中的内容（压缩保存的文件为压缩后的数据）的校验和，如“crc32c:1a2b3c4d”；分块上传的文件为null
+	Integer volume;				//文件所在的存储卷在fsBasePaths中的序号
+	Integer packSegment;		//打包保存的小文件所在段文件的编号，文件单独保存时为null
+	Long   packOffset;			//打包保存的小文件的内容在段文件中的起始位置；段文件被压缩后位置会改变，读取时以PackStore的索引为准
 	
 	
 	
@@ -66,6 +73,26 @@ public class UploadedFileInfo {
 	}
 
 
+	public Long getStoredSize() {
+		return storedSize;
+	}
+
+
+	public void setStoredSize(Long storedSize) {
+		this.storedSize = storedSize;
+	}
+
+
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+
+	public void setContentEncoding(String contentEncoding) {
+		this.contentEncoding = contentEncoding;
+	}
+
+
 	public LocalDateTime getSaveTime() {
 		return saveTime;
 	}
@@ -76,6 +103,66 @@ public class UploadedFileInfo {
 	}
 
 
+	public String getContentHash() {
+		return contentHash;
+	}
+
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+
+	public void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+
+
+	public Integer getVolume() {
+		return volume;
+	}
+
+
+	public void setVolume(Integer volume) {
+		this.volume = volume;
+	}
+
+
+	public Integer getPackSegment() {
+		return packSegment;
+	}
+
+
+	public void setPackSegment(Integer packSegment) {
+		this.packSegment = packSegment;
+	}
+
+
+	public Long getPackOffset() {
+		return packOffset;
+	}
+
+
+	public void setPackOffset(Long packOffset) {
+		this.packOffset = packOffset;
+	}
+
+
+	/**
+	 * 设置打包保存的小文件在段文件中的位置，location为null时表示文件单独保存
+	 * @param location
+	 */
+	public void setPackLocation(PackLocation location) {
+		this.packSegment = location==null ? null : location.getSegment();
+		this.packOffset = location==null ? null : location.getOffset();
+	}
+
+
 	public UploadedFileInfo() {
 	}
 	
@@ -0,0 +1,28 @@
+package com.guxl.upload.common;
+
+
+/**
+ * 上传文件保存和删除事件的监听器。通过UploadManager.addFileListener注册后，每次成功保存或删除文件时都会被调用。
+ * <p> 监听器在保存或删除文件的线程中同步调用，实现类不应在其中执行耗时的操作。
+ * 对于调用方指定文件名的同一路径，保存和删除的事件与文件实际被替换或删除的顺序一致，最后一次事件即反映文件的最终状态。
+ * @author xiangligu
+ *
+ */
+public interface UploadedFileListener {
+	
+	/**
+	 * 文件保存成功后调用
+	 * @param fileInfo 包含上传文件保存信息的UploadedFileInfo对象
+	 */
+	default void fileSaved(UploadedFileInfo fileInfo) {
+	}
+	
+	
+	/**
+	 * 文件删除后调用
+	 * @param fullPathFileName 被删除的文件的完整路径
+	 */
+	default void fileRemoved(String fullPathFileName) {
+	}
+
+}
@@ -0,0 +1,286 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * 根据url访问路径查找已上传文件的信息，供下载时使用。依次从以下位置查找：
+ * <br> 内存中的缓存：本进程保存过的文件，以及之前查找过的文件；
+ * <br> UploadedFileMetadataStore：数据库中持久化的文件记录（如果有）；
+ * <br> 文件系统：将url路径映射为fsBasePath下的文件路径后读取文件属性。有多个fsBasePath时，先查找按文件名称选择的存储卷，再依次查找其他卷。
+ * 打包保存在段文件中的小文件从UploadedFileWriter的索引中查找，不访问文件系统。
+ * <p> 通过getFileListener()返回的监听器注册到UploadManager后，文件保存或删除时缓存会随之更新，因此下载已缓存的文件时不需要访问数据库或文件系统。
+ * 已被UploadManager.removeFilesLater标记为删除的文件，无论在哪里找到都视为不存在。
+ * <p> 从文件系统读取属性时，扩展名按FileCompressor压缩的文件以gzip魔数判断是否压缩保存，压缩前的大小取自gzip尾（模2^32）；
+ * 根据内容检测压缩的其他文件只能从缓存或数据库中的记录得知。
+ * @author xiangligu
+ *
+ */
+public class UploadedFileLocator {
+
+	//最多缓存的文件信息条数
+	private static final long MAX_CACHED_FILES = 100000;
+	//gzip头和尾的字节数之和
+	private static final int GZIP_MIN_BYTES = 18;
+
+	private final UploadManager uploadManager;
+	private final UploadedFileMetadataStore metadataStore;
+	private final List<Path> fsBasePaths;
+	private final String urlBasePath;
+	private final Cache<String, UploadedFileInfo> cache = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_FILES)
+			.expireAfterAccess(1, TimeUnit.HOURS)
+			.build();
+
+
+	/**
+	 * @param uploadManager 提供fsBasePath和urlBasePath
+	 * @param metadataStore 文件元数据存储，为null时不查询数据库
+	 */
+	public UploadedFileLocator(UploadManager uploadManager, UploadedFileMetadataStore metadataStore) {
+		this.uploadManager = Preconditions.checkNotNull(uploadManager, "参数uploadManager不允许为null");
+		this.metadataStore = metadataStore;
+		this.fsBasePaths = uploadManager.getFsBasePaths().stream()
+				.map(fsBasePath -> Paths.get(FileSystemUtil.getRegularFullPath(fsBasePath)).normalize())
+				.collect(Collectors.toList());
+		this.urlBasePath = FileSystemUtil.getRegularFullUrlPath(uploadManager.getUrlBasePath());
+	}
+
+
+	public UploadManager getUploadManager() {
+		return this.uploadManager;
+	}
+
+
+	/**
+	 * @param urlPath 文件的url访问路径，如“/upload/ab/xxx.jpg”
+	 * @return 文件信息，文件不存在时返回null
+	 * @throws IOException
+	 */
+	public UploadedFileInfo locate(String urlPath) throws IOException {
+		Preconditions.checkNotNull(urlPath, "参数urlPath不允许为null");
+		
+		UploadedFileInfo fileInfo=this.cache.getIfPresent(urlPath);
+		if(fileInfo!=null){
+			return this.isRemovalPending(fileInfo) ? null : fileInfo;
+		}
+		
+		if(this.metadataStore!=null){
+			fileInfo=this.metadataStore.findByUrlPath(urlPath);
+		}
+		if(fileInfo==null){
+			fileInfo=this.stat(urlPath);
+		}
+		if(fileInfo==null || this.isRemovalPending(fileInfo)){
+			return null;
+		}
+		this.cache.put(urlPath, fileInfo);
+		return fileInfo;
+	}
+
+
+	/**
+	 * 将url访问路径映射为fsBasePath下的文件路径。路径中不允许包含以“.”开头的目录或文件名（如“..”以及内部使用的“.cas”等目录）。
+	 * @param urlPath 文件的url访问路径
+	 * @return 文件可能所在的路径，按文件名称选择的存储卷上的路径排在最前；url路径不在urlBasePath下或不合法时返回空列表
+	 */
+	public List<Path> toFilePaths(String urlPath) {
+		if(urlPath==null || !urlPath.startsWith(this.urlBasePath)){
+			return Collections.emptyList();
+		}
+		String relativePath=urlPath.substring(this.urlBasePath.length());
+		if(relativePath.isEmpty() || relativePath.startsWith(".") || relativePath.contains("/.") || relativePath.contains("\\")){
+			return Collections.emptyList();
+		}
+		
+		String fileName=relativePath.substring(relativePath.lastIndexOf('/')+1);
+		int dot=fileName.lastIndexOf('.');
+		int selected=StorageVolume.selectIndex(dot<0 ? fileName : fileName.substring(0, dot), this.fsBasePaths.size());
+		List<Path> paths=new ArrayList<>(this.fsBasePaths.size());
+		for(int i=0; i<this.fsBasePaths.size(); i++){
+			Path fsBasePath=this.fsBasePaths.get((selected+i) % this.fsBasePaths.size());
+			Path path=fsBasePath.resolve(relativePath).normalize();
+			if(!path.startsWith(fsBasePath)){
+				return Collections.emptyList();
+			}
+			paths.add(path);
+		}
+		return paths;
+	}
+
+
+	/**
+	 * 将fsBasePath下的文件路径映射为url访问路径
+	 * @param filePath 文件的完整路径
+	 * @return url访问路径，文件不在fsBasePath下时返回null
+	 */
+	public String toUrlPath(String filePath) {
+		Path path=Paths.get(filePath).normalize();
+		Path fsBasePath=this.findFsBasePath(path);
+		if(fsBasePath==null){
+			return null;
+		}
+		StringBuilder urlPath=new StringBuilder(this.urlBasePath);
+		Path relativePath=fsBasePath.relativize(path);
+		for(int i=0; i<relativePath.getNameCount(); i++){
+			if(i>0){
+				urlPath.append('/');
+			}
+			urlPath.append(relativePath.getName(i).toString());
+		}
+		return urlPath.toString();
+	}
+
+
+	/**
+	 * @return 用于在文件保存或删除时更新缓存的监听器，应注册到UploadManager
+	 */
+	public UploadedFileListener getFileListener() {
+		return new UploadedFileListener() {
+			@Override
+			public void fileSaved(UploadedFileInfo fileInfo) {
+				UploadedFileLocator.this.cache.put(fileInfo.getUrlPath(), fileInfo);
+			}
+
+			@Override
+			public void fileRemoved(String fullPathFileName) {
+				String urlPath=UploadedFileLocator.this.toUrlPath(fullPathFileName);
+				if(urlPath!=null){
+					UploadedFileLocator.this.cache.invalidate(urlPath);
+				}
+			}
+		};
+	}
+
+
+
+	//==================private functions===================
+	//文件已被标记为延迟删除时，即使数据库中的记录尚未删除、文件仍在磁盘上，也视为不存在
+	private boolean isRemovalPending(UploadedFileInfo fileInfo) {
+		return this.uploadManager.isRemovalPending(fileInfo.getFilePath());
+	}
+	
+	//从fileWriter的段文件索引或文件系统读取文件属性，生成文件信息；打包保存的小文件只需查找内存中的索引
+	private UploadedFileInfo stat(String urlPath) throws IOException {
+		List<Path> paths=this.toFilePaths(urlPath);
+		UploadedFileWriter fileWriter=this.uploadManager.getFileWriter();
+		if(fileWriter!=null){
+			for(Path path : paths){
+				PackLocation location=fileWriter.getPackLocation(path.toString());
+				if(location!=null){
+					UploadedFileInfo fileInfo=this.newFileInfo(urlPath, path, location.getLength(), Instant.ofEpochMilli(location.getSaveTime()));
+					fileInfo.setPackLocation(location);
+					return this.detectCompression(fileInfo, fileWriter.readPackedFile(path.toString()));
+				}
+			}
+		}
+		for(Path path : paths){
+			UploadedFileInfo fileInfo=this.stat(urlPath, path);
+			if(fileInfo!=null){
+				return fileInfo;
+			}
+		}
+		return null;
+	}
+	
+	private UploadedFileInfo stat(String urlPath, Path path) throws IOException {
+		BasicFileAttributes attributes;
+		try{
+			attributes=Files.readAttributes(path, BasicFileAttributes.class);
+		}catch(NoSuchFileException e){
+			return null;
+		}
+		if(!attributes.isRegularFile()){
+			return null;
+		}
+		
+		UploadedFileInfo fileInfo=this.newFileInfo(urlPath, path, attributes.size(), attributes.lastModifiedTime().toInstant());
+		if(!this.mayBeCompressed(fileInfo)){
+			return fileInfo;
+		}
+		//只读取gzip头的前3个字节和gzip尾的后4个字节；不使用内存映射，否则在windows下映射未释放前文件不能删除
+		try(FileChannel channel=FileChannel.open(path, StandardOpenOption.READ)){
+			long size=channel.size();
+			if(size<GZIP_MIN_BYTES){
+				return fileInfo;
+			}
+			ByteBuffer head=ByteBuffer.allocate(7);
+			head.limit(3);
+			while(head.hasRemaining() && channel.read(head, head.position())>=0){
+			}
+			head.limit(7);
+			while(head.hasRemaining() && channel.read(head, size-7+head.position())>=0){
+			}
+			head.flip();
+			return this.detectCompression(fileInfo, head);
+		}catch(NoSuchFileException e){
+			return null;
+		}
+	}
+	
+	private boolean mayBeCompressed(UploadedFileInfo fileInfo) {
+		FileCompressor fileCompressor=this.uploadManager.getFileCompressor();
+		return fileCompressor!=null && fileCompressor.isCompressible(fileInfo.getFileType());
+	}
+	
+	//content以gzip魔数开头时，记录文件已压缩保存，并从content最后4个字节（gzip尾中的长度）读取压缩前的大小；content为null时不做处理
+	private UploadedFileInfo detectCompression(UploadedFileInfo fileInfo, ByteBuffer content) {
+		if(content==null || !this.mayBeCompressed(fileInfo) || content.remaining()<7){
+			return fileInfo;
+		}
+		int start=content.position();
+		if(content.get(start)!=(byte)0x1f || content.get(start+1)!=(byte)0x8b || content.get(start+2)!=8){
+			return fileInfo;
+		}
+		long inputBytes=content.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(content.limit()-4) & 0xffffffffL;
+		fileInfo.setStoredSize(fileInfo.getFileSize());
+		fileInfo.setFileSize(inputBytes);
+		fileInfo.setContentEncoding(FileCompressor.GZIP);
+		return fileInfo;
+	}
+	
+	private UploadedFileInfo newFileInfo(String urlPath, Path path, long fileSize, Instant saveTime) {
+		String fileName=path.getFileName().toString();
+		UploadedFileInfo fileInfo=new UploadedFileInfo();
+		fileInfo.setFileName(fileName);
+		fileInfo.setFileType(FileSystemUtil.getFileExtent(fileName));
+		fileInfo.setFilePath(path.toString());
+		fileInfo.setUrlPath(urlPath);
+		fileInfo.setFileSize(fileSize);
+		fileInfo.setSaveTime(LocalDateTime.ofInstant(saveTime, ZoneId.systemDefault()));
+		fileInfo.setVolume(this.fsBasePaths.indexOf(this.findFsBasePath(path)));
+		return fileInfo;
+	}
+	
+	//返回path所在的fsBasePath，不在任何fsBasePath下时返回null
+	private Path findFsBasePath(Path path) {
+		for(Path fsBasePath : this.fsBasePaths){
+			if(path.startsWith(fsBasePath)){
+				return fsBasePath;
+			}
+		}
+		return null;
+	}
+
+}
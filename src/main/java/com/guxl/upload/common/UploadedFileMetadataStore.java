@@ -0,0 +1,359 @@
+package com.guxl.upload.common;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+/**
+ * 将上传文件的保存和删除记录持久化到数据库中的元数据存储。
+ * <p> 作为UploadedFileListener注册到UploadManager后，保存和删除文件时只把记录放入队列，不会等待数据库写入；
+ * 后台线程每次取出队列中积压的全部记录（最多MAX_BATCH_SIZE条），在一个事务中使用JDBC批量插入和一条批量delete语句写入数据库（group commit），
+ * 因此上传越频繁，每个事务所包含的记录就越多，数据库不会每上传一个文件就提交一次。
+ * <p> 由于写入是异步的，刚保存的文件的记录可能需要短暂的时间才能被查询到，需要立即查询时可以先调用flush()。
+ * <p> 事务失败（如数据库暂时不可用）时，这批记录保留在内存中，按指数退避（最长MAX_BACKOFF_MILLIS）重试直到写入成功，之后的记录在队列中等待；
+ * 队列最多容纳MAX_QUEUE_SIZE项，队列已满时保存和删除文件的线程在通知监听器时等待，使上传速度降到数据库能够承受的速度，而不是无限占用内存。
+ * 只有记录本身违反数据库约束（重试也不会成功）时，才逐条写入并跳过无法写入的记录。
+ * @author xiangligu
+ *
+ */
+@Component
+public class UploadedFileMetadataStore implements UploadedFileListener {
+	
+	private static final Logger logger = LoggerFactory.getLogger(UploadedFileMetadataStore.class);
+	
+	//每个事务最多包含的记录数
+	private static final int MAX_BATCH_SIZE = 500;
+	//队列中最多等待写入的操作数
+	private static final int MAX_QUEUE_SIZE = 100000;
+	//写入失败后第一次重试前等待的毫秒数，之后每次加倍，最多MAX_BACKOFF_MILLIS
+	private static final long MIN_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+	//flush()默认等待的秒数
+	private static final long FLUSH_TIMEOUT_SECONDS = 30;
+	
+	private final UploadedFileRecordRepository repository;
+	private final TransactionTemplate transactionTemplate;
+	private final BlockingQueue<Operation> queue = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+	//写入失败后等待重试的一批操作，只由后台线程访问
+	private final List<Operation> batch = new ArrayList<>(MAX_BATCH_SIZE);
+	private final LongAdder failedWrites = new LongAdder();
+	private final LongAdder droppedRecords = new LongAdder();
+	private final Thread flusher = new Thread(this::flushLoop, "uploaded-file-metadata-flusher");
+	private volatile boolean running = true;
+	
+	
+	@Autowired
+	public UploadedFileMetadataStore(UploadedFileRecordRepository repository, PlatformTransactionManager transactionManager) {
+		this.repository = repository;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+	}
+	
+	
+	@PostConstruct
+	public void start() {
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+	
+	
+	/**
+	 * 停止后台线程。停止前会先写入队列中剩余的记录，数据库在10秒内仍无法写入时放弃并在日志中报告未写入的记录数。
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		this.running = false;
+		this.flusher.join(TimeUnit.SECONDS.toMillis(10));
+		if(this.flusher.isAlive()){
+			this.flusher.interrupt();
+			this.flusher.join(TimeUnit.SECONDS.toMillis(1));
+			logger.error("停止时仍有{}项上传文件记录的操作未能写入数据库", this.batch.size() + this.queue.size());
+		}
+	}
+	
+	
+	
+	//==============listener implementation================
+	//队列已满时等待，直到后台线程写入了部分记录
+	@Override
+	public void fileSaved(UploadedFileInfo fileInfo) {
+		Preconditions.checkNotNull(fileInfo, "参数fileInfo不允许为null");
+		this.enqueue(new Operation(new UploadedFileRecord(fileInfo), null, null));
+	}
+	
+	
+	@Override
+	public void fileRemoved(String fullPathFileName) {
+		Preconditions.checkNotNull(fullPathFileName, "参数fullPathFileName不允许为null");
+		this.enqueue(new Operation(null, fullPathFileName, null));
+	}
+	
+	
+	/**
+	 * 等待调用该方法之前放入队列的记录全部写入数据库，最多等待FLUSH_TIMEOUT_SECONDS秒
+	 * @return 是否已全部写入；数据库持续不可用时返回false，记录仍在等待重试
+	 * @throws InterruptedException
+	 */
+	public boolean flush() throws InterruptedException {
+		return this.flush(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+	
+	
+	/**
+	 * 等待调用该方法之前放入队列的记录全部写入数据库
+	 * @param timeout 最多等待的时间
+	 * @param unit timeout的单位
+	 * @return 是否已全部写入；超时时返回false，记录仍在等待重试
+	 * @throws InterruptedException
+	 */
+	public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+		Preconditions.checkNotNull(unit, "参数unit不允许为null");
+		long deadline=System.nanoTime() + unit.toNanos(timeout);
+		CountDownLatch latch=new CountDownLatch(1);
+		if(!this.queue.offer(new Operation(null, null, latch), timeout, unit)){
+			return false;
+		}
+		return latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	
+	/**
+	 * @return 等待写入数据库的操作数
+	 */
+	public int getPendingCount() {
+		return this.queue.size();
+	}
+	
+	
+	/**
+	 * @return 写入数据库失败（之后会重试）的事务数
+	 */
+	public long getFailedWriteCount() {
+		return this.failedWrites.sum();
+	}
+	
+	
+	/**
+	 * @return 因违反数据库约束而跳过的记录数
+	 */
+	public long getDroppedCount() {
+		return this.droppedRecords.sum();
+	}
+	
+	
+	
+	//=================queries====================
+	public UploadedFileRecord findByUrlPath(String urlPath) {
+		return this.repository.findFirstByUrlPath(urlPath);
+	}
+	
+	public UploadedFileRecord findByFilePath(String filePath) {
+		return this.repository.findFirstByFilePath(filePath);
+	}
+	
+	public List<UploadedFileRecord> findByFileType(String fileType) {
+		return this.repository.findByFileType(fileType);
+	}
+	
+	public List<UploadedFileRecord> findBySaveTimeBetween(LocalDateTime from, LocalDateTime to) {
+		return this.repository.findBySaveTimeBetween(from, to);
+	}
+	
+	/**
+	 * 查询directory目录下（不含子目录中）已记录的全部文件路径
+	 * @param directory
+	 * @return
+	 */
+	public Set<String> findFilePathsIn(Path directory) {
+		Preconditions.checkNotNull(directory, "参数directory不允许为null");
+		String prefix=escapeLike(directory.toString() + File.separator);
+		return new HashSet<>(this.repository.findFilePathsLike(prefix + "%", prefix + "%" + escapeLike(File.separator) + "%"));
+	}
+	
+	/**
+	 * 查询directory目录下（不含子目录中）有校验和的文件的校验和
+	 * @param directory
+	 * @return 文件路径到校验和的映射
+	 */
+	public Map<String, String> findChecksumsIn(Path directory) {
+		Preconditions.checkNotNull(directory, "参数directory不允许为null");
+		String prefix=escapeLike(directory.toString() + File.separator);
+		Map<String, String> checksums=new HashMap<>();
+		for(Object[] row : this.repository.findChecksumsLike(prefix + "%", prefix + "%" + escapeLike(File.separator) + "%")){
+			checksums.put((String)row[0], (String)row[1]);
+		}
+		return checksums;
+	}
+	
+	
+	
+	//==================private functions===================
+	//转义like模式中的通配符，转义字符为“!”
+	private static String escapeLike(String value) {
+		return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+	}
+	
+	private void enqueue(Operation operation) {
+		try{
+			this.queue.put(operation);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("等待写入上传文件记录时被中断", e);
+		}
+	}
+	
+	//每次取出队列中积压的操作写入数据库；失败时保留这批操作，退避后重试，写入成功之前不取出新的操作，保证写入的顺序
+	private void flushLoop() {
+		long backoffMillis=0;
+		while(this.running || !this.queue.isEmpty() || !this.batch.isEmpty()){
+			try{
+				if(this.batch.isEmpty()){
+					Operation first=this.queue.poll(1, TimeUnit.SECONDS);
+					if(first==null){
+						continue;
+					}
+					this.batch.add(first);
+					this.queue.drainTo(this.batch, MAX_BATCH_SIZE-1);
+				}
+				this.writeBatch();
+				backoffMillis=0;
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return;
+			}catch(RuntimeException e){
+				this.failedWrites.increment();
+				backoffMillis=Math.min(Math.max(backoffMillis * 2, MIN_BACKOFF_MILLIS), MAX_BACKOFF_MILLIS);
+				logger.error("写入" + this.batch.size() + "项上传文件记录的操作失败，" + backoffMillis + "ms后重试", e);
+				try{
+					Thread.sleep(backoffMillis);
+				}catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	
+	//在一个事务中写入batch中的操作，成功后清空batch并通知等待的flush()；失败时batch保持不变。
+	//记录本身违反数据库约束时，改为逐条写入，跳过无法写入的记录；逐条写入中途失败时，batch中只保留尚未写入的操作
+	private void writeBatch() {
+		try{
+			this.transactionTemplate.execute(status -> {
+				this.write(this.batch);
+				return null;
+			});
+		}catch(DataIntegrityViolationException e){
+			logger.warn("批量写入" + this.batch.size() + "项上传文件记录的操作时违反数据库约束，改为逐条写入", e);
+			for(Iterator<Operation> iterator=this.batch.iterator(); iterator.hasNext();){
+				Operation operation=iterator.next();
+				try{
+					this.transactionTemplate.execute(status -> {
+						this.write(Collections.singletonList(operation));
+						return null;
+					});
+				}catch(DataIntegrityViolationException ve){
+					this.droppedRecords.increment();
+					logger.error("上传文件" + (operation.record!=null ? operation.record.getFilePath() : operation.removedPath) + "的记录无法写入数据库，已跳过", ve);
+				}
+				operation.complete();
+				iterator.remove();
+			}
+			return;
+		}
+		this.batch.forEach(Operation::complete);
+		this.batch.clear();
+	}
+	
+	
+	//按顺序写入一批记录，连续的保存合并为一次批量插入，连续的删除合并为一条delete语句
+	private void write(List<Operation> batch) {
+		Map<String, UploadedFileRecord> saves=new LinkedHashMap<>();
+		Set<String> removes=new LinkedHashSet<>();
+		for(Operation operation : batch){
+			if(operation.record!=null){
+				if(!removes.isEmpty()){
+					this.applyRemoves(removes);
+				}
+				saves.put(operation.record.getFilePath(), operation.record);
+			}else if(operation.removedPath!=null){
+				if(!saves.isEmpty()){
+					this.applySaves(saves);
+				}
+				removes.add(operation.removedPath);
+			}
+		}
+		this.applySaves(saves);
+		this.applyRemoves(removes);
+	}
+	
+	
+	private void applySaves(Map<String, UploadedFileRecord> saves) {
+		if(saves.isEmpty()){
+			return;
+		}
+		//覆盖保存的文件，其旧记录先删除
+		this.repository.deleteByFilePathIn(saves.keySet());
+		this.repository.save(saves.values());
+		saves.clear();
+	}
+	
+	
+	private void applyRemoves(Set<String> removes) {
+		if(removes.isEmpty()){
+			return;
+		}
+		this.repository.deleteByFilePathIn(removes);
+		removes.clear();
+	}
+	
+	
+	
+	//队列中的一项操作：保存记录、删除记录，或用于flush()的标记
+	private static class Operation {
+		final UploadedFileRecord record;
+		final String removedPath;
+		final CountDownLatch latch;
+		
+		Operation(UploadedFileRecord record, String removedPath, CountDownLatch latch) {
+			this.record = record;
+			this.removedPath = removedPath;
+			this.latch = latch;
+		}
+		
+		//操作已写入数据库，通知等待的flush()
+		void complete() {
+			if(this.latch!=null){
+				this.latch.countDown();
+			}
+		}
+	}
+
+}
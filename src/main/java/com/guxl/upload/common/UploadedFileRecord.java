@@ -0,0 +1,68 @@
+package com.guxl.upload.common;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+
+
+/**
+ * 持久化到数据库中的上传文件信息。对urlPath、filePath、fileType和saveTime建立了索引，查找文件时不需要遍历文件系统。
+ * <p> 主键使用表生成器按块分配，不依赖数据库的自增列，从而可以使用JDBC批量插入。
+ * @author xiangligu
+ *
+ */
+@Entity
+@Table(name="uploaded_file", indexes={
+		@Index(name="idx_uploaded_file_url_path", columnList="urlPath"),
+		@Index(name="idx_uploaded_file_file_path", columnList="filePath"),
+		@Index(name="idx_uploaded_file_file_type", columnList="fileType"),
+		@Index(name="idx_uploaded_file_save_time", columnList="saveTime")
+})
+public class UploadedFileRecord extends UploadedFileInfo {
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.TABLE, generator="uploadedFileIdGenerator")
+	@TableGenerator(name="uploadedFileIdGenerator", table="uploaded_file_id", allocationSize=100)
+	Long id;
+
+
+
+	public Long getId() {
+		return id;
+	}
+
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+
+	public UploadedFileRecord() {
+	}
+	
+	
+	/**
+	 * 复制fileInfo中的各项信息，生成一个尚未持久化的记录
+	 * @param fileInfo
+	 */
+	public UploadedFileRecord(UploadedFileInfo fileInfo) {
+		this.fileName = fileInfo.getFileName();
+		this.fileType = fileInfo.getFileType();
+		this.filePath = fileInfo.getFilePath();
+		this.urlPath = fileInfo.getUrlPath();
+		this.fileSize = fileInfo.getFileSize();
+		this.storedSize = fileInfo.getStoredSize();
+		this.contentEncoding = fileInfo.getContentEncoding();
+		this.saveTime = fileInfo.getSaveTime();
+		this.contentHash = fileInfo.getContentHash();
+		this.checksum = fileInfo.getChecksum();
+		this.volume = fileInfo.getVolume();
+		this.packSegment = fileInfo.getPackSegment();
+		this.packOffset = fileInfo.getPackOffset();
+	}
+
+}
@@ -0,0 +1,52 @@
+package com.guxl.upload.common;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+
+public interface UploadedFileRecordRepository extends JpaRepository<UploadedFileRecord, Long> {
+	
+	UploadedFileRecord findFirstByUrlPath(String urlPath);
+	
+	UploadedFileRecord findFirstByFilePath(String filePath);
+	
+	List<UploadedFileRecord> findByFileType(String fileType);
+	
+	List<UploadedFileRecord> findBySaveTimeBetween(LocalDateTime from, LocalDateTime to);
+	
+	
+	/**
+	 * 只查询filePath，filePath匹配pattern但不匹配excludedPattern（均以“!”为转义字符）
+	 * @param pattern
+	 * @param excludedPattern
+	 * @return
+	 */
+	@Query("select r.filePath from UploadedFileRecord r where r.filePath like ?1 escape '!' and r.filePath not like ?2 escape '!'")
+	List<String> findFilePathsLike(String pattern, String excludedPattern);
+	
+	
+	/**
+	 * 只查询有校验和的记录的filePath和checksum，filePath的匹配规则与findFilePathsLike相同
+	 * @param pattern
+	 * @param excludedPattern
+	 * @return 每个元素为{filePath, checksum}
+	 */
+	@Query("select r.filePath, r.checksum from UploadedFileRecord r where r.filePath like ?1 escape '!' and r.filePath not like ?2 escape '!' and r.checksum is not null")
+	List<Object[]> findChecksumsLike(String pattern, String excludedPattern);
+	
+	
+	/**
+	 * 批量删除filePath在给定集合中的记录，只执行一条delete语句
+	 * @param filePaths
+	 * @return 删除的记录数
+	 */
+	@Modifying
+	@Query("delete from UploadedFileRecord r where r.filePath in ?1")
+	int deleteByFilePathIn(Collection<String> filePaths);
+
+}
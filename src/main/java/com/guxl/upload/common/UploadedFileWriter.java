@@ -1,6 +1,11 @@
 package com.guxl.upload.common;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
 import org.springframework.web.multipart.MultipartFile;
 
 
@@ -8,13 +13,97 @@ import org.springframework.web.multipart.MultipartFile;
 public interface UploadedFileWriter {
 	
 	/**
-	 * 将实现multipartFile接口的上传文件对象保存到文件系统中
+	 * 将实现multipartFile接口的上传文件对象保存到文件系统中，持久化级别为Durability.NONE
+	 * @param multipartFile 上传文件的MultipartFile对象
+	 * @param pathFileName 保存到文件系统时使用的文件名称（应包含完整路径）
+	 * @param overwrite 当给定pathFileName在文件系统下存在同名文件时，是否要覆盖旧的文件
+	 * @throws IOException 可能抛出IOException
+	 */
+	default void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite) throws IOException {
+		this.writeFile(multipartFile, pathFileName, overwrite, Durability.NONE);
+	}
+	
+	
+	/**
+	 * 将实现multipartFile接口的上传文件对象保存到文件系统中。数据先写入同一目录下的临时文件，再按durability持久化并原子地重命名为pathFileName，
+	 * 因此pathFileName要么不存在（或为旧文件），要么是完整的新文件。
+	 * @param multipartFile 上传文件的MultipartFile对象
+	 * @param pathFileName 保存到文件系统时使用的文件名称（应包含完整路径）
+	 * @param overwrite 当给定pathFileName在文件系统下存在同名文件时，是否要覆盖旧的文件
+	 * @param durability 持久化级别
+	 * @throws IOException 可能抛出IOException
+	 */
+	void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability) throws IOException;
+	
+	
+	/**
+	 * 将输入流中的全部数据保存到文件系统中，持久化级别为Durability.NONE
+	 * @param inputStream 上传文件的输入流，该方法不负责关闭输入流
+	 * @param pathFileName 保存到文件系统时使用的文件名称（应包含完整路径）
+	 * @param overwrite 当给定pathFileName在文件系统下存在同名文件时，是否要覆盖旧的文件
+	 * @return 写入文件的字节数
+	 * @throws IOException 可能抛出IOException
+	 */
+	default long writeFile(InputStream inputStream, String pathFileName, boolean overwrite) throws IOException {
+		return this.writeFile(inputStream, pathFileName, overwrite, Durability.NONE);
+	}
+	
+	
+	/**
+	 * 将输入流中的全部数据保存到文件系统中。数据先写入同一目录下的临时文件，再按durability持久化并原子地重命名为pathFileName；
+	 * 写入过程中如果发生异常，临时文件会被删除，pathFileName不受影响。
+	 * @param inputStream 上传文件的输入流，该方法不负责关闭输入流
+	 * @param pathFileName 保存到文件系统时使用的文件名称（应包含完整路径）
+	 * @param overwrite 当给定pathFileName在文件系统下存在同名文件时，是否要覆盖旧的文件
+	 * @param durability 持久化级别
+	 * @return 写入文件的字节数
+	 * @throws IOException 可能抛出IOException
+	 */
+	long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability) throws IOException;
+	
+	
+	/**
+	 * 与writeFile(multipartFile, pathFileName, overwrite, durability)相同，但在数据已写入临时文件、提交为pathFileName之前调用commitHook。
+	 * 调用者可以只在提交阶段持有路径锁，而不必在接收和写入整个文件期间都持有。
+	 * <p> 默认实现在写入之前调用commitHook，适用于不区分写入和提交阶段的实现
 	 * @param multipartFile 上传文件的MultipartFile对象
 	 * @param pathFileName 保存到文件系统时使用的文件名称（应包含完整路径）
 	 * @param overwrite 当给定pathFileName在文件系统下存在同名文件时，是否要覆盖旧的文件
+	 * @param durability 持久化级别
+	 * @param commitHook 提交之前的回调，最多调用一次；无论保存成功与否，回调中获取的资源都由调用者释放
 	 * @throws IOException 可能抛出IOException
 	 */
-	void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite) throws IOException;
+	default void writeFile(MultipartFile multipartFile, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException {
+		commitHook.beforeCommit();
+		this.writeFile(multipartFile, pathFileName, overwrite, durability);
+	}
+	
+	
+	/**
+	 * 与writeFile(inputStream, pathFileName, overwrite, durability)相同，但在数据已写入临时文件、提交为pathFileName之前调用commitHook。
+	 * 调用者可以只在提交阶段持有路径锁，读取输入流（可能受限速影响）期间不持有。
+	 * <p> 默认实现在写入之前调用commitHook，适用于不区分写入和提交阶段的实现
+	 * @param inputStream 上传文件的输入流，该方法不负责关闭输入流
+	 * @param pathFileName 保存到文件系统时使用的文件名称（应包含完整路径）
+	 * @param overwrite 当给定pathFileName在文件系统下存在同名文件时，是否要覆盖旧的文件
+	 * @param durability 持久化级别
+	 * @param commitHook 提交之前的回调，最多调用一次；无论保存成功与否，回调中获取的资源都由调用者释放
+	 * @return 写入文件的字节数
+	 * @throws IOException 可能抛出IOException
+	 */
+	default long writeFile(InputStream inputStream, String pathFileName, boolean overwrite, Durability durability, CommitHook commitHook)
+			throws IOException {
+		commitHook.beforeCommit();
+		return this.writeFile(inputStream, pathFileName, overwrite, durability);
+	}
+	
+	
+	/**
+	 * 设置Durability.GROUP所使用的GroupCommitScheduler，多个writer可以共用同一个scheduler
+	 * @param commitScheduler
+	 */
+	void setCommitScheduler(GroupCommitScheduler commitScheduler);
 	
 	
 	/**
@@ -25,5 +114,66 @@ public interface UploadedFileWriter {
 	void removeFile(String pathFileName) throws IOException;
 	
 	
+	/**
+	 * 返回pathFileName在段文件中的位置，用于把多个小文件打包保存在段文件中的实现；文件单独保存为一个文件时返回null
+	 * @param pathFileName （包含完整路径的）文件名称
+	 * @return
+	 */
+	default PackLocation getPackLocation(String pathFileName) {
+		return null;
+	}
+	
+	
+	/**
+	 * 读取打包保存在段文件中的pathFileName的内容
+	 * @param pathFileName （包含完整路径的）文件名称
+	 * @return 文件内容的只读ByteBuffer，文件单独保存为一个文件时返回null
+	 * @throws IOException
+	 */
+	default ByteBuffer readPackedFile(String pathFileName) throws IOException {
+		return null;
+	}
+	
+	
+	/**
+	 * 统计directory目录下（含各级子目录）打包保存在段文件中的文件，用于把多个小文件打包保存在段文件中的实现
+	 * @param directory 包含完整路径的目录
+	 * @return 文件的总字节数和文件数
+	 */
+	default long[] getPackedUsage(String directory) {
+		return new long[]{0, 0};
+	}
+	
+	
+	/**
+	 * 列出directory目录下（含各级子目录）打包保存在段文件中的文件，用于把多个小文件打包保存在段文件中的实现
+	 * @param directory 包含完整路径的目录
+	 * @return 文件的完整路径
+	 */
+	default List<String> listPackedFiles(String directory) {
+		return Collections.emptyList();
+	}
+	
+	
+	/**
+	 * 提交之前的回调，由writeFile在数据已写入临时文件、使pathFileName可见之前调用
+	 */
+	@FunctionalInterface
+	interface CommitHook {
+		
+		/**
+		 * 什么也不做的回调
+		 */
+		CommitHook NONE = () -> {};
+		
+		/**
+		 * 通常用于获取路径锁，并记录将被覆盖的旧文件；抛出异常时放弃提交，临时文件由writer删除
+		 * @throws IOException
+		 */
+		void beforeCommit() throws IOException;
+		
+	}
+	
+	
 
 }
@@ -0,0 +1,57 @@
+package com.guxl.upload.common;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+
+/**
+ * 生成随机uuid（version 4）作为文件名称，格式与UUID.randomUUID().toString()相同。
+ * <p> 每个线程使用独立的SHA1PRNG，避免UUID.randomUUID()在共享的SecureRandom上竞争。
+ * @author xiangligu
+ *
+ */
+public class UuidFileIdGenerator implements FileIdGenerator {
+
+	private static final ThreadLocal<SecureRandom> THREAD_RANDOM = ThreadLocal.withInitial(UuidFileIdGenerator::newThreadSecureRandom);
+	private static final ThreadLocal<byte[]> THREAD_RANDOM_BYTES = ThreadLocal.withInitial(() -> new byte[16]);
+	private static final ThreadLocal<char[]> THREAD_ID_CHARS = ThreadLocal.withInitial(() -> new char[36]);
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+
+	@Override
+	public String nextId() {
+		byte[] bytes=THREAD_RANDOM_BYTES.get();
+		THREAD_RANDOM.get().nextBytes(bytes);
+		bytes[6]=(byte)((bytes[6] & 0x0f) | 0x40);	//version 4
+		bytes[8]=(byte)((bytes[8] & 0x3f) | 0x80);	//IETF variant
+		
+		char[] chars=THREAD_ID_CHARS.get();
+		int pos=0;
+		for(int i=0; i<16; i++){
+			if(i==4 || i==6 || i==8 || i==10){
+				chars[pos++]='-';
+			}
+			chars[pos++]=HEX_CHARS[(bytes[i] >> 4) & 0xf];
+			chars[pos++]=HEX_CHARS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+
+	/**
+	 * 创建供一个线程独享的SecureRandom，种子取自系统默认的SecureRandom
+	 * @return
+	 */
+	static SecureRandom newThreadSecureRandom() {
+		try{
+			SecureRandom random=SecureRandom.getInstance("SHA1PRNG");
+			byte[] seed=new byte[32];
+			new SecureRandom().nextBytes(seed);
+			random.setSeed(seed);
+			return random;
+		}catch(NoSuchAlgorithmException e){
+			return new SecureRandom();
+		}
+	}
+
+}
@@ -0,0 +1,429 @@
+package com.guxl.upload.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * 把多个已上传的文件，或fsBasePath下一个子目录中的全部文件，边读边打包为ZIP格式写入输出流（如下载的响应），不生成临时文件。
+ * <p> 每个打包下载使用一个读取线程：读取线程依次查找并读取文件，把内容分块放入队列；调用线程从队列中取出数据块压缩并写入输出流，
+ * 因此读取下一个文件与压缩、发送当前文件是重叠进行的。数据块在固定数量的缓冲区之间循环使用，每个打包下载占用的内存不超过CHUNKS*CHUNK_BYTES，
+ * 与文件的个数和总大小无关；同时进行的打包下载数不超过maxStreams，超过时抛出UploadQueueFullException。
+ * <p> 扩展名在storedTypes中的文件（图片、音视频、压缩包等）本身已经压缩，以压缩级别0写入（仍为deflate格式，只有很少的额外开销），其他文件按level压缩。
+ * 压缩保存的文件先解压再写入ZIP。
+ * <p> 打包开始后找不到的文件被跳过；读取文件出错时抛出异常，已写出的ZIP数据不完整。
+ * @author xiangligu
+ *
+ */
+public class ZipArchiveStreamer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ZipArchiveStreamer.class);
+
+	//每个打包下载的缓冲区个数和每个缓冲区的字节数
+	private static final int CHUNKS = 8;
+	private static final int CHUNK_BYTES = 64 * 1024;
+	//表示文件结束和全部文件读取完毕的队列元素
+	private static final Chunk END = new Chunk(null, null, null, 0, null);
+	private static final Chunk DONE = new Chunk(null, null, null, 0, null);
+
+	private final UploadedFileLocator fileLocator;
+	private final List<Path> fsBasePaths;
+	private final ThreadPoolExecutor executor;
+	private volatile Set<String> storedTypes = ImmutableSet.of("jpg", "jpeg", "png", "gif", "webp", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar",
+			"mp3", "mp4", "m4a", "mov", "avi", "mkv", "webm", "docx", "xlsx", "pptx");
+	private volatile int level = 6;
+	private final AtomicInteger activeCount = new AtomicInteger();
+	private final LongAdder rejectedCount = new LongAdder();
+
+
+	/**
+	 * @param fileLocator 根据url访问路径查找文件，并提供fsBasePath和读取打包保存的文件的UploadedFileWriter
+	 * @param maxStreams 同时进行的打包下载数的上限
+	 */
+	public ZipArchiveStreamer(UploadedFileLocator fileLocator, int maxStreams) {
+		Preconditions.checkNotNull(fileLocator, "参数fileLocator不允许为null");
+		Preconditions.checkArgument(maxStreams>0, "参数maxStreams必须为正整数");
+		this.fileLocator = fileLocator;
+		this.fsBasePaths = fileLocator.getUploadManager().getFsBasePaths().stream()
+				.map(fsBasePath -> Paths.get(FileSystemUtil.getRegularFullPath(fsBasePath)).normalize())
+				.collect(Collectors.toList());
+		this.executor = new ThreadPoolExecutor(maxStreams, maxStreams, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+				new ThreadFactoryBuilder().setNameFormat("upload-zip-reader-%d").setDaemon(true).build());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * @param storedTypes 本身已经压缩、以压缩级别0写入的文件扩展名，不区分大小写
+	 */
+	public void setStoredTypes(Collection<String> storedTypes) {
+		Preconditions.checkNotNull(storedTypes, "参数storedTypes不允许为null");
+		this.storedTypes = ImmutableSet.copyOf(storedTypes.stream().map(fileType -> fileType.trim().toLowerCase(Locale.ROOT)).collect(Collectors.toSet()));
+	}
+
+
+	/**
+	 * @param level 其他文件的压缩级别，1（最快）～9（压缩率最高）
+	 */
+	public void setLevel(int level) {
+		Preconditions.checkArgument(level>=1 && level<=9, "参数level必须在1～9之间");
+		this.level = level;
+	}
+
+
+	public Set<String> getStoredTypes() {
+		return this.storedTypes;
+	}
+
+	public int getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * @return 正在进行的打包下载数
+	 */
+	public int getActiveCount() {
+		return this.activeCount.get();
+	}
+
+	/**
+	 * @return 因并发数已达上限被拒绝的打包下载数
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.sum();
+	}
+
+
+	/**
+	 * 把urlPaths指定的文件打包写入outputStream，ZIP中的文件名为上传时的原始文件名，重名时加上“ (n)”
+	 * @param urlPaths 文件的url访问路径
+	 * @param outputStream 写入ZIP数据的输出流，写入完成后不关闭
+	 * @return 写入ZIP的文件数
+	 * @throws IOException
+	 * @throws UploadQueueFullException 同时进行的打包下载数已达上限
+	 */
+	public int writeFiles(List<String> urlPaths, OutputStream outputStream) throws IOException {
+		Preconditions.checkNotNull(urlPaths, "参数urlPaths不允许为null");
+		Preconditions.checkNotNull(outputStream, "参数outputStream不允许为null");
+		List<String> copied=new ArrayList<>(urlPaths);
+		return this.write(() -> copied.stream().map(urlPath -> new Entry(null, urlPath)), outputStream);
+	}
+
+
+	/**
+	 * 把各存储卷上subDir目录下（含各级子目录）的全部文件打包写入outputStream，ZIP中的文件名为相对于subDir的路径。
+	 * 名称以“.”开头的目录和文件（内部使用的目录和临时文件）不打包。
+	 * @param subDir 相对于fsBasePath的子目录
+	 * @param outputStream 写入ZIP数据的输出流，写入完成后不关闭
+	 * @return 写入ZIP的文件数
+	 * @throws IOException
+	 * @throws UploadQueueFullException 同时进行的打包下载数已达上限
+	 */
+	public int writeDirectory(String subDir, OutputStream outputStream) throws IOException {
+		Preconditions.checkNotNull(subDir, "参数subDir不允许为null");
+		Preconditions.checkArgument(subDir.trim().length()>0, "参数subDir不允许为空格或空字符串");
+		Preconditions.checkNotNull(outputStream, "参数outputStream不允许为null");
+		String relativePath=FileSystemUtil.getRegularRelativePath(subDir);
+		Preconditions.checkArgument(Splitter.on('/').splitToList(relativePath).stream().noneMatch(name -> name.startsWith(".")),
+				"参数subDir中不允许包含以“.”开头的目录");
+		return this.write(() -> this.fsBasePaths.stream().flatMap(fsBasePath -> this.listDirectory(fsBasePath.resolve(relativePath))), outputStream);
+	}
+
+
+	/**
+	 * 停止读取线程，正在进行的打包下载以异常结束
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		this.executor.shutdownNow();
+		this.executor.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+
+
+	//==================private functions===================
+	//在读取线程中读取entries中的文件，在调用线程中压缩并写入outputStream
+	private int write(EntrySource entries, OutputStream outputStream) throws IOException {
+		Reader reader=new Reader(entries);
+		Future<?> future;
+		try{
+			future=this.executor.submit(reader);
+		}catch(RejectedExecutionException e){
+			this.rejectedCount.increment();
+			throw new UploadQueueFullException("同时进行的打包下载数已达上限，请稍后重试", e);
+		}
+
+		this.activeCount.incrementAndGet();
+		ArchiveOutputStream zip=new ArchiveOutputStream(outputStream);
+		try{
+			Set<String> names=new HashSet<>();
+			int count=0;
+			while(true){
+				Chunk chunk=reader.full.take();
+				if(chunk==DONE){
+					break;
+				}else if(chunk==END){
+					zip.closeEntry();
+				}else if(chunk.error!=null){
+					throw new IOException("读取要打包的文件时出错", chunk.error);
+				}else if(chunk.buffer!=null){
+					zip.write(chunk.buffer, 0, chunk.length);
+					reader.free.offer(chunk.buffer);
+				}else{
+					zip.setLevel(this.storedTypes.contains(Strings.nullToEmpty(chunk.fileInfo.getFileType()).toLowerCase(Locale.ROOT)) ?
+							Deflater.NO_COMPRESSION : this.level);
+					ZipEntry zipEntry=new ZipEntry(uniqueName(names, chunk.name));
+					if(chunk.fileInfo.getSaveTime()!=null){
+						zipEntry.setTime(chunk.fileInfo.getSaveTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+					}
+					zip.putNextEntry(zipEntry);
+					count++;
+				}
+			}
+			zip.finish();
+			outputStream.flush();
+			return count;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("打包下载被中断");
+		}finally{
+			future.cancel(true);
+			zip.release();
+			this.activeCount.decrementAndGet();
+		}
+	}
+
+	//列出directory目录下的文件（ZIP中的名称为相对于directory的路径），包括打包保存在段文件中的文件
+	private Stream<Entry> listDirectory(Path directory){
+		List<String> packedFiles=this.fileLocator.getUploadManager().getFileWriter().listPackedFiles(directory.toString());
+		Stream<Path> packed=packedFiles.stream().map(Paths::get);
+		if(!Files.isDirectory(directory)){
+			return packed.map(path -> this.toEntry(directory, path)).filter(entry -> entry!=null);
+		}
+		Stream<Path> files;
+		try{
+			files=Files.walk(directory).filter(Files::isRegularFile);
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+		return Stream.concat(files, packed).map(path -> this.toEntry(directory, path)).filter(entry -> entry!=null);
+	}
+
+	//路径中有以“.”开头的目录或文件名时返回null
+	private Entry toEntry(Path directory, Path path){
+		Path relativePath=directory.relativize(path);
+		StringBuilder name=new StringBuilder();
+		for(Path part : relativePath){
+			if(part.toString().startsWith(".")){
+				return null;
+			}
+			if(name.length()>0){
+				name.append('/');
+			}
+			name.append(part.toString());
+		}
+		String urlPath=this.fileLocator.toUrlPath(path.toString());
+		return urlPath==null ? null : new Entry(name.toString(), urlPath);
+	}
+
+	//打开文件的内容，压缩保存的文件边读边解压
+	private InputStream openContent(UploadedFileInfo fileInfo) throws IOException {
+		ByteBuffer packed=this.fileLocator.getUploadManager().getFileWriter().readPackedFile(fileInfo.getFilePath());
+		InputStream stored;
+		if(packed!=null){
+			byte[] content=new byte[packed.remaining()];
+			packed.duplicate().get(content);
+			stored=new ByteArrayInputStream(content);
+		}else{
+			stored=Files.newInputStream(Paths.get(fileInfo.getFilePath()));
+		}
+		return FileCompressor.GZIP.equals(fileInfo.getContentEncoding()) ? new GZIPInputStream(stored, 8192) : stored;
+	}
+
+	//ZIP中已有同名文件时，在扩展名前加上“ (n)”
+	private static String uniqueName(Set<String> names, String name){
+		String uniqueName=name;
+		int dot=name.lastIndexOf('.');
+		for(int i=1; !names.add(uniqueName); i++){
+			uniqueName=dot>0 ? name.substring(0, dot) + " (" + i + ")" + name.substring(dot) : name + " (" + i + ")";
+		}
+		return uniqueName;
+	}
+
+	//打包多个文件时ZIP中的文件名：上传时的原始文件名，不含目录
+	private static String getEntryName(UploadedFileInfo fileInfo, String urlPath){
+		String name=fileInfo.getFileName()!=null && !fileInfo.getFileName().trim().isEmpty() ? fileInfo.getFileName() : urlPath;
+		return name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'))+1);
+	}
+
+
+	//要打包的文件的来源，在读取线程中才开始遍历目录
+	@FunctionalInterface
+	private interface EntrySource {
+		Stream<Entry> open();
+	}
+
+
+	//要打包的文件，name为null时使用原始文件名
+	private static final class Entry {
+		final String name;
+		final String urlPath;
+
+		Entry(String name, String urlPath) {
+			this.name = name;
+			this.urlPath = urlPath;
+		}
+	}
+
+
+	//读取线程放入队列的元素：文件开始（name和fileInfo）、数据块（buffer和length）、读取出错（error），以及END和DONE
+	private static final class Chunk {
+		final String name;
+		final UploadedFileInfo fileInfo;
+		final byte[] buffer;
+		final int length;
+		final Exception error;
+
+		Chunk(String name, UploadedFileInfo fileInfo, byte[] buffer, int length, Exception error) {
+			this.name = name;
+			this.fileInfo = fileInfo;
+			this.buffer = buffer;
+			this.length = length;
+			this.error = error;
+		}
+	}
+
+
+	//依次读取文件并把内容分块放入full队列，缓冲区用完后等待调用线程通过free队列归还；被取消时中断退出
+	private final class Reader implements Runnable {
+		final EntrySource entries;
+		//队列已满时读取线程等待，空文件很多时也不会无限领先于调用线程
+		final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(CHUNKS + 2);
+		final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(CHUNKS);
+		int allocated;
+
+		Reader(EntrySource entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public void run() {
+			try{
+				try(Stream<Entry> stream=this.entries.open()){
+					for(Entry entry : (Iterable<Entry>)stream::iterator){
+						this.copy(entry);
+					}
+				}
+				this.full.put(DONE);
+			}catch(InterruptedException e){
+				return;
+			}catch(IOException | RuntimeException e){
+				if(Thread.currentThread().isInterrupted()){
+					return;
+				}
+				try{
+					this.full.put(new Chunk(null, null, null, 0, e));
+				}catch(InterruptedException ie){
+					return;
+				}
+			}
+		}
+
+		private void copy(Entry entry) throws IOException, InterruptedException {
+			UploadedFileInfo fileInfo=ZipArchiveStreamer.this.fileLocator.locate(entry.urlPath);
+			InputStream inputStream=null;
+			try{
+				inputStream=fileInfo==null ? null : ZipArchiveStreamer.this.openContent(fileInfo);
+			}catch(NoSuchFileException e){
+				inputStream=null;
+			}
+			if(inputStream==null){
+				logger.debug("要打包的文件{}不存在，已跳过", entry.urlPath);
+				return;
+			}
+
+			try(InputStream in=inputStream){
+				String name=entry.name!=null ? entry.name : getEntryName(fileInfo, entry.urlPath);
+				this.full.put(new Chunk(name, fileInfo, null, 0, null));
+				while(true){
+					byte[] buffer=this.takeBuffer();
+					int length=ByteStreams.read(in, buffer, 0, buffer.length);
+					if(length>0){
+						this.full.put(new Chunk(null, null, buffer, length, null));
+					}else{
+						this.free.offer(buffer);
+					}
+					if(length<buffer.length){
+						break;
+					}
+				}
+			}
+			this.full.put(END);
+		}
+
+		//缓冲区不足CHUNKS个时新建，否则等待调用线程归还
+		private byte[] takeBuffer() throws InterruptedException {
+			if(this.allocated<CHUNKS){
+				this.allocated++;
+				return new byte[CHUNK_BYTES];
+			}
+			return this.free.take();
+		}
+	}
+
+
+	//可以在不关闭底层输出流的情况下释放Deflater占用的本地内存
+	private static final class ArchiveOutputStream extends ZipOutputStream {
+		ArchiveOutputStream(OutputStream out) {
+			super(out, StandardCharsets.UTF_8);
+		}
+
+		void release() {
+			this.def.end();
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.guxl.upload.common.exception;
+
+public class QuotaExceededException extends RuntimeException {
+
+	static final long serialVersionUID = -1L;
+	
+	public QuotaExceededException() {
+		super("已超过租户的存储配额");
+	}
+
+	public QuotaExceededException(String message) {
+		super(message);
+	}
+
+	public QuotaExceededException(Throwable cause) {
+		super(cause);
+	}
+
+	public QuotaExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public QuotaExceededException(String message, Throwable cause, boolean enableSuppression,
+			boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.guxl.upload.common.exception;
+
+public class UploadQueueFullException extends RuntimeException {
+
+	static final long serialVersionUID = -1L;
+	
+	public UploadQueueFullException() {
+		super("上传队列已满，请稍后重试");
+	}
+
+	public UploadQueueFullException(String message) {
+		super(message);
+	}
+
+	public UploadQueueFullException(Throwable cause) {
+		super(cause);
+	}
+
+	public UploadQueueFullException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public UploadQueueFullException(String message, Throwable cause, boolean enableSuppression,
+			boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.guxl.upload.common.exception;
+
+public class UploadSessionNotFoundException extends RuntimeException {
+
+	static final long serialVersionUID = -1L;
+	
+	public UploadSessionNotFoundException() {
+		super("上传会话不存在或已过期");
+	}
+
+	public UploadSessionNotFoundException(String message) {
+		super(message);
+	}
+
+	public UploadSessionNotFoundException(Throwable cause) {
+		super(cause);
+	}
+
+	public UploadSessionNotFoundException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public UploadSessionNotFoundException(String message, Throwable cause, boolean enableSuppression,
+			boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+import com.guxl.upload.common.exception.UploadSessionNotFoundException;
+
+
+/**
+ * 分块上传会话的乱序并发写入、缺失区间和提交失败后重新提交的测试
+ * @author xiangligu
+ *
+ */
+public class ChunkedUploadSessionTests {
+
+	private static final int CHUNK_BYTES = 64 * 1024;
+	private static final int CHUNKS = 16;
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport(CHUNKS);
+	private SimpleUploadManager uploadManager;
+
+
+	@Before
+	public void setUp() {
+		this.uploadManager = this.support.getUploadManager();
+	}
+
+
+	@Test
+	public void chunksWrittenConcurrentlyOutOfOrderFormCompleteFile() throws Exception {
+		byte[] content=this.newContent(CHUNK_BYTES * CHUNKS - 100);
+		ChunkedUploadSession session=this.uploadManager.createUploadSession("a.bin", content.length, "chunked", "a", false);
+
+		//最后一个分块之外的分块倒序并发写入，缺失区间只剩最后一个分块
+		List<Integer> chunks=new ArrayList<>();
+		for(int i=0; i<CHUNKS-1; i++){
+			chunks.add(i);
+		}
+		Collections.reverse(chunks);
+		this.writeChunks(session.getSessionId(), content, chunks);
+		assertFalse(session.isComplete());
+		List<ByteRange> missingRanges=session.getMissingRanges();
+		assertEquals(1, missingRanges.size());
+		assertEquals((CHUNKS-1) * CHUNK_BYTES, missingRanges.get(0).getStart());
+		assertEquals(content.length, missingRanges.get(0).getEnd());
+		try{
+			this.uploadManager.commitUploadSession(session.getSessionId());
+			fail();
+		}catch(IllegalStateException e){
+			//会话仍然保留，可以继续上传缺失的分块
+		}
+
+		this.writeChunks(session.getSessionId(), content, Arrays.asList(CHUNKS-1));
+		assertTrue(session.isComplete());
+		assertEquals(content.length, session.getReceivedBytes());
+		UploadedFileInfo fileInfo=this.uploadManager.commitUploadSession(session.getSessionId());
+		assertArrayEquals(content, Files.readAllBytes(Paths.get(fileInfo.getFilePath())));
+		assertEquals(content.length, fileInfo.getFileSize().longValue());
+		assertFalse(Files.exists(session.getPartFile()));
+	}
+
+
+	@Test
+	public void failedCommitKeepsUploadedDataForRetry() throws Exception {
+		UploadedFileInfo existing=this.uploadManager.saveFile(new ByteArrayInputStream(new byte[10]), "b.bin", "chunked", "b", false);
+		byte[] content=this.newContent(CHUNK_BYTES * 2);
+		ChunkedUploadSession session=this.uploadManager.createUploadSession("b.bin", content.length, "chunked", "b", false);
+		this.writeChunks(session.getSessionId(), content, Arrays.asList(0, 1));
+
+		//同名文件已存在时提交失败，但临时文件和会话保留
+		try{
+			this.uploadManager.commitUploadSession(session.getSessionId());
+			fail();
+		}catch(SameFileNameExistException e){
+			assertTrue(Files.exists(session.getPartFile()));
+		}
+		assertEquals(session, this.uploadManager.getUploadSession(session.getSessionId()));
+
+		//删除同名文件后重新提交，不需要重传分块
+		this.uploadManager.removeFile(existing.getFilePath());
+		UploadedFileInfo fileInfo=this.uploadManager.commitUploadSession(session.getSessionId());
+		assertArrayEquals(content, Files.readAllBytes(Paths.get(fileInfo.getFilePath())));
+		try{
+			this.uploadManager.getUploadSession(session.getSessionId());
+			fail();
+		}catch(UploadSessionNotFoundException e){
+			//提交成功后会话结束
+		}
+	}
+
+
+	@Test
+	public void abortedSessionRemovesPartFile() throws Exception {
+		ChunkedUploadSession session=this.uploadManager.createUploadSession("c.bin", CHUNK_BYTES, "chunked", "c", false);
+		this.writeChunks(session.getSessionId(), this.newContent(CHUNK_BYTES), Arrays.asList(0));
+		this.uploadManager.abortUploadSession(session.getSessionId());
+		assertFalse(Files.exists(session.getPartFile()));
+		assertEquals(0, this.uploadManager.purgeExpiredUploadSessions());
+	}
+
+
+
+	//==================private functions===================
+	private byte[] newContent(int size){
+		byte[] content=new byte[size];
+		for(int i=0; i<size; i++){
+			content[i]=(byte)(i * 31 + i / CHUNK_BYTES);
+		}
+		return content;
+	}
+
+	//并发写入content中的指定分块
+	private void writeChunks(String sessionId, byte[] content, List<Integer> chunks) throws Exception {
+		List<Callable<ChunkedUploadSession>> tasks=new ArrayList<>();
+		for(int chunk : chunks){
+			int offset=chunk * CHUNK_BYTES;
+			int length=Math.min(CHUNK_BYTES, content.length - offset);
+			tasks.add(() -> this.uploadManager.writeChunk(sessionId, offset, new ByteArrayInputStream(content, offset, length), length));
+		}
+		for(Future<ChunkedUploadSession> future : this.support.runTogether(tasks)){
+			future.get();
+		}
+	}
+
+}
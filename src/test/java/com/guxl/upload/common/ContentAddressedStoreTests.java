@@ -0,0 +1,112 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+
+/**
+ * 按内容去重保存时blob的引用计数（硬链接数）的测试
+ * @author xiangligu
+ *
+ */
+public class ContentAddressedStoreTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private SimpleUploadManager uploadManager;
+	private ContentAddressedStore contentStore;
+
+
+	@Before
+	public void setUp() throws IOException {
+		Assume.assumeTrue("文件系统不支持硬链接数", Files.getFileStore(this.support.getFsBasePath()).supportsFileAttributeView("unix"));
+		this.uploadManager = this.support.getUploadManager();
+		this.contentStore = this.uploadManager.getVolumes().get(0).getContentStore();
+	}
+
+
+	@Test
+	public void sameContentSharesOneBlobUntilLastFileIsRemoved() throws Exception {
+		byte[] content=new byte[10000];
+		Arrays.fill(content, (byte)7);
+
+		//并发保存相同内容，只生成一个blob，每个文件是它的一个硬链接
+		List<Callable<UploadedFileInfo>> tasks=new ArrayList<>();
+		for(int i=0; i<this.support.getThreads(); i++){
+			tasks.add(() -> this.uploadManager.saveFileDeduplicated(new ByteArrayInputStream(content), "same.bin"));
+		}
+		List<UploadedFileInfo> fileInfos=new ArrayList<>();
+		Set<String> contentHashes=new HashSet<>();
+		for(Future<UploadedFileInfo> future : this.support.runTogether(tasks)){
+			UploadedFileInfo fileInfo=future.get();
+			fileInfos.add(fileInfo);
+			contentHashes.add(fileInfo.getContentHash());
+			assertArrayEquals(content, Files.readAllBytes(Paths.get(fileInfo.getFilePath())));
+		}
+		assertEquals(1, contentHashes.size());
+		Path blob=this.contentStore.getBlobPath(fileInfos.get(0).getContentHash());
+		assertEquals(fileInfos.size() + 1, this.links(blob));
+
+		//不同内容使用另一个blob
+		UploadedFileInfo other=this.uploadManager.saveFileDeduplicated(new ByteArrayInputStream(new byte[10]), "other.bin");
+		assertFalse(fileInfos.get(0).getContentHash().equals(other.getContentHash()));
+
+		//删除文件时释放引用，最后一个文件删除后blob也被删除
+		for(int i=0; i<fileInfos.size(); i++){
+			this.uploadManager.removeFile(fileInfos.get(i));
+			assertFalse(Files.exists(Paths.get(fileInfos.get(i).getFilePath())));
+			if(i<fileInfos.size()-1){
+				assertEquals(fileInfos.size() - i, this.links(blob));
+			}
+		}
+		assertFalse(Files.exists(blob));
+		assertTrue(Files.exists(this.contentStore.getBlobPath(other.getContentHash())));
+		try(Stream<Path> paths=Files.list(this.contentStore.getTempDir())){
+			assertEquals(0, paths.count());
+		}
+	}
+
+
+	@Test
+	public void blobIsRecreatedAfterLastFileIsRemoved() throws Exception {
+		UploadedFileInfo first=this.uploadManager.saveFileDeduplicated(new ByteArrayInputStream(new byte[100]), "a.bin");
+		Path blob=this.contentStore.getBlobPath(first.getContentHash());
+		this.uploadManager.removeFile(first);
+		assertFalse(Files.exists(blob));
+
+		//blob已被删除后再次保存相同内容，重新生成blob
+		UploadedFileInfo second=this.uploadManager.saveFileDeduplicated(new ByteArrayInputStream(new byte[100]), "a.bin");
+		assertEquals(first.getContentHash(), second.getContentHash());
+		assertEquals(2, this.links(blob));
+		assertEquals(100, Files.size(Paths.get(second.getFilePath())));
+	}
+
+
+
+	//==================private functions===================
+	private int links(Path blob) throws IOException {
+		return (Integer)Files.getAttribute(blob, "unix:nlink");
+	}
+
+}
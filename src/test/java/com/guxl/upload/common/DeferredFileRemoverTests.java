@@ -0,0 +1,178 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+
+/**
+ * 批量删除，removeFilesLater标记删除、后台删除、取消删除和重启后恢复，以及各种删除方式释放去重blob的测试
+ * @author xiangligu
+ *
+ */
+public class DeferredFileRemoverTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport(8);
+	private Path fsBasePath;
+	private SimpleUploadManager uploadManager;
+
+
+	@Before
+	public void setUp() {
+		this.fsBasePath = this.support.getFsBasePath();
+		this.uploadManager = this.support.getUploadManager();
+	}
+
+
+	@Test
+	public void bulkRemovalReportsEachFile() throws Exception {
+		this.uploadManager.setBatchExecutor(this.support.getExecutor());
+		List<String> paths=new ArrayList<>();
+		for(int i=0; i<this.support.getThreads()*40; i++){
+			paths.add(this.uploadManager.saveFile(UploadTestSupport.newFile(i, 100)).getFilePath());
+		}
+		paths.add(null);
+
+		List<FileRemoveResult> results=this.uploadManager.removeFiles(paths);
+		assertEquals(paths.size(), results.size());
+		for(int i=0; i<paths.size()-1; i++){
+			assertTrue(results.get(i).isSuccess());
+			assertFalse(Files.exists(Paths.get(paths.get(i))));
+			assertEquals(-1L, (long)this.support.getLastEvent(paths.get(i)));
+		}
+		assertFalse(results.get(paths.size()-1).isSuccess());
+	}
+
+
+	@Test(timeout=10000)
+	public void deferredRemovalIsCancelledBySaveAndResumedAfterRestart() throws Exception {
+		List<String> paths=new ArrayList<>();
+		for(int i=0; i<10; i++){
+			paths.add(this.uploadManager.saveFile(UploadTestSupport.newFile(i, 100), "deferred", "file-" + i, false).getFilePath());
+		}
+		DeferredFileRemover deferredRemover=new DeferredFileRemover(this.uploadManager);
+		this.uploadManager.setDeferredRemover(deferredRemover);
+
+		//标记后立即通知监听器，文件本身尚未删除；返回之前日志已写入文件
+		List<FileRemoveResult> results=this.uploadManager.removeFilesLater(paths);
+		for(int i=0; i<paths.size(); i++){
+			assertTrue(results.get(i).isSuccess());
+			assertTrue(this.uploadManager.isRemovalPending(paths.get(i)));
+			assertEquals(-1L, (long)this.support.getLastEvent(paths.get(i)));
+			assertTrue(Files.exists(Paths.get(paths.get(i))));
+		}
+		assertEquals(paths.size(), this.readJournal().size());
+
+		//重新保存的文件取消删除
+		UploadedFileInfo resaved=this.uploadManager.saveFile(UploadTestSupport.newFile(100, 200), "deferred", "file-0", true);
+		assertFalse(this.uploadManager.isRemovalPending(resaved.getFilePath()));
+		assertEquals("-deferred/file-0.bin", this.readJournal().get(paths.size()));
+		deferredRemover.shutdown();
+
+		//重启后从日志中恢复其余的文件并删除
+		deferredRemover=new DeferredFileRemover(this.uploadManager);
+		this.uploadManager.setDeferredRemover(deferredRemover);
+		assertEquals(paths.size()-1, deferredRemover.getPendingCount());
+		deferredRemover.setFilesPerSecond(1000);
+		deferredRemover.start();
+		while(deferredRemover.getPendingCount()>0){
+			Thread.sleep(10);
+		}
+		deferredRemover.shutdown();
+
+		assertEquals(200, Files.size(Paths.get(resaved.getFilePath())));
+		for(String path : paths.subList(1, paths.size())){
+			assertFalse(Files.exists(Paths.get(path)));
+		}
+		assertEquals(0, Files.size(this.fsBasePath.resolve(".remove").resolve("journal")));
+	}
+
+
+	@Test(timeout=10000)
+	public void failedRemovalIsRetried() throws Exception {
+		String path=this.uploadManager.saveFile(UploadTestSupport.newFile(1, 100), "deferred", "blocked", false).getFilePath();
+		DeferredFileRemover deferredRemover=new DeferredFileRemover(this.uploadManager);
+		this.uploadManager.setDeferredRemover(deferredRemover);
+		this.uploadManager.removeFilesLater(Arrays.asList(path));
+
+		//文件被替换为非空目录，删除失败
+		Files.delete(Paths.get(path));
+		Path blocker=Files.createDirectories(Paths.get(path)).resolve("blocker");
+		Files.write(blocker, new byte[1]);
+		deferredRemover.start();
+		while(deferredRemover.getFailedRemovals()==0){
+			Thread.sleep(10);
+		}
+		assertTrue(this.uploadManager.isRemovalPending(path));
+
+		//之后的重试删除成功
+		Files.delete(blocker);
+		while(deferredRemover.getRemovedFiles()==0){
+			Thread.sleep(10);
+		}
+		assertFalse(Files.exists(Paths.get(path)));
+		assertEquals(0, deferredRemover.getPendingCount());
+		deferredRemover.shutdown();
+	}
+
+
+
+	@Test(timeout=10000)
+	public void deduplicatedBlobsAreReleasedByEveryRemoval() throws Exception {
+		ContentAddressedStore contentStore=this.uploadManager.findVolume(this.fsBasePath.toString()).getContentStore();
+		List<UploadedFileInfo> batch=new ArrayList<>();
+		List<UploadedFileInfo> deferred=new ArrayList<>();
+		for(int i=0; i<3; i++){
+			batch.add(this.uploadManager.saveFileDeduplicated(UploadTestSupport.newFile(1, 1000)));
+			deferred.add(this.uploadManager.saveFileDeduplicated(UploadTestSupport.newFile(2, 1000)));
+		}
+		Path batchBlob=contentStore.getBlobPath(batch.get(0).getContentHash());
+		Path deferredBlob=contentStore.getBlobPath(deferred.get(0).getContentHash());
+		assertTrue(Files.exists(batchBlob));
+		assertTrue(Files.exists(deferredBlob));
+
+		//只按路径删除：删除最后一个引用内容的文件时才删除blob
+		this.uploadManager.removeFiles(Arrays.asList(batch.get(0).getFilePath(), batch.get(1).getFilePath()));
+		assertTrue(Files.exists(batchBlob));
+		this.uploadManager.removeFile(batch.get(2).getFilePath());
+		assertFalse(Files.exists(batchBlob));
+
+		//后台删除的文件同样释放blob
+		DeferredFileRemover deferredRemover=new DeferredFileRemover(this.uploadManager);
+		this.uploadManager.setDeferredRemover(deferredRemover);
+		List<String> paths=new ArrayList<>();
+		for(UploadedFileInfo fileInfo : deferred){
+			paths.add(fileInfo.getFilePath());
+		}
+		this.uploadManager.removeFilesLater(paths);
+		deferredRemover.setFilesPerSecond(1000);
+		deferredRemover.start();
+		while(deferredRemover.getPendingCount()>0){
+			Thread.sleep(10);
+		}
+		deferredRemover.shutdown();
+		assertFalse(Files.exists(deferredBlob));
+	}
+
+
+
+	//==================private functions===================
+	private List<String> readJournal() throws IOException {
+		return Files.readAllLines(this.fsBasePath.resolve(".remove").resolve("journal"), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+
+
+/**
+ * 可压缩的文件保存为gzip数据、压缩前大小的记录和查找，以及按客户端的Accept-Encoding发送压缩数据或解压后的数据的测试
+ * @author xiangligu
+ *
+ */
+public class FileCompressorTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private SimpleUploadManager uploadManager;
+	private byte[] csv;
+
+
+	@Before
+	public void setUp() {
+		this.uploadManager = this.support.getUploadManager();
+		this.uploadManager.setFileCompressor(new FileCompressor(Arrays.asList("csv")));
+		StringBuilder csv=new StringBuilder();
+		for(int i=0; i<2000; i++){
+			csv.append(i).append(",row-").append(i % 7).append('\n');
+		}
+		this.csv = csv.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+
+	@Test
+	public void compressibleFilesAreStoredAsGzip() throws Exception {
+		//输入流和multipart保存的文本文件都压缩，记录的大小为压缩前的大小
+		UploadedFileInfo streamed=this.uploadManager.saveFile(new ByteArrayInputStream(this.csv), "data.csv", "d", "streamed", false);
+		this.assertStoredAsGzip(streamed);
+		MockMultipartFile multipartFile=new MockMultipartFile("file", "data.csv", "text/csv", this.csv);
+		this.assertStoredAsGzip(this.uploadManager.saveFile(multipartFile, "d", "multipart", false));
+
+		//扩展名不在列表中的文件按内容判断：文本压缩，二进制不压缩
+		this.assertStoredAsGzip(this.uploadManager.saveFile(new ByteArrayInputStream(this.csv), "data.dat", "d", "sniffed", false));
+		UploadedFileInfo binary=this.uploadManager.saveFile(UploadTestSupport.newFile(0, 1000), "d", "binary", false);
+		assertEquals(null, binary.getContentEncoding());
+		assertEquals(1000, binary.getStoredSize().longValue());
+
+		//太小的文件不压缩
+		UploadedFileInfo small=this.uploadManager.saveFile(new ByteArrayInputStream(Arrays.copyOf(this.csv, 100)), "small.csv", "d", "small",
+				false);
+		assertEquals(null, small.getContentEncoding());
+		assertEquals(100, Files.size(Paths.get(small.getFilePath())));
+	}
+
+
+	@Test
+	public void compressedSizeIsFoundWithoutMetadata() throws Exception {
+		this.uploadManager.saveFile(new ByteArrayInputStream(this.csv), "data.csv", "d", "f", false);
+
+		//没有元数据时，从文件系统中的gzip数据得到压缩前的大小
+		UploadedFileInfo located=new UploadedFileLocator(this.uploadManager, null).locate("/upload/d/f.csv");
+		assertEquals(FileCompressor.GZIP, located.getContentEncoding());
+		assertEquals(this.csv.length, located.getFileSize().longValue());
+		assertEquals(Files.size(Paths.get(located.getFilePath())), located.getStoredSize().longValue());
+	}
+
+
+	@Test
+	public void compressedFileIsSentEncodedOnlyToGzipClients() throws Exception {
+		UploadedFileInfo fileInfo=this.uploadManager.saveFile(new ByteArrayInputStream(this.csv), "data.csv", "d", "f", false);
+		byte[] stored=Files.readAllBytes(Paths.get(fileInfo.getFilePath()));
+		FileDownloadHandler downloadHandler=new FileDownloadHandler(new UploadedFileLocator(this.uploadManager, null));
+
+		//接受gzip的客户端直接收到文件系统中的压缩数据
+		MockHttpServletResponse encoded=this.download(downloadHandler, "deflate, gzip;q=0.8");
+		assertEquals(HttpServletResponse.SC_OK, encoded.getStatus());
+		assertEquals(FileCompressor.GZIP, encoded.getHeader(HttpHeaders.CONTENT_ENCODING));
+		assertEquals(String.valueOf(stored.length), encoded.getHeader(HttpHeaders.CONTENT_LENGTH));
+		assertTrue(Arrays.equals(stored, encoded.getContentAsByteArray()));
+		assertEquals(HttpHeaders.ACCEPT_ENCODING, encoded.getHeader(HttpHeaders.VARY));
+		assertTrue(encoded.getHeader(HttpHeaders.ETAG).endsWith("-gzip\""));
+
+		//其他客户端收到解压后的数据，ETag与压缩数据不同；压缩保存的文件不支持Range
+		for(String acceptEncoding : Arrays.asList(null, "identity", "gzip;q=0")){
+			MockHttpServletResponse decoded=this.download(downloadHandler, acceptEncoding);
+			assertEquals(HttpServletResponse.SC_OK, decoded.getStatus());
+			assertEquals(null, decoded.getHeader(HttpHeaders.CONTENT_ENCODING));
+			assertTrue(Arrays.equals(this.csv, decoded.getContentAsByteArray()));
+			assertEquals(HttpHeaders.ACCEPT_ENCODING, decoded.getHeader(HttpHeaders.VARY));
+			assertEquals("none", decoded.getHeader(HttpHeaders.ACCEPT_RANGES));
+			assertTrue(!decoded.getHeader(HttpHeaders.ETAG).equals(encoded.getHeader(HttpHeaders.ETAG)));
+		}
+	}
+
+
+
+	//==================private functions===================
+	private void assertStoredAsGzip(UploadedFileInfo fileInfo) throws IOException {
+		assertEquals(FileCompressor.GZIP, fileInfo.getContentEncoding());
+		assertEquals(this.csv.length, fileInfo.getFileSize().longValue());
+		assertEquals(Files.size(Paths.get(fileInfo.getFilePath())), fileInfo.getStoredSize().longValue());
+		assertTrue(fileInfo.getStoredSize()<this.csv.length);
+		try(InputStream inputStream=new GZIPInputStream(Files.newInputStream(Paths.get(fileInfo.getFilePath())))){
+			assertTrue(Arrays.equals(this.csv, ByteStreams.toByteArray(inputStream)));
+		}
+	}
+
+	private MockHttpServletResponse download(FileDownloadHandler downloadHandler, String acceptEncoding) throws Exception {
+		MockHttpServletRequest request=new MockHttpServletRequest("GET", "/upload/d/f.csv");
+		if(acceptEncoding!=null){
+			request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+		}
+		request.addHeader(HttpHeaders.RANGE, "bytes=0-9");
+		MockHttpServletResponse response=new MockHttpServletResponse();
+		downloadHandler.handleRequest(request, response);
+		return response;
+	}
+
+}
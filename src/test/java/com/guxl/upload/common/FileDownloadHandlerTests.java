@@ -0,0 +1,215 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+
+/**
+ * 下载时的Range和multipart/byteranges、If-Range、条件请求、sendfile，以及拒绝访问fsBasePath之外文件的测试
+ * @author xiangligu
+ *
+ */
+public class FileDownloadHandlerTests {
+
+	private static final String URL_PATH = "/upload/d/f.bin";
+	//整秒的最后修改时间，http日期只精确到秒
+	private static final long LAST_MODIFIED = 1500000000000L;
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private byte[] content;
+	private FileDownloadHandler downloadHandler;
+	private String eTag;
+
+
+	@Before
+	public void setUp() throws Exception {
+		this.content = new byte[100 * 1024];
+		for(int i=0; i<this.content.length; i++){
+			this.content[i]=(byte)(i * 31);
+		}
+		UploadedFileInfo fileInfo=this.support.getUploadManager().saveFile(new ByteArrayInputStream(this.content), "f.bin", "d", "f", false);
+		Files.setLastModifiedTime(Paths.get(fileInfo.getFilePath()), FileTime.fromMillis(LAST_MODIFIED));
+		this.downloadHandler = new FileDownloadHandler(new UploadedFileLocator(this.support.getUploadManager(), null));
+		this.eTag = this.download(this.newRequest(URL_PATH)).getHeader(HttpHeaders.ETAG);
+	}
+
+
+	@Test
+	public void singleRangeIsSentAsPartialContent() throws Exception {
+		int size=this.content.length;
+		this.assertPartial("bytes=10-19", 10, 20);
+		//后缀区间、不指定结束位置的区间，以及超出文件末尾的结束位置
+		this.assertPartial("bytes=-5", size-5, size);
+		this.assertPartial("bytes=" + (size-3) + "-", size-3, size);
+		this.assertPartial("bytes=100-" + (size*2), 100, size);
+
+		//格式不正确时忽略Range，返回整个文件
+		MockHttpServletResponse response=this.download(this.newRequest(URL_PATH, HttpHeaders.RANGE, "bytes=abc"));
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertTrue(Arrays.equals(this.content, response.getContentAsByteArray()));
+	}
+
+
+	@Test
+	public void multipleRangesAreSentAsByteranges() throws Exception {
+		MockHttpServletResponse response=this.download(this.newRequest(URL_PATH, HttpHeaders.RANGE, "bytes=0-9, 20-29"));
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertTrue(response.getContentType(), response.getContentType().startsWith("multipart/byteranges; boundary="));
+		String boundary=response.getContentType().substring(response.getContentType().indexOf('=')+1);
+		byte[] body=response.getContentAsByteArray();
+		assertEquals(String.valueOf(body.length), response.getHeader(HttpHeaders.CONTENT_LENGTH));
+
+		//每个区间的数据前是分隔符和该区间的Content-Range
+		String text=new String(body, StandardCharsets.ISO_8859_1);
+		String[] parts=text.split("\r\n--" + boundary);
+		assertEquals(4, parts.length);
+		assertEquals("--\r\n", parts[3]);
+		this.assertPart(parts[1], "bytes 0-9/" + this.content.length, 0, 10);
+		this.assertPart(parts[2], "bytes 20-29/" + this.content.length, 20, 30);
+	}
+
+
+	@Test
+	public void unsatisfiableRangeIsRejected() throws Exception {
+		for(String range : Arrays.asList("bytes=" + this.content.length + "-", "bytes=" + (this.content.length+10) + "-" + (this.content.length+20))){
+			MockHttpServletResponse response=this.download(this.newRequest(URL_PATH, HttpHeaders.RANGE, range));
+			assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+			assertEquals("bytes */" + this.content.length, response.getHeader(HttpHeaders.CONTENT_RANGE));
+		}
+	}
+
+
+	@Test
+	public void ifRangeSendsPartialContentOnlyForCurrentVersion() throws Exception {
+		//ETag或日期与当前文件一致时发送区间，否则发送整个文件
+		this.assertIfRange(this.eTag, HttpServletResponse.SC_PARTIAL_CONTENT);
+		this.assertIfRange("\"stale\"", HttpServletResponse.SC_OK);
+		this.assertIfRange("W/" + this.eTag, HttpServletResponse.SC_OK);
+		this.assertIfRange(LAST_MODIFIED, HttpServletResponse.SC_PARTIAL_CONTENT);
+		this.assertIfRange(LAST_MODIFIED - 1000, HttpServletResponse.SC_OK);
+	}
+
+
+	@Test
+	public void unchangedFileIsNotSentAgain() throws Exception {
+		this.assertNotModified(true, HttpHeaders.IF_NONE_MATCH, this.eTag);
+		this.assertNotModified(true, HttpHeaders.IF_NONE_MATCH, "\"other\", W/" + this.eTag);
+		this.assertNotModified(true, HttpHeaders.IF_NONE_MATCH, "*");
+		this.assertNotModified(false, HttpHeaders.IF_NONE_MATCH, "\"other\"");
+		this.assertNotModified(true, HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED);
+		this.assertNotModified(true, HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED + 500);
+		this.assertNotModified(false, HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED - 1000);
+
+		//同时带有两者时If-None-Match优先
+		MockHttpServletRequest request=this.newRequest(URL_PATH, HttpHeaders.IF_NONE_MATCH, "\"other\"");
+		request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, LAST_MODIFIED);
+		assertEquals(HttpServletResponse.SC_OK, this.download(request).getStatus());
+	}
+
+
+	@Test
+	public void largeResponsesAreHandedToSendfile() throws Exception {
+		MockHttpServletRequest request=this.newRequest(URL_PATH, HttpHeaders.RANGE, "bytes=1000-");
+		request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+		MockHttpServletResponse response=this.download(request);
+		//由web服务器发送文件，响应体中没有数据
+		assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+		assertEquals(String.valueOf(this.content.length-1000), response.getHeader(HttpHeaders.CONTENT_LENGTH));
+		assertEquals(this.support.getFsBasePath().resolve("d/f.bin").toAbsolutePath().toString(),
+				request.getAttribute("org.apache.tomcat.sendfile.filename"));
+		assertEquals(1000L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+		assertEquals((long)this.content.length, request.getAttribute("org.apache.tomcat.sendfile.end"));
+
+		//较小的响应直接写出
+		request=this.newRequest(URL_PATH, HttpHeaders.RANGE, "bytes=0-99");
+		request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+		response=this.download(request);
+		assertEquals(100, response.getContentAsByteArray().length);
+		assertEquals(null, request.getAttribute("org.apache.tomcat.sendfile.filename"));
+	}
+
+
+	@Test
+	public void pathsOutsideFsBasePathAreRejected() throws Exception {
+		Path fsBasePath=this.support.getFsBasePath();
+		Files.write(fsBasePath.resolve("d/.hidden"), new byte[10]);
+		String sibling="/upload/../" + fsBasePath.getFileName() + "/d/f.bin";
+		for(String urlPath : Arrays.asList(sibling, "/upload/d/../d/f.bin", "/upload/%2e%2e/" + fsBasePath.getFileName() + "/d/f.bin",
+				"/upload/d/.hidden", "/upload/.remove/journal", "/upload/d\\f.bin", "/upload/")){
+			assertEquals(urlPath, HttpServletResponse.SC_NOT_FOUND, this.download(this.newRequest(urlPath)).getStatus());
+		}
+
+		//只允许GET和HEAD
+		MockHttpServletRequest request=this.newRequest(URL_PATH);
+		request.setMethod("POST");
+		MockHttpServletResponse response=this.download(request);
+		assertEquals(HttpServletResponse.SC_METHOD_NOT_ALLOWED, response.getStatus());
+		assertEquals("GET, HEAD", response.getHeader(HttpHeaders.ALLOW));
+	}
+
+
+
+	//==================private functions===================
+	private MockHttpServletRequest newRequest(String urlPath, Object... headers) {
+		MockHttpServletRequest request=new MockHttpServletRequest("GET", urlPath);
+		for(int i=0; i<headers.length; i+=2){
+			request.addHeader((String)headers[i], headers[i+1]);
+		}
+		return request;
+	}
+
+	private MockHttpServletResponse download(MockHttpServletRequest request) throws Exception {
+		MockHttpServletResponse response=new MockHttpServletResponse();
+		this.downloadHandler.handleRequest(request, response);
+		return response;
+	}
+
+	private void assertPartial(String range, int start, int end) throws Exception {
+		MockHttpServletResponse response=this.download(this.newRequest(URL_PATH, HttpHeaders.RANGE, range));
+		assertEquals(range, HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+		assertEquals("bytes " + start + "-" + (end-1) + "/" + this.content.length, response.getHeader(HttpHeaders.CONTENT_RANGE));
+		assertEquals(String.valueOf(end-start), response.getHeader(HttpHeaders.CONTENT_LENGTH));
+		assertTrue(range, Arrays.equals(Arrays.copyOfRange(this.content, start, end), response.getContentAsByteArray()));
+	}
+
+	//part为“\r\n--boundary”之后、下一个分隔符之前的部分
+	private void assertPart(String part, String contentRange, int start, int end) {
+		String expected="\r\n" + HttpHeaders.CONTENT_TYPE + ": application/octet-stream\r\n" + HttpHeaders.CONTENT_RANGE + ": " + contentRange
+				+ "\r\n\r\n" + new String(Arrays.copyOfRange(this.content, start, end), StandardCharsets.ISO_8859_1);
+		assertEquals(expected, part);
+	}
+
+	private void assertIfRange(Object ifRange, int status) throws Exception {
+		MockHttpServletRequest request=this.newRequest(URL_PATH, HttpHeaders.RANGE, "bytes=0-9", HttpHeaders.IF_RANGE, ifRange);
+		MockHttpServletResponse response=this.download(request);
+		assertEquals(String.valueOf(ifRange), status, response.getStatus());
+		assertEquals(status==HttpServletResponse.SC_OK ? this.content.length : 10, response.getContentAsByteArray().length);
+	}
+
+	private void assertNotModified(boolean notModified, String name, Object value) throws Exception {
+		MockHttpServletResponse response=this.download(this.newRequest(URL_PATH, name, value));
+		assertEquals(name + ": " + value, notModified ? HttpServletResponse.SC_NOT_MODIFIED : HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals(notModified ? 0 : this.content.length, response.getContentAsByteArray().length);
+		assertEquals(this.eTag, response.getHeader(HttpHeaders.ETAG));
+	}
+
+}
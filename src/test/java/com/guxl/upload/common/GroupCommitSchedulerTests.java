@@ -0,0 +1,185 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * 临时文件原子提交为目标文件，以及Durability.GROUP批量提交的测试
+ * @author xiangligu
+ *
+ */
+public class GroupCommitSchedulerTests {
+
+	private static final int THREADS = 16;
+
+	private Path directory;
+	private GroupCommitScheduler commitScheduler;
+	private ExecutorService executor;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("GroupCommitSchedulerTests");
+		this.commitScheduler = new GroupCommitScheduler(1000, 256, 2);
+		this.executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+
+	@After
+	public void tearDown() throws Exception {
+		this.executor.shutdownNow();
+		this.commitScheduler.shutdown();
+		try(Stream<Path> paths=Files.walk(this.directory)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+
+	@Test
+	public void concurrentGroupCommitsPublishEveryFile() throws Exception {
+		CountDownLatch start=new CountDownLatch(1);
+		List<Future<?>> futures=new ArrayList<>();
+		for(int i=0; i<THREADS; i++){
+			byte[] content=this.newContent(i, 10000 + i);
+			Path target=this.directory.resolve(i + ".bin");
+			futures.add(this.executor.submit(() -> {
+				start.await();
+				this.write(target, content, false, Durability.GROUP);
+				return null;
+			}));
+		}
+		start.countDown();
+		for(Future<?> future : futures){
+			future.get();
+		}
+
+		for(int i=0; i<THREADS; i++){
+			assertArrayEquals(this.newContent(i, 10000 + i), Files.readAllBytes(this.directory.resolve(i + ".bin")));
+		}
+		this.assertNoTempFiles();
+	}
+
+
+	@Test
+	public void sameTargetWithoutOverwriteIsCommittedOnlyOnce() throws Exception {
+		CountDownLatch start=new CountDownLatch(1);
+		Path target=this.directory.resolve("same.bin");
+		List<Future<Boolean>> futures=new ArrayList<>();
+		for(int i=0; i<THREADS; i++){
+			byte[] content=this.newContent(i, 5000);
+			futures.add(this.executor.submit(() -> {
+				start.await();
+				try{
+					this.write(target, content, false, Durability.GROUP);
+					return true;
+				}catch(SameFileNameExistException e){
+					return false;
+				}
+			}));
+		}
+		start.countDown();
+		int committed=0;
+		for(Future<Boolean> future : futures){
+			committed+=future.get() ? 1 : 0;
+		}
+
+		//只有一个线程提交成功，目标文件是该线程写入的完整内容
+		assertEquals(1, committed);
+		byte[] stored=Files.readAllBytes(target);
+		assertEquals(5000, stored.length);
+		this.assertNoTempFiles();
+	}
+
+
+	@Test
+	public void overwriteReplacesTargetAtomically() throws Exception {
+		Path target=this.directory.resolve("a.bin");
+		for(Durability durability : Durability.values()){
+			byte[] content=this.newContent(durability.ordinal(), 3000 + durability.ordinal());
+			this.write(target, content, true, durability);
+			assertArrayEquals(content, Files.readAllBytes(target));
+		}
+		this.assertNoTempFiles();
+	}
+
+
+	@Test
+	public void commitAfterShutdownIsRejected() throws Exception {
+		this.write(this.directory.resolve("a.bin"), this.newContent(1, 100), false, Durability.GROUP);
+		this.commitScheduler.shutdown();
+
+		try{
+			this.write(this.directory.resolve("b.bin"), this.newContent(2, 100), false, Durability.GROUP);
+			fail();
+		}catch(IllegalStateException e){
+			//停止后不再接受请求，也不会无限期地等待
+		}
+		assertFalse(Files.exists(this.directory.resolve("b.bin")));
+		this.assertNoTempFiles();
+
+		//不经过提交线程的级别不受影响
+		this.write(this.directory.resolve("c.bin"), this.newContent(3, 100), false, Durability.PER_FILE);
+		assertTrue(Files.exists(this.directory.resolve("c.bin")));
+	}
+
+
+
+	//==================private functions===================
+	private byte[] newContent(int seed, int size){
+		byte[] content=new byte[size];
+		for(int i=0; i<size; i++){
+			content[i]=(byte)(seed * 17 + i);
+		}
+		return content;
+	}
+
+	//与UploadedFileWriter相同：写入临时文件后提交，失败时删除临时文件
+	private void write(Path target, byte[] content, boolean overwrite, Durability durability) throws IOException {
+		Path tempFile=GroupCommitScheduler.newTempFile(target);
+		try(FileChannel channel=FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)){
+			ByteBuffer buffer=ByteBuffer.wrap(content);
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+			this.commitScheduler.commit(channel, tempFile, target, overwrite, durability);
+		}catch(IOException | RuntimeException e){
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+	}
+
+	private void assertNoTempFiles() throws IOException {
+		try(Stream<Path> paths=Files.list(this.directory)){
+			List<Path> tempFiles=new ArrayList<>();
+			paths.filter(path -> path.getFileName().toString().endsWith(GroupCommitScheduler.TEMP_FILE_SUFFIX)).forEach(tempFiles::add);
+			assertEquals(Collections.emptyList(), tempFiles);
+		}
+	}
+
+}
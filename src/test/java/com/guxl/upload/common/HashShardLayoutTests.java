@@ -0,0 +1,82 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/**
+ * 按哈希值分片时子目录的格式、预先创建的全部子目录，以及文件在子目录间的分布的测试
+ * @author xiangligu
+ *
+ */
+public class HashShardLayoutTests {
+
+	@Test
+	public void subDirsHaveDepthLevelsOfWidthHexChars() {
+		assertTrue(new HashShardLayout(1, 2).getSubDir("a").matches("[0-9a-f]{2}"));
+		assertTrue(new HashShardLayout(2, 2).getSubDir("a").matches("[0-9a-f]{2}/[0-9a-f]{2}"));
+		assertTrue(new HashShardLayout(3, 1).getSubDir("a").matches("[0-9a-f]/[0-9a-f]/[0-9a-f]"));
+		assertTrue(new HashShardLayout(2, 4).getSubDir("a").matches("[0-9a-f]{4}/[0-9a-f]{4}"));
+		//同一标识总是得到同一子目录
+		assertEquals(new HashShardLayout(2, 2).getSubDir("file-id"), new HashShardLayout(2, 2).getSubDir("file-id"));
+
+		for(int[] illegal : new int[][]{{0, 2}, {1, 0}, {3, 3}, {1, 9}}){
+			try{
+				new HashShardLayout(illegal[0], illegal[1]);
+				fail();
+			}catch(IllegalArgumentException e){
+				//depth和width必须为正整数，且总位数不超过32位哈希值
+			}
+		}
+	}
+
+
+	@Test
+	public void allSubDirsCoverEveryResult() {
+		HashShardLayout layout=new HashShardLayout(3, 1);
+		List<String> subDirs=layout.getAllSubDirs();
+		assertEquals(4096, subDirs.size());
+		assertEquals(4096, new HashSet<>(subDirs).size());
+		assertEquals("0/0/0", subDirs.get(0));
+		assertEquals("0/0/1", subDirs.get(1));
+		assertEquals("f/f/f", subDirs.get(4095));
+		List<String> sorted=new ArrayList<>(subDirs);
+		sorted.sort(null);
+		assertEquals(sorted, subDirs);
+
+		HashSet<String> all=new HashSet<>(subDirs);
+		for(int i=0; i<10000; i++){
+			assertTrue(all.contains(layout.getSubDir("file-" + i)));
+		}
+
+		//超过约100万个子目录时不预先创建
+		assertEquals(1 << 20, new HashShardLayout(5, 1).getAllSubDirs().size());
+		assertTrue(new HashShardLayout(3, 2).getAllSubDirs().isEmpty());
+		assertTrue(new HashShardLayout(2, 4).getAllSubDirs().isEmpty());
+	}
+
+
+	@Test
+	public void similarIdsAreSpreadEvenly() {
+		//相邻的名称（String.hashCode只差最低几位）也均匀地分布在256个子目录中
+		HashShardLayout layout=new HashShardLayout(1, 2);
+		Map<String, Integer> counts=new HashMap<>();
+		for(int i=0; i<256 * 100; i++){
+			counts.merge(layout.getSubDir("file-" + i), 1, Integer::sum);
+		}
+		assertEquals(256, counts.size());
+		for(int count : counts.values()){
+			assertTrue(String.valueOf(count), count>=50 && count<=150);
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+
+/**
+ * 读取期间文件被覆盖时不缓存旧的内容，以及文件在磁盘上已超过可缓存大小时改为从文件系统发送的测试
+ * @author xiangligu
+ *
+ */
+public class HotFileCacheTests {
+
+	private static final int MAX_FILE_BYTES = 64 * 1024;
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private SimpleUploadManager uploadManager;
+	//为true时，下一次读取文件之后、放入缓存之前覆盖保存该文件
+	private final AtomicBoolean overwriteDuringLoad = new AtomicBoolean();
+	private HotFileCache hotFileCache;
+
+
+	@Before
+	public void setUp() {
+		this.uploadManager = this.support.getUploadManager();
+		this.hotFileCache = new HotFileCache(1024 * 1024, MAX_FILE_BYTES) {
+			@Override
+			ByteBuffer load(String filePath) throws IOException {
+				ByteBuffer loaded=super.load(filePath);
+				if(HotFileCacheTests.this.overwriteDuringLoad.compareAndSet(true, false)){
+					HotFileCacheTests.this.save(2, 1000);
+				}
+				return loaded;
+			}
+		};
+		this.uploadManager.addFileListener(this.hotFileCache.getFileListener());
+	}
+
+
+	@Test
+	public void contentOverwrittenDuringLoadIsNotCached() throws Exception {
+		UploadedFileInfo fileInfo=this.save(1, 1000);
+
+		//大小相同的覆盖：本次读取得到旧的内容，但不放入缓存
+		this.overwriteDuringLoad.set(true);
+		assertTrue(Arrays.equals(this.content(1, 1000), this.toArray(this.hotFileCache.get(fileInfo))));
+		assertEquals(0, this.hotFileCache.getCachedBytes());
+
+		//之后的读取得到新的内容并缓存
+		assertTrue(Arrays.equals(this.content(2, 1000), this.toArray(this.hotFileCache.get(fileInfo))));
+		assertEquals(1000, this.hotFileCache.getCachedBytes());
+		assertTrue(Arrays.equals(this.content(2, 1000), this.toArray(this.hotFileCache.get(fileInfo))));
+		assertEquals(1L, this.hotFileCache.getStats().get("hitCount"));
+
+		//覆盖使已缓存的内容失效
+		this.save(3, 1000);
+		assertEquals(0, this.hotFileCache.getCachedBytes());
+		assertTrue(Arrays.equals(this.content(3, 1000), this.toArray(this.hotFileCache.get(fileInfo))));
+	}
+
+
+	@Test
+	public void fileGrownPastLimitIsStreamed() throws Exception {
+		UploadedFileInfo fileInfo=this.save(1, 1000);
+		UploadedFileLocator fileLocator=new UploadedFileLocator(this.uploadManager, null);
+		FileDownloadHandler downloadHandler=new FileDownloadHandler(fileLocator);
+		downloadHandler.setHotFileCache(this.hotFileCache);
+		assertEquals(HttpServletResponse.SC_OK, this.download(downloadHandler).getStatus());
+		assertEquals(1000, this.hotFileCache.getCachedBytes());
+
+		//文件在本进程之外被追加写入，缓存被淘汰后，文件信息中的大小已过时
+		Files.write(Paths.get(fileInfo.getFilePath()), new byte[MAX_FILE_BYTES], StandardOpenOption.APPEND);
+		this.hotFileCache.invalidate(fileInfo.getFilePath());
+		assertEquals(null, this.hotFileCache.get(fileInfo));
+		assertEquals(0, this.hotFileCache.getCachedBytes());
+
+		//下载改为从文件系统发送文件信息中记录的部分，不返回错误
+		MockHttpServletResponse response=this.download(downloadHandler);
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertTrue(Arrays.equals(this.content(1, 1000), response.getContentAsByteArray()));
+	}
+
+
+
+	//==================private functions===================
+	private UploadedFileInfo save(int seed, int size) throws IOException {
+		return this.uploadManager.saveFile(new ByteArrayInputStream(this.content(seed, size)), "f.bin", "h", "f", true);
+	}
+
+	private byte[] content(int seed, int size) {
+		byte[] content=new byte[size];
+		Arrays.fill(content, (byte)seed);
+		return content;
+	}
+
+	private byte[] toArray(ByteBuffer buffer) {
+		byte[] content=new byte[buffer.remaining()];
+		buffer.get(content);
+		return content;
+	}
+
+	private MockHttpServletResponse download(FileDownloadHandler downloadHandler) throws Exception {
+		MockHttpServletResponse response=new MockHttpServletResponse();
+		downloadHandler.handleRequest(new MockHttpServletRequest("GET", "/upload/h/f.bin"), response);
+		return response;
+	}
+
+}
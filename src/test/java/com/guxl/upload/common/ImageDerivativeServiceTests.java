@@ -0,0 +1,193 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+
+/**
+ * 缩略图的生成、失效、像素数上限，以及下载缩略图时不等待生成的测试
+ * @author xiangligu
+ *
+ */
+public class ImageDerivativeServiceTests {
+
+	private static final ImageDerivativeService.Size SIZE = new ImageDerivativeService.Size(128, 128);
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private SimpleUploadManager uploadManager;
+	private ImageDerivativeService derivativeService;
+
+
+	@Before
+	public void setUp() {
+		this.uploadManager = this.support.getUploadManager();
+	}
+
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if(this.derivativeService!=null){
+			this.derivativeService.shutdown();
+		}
+	}
+
+
+	@Test(timeout=30000)
+	public void concurrentThumbnailRequestsShareOneJob() throws Exception {
+		this.derivativeService = this.newDerivativeService();
+		UploadedFileInfo original=this.uploadManager.saveFile(new ByteArrayInputStream(this.newImage(800, 400)), "a.png", "img", "a", false);
+
+		//并发请求同一缩略图，只生成一次
+		List<Callable<Path>> tasks=new ArrayList<>();
+		for(int i=0; i<this.support.getThreads(); i++){
+			tasks.add(() -> this.derivativeService.getVariant(original, SIZE).get());
+		}
+		Path variant=null;
+		for(Future<Path> future : this.support.runTogether(tasks)){
+			variant=future.get();
+		}
+		assertEquals(1, this.derivativeService.getGeneratedCount());
+		BufferedImage thumbnail=ImageIO.read(variant.toFile());
+		assertEquals(128, thumbnail.getWidth());
+		assertEquals(64, thumbnail.getHeight());
+
+		//覆盖原图后缩略图失效，再次请求时按新的内容生成
+		this.uploadManager.saveFile(new ByteArrayInputStream(this.newImage(400, 800)), "a.png", "img", "a", true);
+		assertFalse(Files.exists(variant));
+		thumbnail=ImageIO.read(this.derivativeService.getVariant(original, SIZE).get().toFile());
+		assertEquals(64, thumbnail.getWidth());
+		assertEquals(128, thumbnail.getHeight());
+	}
+
+
+
+	@Test(timeout=30000)
+	public void oversizedImageIsRejectedWithoutDecoding() throws Exception {
+		this.derivativeService = this.newDerivativeService();
+		this.derivativeService.setMaxPixels(800*400 - 1);
+		UploadedFileInfo original=this.uploadManager.saveFile(new ByteArrayInputStream(this.newImage(800, 400)), "a.png", "img", "a", false);
+
+		CompletableFuture<Path> failed=this.derivativeService.getVariant(original, SIZE);
+		try{
+			failed.get();
+			fail();
+		}catch(ExecutionException e){
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		//失败的结果保留一段时间，不再重复读取原图
+		assertSame(failed, this.derivativeService.getVariant(original, SIZE));
+		assertEquals(0, this.derivativeService.getGeneratedCount());
+
+		//覆盖为不超过上限的图片后重新生成
+		this.uploadManager.saveFile(new ByteArrayInputStream(this.newImage(400, 200)), "a.png", "img", "a", true);
+		BufferedImage thumbnail=ImageIO.read(this.derivativeService.getVariant(original, SIZE).get().toFile());
+		assertEquals(128, thumbnail.getWidth());
+		assertEquals(64, thumbnail.getHeight());
+	}
+
+
+	@Test(timeout=30000)
+	public void largeImageIsSubsampledToThumbnail() throws Exception {
+		this.derivativeService = this.newDerivativeService();
+		UploadedFileInfo original=this.uploadManager.saveFile(new ByteArrayInputStream(this.newImage(4000, 1000)), "a.png", "img", "a", false);
+
+		BufferedImage thumbnail=ImageIO.read(this.derivativeService.getVariant(original, SIZE).get().toFile());
+		assertEquals(128, thumbnail.getWidth());
+		assertEquals(32, thumbnail.getHeight());
+	}
+
+
+	@Test(timeout=30000)
+	public void downloadDoesNotWaitForThumbnail() throws Exception {
+		//生成缩略图的线程在读取原图时等待
+		CountDownLatch release=new CountDownLatch(1);
+		UploadedFileWriter fileWriter=Mockito.spy(new StreamingUploadedFileWriter());
+		Mockito.doAnswer(invocation -> {
+			if(Thread.currentThread().getName().startsWith("upload-derivative")){
+				release.await();
+			}
+			return invocation.callRealMethod();
+		}).when(fileWriter).readPackedFile(Mockito.anyString());
+		this.uploadManager.setFileWriter(fileWriter);
+		this.derivativeService = this.newDerivativeService();
+		FileDownloadHandler downloadHandler=new FileDownloadHandler(new UploadedFileLocator(this.uploadManager, null));
+		downloadHandler.setDerivativeService(this.derivativeService);
+		this.uploadManager.saveFile(new ByteArrayInputStream(this.newImage(800, 400)), "a.png", "img", "a", false);
+
+		//正在生成时立即返回503，并发请求共用同一个生成任务
+		for(int i=0; i<3; i++){
+			MockHttpServletResponse response=this.download(downloadHandler);
+			assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+			assertEquals("1", response.getHeader(HttpHeaders.RETRY_AFTER));
+		}
+
+		release.countDown();
+		MockHttpServletResponse response=this.download(downloadHandler);
+		while(response.getStatus()==HttpServletResponse.SC_SERVICE_UNAVAILABLE){
+			Thread.sleep(10);
+			response=this.download(downloadHandler);
+		}
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		BufferedImage thumbnail=ImageIO.read(new ByteArrayInputStream(response.getContentAsByteArray()));
+		assertEquals(128, thumbnail.getWidth());
+		assertEquals(1, this.derivativeService.getGeneratedCount());
+	}
+
+
+
+	//==================private functions===================
+	private ImageDerivativeService newDerivativeService() {
+		ImageDerivativeService derivativeService=new ImageDerivativeService(this.uploadManager, 2, 10);
+		derivativeService.setSizes(Arrays.asList(SIZE), Collections.emptyList());
+		this.uploadManager.addFileListener(derivativeService.getFileListener());
+		return derivativeService;
+	}
+
+	private byte[] newImage(int width, int height) throws IOException {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+		return out.toByteArray();
+	}
+
+	private MockHttpServletResponse download(FileDownloadHandler downloadHandler) throws Exception {
+		MockHttpServletRequest request=new MockHttpServletRequest("GET", "/upload/img/a.png");
+		request.setParameter("w", "128");
+		request.setParameter("h", "128");
+		MockHttpServletResponse response=new MockHttpServletResponse();
+		downloadHandler.handleRequest(request, response);
+		return response;
+	}
+
+}
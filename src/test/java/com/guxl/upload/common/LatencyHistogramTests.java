@@ -0,0 +1,110 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * 耗时直方图的分桶误差、百分位、累计桶计数以及并发记录的测试
+ * @author xiangligu
+ *
+ */
+public class LatencyHistogramTests {
+
+	@Test
+	public void bucketUpperBoundIsWithinQuarterOfValue() {
+		//小于4纳秒的耗时各占一个桶
+		for(long nanos=0; nanos<4; nanos++){
+			assertEquals(nanos + 1, this.singleRecord(nanos));
+		}
+		assertEquals(1, this.singleRecord(-5));
+
+		Random random=new Random(42);
+		for(int i=0; i<100000; i++){
+			long nanos=(random.nextLong() >>> 1) >>> random.nextInt(63);
+			long upperBound=this.singleRecord(nanos);
+			assertTrue(nanos + " -> " + upperBound, upperBound>nanos || upperBound==Long.MAX_VALUE);
+			assertTrue(nanos + " -> " + upperBound, upperBound-nanos <= Math.max(1, nanos / 4));
+		}
+		assertEquals(Long.MAX_VALUE, this.singleRecord(Long.MAX_VALUE));
+	}
+
+
+	@Test
+	public void percentilesFollowRecordedDistribution() {
+		LatencyHistogram histogram=new LatencyHistogram();
+		assertEquals(0, histogram.getPercentileNanos(99));
+		for(long micros=1; micros<=1000; micros++){
+			histogram.record(micros * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000L * 1001 / 2 * 1000, histogram.getSumNanos());
+
+		this.assertPercentile(histogram, 50, 500 * 1000);
+		this.assertPercentile(histogram, 99, 990 * 1000);
+		this.assertPercentile(histogram, 100, 1000 * 1000);
+		//最小的百分位至少包含一次记录
+		this.assertPercentile(histogram, 0.001, 1000);
+	}
+
+
+	@Test
+	public void countBelowPowersOfTwo() {
+		LatencyHistogram histogram=new LatencyHistogram();
+		for(long nanos=1; nanos<=1024; nanos++){
+			histogram.record(nanos);
+		}
+		assertEquals(0, histogram.getCountBelow(1));
+		for(int k=1; k<=10; k++){
+			assertEquals(k + "", (1L << k) - 1, histogram.getCountBelow(1L << k));
+		}
+		assertEquals(1024, histogram.getCountBelow(1L << 11));
+		assertEquals(1024, histogram.getCountBelow(1L << 62));
+	}
+
+
+	@Test
+	public void concurrentRecordsAreAllCounted() throws InterruptedException {
+		LatencyHistogram histogram=new LatencyHistogram();
+		List<Thread> threads=new ArrayList<>();
+		for(int i=0; i<8; i++){
+			threads.add(new Thread(() -> {
+				for(int n=0; n<10000; n++){
+					histogram.record(n);
+				}
+			}));
+		}
+		for(Thread thread : threads){
+			thread.start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		assertEquals(80000, histogram.getCount());
+		assertEquals(8L * 10000 * 9999 / 2, histogram.getSumNanos());
+		assertEquals(8 * 1024, histogram.getCountBelow(1024));
+	}
+
+
+
+	//==================private functions===================
+	//只记录一次nanos时，p100返回的桶上界
+	private long singleRecord(long nanos) {
+		LatencyHistogram histogram=new LatencyHistogram();
+		histogram.record(nanos);
+		return histogram.getPercentileNanos(100);
+	}
+
+	//百分位上的耗时为exactNanos时，返回的桶上界大于exactNanos且误差不超过25%
+	private void assertPercentile(LatencyHistogram histogram, double percentile, long exactNanos) {
+		long nanos=histogram.getPercentileNanos(percentile);
+		assertTrue(percentile + ": " + nanos, nanos>exactNanos && nanos<=exactNanos + exactNanos / 4);
+	}
+
+}
@@ -0,0 +1,230 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * PackStore的读写、重新打开后重建索引以及压缩段文件的测试
+ * @author xiangligu
+ *
+ */
+public class PackStoreTests {
+
+	private static final long SEGMENT_BYTES = 64 * 1024;
+
+	private Path basePath;
+	private PackStore packStore;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.basePath = Files.createTempDirectory("PackStoreTests");
+		this.packStore = new PackStore(this.basePath, SEGMENT_BYTES);
+	}
+
+
+	@After
+	public void tearDown() throws IOException {
+		this.packStore.close();
+		try(Stream<Path> paths=Files.walk(this.basePath)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+
+	@Test
+	public void overwrittenAndRemovedFilesSurviveReopen() throws IOException {
+		this.put("ab/1.jpg", 1, 1000, false);
+		this.put("ab/2.jpg", 2, 2000, false);
+		this.put("ab/1.jpg", 3, 3000, true);
+		assertTrue(this.packStore.remove(this.file("ab/2.jpg")));
+		assertFalse(this.packStore.remove(this.file("ab/2.jpg")));
+
+		this.reopen();
+		this.assertContent("ab/1.jpg", 3, 3000);
+		assertNull(this.packStore.read(this.file("ab/2.jpg")));
+		assertEquals(1, this.packStore.getFileCount());
+		//被覆盖的记录和被删除的记录，删除标记本身不计入
+		assertEquals(1000 + 2000 + 2 * (22 + "ab/1.jpg".length()), this.packStore.getDeadBytes());
+	}
+
+
+	@Test(expected=SameFileNameExistException.class)
+	public void savingExistingFileWithoutOverwriteFails() throws IOException {
+		this.put("ab/1.jpg", 1, 100, false);
+		this.put("ab/1.jpg", 2, 100, false);
+	}
+
+
+	@Test
+	public void incompleteRecordAtEndIsTruncated() throws IOException {
+		this.put("ab/1.jpg", 1, 1000, false);
+		this.put("ab/2.jpg", 2, 1000, false);
+		this.packStore.close();
+
+		//模拟写入最后一条记录时宕机：截掉其末尾的一部分
+		Path segment=this.basePath.resolve(PackStore.PACK_DIR).resolve("seg-00000001.pack");
+		try(FileChannel channel=FileChannel.open(segment, StandardOpenOption.WRITE)){
+			channel.truncate(channel.size()-10);
+		}
+
+		this.packStore = new PackStore(this.basePath, SEGMENT_BYTES);
+		this.assertContent("ab/1.jpg", 1, 1000);
+		assertNull(this.packStore.read(this.file("ab/2.jpg")));
+		this.put("ab/3.jpg", 3, 1000, false);
+		this.reopen();
+		this.assertContent("ab/3.jpg", 3, 1000);
+	}
+
+
+	@Test
+	public void compactionKeepsLiveFilesAndTombstones() throws IOException {
+		//写满若干个段文件，然后覆盖或删除其中大部分文件
+		for(int i=0; i<200; i++){
+			this.put("cd/" + i + ".jpg", i, 2000, false);
+		}
+		for(int i=0; i<200; i++){
+			if(i % 4==0){
+				this.put("cd/" + i + ".jpg", i+1, 1500, true);
+			}else if(i % 4==1){
+				this.packStore.remove(this.file("cd/" + i + ".jpg"));
+			}
+		}
+		long segmentCount=this.packStore.getSegmentCount();
+		long reclaimed=this.packStore.compact(0.3);
+		assertTrue(reclaimed>0);
+		assertTrue(this.packStore.getSegmentCount()<segmentCount);
+
+		this.reopen();
+		for(int i=0; i<200; i++){
+			String fileName="cd/" + i + ".jpg";
+			if(i % 4==0){
+				this.assertContent(fileName, i+1, 1500);
+			}else if(i % 4==1){
+				assertNull(fileName, this.packStore.read(this.file(fileName)));
+			}else{
+				this.assertContent(fileName, i, 2000);
+			}
+		}
+	}
+
+
+	@Test
+	public void recordsAreReadableWhileAndAfterSegmentIsActive() throws IOException {
+		//每次追加后立即读取当前段文件中的记录，直到写满若干个段文件
+		for(int i=0; i<100; i++){
+			this.put("ef/" + i + ".jpg", i, 3000, false);
+			this.assertContent("ef/" + i + ".jpg", i, 3000);
+			this.assertContent("ef/0.jpg", 0, 3000);
+		}
+		assertTrue(this.packStore.getSegmentCount()>2);
+		for(int i=0; i<100; i++){
+			this.assertContent("ef/" + i + ".jpg", i, 3000);
+		}
+		assertTrue(this.packStore.read(this.file("ef/99.jpg")).isReadOnly());
+	}
+
+
+	@Test
+	public void tombstonesAreNotCompactedRepeatedly() throws IOException {
+		//第一个段文件中的文件一直有效；第二个段文件中的文件全部被删除，删除标记在第三个段文件中
+		this.fillSegment("keep/", 1);
+		int removed=this.fillSegment("gone/", 2);
+		for(int i=0; i<removed; i++){
+			this.packStore.remove(this.file("gone/" + i + ".jpg"));
+		}
+		this.put("big/1.jpg", 1, 63000, false);
+		assertEquals(4, this.packStore.getSegmentCount());
+
+		//只压缩第二个段文件；删除标记不计入无效数据，它们所在的段文件不会被压缩
+		assertTrue(this.packStore.compact(0.5)>0);
+		assertEquals(3, this.packStore.getSegmentCount());
+		//剩下的无效数据只有第三个段文件开头被删除的那个文件
+		long deadBytes=1000 + 22 + ("gone/" + (removed-1) + ".jpg").length();
+		assertEquals(deadBytes, this.packStore.getDeadBytes());
+		//之后每次写满一个段文件再压缩，删除标记也不会被反复复制
+		for(int i=2; i<4; i++){
+			this.put("big/" + i + ".jpg", i, 63000, false);
+			assertEquals(0, this.packStore.compact(0.5));
+			assertEquals(i + 2, this.packStore.getSegmentCount());
+			assertEquals(deadBytes, this.packStore.getDeadBytes());
+		}
+
+		this.reopen();
+		for(int i=0; i<removed; i++){
+			assertNull(this.packStore.read(this.file("gone/" + i + ".jpg")));
+		}
+		this.assertContent("keep/0.jpg", 0, 1000);
+		this.assertContent("big/3.jpg", 3, 63000);
+	}
+
+
+	@Test
+	public void internalFilesAreNotAccepted() {
+		assertTrue(this.packStore.accepts(this.file("ab/1.jpg")));
+		assertFalse(this.packStore.accepts(this.file(".cas/tmp/1.tmp")));
+		assertFalse(this.packStore.accepts(this.file("ab/.1.jpg.0123.tmp")));
+		assertFalse(this.packStore.accepts(this.basePath.resolveSibling("other").resolve("1.jpg").toString()));
+	}
+
+
+
+	//==================private functions===================
+	private String file(String relativePath){
+		return this.basePath.resolve(relativePath).toString();
+	}
+
+	private void put(String relativePath, int seed, int size, boolean overwrite) throws IOException {
+		this.packStore.put(this.file(relativePath), content(seed, size), size, overwrite, Durability.NONE);
+	}
+
+	//在directory下保存1000字节的文件，直到开始写第segment+1个段文件，返回保存的文件数（最后一个文件在新的段文件中）
+	private int fillSegment(String directory, int segment) throws IOException {
+		int files=0;
+		while(this.packStore.getSegmentCount()<=segment){
+			this.put(directory + files + ".jpg", files, 1000, false);
+			files++;
+		}
+		return files;
+	}
+
+	private void reopen() throws IOException {
+		this.packStore.close();
+		this.packStore = new PackStore(this.basePath, SEGMENT_BYTES);
+	}
+
+	private void assertContent(String relativePath, int seed, int size) throws IOException {
+		ByteBuffer buffer=this.packStore.read(this.file(relativePath));
+		byte[] actual=new byte[buffer.remaining()];
+		buffer.get(actual);
+		assertArrayEquals(relativePath, content(seed, size), actual);
+		assertEquals(size, this.packStore.getLocation(this.file(relativePath)).getLength());
+	}
+
+	private static byte[] content(int seed, int size){
+		byte[] content=new byte[size];
+		Arrays.fill(content, (byte)seed);
+		return content;
+	}
+
+}
@@ -0,0 +1,200 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.guxl.upload.common.exception.SameFileNameExistException;
+
+
+/**
+ * 多线程同时保存和删除同名及不同名文件的压力测试
+ * @author xiangligu
+ *
+ */
+public class SimpleUploadManagerConcurrencyTests {
+
+	private static final int THREADS = 32;
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport(THREADS);
+	private Path fsBasePath;
+	private SimpleUploadManager uploadManager;
+
+
+	@Before
+	public void setUp() {
+		this.fsBasePath = this.support.getFsBasePath();
+		this.uploadManager = this.support.getUploadManager();
+		GroupCommitScheduler commitScheduler=new GroupCommitScheduler();
+		UploadedFileWriter fileWriter=new StreamingUploadedFileWriter();
+		fileWriter.setCommitScheduler(commitScheduler);
+		this.uploadManager.setFileWriter(fileWriter);
+		this.uploadManager.setCommitScheduler(commitScheduler);
+	}
+
+
+	@Test
+	public void onlyOneNoOverwriteSaveOfSameNameSucceeds() throws Exception {
+		this.uploadManager.setDurability(Durability.GROUP);
+		for(int round=0; round<20; round++){
+			String newFileName="same-" + round;
+			List<Callable<UploadedFileInfo>> tasks=new ArrayList<>();
+			for(int i=0; i<THREADS; i++){
+				MockMultipartFile multipartFile=UploadTestSupport.newFile(i, 1000 + i);
+				tasks.add(() -> this.uploadManager.saveFile(multipartFile, "named", newFileName, false));
+			}
+
+			UploadedFileInfo saved=null;
+			int rejected=0;
+			for(Future<UploadedFileInfo> future : this.support.runTogether(tasks)){
+				try{
+					UploadedFileInfo fileInfo=future.get();
+					assertTrue("同名文件只允许保存成功一次", saved==null);
+					saved=fileInfo;
+				}catch(ExecutionException e){
+					assertTrue(e.getCause().toString(), e.getCause() instanceof SameFileNameExistException);
+					rejected++;
+				}
+			}
+
+			assertEquals(THREADS-1, rejected);
+			this.assertCompleteFile(Paths.get(saved.getFilePath()), saved.getFileSize());
+		}
+		this.assertNoTempFiles();
+	}
+
+
+	@Test
+	public void concurrentOverwritesAndRemovesEndWithLastEvent() throws Exception {
+		String[] newFileNames={"hot-0", "hot-1", "hot-2"};
+		List<Callable<UploadedFileInfo>> tasks=new ArrayList<>();
+		for(int i=0; i<THREADS*20; i++){
+			String newFileName=newFileNames[i % newFileNames.length];
+			if(i % 7==0){
+				String fullPathFileName=this.fsBasePath.resolve("named").resolve(newFileName + ".bin").toString();
+				tasks.add(() -> {
+					this.uploadManager.removeFile(fullPathFileName);
+					return null;
+				});
+			}else{
+				MockMultipartFile multipartFile=UploadTestSupport.newFile(i, 4096 + i);
+				tasks.add(() -> this.uploadManager.saveFile(multipartFile, "named", newFileName, true));
+			}
+		}
+		for(Future<UploadedFileInfo> future : this.support.runTogether(tasks)){
+			future.get();
+		}
+
+		//最终的文件与最后一次通知监听器的事件一致：要么已删除，要么是最后一次保存的完整内容
+		for(String newFileName : newFileNames){
+			Path path=this.fsBasePath.resolve("named").resolve(newFileName + ".bin");
+			long lastEvent=this.support.getLastEvent(path.toString());
+			if(lastEvent<0){
+				assertFalse(Files.exists(path));
+			}else{
+				this.assertCompleteFile(path, lastEvent);
+			}
+		}
+		this.assertNoTempFiles();
+	}
+
+
+	@Test
+	public void differentNamesAreSavedIndependently() throws Exception {
+		List<Callable<UploadedFileInfo>> tasks=new ArrayList<>();
+		for(int i=0; i<THREADS*50; i++){
+			MockMultipartFile multipartFile=UploadTestSupport.newFile(i, 512 + i % 100);
+			if(i % 2==0){
+				String newFileName="distinct-" + i;
+				tasks.add(() -> this.uploadManager.saveFile(multipartFile, "named", newFileName, false));
+			}else{
+				tasks.add(() -> this.uploadManager.saveFile(multipartFile));
+			}
+		}
+
+		for(Future<UploadedFileInfo> future : this.support.runTogether(tasks)){
+			UploadedFileInfo fileInfo=future.get();
+			this.assertCompleteFile(Paths.get(fileInfo.getFilePath()), fileInfo.getFileSize());
+		}
+		try(Stream<Path> paths=Files.walk(this.fsBasePath)){
+			assertEquals(tasks.size(), paths.filter(Files::isRegularFile).count());
+		}
+	}
+
+
+	@Test(timeout=10000)
+	public void slowUploadDoesNotHoldPathLock() throws Exception {
+		UploadedFileInfo existing=this.uploadManager.saveFile(new ByteArrayInputStream(new byte[10]), "a.bin", "named", "slow", true);
+
+		//客户端发送到一半停住的上传
+		CountDownLatch started=new CountDownLatch(1);
+		CountDownLatch resume=new CountDownLatch(1);
+		InputStream slowStream=new InputStream() {
+			private int remaining=1000;
+
+			@Override
+			public int read() throws IOException {
+				if(this.remaining==500){
+					started.countDown();
+					try{
+						resume.await();
+					}catch(InterruptedException e){
+						throw new IOException(e);
+					}
+				}
+				return this.remaining-- > 0 ? 7 : -1;
+			}
+		};
+		Future<UploadedFileInfo> slowSave=this.support.getExecutor().submit(() -> this.uploadManager.saveFile(slowStream, "a.bin", "named", "slow", true));
+		started.await();
+
+		//写入临时文件期间不持有路径锁，同一路径的删除和保存不被阻塞
+		this.uploadManager.removeFile(existing.getFilePath());
+		assertFalse(Files.exists(Paths.get(existing.getFilePath())));
+		this.uploadManager.saveFile(new ByteArrayInputStream(new byte[20]), "a.bin", "named", "slow", true);
+
+		resume.countDown();
+		UploadedFileInfo saved=slowSave.get();
+		this.assertCompleteFile(Paths.get(saved.getFilePath()), 1000);
+		assertEquals(Long.valueOf(1000), this.support.getLastEvent(saved.getFilePath()));
+		this.assertNoTempFiles();
+	}
+
+
+
+	//==================private functions===================
+	private void assertCompleteFile(Path path, long expectedSize) throws IOException {
+		byte[] content=Files.readAllBytes(path);
+		assertEquals(path.toString(), expectedSize, content.length);
+		for(byte b : content){
+			assertEquals(path.toString(), content[0], b);
+		}
+	}
+
+	private void assertNoTempFiles() throws IOException {
+		try(Stream<Path> paths=Files.walk(this.fsBasePath)){
+			assertEquals(0, paths.filter(path -> path.getFileName().toString().endsWith(GroupCommitScheduler.TEMP_FILE_SUFFIX)).count());
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+
+/**
+ * 存储卷的测试：多个卷之间的文件分布和查找，以及子目录缓存
+ * @author xiangligu
+ *
+ */
+public class StorageVolumeTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private Path fsBasePath;
+	//第二个卷的基本路径，不在fsBasePath之下
+	private Path secondBasePath;
+	private SimpleUploadManager uploadManager;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.fsBasePath = this.support.getFsBasePath();
+		this.secondBasePath = Files.createTempDirectory("StorageVolumeTests");
+		this.uploadManager = this.support.getUploadManager();
+	}
+
+
+	@After
+	public void tearDown() throws IOException {
+		try(Stream<Path> paths=Files.walk(this.secondBasePath)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+
+	@Test
+	public void volumeSelectionIsStableAndBalanced() {
+		int keys=20000;
+		int[] counts=new int[4];
+		int moved=0;
+		for(int i=0; i<keys; i++){
+			String key=UUID.randomUUID().toString().replace("-", "");
+			int selected=StorageVolume.selectIndex(key, counts.length);
+			assertEquals(selected, StorageVolume.selectIndex(key, counts.length));
+			counts[selected]++;
+
+			//追加一个卷时，改变所在卷的标识只会移到新卷上
+			int afterAdding=StorageVolume.selectIndex(key, counts.length + 1);
+			if(afterAdding!=selected){
+				assertEquals(counts.length, afterAdding);
+				moved++;
+			}
+		}
+
+		for(int count : counts){
+			assertTrue(Arrays.toString(counts), Math.abs(count - keys / counts.length) < keys / counts.length / 10);
+		}
+		//约1/5的标识移到新卷
+		assertTrue(String.valueOf(moved), Math.abs(moved - keys / 5) < keys / 50);
+	}
+
+
+	@Test
+	public void filesAreSavedOnSelectedVolumeAndLocatedFromAnyVolume() throws Exception {
+		this.uploadManager.setFsBasePaths(Arrays.asList(this.fsBasePath.toString(), this.secondBasePath.toString()));
+		UploadedFileLocator locator=new UploadedFileLocator(this.uploadManager, null);
+
+		int[] counts=new int[2];
+		List<UploadedFileInfo> fileInfos=new ArrayList<>();
+		for(int i=0; i<100; i++){
+			UploadedFileInfo fileInfo=this.uploadManager.saveFile(new ByteArrayInputStream(new byte[i + 1]), "f" + i + ".bin");
+			fileInfos.add(fileInfo);
+			//文件保存在按文件名称选择的卷上
+			String fileName=Paths.get(fileInfo.getFilePath()).getFileName().toString();
+			StorageVolume volume=this.uploadManager.selectVolume(fileName.substring(0, fileName.lastIndexOf('.')));
+			assertEquals(volume.getIndex(), fileInfo.getVolume().intValue());
+			assertTrue(Paths.get(fileInfo.getFilePath()).startsWith(volume.getBasePath()));
+			assertEquals(volume, this.uploadManager.findVolume(fileInfo.getFilePath()));
+			counts[volume.getIndex()]++;
+		}
+		assertTrue(Arrays.toString(counts), counts[0]>0 && counts[1]>0);
+
+		//只根据url路径也能在所选的卷上找到文件
+		for(UploadedFileInfo fileInfo : fileInfos){
+			UploadedFileInfo located=locator.locate(fileInfo.getUrlPath());
+			assertEquals(fileInfo.getFilePath(), located.getFilePath());
+			assertEquals(fileInfo.getVolume(), located.getVolume());
+			assertEquals(fileInfo.getFileSize(), located.getFileSize());
+		}
+
+		//文件被移到另一个卷上（如调整卷的顺序后）时，依次查找其他卷
+		UploadedFileInfo fileInfo=fileInfos.get(0);
+		Path source=Paths.get(fileInfo.getFilePath());
+		Path otherBasePath=fileInfo.getVolume()==0 ? this.secondBasePath : this.fsBasePath;
+		Path moved=Paths.get(FileSystemUtil.getRegularFullPath(otherBasePath.toString()))
+				.resolve(this.uploadManager.getVolumes().get(fileInfo.getVolume()).getBasePath().relativize(source));
+		Files.createDirectories(moved.getParent());
+		Files.move(source, moved);
+		UploadedFileLocator newLocator=new UploadedFileLocator(this.uploadManager, null);
+		UploadedFileInfo located=newLocator.locate(fileInfo.getUrlPath());
+		assertEquals(moved.toString(), located.getFilePath());
+		assertEquals(1 - fileInfo.getVolume(), located.getVolume().intValue());
+		assertNull(newLocator.locate(fileInfo.getUrlPath() + "x"));
+	}
+
+
+	@Test
+	public void externallyRemovedDirectoryIsRecreatedAfterFailedSave() throws Exception {
+		UploadedFileInfo first=this.uploadManager.saveFile(new ByteArrayInputStream(new byte[10]), "a.bin", "tenant/dir", "a", false);
+		Path directory=Paths.get(first.getFilePath()).getParent();
+		Files.delete(Paths.get(first.getFilePath()));
+		Files.delete(directory);
+
+		//缓存中的目录已不存在，保存失败并使缓存失效
+		try{
+			this.uploadManager.saveFile(new ByteArrayInputStream(new byte[10]), "b.bin", "tenant/dir", "b", false);
+			fail();
+		}catch(NoSuchFileException e){
+			//目录已被外部删除
+		}
+
+		//之后的保存重新创建目录
+		UploadedFileInfo third=this.uploadManager.saveFile(new ByteArrayInputStream(new byte[20]), "c.bin", "tenant/dir", "c", false);
+		assertTrue(Files.isDirectory(directory));
+		assertEquals(20, Files.size(Paths.get(third.getFilePath())));
+	}
+
+}
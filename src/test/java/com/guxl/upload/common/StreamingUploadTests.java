@@ -0,0 +1,164 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.guxl.upload.app.StreamingUploadController;
+import com.guxl.upload.common.exception.FileSizeExceedLimitException;
+
+
+/**
+ * SizeLimitedInputStream在超过大小限制时中止读取，以及以流的方式上传时请求中的部分文件失败后删除已保存的文件的测试
+ * @author xiangligu
+ *
+ */
+public class StreamingUploadTests {
+
+	private static final String BOUNDARY = "----StreamingUploadTests";
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private SimpleUploadManager uploadManager;
+	private StreamingUploadController controller;
+	//本次测试中保存过的文件
+	private final List<String> savedPaths = new CopyOnWriteArrayList<>();
+
+
+	@Before
+	public void setUp() {
+		this.uploadManager = this.support.getUploadManager();
+		this.uploadManager.setFileSizeLimit("1Kb");
+		this.uploadManager.addFileListener(new UploadedFileListener() {
+			@Override
+			public void fileSaved(UploadedFileInfo fileInfo) {
+				StreamingUploadTests.this.savedPaths.add(fileInfo.getFilePath());
+			}
+
+			@Override
+			public void fileRemoved(String fullPathFileName) {
+			}
+		});
+		this.controller = new StreamingUploadController();
+		ReflectionTestUtils.setField(this.controller, "uploadManager", this.uploadManager);
+	}
+
+
+	@Test
+	public void readingPastLimitIsAborted() throws Exception {
+		//恰好读到上限时不抛出异常
+		SizeLimitedInputStream inputStream=new SizeLimitedInputStream(new ByteArrayInputStream(new byte[1024]), 1024);
+		assertEquals(1024, ByteStreams.toByteArray(inputStream).length);
+		assertEquals(1024, inputStream.getReadBytes());
+
+		//read()、read(byte[])和skip读取的字节数都计入
+		inputStream=new SizeLimitedInputStream(new ByteArrayInputStream(new byte[2000]), 1024);
+		assertEquals(0, inputStream.read());
+		assertEquals(500, inputStream.skip(500));
+		assertEquals(523, inputStream.read(new byte[523]));
+		try{
+			inputStream.read();
+			fail();
+		}catch(FileSizeExceedLimitException e){
+			assertEquals(1025, inputStream.getReadBytes());
+		}
+		assertFalse(inputStream.markSupported());
+	}
+
+
+	@Test
+	public void streamedFileOverLimitIsNotSaved() throws Exception {
+		//超过大小限制时立即中止，不读完整个输入流，已写入的部分被删除
+		ByteArrayInputStream inputStream=new ByteArrayInputStream(new byte[10 * 1024 * 1024]);
+		try{
+			this.uploadManager.saveFile(inputStream, "a.bin", "s", "large", false);
+			fail();
+		}catch(FileSizeExceedLimitException e){
+			assertTrue(String.valueOf(inputStream.available()), inputStream.available()>9 * 1024 * 1024);
+		}
+		try(Stream<Path> paths=Files.list(this.support.getFsBasePath().resolve("s"))){
+			assertEquals(0, paths.count());
+		}
+		assertTrue(this.savedPaths.isEmpty());
+	}
+
+
+	@Test
+	public void everyFileInRequestIsSaved() throws Exception {
+		List<UploadedFileInfo> result=this.controller.upload(this.newRequest(null, new byte[100], new byte[200]));
+		assertEquals(2, result.size());
+		assertEquals(100, Files.size(Paths.get(result.get(0).getFilePath())));
+		assertEquals(200, Files.size(Paths.get(result.get(1).getFilePath())));
+	}
+
+
+	@Test
+	public void secondFileForFixedNameRemovesFirst() throws Exception {
+		//指定了文件名时，第二个文件在第一个文件写入之后才被解析到
+		try{
+			this.controller.upload(this.newRequest("subDir=s&newFileName=f", new byte[100], new byte[100]));
+			fail();
+		}catch(IllegalArgumentException e){
+			assertEquals(1, this.savedPaths.size());
+		}
+		assertFalse(Files.exists(this.support.getFsBasePath().resolve("s/f.bin")));
+		assertEquals(-1L, (long)this.support.getLastEvent(this.savedPaths.get(0)));
+	}
+
+
+	@Test
+	public void failedFileRemovesEarlierFiles() throws Exception {
+		//第三个文件超过大小限制，之前随机保存的两个文件也被删除
+		try{
+			this.controller.upload(this.newRequest(null, new byte[100], new byte[200], new byte[2000]));
+			fail();
+		}catch(FileSizeExceedLimitException e){
+			assertEquals(2, this.savedPaths.size());
+		}
+		for(String path : this.savedPaths){
+			assertFalse(path, Files.exists(Paths.get(path)));
+		}
+	}
+
+
+
+	//==================private functions===================
+	private MockHttpServletRequest newRequest(String queryString, byte[]... files) throws IOException {
+		ByteArrayOutputStream body=new ByteArrayOutputStream();
+		for(int i=0; i<files.length; i++){
+			String header="--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"f-" + i + ".bin\"\r\n"
+					+ "Content-Type: application/octet-stream\r\n\r\n";
+			body.write(header.getBytes(StandardCharsets.US_ASCII));
+			body.write(files[i]);
+			body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		}
+		body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		MockHttpServletRequest request=new MockHttpServletRequest("POST", StreamingUploadController.STREAMING_UPLOAD_PATH);
+		request.setQueryString(queryString);
+		request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+		request.setContent(body.toByteArray());
+		return request;
+	}
+
+}
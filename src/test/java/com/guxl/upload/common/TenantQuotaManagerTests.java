@@ -0,0 +1,179 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.mock.web.MockMultipartFile;
+
+import com.guxl.upload.common.exception.QuotaExceededException;
+
+
+/**
+ * 租户用量随保存、覆盖和删除变化，配额检查、上传中途超过配额时中止、写入带宽限制，以及快照恢复的测试
+ * @author xiangligu
+ *
+ */
+public class TenantQuotaManagerTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private Path fsBasePath;
+	private SimpleUploadManager uploadManager;
+	private TenantQuotaManager quotaManager;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.fsBasePath = this.support.getFsBasePath();
+		this.uploadManager = this.support.getUploadManager();
+		this.quotaManager = new TenantQuotaManager(this.uploadManager);
+		this.uploadManager.setQuotaManager(this.quotaManager);
+	}
+
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		this.quotaManager.shutdown();
+	}
+
+
+	@Test
+	public void tenantUsageFollowsSavesOverwritesAndRemoves() throws Exception {
+		this.quotaManager.setQuota("tenant", 10000, 0, 0);
+
+		//并发保存到同一租户的不同子目录，计数与实际文件一致
+		int files=this.support.getThreads();
+		List<Callable<UploadedFileInfo>> tasks=new ArrayList<>();
+		for(int i=0; i<files; i++){
+			MockMultipartFile multipartFile=UploadTestSupport.newFile(i, 100);
+			String subDir="tenant/" + (i % 4);
+			String newFileName="f-" + i;
+			tasks.add(() -> this.uploadManager.saveFile(multipartFile, subDir, newFileName, false));
+		}
+		for(Future<UploadedFileInfo> future : this.support.runTogether(tasks)){
+			future.get();
+		}
+		TenantQuota quota=this.quotaManager.getQuota("tenant");
+		assertEquals(files*100, quota.getUsedBytes());
+		assertEquals(files, quota.getUsedFiles());
+
+		//覆盖只计入大小的变化，删除减去文件的大小
+		UploadedFileInfo overwritten=this.uploadManager.saveFile(UploadTestSupport.newFile(1, 300), "tenant/0", "f-0", true);
+		this.uploadManager.removeFile(this.fsBasePath.resolve("tenant/1/f-1.bin").toString());
+		assertEquals(files*100 + 200 - 100, quota.getUsedBytes());
+		assertEquals(files-1, quota.getUsedFiles());
+
+		//超过配额时拒绝，不计入用量；随机保存的文件不属于任何租户
+		try{
+			this.uploadManager.saveFile(UploadTestSupport.newFile(2, 10000), "tenant/0", "too-large", false);
+			fail();
+		}catch(QuotaExceededException e){
+			assertFalse(Files.exists(Paths.get(overwritten.getFilePath()).resolveSibling("too-large.bin")));
+		}
+		this.uploadManager.saveFile(UploadTestSupport.newFile(3, 10000));
+		assertEquals(files*100 + 100, quota.getUsedBytes());
+
+		//快照恢复后与重新统计的结果一致
+		this.quotaManager.shutdown();
+		this.quotaManager = new TenantQuotaManager(this.uploadManager);
+		assertEquals(files*100 + 100, this.quotaManager.getQuota("tenant").getUsedBytes());
+		assertEquals(files*100 + 100, this.quotaManager.recount("tenant").getUsedBytes());
+		assertEquals(files-1, this.quotaManager.getQuota("tenant").getUsedFiles());
+	}
+
+
+	@Test
+	public void streamedUploadIsAbortedWhenItExceedsQuota() throws Exception {
+		this.quotaManager.setQuota("tenant", 100 * 1024, 0, 0);
+		this.uploadManager.saveFile(new ByteArrayInputStream(new byte[60 * 1024]), "a.bin", "tenant/s", "existing", false);
+
+		//大小未知的上传在写入的字节数加上已用量超过配额时中止，不等到读完整个输入流
+		CountingInputStream inputStream=new CountingInputStream(10 * 1024 * 1024);
+		try{
+			this.uploadManager.saveFile(inputStream, "b.bin", "tenant/s", "streamed", false);
+			fail();
+		}catch(QuotaExceededException e){
+			assertTrue(String.valueOf(inputStream.readBytes), inputStream.readBytes<1024 * 1024);
+		}
+		TenantQuota quota=this.quotaManager.getQuota("tenant");
+		assertEquals(60 * 1024, quota.getUsedBytes());
+		assertEquals(1, quota.getUsedFiles());
+
+		//已写入的部分被删除，不留下临时文件
+		try(Stream<Path> paths=Files.list(this.fsBasePath.resolve("tenant/s"))){
+			assertEquals(1, paths.count());
+		}
+		assertEquals(null, this.support.getLastEvent(this.fsBasePath.resolve("tenant/s/streamed.bin").toString()));
+	}
+
+
+	@Test(timeout=30000)
+	public void writesAreThrottledPerTenant() throws Exception {
+		this.quotaManager.setQuota("slow", 0, 0, 200 * 1024);
+		this.quotaManager.setQuota("fast", 0, 0, 0);
+
+		//第一次取得许可不等待，之后按200Kb/s写入，约2秒
+		long start=System.nanoTime();
+		this.uploadManager.saveFile(new CountingInputStream(600 * 1024), "a.bin", "slow/s", "f", false);
+		long elapsedMillis=(System.nanoTime()-start) / 1000000;
+		assertTrue(String.valueOf(elapsedMillis), elapsedMillis>=1500);
+		assertEquals(600 * 1024, this.quotaManager.getQuota("slow").getUsedBytes());
+
+		//其他租户不受影响
+		start=System.nanoTime();
+		this.uploadManager.saveFile(new CountingInputStream(600 * 1024), "a.bin", "fast/s", "f", false);
+		elapsedMillis=(System.nanoTime()-start) / 1000000;
+		assertTrue(String.valueOf(elapsedMillis), elapsedMillis<1000);
+	}
+
+
+
+	//==================private functions===================
+	//产生size个字节并记录已读取字节数的输入流
+	private static class CountingInputStream extends InputStream {
+		private final long size;
+		private long readBytes;
+
+		CountingInputStream(long size) {
+			this.size = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(this.readBytes>=this.size){
+				return -1;
+			}
+			this.readBytes++;
+			return 7;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(this.readBytes>=this.size){
+				return -1;
+			}
+			int n=(int)Math.min(len, this.size-this.readBytes);
+			this.readBytes += n;
+			return n;
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+import org.junit.Test;
+
+
+/**
+ * 按名称中的时间戳划分子目录时时间段的边界、时区，以及不是ULID的名称使用fallback布局的测试
+ * @author xiangligu
+ *
+ */
+public class TimeShardLayoutTests {
+
+	private final HashShardLayout fallback = new HashShardLayout(1, 2);
+
+
+	@Test
+	public void daysAreSplitAtMidnight() {
+		TimeShardLayout layout=new TimeShardLayout(ChronoUnit.DAYS, ZoneOffset.UTC, this.fallback);
+		long midnight=this.millis(2016, 8, 26, 0, ZoneOffset.UTC);
+
+		//来回跨越边界，缓存的上一个时间段不影响结果
+		for(int i=0; i<2; i++){
+			assertEquals("2016/08/25", layout.getSubDir(this.idAt(midnight - 1)));
+			assertEquals("2016/08/26", layout.getSubDir(this.idAt(midnight)));
+			assertEquals("2016/08/26", layout.getSubDir(this.idAt(midnight + 24 * 3600 * 1000L - 1)));
+			assertEquals("2016/08/27", layout.getSubDir(this.idAt(midnight + 24 * 3600 * 1000L)));
+		}
+		assertEquals("2016/12/31", layout.getSubDir(this.idAt(this.millis(2017, 1, 1, 0, ZoneOffset.UTC) - 1) + ".jpg"));
+		//子目录随时间增加，只预先创建fallback布局的子目录
+		assertEquals(this.fallback.getAllSubDirs(), layout.getAllSubDirs());
+	}
+
+
+	@Test
+	public void hoursFollowTheZone() {
+		ZoneId shanghai=ZoneId.of("Asia/Shanghai");
+		TimeShardLayout layout=new TimeShardLayout(ChronoUnit.HOURS, shanghai, this.fallback);
+		long hour=this.millis(2016, 8, 25, 13, shanghai);
+		assertEquals("2016/08/25/12", layout.getSubDir(this.idAt(hour - 1)));
+		assertEquals("2016/08/25/13", layout.getSubDir(this.idAt(hour)));
+		assertEquals("2016/08/25/13", layout.getSubDir(this.idAt(hour + 3600 * 1000L - 1)));
+		assertEquals("2016/08/25/14", layout.getSubDir(this.idAt(hour + 3600 * 1000L)));
+
+		//UTC的16点在东八区已是第二天
+		assertEquals("2016/08/26/00", layout.getSubDir(this.idAt(this.millis(2016, 8, 25, 16, ZoneOffset.UTC))));
+	}
+
+
+	@Test
+	public void nonUlidNamesUseFallback() {
+		TimeShardLayout layout=new TimeShardLayout(ChronoUnit.DAYS, ZoneOffset.UTC, this.fallback);
+		String contentHash="9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+		assertEquals(this.fallback.getSubDir(contentHash), layout.getSubDir(contentHash));
+		assertEquals(this.fallback.getSubDir("report"), layout.getSubDir("report"));
+	}
+
+
+
+	//==================private functions===================
+	private long millis(int year, int month, int day, int hour, ZoneId zone) {
+		return ZonedDateTime.of(year, month, day, hour, 0, 0, 0, zone).toInstant().toEpochMilli();
+	}
+
+	//时间戳为millis的ULID
+	private String idAt(long millis) {
+		UlidFileIdGenerator.State state=new UlidFileIdGenerator.State();
+		state.advance(millis);
+		return state.encode();
+	}
+
+}
@@ -0,0 +1,115 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+/**
+ * ULID的Crockford base32编码、同一毫秒内随机部分的进位和溢出，以及从名称中取得时间戳的测试
+ * @author xiangligu
+ *
+ */
+public class UlidFileIdGeneratorTests {
+
+	@Test
+	public void timestampAndRandomPartsAreEncodedInCrockfordBase32() {
+		//ULID规范中的示例时间戳
+		assertEquals("01ARYZ6S41" + "0000000000000000", this.encode(1469918176385L, 0, 0));
+		assertEquals("01ARYZ6S41" + "ZZZZZZZZZZZZZZZZ", this.encode(1469918176385L, 0xffff, -1L));
+		//randomHigh的最低位位于80位随机数的第64位，即随机部分从右数第13个字符的最高位
+		assertEquals("0000000000" + "000G000000000000", this.encode(0, 1, 0));
+		assertEquals("0000000000" + "0000000000000001", this.encode(0, 0, 1));
+		assertEquals("7ZZZZZZZZZ" + "0000000000000000", this.encode((1L << 48) - 1, 0, 0));
+	}
+
+
+	@Test
+	public void randomPartIsIncrementedWithinSameMillisecond() {
+		UlidFileIdGenerator.State state=new UlidFileIdGenerator.State();
+		state.advance(1000);
+		state.randomHigh=5;
+		state.randomLow=-1L;
+
+		//低64位进位到randomHigh
+		state.advance(1000);
+		assertEquals(1000, state.lastMillis);
+		assertEquals(6, state.randomHigh);
+		assertEquals(0, state.randomLow);
+		assertEquals("00000000Z8" + "0030000000000000", state.encode());
+
+		//系统时间回拨时沿用上一个时间戳
+		state.advance(500);
+		assertEquals(1000, state.lastMillis);
+		assertEquals(1, state.randomLow);
+
+		//80位随机数溢出时使用下一毫秒
+		state.randomHigh=0xffff;
+		state.randomLow=-1L;
+		String before=state.encode();
+		state.advance(1000);
+		assertEquals(1001, state.lastMillis);
+		assertEquals(0, state.randomHigh);
+		assertTrue(state.encode().compareTo(before)>0);
+
+		//时间前进后重新生成随机部分
+		state.advance(2000);
+		assertEquals(2000, state.lastMillis);
+	}
+
+
+	@Test
+	public void idsAreMonotonicAndCarryTheirTimestamp() {
+		UlidFileIdGenerator generator=new UlidFileIdGenerator();
+		long start=System.currentTimeMillis();
+		List<String> ids=new ArrayList<>();
+		for(int i=0; i<10000; i++){
+			ids.add(generator.nextId());
+		}
+		long end=System.currentTimeMillis();
+
+		for(int i=0; i<ids.size(); i++){
+			String id=ids.get(i);
+			assertEquals(UlidFileIdGenerator.ID_LENGTH, id.length());
+			if(i>0){
+				assertTrue(id, id.compareTo(ids.get(i-1))>0);
+			}
+			long timestamp=UlidFileIdGenerator.getTimestamp(id);
+			assertTrue(id, timestamp>=start && timestamp<=end + 1);
+			//可以带扩展名，不区分大小写
+			assertEquals(timestamp, UlidFileIdGenerator.getTimestamp(id + ".jpg"));
+			assertEquals(timestamp, UlidFileIdGenerator.getTimestamp(id.toLowerCase()));
+		}
+	}
+
+
+	@Test
+	public void nonUlidNamesHaveNoTimestamp() {
+		String id=this.encode(1469918176385L, 0, 0);
+		assertEquals(1469918176385L, UlidFileIdGenerator.getTimestamp(id));
+		assertEquals(-1, UlidFileIdGenerator.getTimestamp(null));
+		assertEquals(-1, UlidFileIdGenerator.getTimestamp(id.substring(1)));
+		//第一个字符超过7时超出48位时间戳的范围
+		assertEquals(-1, UlidFileIdGenerator.getTimestamp("8" + id.substring(1)));
+		//U、I、L、O不属于Crockford base32
+		assertEquals(-1, UlidFileIdGenerator.getTimestamp(id.substring(0, 25) + "U"));
+		assertEquals(-1, UlidFileIdGenerator.getTimestamp(id + "x"));
+		assertEquals(-1, UlidFileIdGenerator.getTimestamp("0123456789abcdef0123456789abcdef"));
+	}
+
+
+
+	//==================private functions===================
+	private String encode(long millis, int randomHigh, long randomLow) {
+		UlidFileIdGenerator.State state=new UlidFileIdGenerator.State();
+		state.lastMillis=millis;
+		state.randomHigh=randomHigh;
+		state.randomLow=randomLow;
+		return state.encode();
+	}
+
+}
@@ -0,0 +1,290 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.Checksum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.web.MockMultipartFile;
+
+
+/**
+ * 保存文件时计算校验和，以及UploadScrubber按校验和发现损坏文件的测试
+ * @author xiangligu
+ *
+ */
+public class UploadScrubberTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private Path fsBasePath;
+	private SimpleUploadManager uploadManager;
+	private UploadedFileMetadataStore metadataStore;
+	//数据库中记录的校验和，键为文件路径
+	private final Map<String, String> checksums = new ConcurrentHashMap<>();
+	private UploadScrubber scrubber;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.fsBasePath = this.support.getFsBasePath();
+		this.uploadManager = this.support.getUploadManager();
+
+		this.metadataStore = Mockito.mock(UploadedFileMetadataStore.class);
+		Mockito.when(this.metadataStore.findChecksumsIn(Mockito.any(Path.class))).thenAnswer(invocation -> {
+			Path directory=(Path)invocation.getArguments()[0];
+			return this.checksums.entrySet().stream().filter(entry -> Paths.get(entry.getKey()).getParent().equals(directory))
+					.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		});
+		Mockito.when(this.metadataStore.findByFilePath(Mockito.anyString())).thenAnswer(invocation -> {
+			String checksum=this.checksums.get((String)invocation.getArguments()[0]);
+			if(checksum==null){
+				return null;
+			}
+			UploadedFileRecord record=new UploadedFileRecord();
+			record.setChecksum(checksum);
+			return record;
+		});
+
+		this.scrubber = new UploadScrubber(this.uploadManager, this.metadataStore);
+		this.uploadManager.addFileListener(this.scrubber.getFileListener());
+	}
+
+
+	@After
+	public void tearDown() throws InterruptedException {
+		this.scrubber.shutdown();
+	}
+
+
+	@Test
+	public void checksumsAreComputedWhileWriting() throws Exception {
+		this.uploadManager.setFileCompressor(new FileCompressor(Arrays.asList("csv")));
+		byte[] csv=String.join("\n", Collections.nCopies(1000, "a,b,c")).getBytes(StandardCharsets.US_ASCII);
+
+		//并发以multipart和输入流保存，校验和按写入文件系统的数据（压缩保存的文件为压缩后的数据）计算
+		List<Callable<UploadedFileInfo>> tasks=new ArrayList<>();
+		for(int i=0; i<this.support.getThreads(); i++){
+			int seed=i;
+			tasks.add(() -> seed % 2==0 ? this.uploadManager.saveFile(UploadTestSupport.newFile(seed, 1000 + seed), "c", "f-" + seed, false)
+					: this.uploadManager.saveFile(new ByteArrayInputStream(csv), "data.csv", "c", "f-" + seed, false));
+		}
+		for(Future<UploadedFileInfo> future : this.support.runTogether(tasks)){
+			UploadedFileInfo fileInfo=future.get();
+			Checksum checksum=FileChecksum.newChecksum(FileChecksum.getAlgorithm(fileInfo.getChecksum()));
+			byte[] stored=Files.readAllBytes(Paths.get(fileInfo.getFilePath()));
+			checksum.update(stored, 0, stored.length);
+			assertEquals(FileChecksum.format(FileChecksum.getDefaultAlgorithm(), checksum), fileInfo.getChecksum());
+		}
+
+		//关闭后不再计算校验和
+		this.uploadManager.setChecksumEnabled(false);
+		assertEquals(null, this.uploadManager.saveFile(UploadTestSupport.newFile(0, 1000), "c", "unchecked", false).getChecksum());
+	}
+
+
+
+	@Test
+	public void diskBufferedUploadIsReadOnceForChecksum() throws Exception {
+		int size=300 * 1024;
+		Path part=Files.write(this.fsBasePath.resolve("upload.part"), this.newContent(7, size));
+		AtomicLong readBytes=new AtomicLong();
+		//与web服务器缓存在磁盘上的上传文件相同，getInputStream返回FileInputStream，记录经read读出的字节数
+		MockMultipartFile multipartFile=new MockMultipartFile("file", "origin.bin", "application/octet-stream", new byte[0]) {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return new FileInputStream(part.toFile()) {
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n=super.read(b, off, len);
+						readBytes.addAndGet(Math.max(n, 0));
+						return n;
+					}
+				};
+			}
+
+			@Override
+			public long getSize() {
+				return size;
+			}
+		};
+
+		//校验和在写入的复制过程中计算：缓存文件只读取一遍，校验和与写入的数据一致
+		UploadedFileInfo fileInfo=this.uploadManager.saveFile(multipartFile, "c", "checked", false);
+		assertEquals(size, readBytes.get());
+		assertTrue(Arrays.equals(Files.readAllBytes(part), Files.readAllBytes(Paths.get(fileInfo.getFilePath()))));
+		assertEquals(this.checksumOf(Paths.get(fileInfo.getFilePath())), fileInfo.getChecksum());
+
+		//关闭校验和后由transferTo零拷贝传输，不经过read
+		this.uploadManager.setChecksumEnabled(false);
+		readBytes.set(0);
+		fileInfo=this.uploadManager.saveFile(multipartFile, "c", "unchecked", false);
+		assertEquals(0, readBytes.get());
+		assertTrue(Arrays.equals(Files.readAllBytes(part), Files.readAllBytes(Paths.get(fileInfo.getFilePath()))));
+	}
+
+
+	@Test
+	public void corruptedFileIsReportedUntilOverwritten() throws Exception {
+		List<Path> paths=new ArrayList<>();
+		for(int i=0; i<5; i++){
+			paths.add(this.save("s", "f-" + i, this.newContent(i, 10000)));
+		}
+		Path corrupted=paths.get(2);
+		this.corrupt(corrupted, 5000);
+
+		assertTrue(this.scrubber.scrub());
+		assertEquals(5, this.scrubber.getScannedFiles());
+		assertEquals(5 * 10000, this.scrubber.getScannedBytes());
+		assertEquals(1, this.scrubber.getMismatchedFiles());
+		UploadScrubber.Mismatch mismatch=this.scrubber.getMismatches().iterator().next();
+		assertEquals(corrupted.toString(), mismatch.getFilePath());
+		assertEquals(this.checksums.get(corrupted.toString()), mismatch.getExpectedChecksum());
+		assertEquals(this.checksumOf(corrupted), mismatch.getActualChecksum());
+
+		//覆盖后不再报告
+		this.save("s", "f-2", this.newContent(9, 10000));
+		assertEquals(0, this.scrubber.getMismatchCount());
+		assertTrue(this.scrubber.scrub());
+		assertEquals(0, this.scrubber.getMismatchedFiles());
+	}
+
+
+	@Test
+	public void fileOverwrittenDuringCheckIsNotReported() throws Exception {
+		Path path=this.save("s", "f", this.newContent(1, 10000));
+		String expected=this.checksums.get(path.toString());
+		this.corrupt(path, 10);
+
+		//查询到校验和之后、比较之前文件被覆盖，再次查询时记录已改变
+		Mockito.when(this.metadataStore.findByFilePath(path.toString())).thenAnswer(invocation -> {
+			UploadedFileRecord record=new UploadedFileRecord();
+			record.setChecksum(expected + "0");
+			return record;
+		});
+		assertTrue(this.scrubber.scrub());
+		assertEquals(0, this.scrubber.getMismatchedFiles());
+		assertEquals(1, this.scrubber.getSkippedFiles());
+
+		//最近修改过的文件不检查
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		assertTrue(this.scrubber.scrub());
+		assertEquals(0, this.scrubber.getScannedFiles());
+		assertEquals(1, this.scrubber.getSkippedFiles());
+	}
+
+
+	@Test
+	public void scrubResumesFromCheckpoint() throws Exception {
+		Path done=this.save("done", "f", this.newContent(1, 1000));
+		Path pending=this.save("pending", "f", this.newContent(2, 1000));
+		this.corrupt(done, 0);
+		this.corrupt(pending, 0);
+
+		//模拟上次检查处理完done目录后中断
+		Path checkpoint=this.fsBasePath.resolve(".scrub").resolve("checkpoint");
+		Files.createDirectories(checkpoint.getParent());
+		Files.write(checkpoint, Collections.singletonList("done"), StandardCharsets.UTF_8);
+
+		//已完成的目录不再检查，全部目录处理完后删除检查点
+		assertTrue(this.scrubber.scrub());
+		assertEquals(1, this.scrubber.getScannedFiles());
+		assertEquals(1, this.scrubber.getMismatchCount());
+		assertEquals(pending.toString(), this.scrubber.getMismatches().iterator().next().getFilePath());
+		assertFalse(Files.exists(checkpoint));
+
+		//下次检查从头开始
+		assertTrue(this.scrubber.scrub());
+		assertEquals(2, this.scrubber.getScannedFiles());
+		assertEquals(2, this.scrubber.getMismatchCount());
+	}
+
+
+	@Test(timeout=30000)
+	public void readsAreRateLimited() throws Exception {
+		for(int i=0; i<4; i++){
+			this.save("s", "f-" + i, this.newContent(i, 150 * 1024));
+		}
+		this.scrubber.setBytesPerSecond(200 * 1024);
+
+		//第一次取得许可不等待，其余约500Kb按200Kb/s读取
+		long start=System.nanoTime();
+		assertTrue(this.scrubber.scrub());
+		long elapsedMillis=(System.nanoTime()-start) / 1000000;
+		assertEquals(4 * 150 * 1024, this.scrubber.getScannedBytes());
+		assertTrue(String.valueOf(elapsedMillis), elapsedMillis>=2000);
+	}
+
+
+
+	//==================private functions===================
+	private byte[] newContent(int seed, int size){
+		byte[] content=new byte[size];
+		for(int i=0; i<size; i++){
+			content[i]=(byte)(seed * 31 + i);
+		}
+		return content;
+	}
+
+	//保存文件并记录校验和，最后修改时间设为较早的时间，不会被当作最近修改过的文件跳过
+	private Path save(String subDir, String newFileName, byte[] content) throws IOException {
+		UploadedFileInfo fileInfo=this.uploadManager.saveFile(new ByteArrayInputStream(content), newFileName + ".bin", subDir, newFileName, true);
+		this.checksums.put(fileInfo.getFilePath(), fileInfo.getChecksum());
+		Path path=Paths.get(fileInfo.getFilePath());
+		this.makeOld(path);
+		return path;
+	}
+
+	private void makeOld(Path path) throws IOException {
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 10 * 60 * 1000));
+	}
+
+	//翻转一个字节，保持最后修改时间不变
+	private void corrupt(Path path, long position) throws IOException {
+		FileTime modifiedTime=Files.getLastModifiedTime(path);
+		try(FileChannel channel=FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			ByteBuffer buffer=ByteBuffer.allocate(1);
+			channel.read(buffer, position);
+			buffer.put(0, (byte)~buffer.get(0));
+			buffer.rewind();
+			channel.write(buffer, position);
+		}
+		Files.setLastModifiedTime(path, modifiedTime);
+	}
+
+	private String checksumOf(Path path) throws IOException {
+		Checksum checksum=FileChecksum.newChecksum();
+		byte[] content=Files.readAllBytes(path);
+		checksum.update(content, 0, content.length);
+		return FileChecksum.format(FileChecksum.getDefaultAlgorithm(), checksum);
+	}
+
+}
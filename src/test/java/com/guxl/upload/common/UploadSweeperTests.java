@@ -0,0 +1,222 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+
+/**
+ * UploadSweeper隔离孤立文件、删除过期临时文件和blob，以及从检查点继续的测试
+ * @author xiangligu
+ *
+ */
+public class UploadSweeperTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private Path fsBasePath;
+	private SimpleUploadManager uploadManager;
+	private UploadedFileMetadataStore metadataStore;
+	//数据库中已记录的文件路径
+	private final Set<String> recorded = ConcurrentHashMap.newKeySet();
+	private UploadSweeper sweeper;
+
+
+	@Before
+	public void setUp() {
+		this.fsBasePath = this.support.getFsBasePath();
+		this.uploadManager = this.support.getUploadManager();
+
+		this.metadataStore = Mockito.mock(UploadedFileMetadataStore.class);
+		Mockito.when(this.metadataStore.findFilePathsIn(Mockito.any(Path.class))).thenAnswer(invocation -> {
+			Path directory=(Path)invocation.getArguments()[0];
+			return this.recorded.stream().filter(filePath -> Paths.get(filePath).getParent().equals(directory)).collect(Collectors.toSet());
+		});
+		Mockito.doAnswer(invocation -> this.recorded.remove(invocation.getArguments()[0])).when(this.metadataStore).fileRemoved(Mockito.anyString());
+
+		this.sweeper = new UploadSweeper(this.uploadManager, this.metadataStore, 2);
+		this.sweeper.setOrphanAge(Duration.ofHours(1));
+		this.sweeper.setTempFileAge(Duration.ofHours(1));
+		this.sweeper.setQuarantineAge(Duration.ofHours(1));
+		this.sweeper.setDeleteEnabled(true);
+	}
+
+
+	@After
+	public void tearDown() throws InterruptedException {
+		this.sweeper.shutdown();
+	}
+
+
+	@Test
+	public void orphanIsQuarantinedAndDeletedAfterGracePeriod() throws Exception {
+		Path kept=this.save("tenant/dir", "kept", true);
+		Path orphan=this.save("tenant/dir", "orphan", false);
+		Path fresh=Paths.get(this.uploadManager.saveFile(new ByteArrayInputStream(new byte[10]), "fresh.bin", "tenant/dir", "fresh", false)
+				.getFilePath());
+		String missing=this.fsBasePath.resolve("tenant/dir/missing.bin").toString();
+		this.recorded.add(missing);
+
+		//孤立文件移到隔离目录，刚保存的文件和有记录的文件不受影响，缺失文件的记录被删除
+		assertTrue(this.sweeper.sweep());
+		Path quarantined=this.quarantined(orphan);
+		assertFalse(Files.exists(orphan));
+		assertTrue(Files.exists(quarantined));
+		assertTrue(Files.exists(kept));
+		assertTrue(Files.exists(fresh));
+		assertEquals(1, this.sweeper.getOrphanFiles());
+		assertEquals(1, this.sweeper.getQuarantinedFiles());
+		assertEquals(1, this.sweeper.getMissingFiles());
+		Mockito.verify(this.metadataStore).fileRemoved(missing);
+
+		//隔离期内不删除
+		assertTrue(this.sweeper.sweep());
+		assertTrue(Files.exists(quarantined));
+
+		this.makeOld(quarantined);
+		assertTrue(this.sweeper.sweep());
+		assertFalse(Files.exists(quarantined));
+		assertEquals(1, this.sweeper.getDeletedFiles());
+	}
+
+
+	@Test
+	public void quarantinedFileWithLateRecordIsKept() throws Exception {
+		Path orphan=this.save("tenant/late", "late", false);
+		assertTrue(this.sweeper.sweep());
+		Path quarantined=this.quarantined(orphan);
+		assertTrue(Files.exists(quarantined));
+
+		//隔离之后才写入的记录：隔离期满也不删除
+		this.recorded.add(orphan.toString());
+		this.makeOld(quarantined);
+		assertTrue(this.sweeper.sweep());
+		assertTrue(Files.exists(quarantined));
+		assertEquals(0, this.sweeper.getDeletedFiles());
+		assertEquals(0, this.sweeper.getMissingFiles());
+		Mockito.verify(this.metadataStore, Mockito.never()).fileRemoved(orphan.toString());
+	}
+
+
+	@Test
+	public void reportOnlySweepChangesNothing() throws Exception {
+		Path orphan=this.save("tenant/dir", "orphan", false);
+		Path staleTemp=this.createOld(orphan.resolveSibling(".orphan.bin.0123.tmp"));
+		this.sweeper.setDeleteEnabled(false);
+
+		assertTrue(this.sweeper.sweep());
+		assertEquals(1, this.sweeper.getOrphanFiles());
+		assertEquals(1, this.sweeper.getStaleTempFiles());
+		assertEquals(0, this.sweeper.getQuarantinedFiles());
+		assertEquals(0, this.sweeper.getDeletedFiles());
+		assertTrue(Files.exists(orphan));
+		assertTrue(Files.exists(staleTemp));
+	}
+
+
+	@Test
+	public void staleTempFilesAndUnreferencedBlobsAreDeleted() throws Exception {
+		Assume.assumeTrue("文件系统不支持硬链接数", Files.getFileStore(this.fsBasePath).supportsFileAttributeView("unix"));
+		Path directory=this.save("tenant/dir", "kept", true).getParent();
+		Path staleTemp=this.createOld(directory.resolve(".kept.bin.0123.tmp"));
+		Path freshTemp=Files.write(directory.resolve(".kept.bin.4567.tmp"), new byte[1]);
+		Path stalePart=this.createOld(this.fsBasePath.resolve(SimpleUploadManager.UPLOAD_SESSION_DIR).resolve("abandoned.part"));
+		ContentAddressedStore contentStore=this.uploadManager.getVolumes().get(0).getContentStore();
+		Path staleCasTemp=this.createOld(contentStore.getTempDir().resolve("abandoned"));
+
+		//被引用的blob保留；上传文件被外部删除后，只剩blob自身的链接
+		UploadedFileInfo referenced=this.uploadManager.saveFileDeduplicated(new ByteArrayInputStream(new byte[100]), "a.bin");
+		this.recorded.add(referenced.getFilePath());
+		UploadedFileInfo unreferenced=this.uploadManager.saveFileDeduplicated(new ByteArrayInputStream(new byte[200]), "b.bin");
+		Files.delete(Paths.get(unreferenced.getFilePath()));
+		Path referencedBlob=contentStore.getBlobPath(referenced.getContentHash());
+		Path unreferencedBlob=contentStore.getBlobPath(unreferenced.getContentHash());
+		this.makeOld(referencedBlob);
+		this.makeOld(unreferencedBlob);
+
+		assertTrue(this.sweeper.sweep());
+		assertFalse(Files.exists(staleTemp));
+		assertTrue(Files.exists(freshTemp));
+		assertFalse(Files.exists(stalePart));
+		assertFalse(Files.exists(staleCasTemp));
+		assertTrue(Files.exists(referencedBlob));
+		assertFalse(Files.exists(unreferencedBlob));
+		assertEquals(3, this.sweeper.getStaleTempFiles());
+		assertEquals(1, this.sweeper.getOrphanFiles());
+		assertEquals(0, this.sweeper.getQuarantinedFiles());
+	}
+
+
+	@Test
+	public void sweepResumesFromCheckpoint() throws Exception {
+		Path done=this.save("tenant/done", "orphan", false);
+		Path pending=this.save("tenant/pending", "orphan", false);
+
+		//模拟上次清理处理完tenant/done后中断
+		Path checkpoint=this.fsBasePath.resolve(".sweep").resolve("checkpoint");
+		Files.createDirectories(checkpoint.getParent());
+		Files.write(checkpoint, Collections.singletonList(this.fsBasePath.relativize(done.getParent()).toString()), StandardCharsets.UTF_8);
+
+		//已完成的目录不再检查，全部目录处理完后删除检查点
+		assertTrue(this.sweeper.sweep());
+		assertTrue(Files.exists(done));
+		assertFalse(Files.exists(pending));
+		assertFalse(Files.exists(checkpoint));
+
+		//下次清理从头开始
+		assertTrue(this.sweeper.sweep());
+		assertFalse(Files.exists(done));
+		assertTrue(Files.exists(this.quarantined(done)));
+	}
+
+
+
+	//==================private functions===================
+	//保存一个最后修改时间较早的文件，recorded为true时同时记入数据库
+	private Path save(String subDir, String newFileName, boolean recorded) throws IOException {
+		UploadedFileInfo fileInfo=this.uploadManager.saveFile(new ByteArrayInputStream(new byte[10]), newFileName + ".bin", subDir,
+				newFileName, false);
+		Path path=Paths.get(fileInfo.getFilePath());
+		this.makeOld(path);
+		if(recorded){
+			this.recorded.add(fileInfo.getFilePath());
+		}
+		return path;
+	}
+
+	private Path createOld(Path path) throws IOException {
+		Files.createDirectories(path.getParent());
+		Files.write(path, new byte[10]);
+		this.makeOld(path);
+		return path;
+	}
+
+	private void makeOld(Path path) throws IOException {
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - Duration.ofDays(2).toMillis()));
+	}
+
+	private Path quarantined(Path path) {
+		return this.fsBasePath.resolve(".sweep").resolve("quarantine").resolve(this.fsBasePath.relativize(path));
+	}
+
+}
@@ -0,0 +1,160 @@
+package com.guxl.upload.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.rules.ExternalResource;
+import org.springframework.mock.web.MockMultipartFile;
+
+
+/**
+ * 测试共用的上传环境，作为@Rule使用：每个测试开始前在新建的临时目录上创建SimpleUploadManager，测试结束后关闭并删除该目录。
+ * 测试类的@After在此之前执行，可以先关闭依赖uploadManager的其他对象。
+ * <p> 同时记录每个文件最后一次收到的事件，并提供内容全部为同一个字节的测试文件，以及让一组任务同时开始执行的线程池。
+ * @author xiangligu
+ *
+ */
+class UploadTestSupport extends ExternalResource {
+
+	private final int threads;
+	private Path fsBasePath;
+	private SimpleUploadManager uploadManager;
+	private ExecutorService executor;
+	//每个文件最后一次事件：保存时为文件大小，删除时为-1
+	private final Map<String, Long> lastEvents = new ConcurrentHashMap<>();
+
+
+	UploadTestSupport() {
+		this(16);
+	}
+
+
+	/**
+	 * @param threads runTogether所使用的线程数
+	 */
+	UploadTestSupport(int threads) {
+		this.threads = threads;
+	}
+
+
+	Path getFsBasePath() {
+		return this.fsBasePath;
+	}
+
+	SimpleUploadManager getUploadManager() {
+		return this.uploadManager;
+	}
+
+	int getThreads() {
+		return this.threads;
+	}
+
+
+	/**
+	 * @return runTogether所使用的线程池，第一次调用时创建
+	 */
+	synchronized ExecutorService getExecutor() {
+		if(this.executor==null){
+			this.executor = Executors.newFixedThreadPool(this.threads);
+		}
+		return this.executor;
+	}
+
+
+	/**
+	 * @param fullPathFileName
+	 * @return 文件最后一次事件：保存时为文件大小，删除时为-1，没有事件时为null
+	 */
+	Long getLastEvent(String fullPathFileName) {
+		return this.lastEvents.get(fullPathFileName);
+	}
+
+
+	/**
+	 * 内容全部为同一个字节的文件，用于检查保存后的文件是否完整、是否混入了其他线程写入的数据
+	 * @param seed 文件内容的字节
+	 * @param size 文件的字节数
+	 * @return
+	 */
+	static MockMultipartFile newFile(int seed, int size) {
+		byte[] content=new byte[size];
+		Arrays.fill(content, (byte)seed);
+		return new MockMultipartFile("file", "origin.bin", "application/octet-stream", content);
+	}
+
+
+	/**
+	 * 所有任务在同一时刻开始执行，任务数超过线程数时其余任务排队
+	 * @param tasks
+	 * @return 各任务的结果，顺序与tasks相同
+	 */
+	<T> List<Future<T>> runTogether(List<Callable<T>> tasks) {
+		ExecutorService executor=this.getExecutor();
+		CountDownLatch start=new CountDownLatch(1);
+		List<Future<T>> futures=new ArrayList<>(tasks.size());
+		for(Callable<T> task : tasks){
+			futures.add(executor.submit(() -> {
+				start.await();
+				return task.call();
+			}));
+		}
+		start.countDown();
+		return futures;
+	}
+
+
+	@Override
+	protected void before() throws IOException {
+		this.fsBasePath = Files.createTempDirectory("UploadTestSupport");
+		this.uploadManager = new SimpleUploadManager();
+		this.uploadManager.setFsBasePath(this.fsBasePath.toString());
+		this.uploadManager.setUrlBasePath("/upload/");
+		this.uploadManager.setFileSizeLimit("10Mb");
+		this.uploadManager.setFileWriter(new StreamingUploadedFileWriter());
+		this.uploadManager.addFileListener(new UploadedFileListener() {
+			@Override
+			public void fileSaved(UploadedFileInfo fileInfo) {
+				UploadTestSupport.this.lastEvents.put(fileInfo.getFilePath(), fileInfo.getFileSize());
+			}
+
+			@Override
+			public void fileRemoved(String fullPathFileName) {
+				UploadTestSupport.this.lastEvents.put(fullPathFileName, -1L);
+			}
+		});
+	}
+
+
+	@Override
+	protected void after() {
+		if(this.executor!=null){
+			this.executor.shutdownNow();
+		}
+		this.uploadManager.shutdown();
+		try{
+			this.uploadManager.getCommitScheduler().shutdown();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		try(Stream<Path> paths=Files.walk(this.fsBasePath)){
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}catch(IOException e){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
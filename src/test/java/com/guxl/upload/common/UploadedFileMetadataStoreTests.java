@@ -0,0 +1,78 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class UploadedFileMetadataStoreTests {
+	
+	@Autowired
+	UploadedFileMetadataStore metadataStore;
+
+	@Test
+	public void recordsSaveOverwriteAndRemove() throws InterruptedException {
+		for(int i=0; i<250; i++){
+			this.metadataStore.fileSaved(this.fileInfo("/data/ab/" + i + ".txt", "/upload/ab/" + i + ".txt", i));
+		}
+		//覆盖保存同一路径的文件，只保留最新的记录
+		this.metadataStore.fileSaved(this.fileInfo("/data/ab/7.txt", "/upload/ab/7.txt", 700));
+		this.metadataStore.fileRemoved("/data/ab/8.txt");
+		assertTrue(this.metadataStore.flush());
+		
+		assertEquals(Long.valueOf(700), this.metadataStore.findByUrlPath("/upload/ab/7.txt").getFileSize());
+		assertNotNull(this.metadataStore.findByFilePath("/data/ab/9.txt"));
+		assertNull(this.metadataStore.findByFilePath("/data/ab/8.txt"));
+		assertEquals(249, this.metadataStore.findByFileType("txt").size());
+	}
+	
+	
+	@Test(timeout=10000)
+	public void failedBatchIsRetriedUntilWritten() throws InterruptedException {
+		//数据库前两次写入失败，第三次成功
+		UploadedFileRecordRepository repository=Mockito.mock(UploadedFileRecordRepository.class);
+		Mockito.doThrow(new DataAccessResourceFailureException("down")).doThrow(new DataAccessResourceFailureException("down")).doReturn(null)
+				.when(repository).save(Mockito.<Iterable<UploadedFileRecord>>any());
+		UploadedFileMetadataStore store=new UploadedFileMetadataStore(repository, Mockito.mock(PlatformTransactionManager.class));
+		store.start();
+		try{
+			store.fileSaved(this.fileInfo("/data/ab/1.txt", "/upload/ab/1.txt", 1));
+			store.fileSaved(this.fileInfo("/data/ab/2.txt", "/upload/ab/2.txt", 2));
+			//第一次重试前flush()超时，记录仍然保留
+			assertFalse(store.flush(10, TimeUnit.MILLISECONDS));
+			assertTrue(store.flush());
+			assertEquals(2, store.getFailedWriteCount());
+			Mockito.verify(repository, Mockito.times(3)).save(Mockito.<Iterable<UploadedFileRecord>>any());
+		}finally{
+			store.stop();
+		}
+	}
+	
+	
+	private UploadedFileInfo fileInfo(String filePath, String urlPath, long size){
+		UploadedFileInfo fileInfo=new UploadedFileInfo();
+		fileInfo.setFileName("origin.txt");
+		fileInfo.setFileType("txt");
+		fileInfo.setFilePath(filePath);
+		fileInfo.setUrlPath(urlPath);
+		fileInfo.setFileSize(size);
+		fileInfo.setSaveTime(LocalDateTime.now());
+		return fileInfo;
+	}
+
+}
@@ -0,0 +1,279 @@
+package com.guxl.upload.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.guxl.upload.app.ZipDownloadController;
+import com.guxl.upload.common.exception.UploadQueueFullException;
+
+
+/**
+ * 打包下载时按扩展名选择压缩级别、跳过不存在的文件、处理重名，以及并发数上限和客户端断开时停止读取的测试
+ * @author xiangligu
+ *
+ */
+public class ZipArchiveStreamerTests {
+
+	@Rule
+	public final UploadTestSupport support = new UploadTestSupport();
+	private SimpleUploadManager uploadManager;
+	private UploadedFileLocator fileLocator;
+	private ZipArchiveStreamer zipArchiveStreamer;
+
+
+	@Before
+	public void setUp() {
+		this.uploadManager = this.support.getUploadManager();
+		this.fileLocator = new UploadedFileLocator(this.uploadManager, null);
+		this.uploadManager.addFileListener(this.fileLocator.getFileListener());
+	}
+
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if(this.zipArchiveStreamer!=null){
+			this.zipArchiveStreamer.shutdown();
+		}
+	}
+
+
+	@Test
+	public void storedTypesAreWrittenWithoutCompression() throws Exception {
+		this.zipArchiveStreamer = new ZipArchiveStreamer(this.fileLocator, 2);
+		byte[] content=new byte[200 * 1024];
+		String image=this.save(content, "photo.PNG", "z", "image").getUrlPath();
+		String data=this.save(content, "data.bin", "z", "data").getUrlPath();
+
+		//扩展名在storedTypes中的文件（不区分大小写）以压缩级别0写入，其他文件按level压缩
+		Map<String, ZipEntry> entries=this.readEntries(this.zip(Arrays.asList(image, data)));
+		assertEquals(Arrays.asList("photo.PNG", "data.bin"), new ArrayList<>(entries.keySet()));
+		for(ZipEntry entry : entries.values()){
+			assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+			assertEquals(content.length, entry.getSize());
+		}
+		assertTrue(entries.get("photo.PNG").getCompressedSize()>=content.length);
+		assertTrue(entries.get("data.bin").getCompressedSize()<content.length / 100);
+
+		this.zipArchiveStreamer.setStoredTypes(Arrays.asList("bin"));
+		entries=this.readEntries(this.zip(Arrays.asList(image, data)));
+		assertTrue(entries.get("photo.PNG").getCompressedSize()<content.length / 100);
+		assertTrue(entries.get("data.bin").getCompressedSize()>=content.length);
+	}
+
+
+	@Test
+	public void missingFilesAreSkipped() throws Exception {
+		this.zipArchiveStreamer = new ZipArchiveStreamer(this.fileLocator, 2);
+		UploadedFileInfo kept=this.save(new byte[100], "kept.txt", "z", "kept");
+		UploadedFileInfo deleted=this.save(new byte[100], "deleted.txt", "z", "deleted");
+		//文件信息已被缓存，打包时才发现文件已被删除
+		this.fileLocator.locate(deleted.getUrlPath());
+		Files.delete(Paths.get(deleted.getFilePath()));
+
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		assertEquals(1, this.zipArchiveStreamer.writeFiles(Arrays.asList("/upload/z/missing.txt", deleted.getUrlPath(), kept.getUrlPath()), out));
+		assertEquals(Arrays.asList("kept.txt"), new ArrayList<>(this.readEntries(out.toByteArray()).keySet()));
+	}
+
+
+	@Test
+	public void duplicateNamesAreMadeUnique() throws Exception {
+		this.zipArchiveStreamer = new ZipArchiveStreamer(this.fileLocator, 2);
+		List<String> urlPaths=new ArrayList<>();
+		for(int i=0; i<3; i++){
+			urlPaths.add(this.save(new byte[10], "report.pdf", "z", "report-" + i).getUrlPath());
+		}
+		for(int i=0; i<2; i++){
+			urlPaths.add(this.save(new byte[10], "README", "z", "readme-" + i).getUrlPath());
+		}
+
+		//重名时在扩展名前加上“ (n)”，没有扩展名时加在最后
+		assertEquals(Arrays.asList("report.pdf", "report (1).pdf", "report (2).pdf", "README", "README (1)"),
+				new ArrayList<>(this.readEntries(this.zip(urlPaths)).keySet()));
+	}
+
+
+	@Test(timeout=30000)
+	public void downloadsOverMaxStreamsAreRejected() throws Exception {
+		this.zipArchiveStreamer = new ZipArchiveStreamer(this.fileLocator, 1);
+		//超过全部缓冲区大小的文件：第一个打包下载在写出数据时停住，其读取线程等待空闲的缓冲区
+		List<String> urlPaths=Arrays.asList(this.save(new byte[1024 * 1024], "a.bin", "z", "a").getUrlPath());
+		CountDownLatch writing=new CountDownLatch(1);
+		CountDownLatch resume=new CountDownLatch(1);
+		OutputStream blocked=new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				writing.countDown();
+				try{
+					resume.await();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+				super.write(b, off, len);
+			}
+		};
+		Future<Integer> first=this.support.getExecutor().submit(() -> this.zipArchiveStreamer.writeFiles(urlPaths, blocked));
+		writing.await();
+
+		try{
+			this.zipArchiveStreamer.writeFiles(urlPaths, new ByteArrayOutputStream());
+			fail();
+		}catch(UploadQueueFullException e){
+			assertEquals(1, this.zipArchiveStreamer.getRejectedCount());
+		}
+
+		//controller返回503和Retry-After
+		ZipDownloadController controller=new ZipDownloadController();
+		ReflectionTestUtils.setField(controller, "zipArchiveStreamer", this.zipArchiveStreamer);
+		ReflectionTestUtils.setField(controller, "retryAfterSeconds", 3);
+		MockMvc mockMvc=MockMvcBuilders.standaloneSetup(controller).build();
+		mockMvc.perform(get("/zip-download").param("path", urlPaths.get(0)))
+				.andExpect(status().isServiceUnavailable())
+				.andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"));
+
+		resume.countDown();
+		assertEquals(1, first.get().intValue());
+		assertEquals(0, this.zipArchiveStreamer.getActiveCount());
+	}
+
+
+	@Test(timeout=30000)
+	public void readerStopsWhenClientDisconnects() throws Exception {
+		this.zipArchiveStreamer = new ZipArchiveStreamer(this.fileLocator, 1);
+		List<String> urlPaths=new ArrayList<>();
+		for(int i=0; i<20; i++){
+			urlPaths.add(this.save(new byte[256 * 1024], "f.zip", "z", "f-" + i).getUrlPath());
+		}
+		//以压缩级别0写入的文件，客户端在收到一部分数据后断开，读取线程此时在等待空闲的缓冲区
+		OutputStream disconnected=new OutputStream() {
+			private long written;
+
+			@Override
+			public void write(int b) throws IOException {
+				this.write(new byte[]{(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.written += len;
+				if(this.written>100 * 1024){
+					throw new IOException("Broken pipe");
+				}
+			}
+		};
+		try{
+			this.zipArchiveStreamer.writeFiles(urlPaths, disconnected);
+			fail();
+		}catch(IOException e){
+			assertEquals("Broken pipe", e.getMessage());
+		}
+		assertEquals(0, this.zipArchiveStreamer.getActiveCount());
+
+		//读取线程被取消后，唯一的线程可以用于下一个打包下载
+		while(true){
+			try{
+				assertEquals(20, this.zipArchiveStreamer.writeFiles(urlPaths, ByteStreams.nullOutputStream()));
+				break;
+			}catch(UploadQueueFullException e){
+				Thread.sleep(10);
+			}
+		}
+	}
+
+
+	@Test(timeout=30000)
+	public void concurrentDirectoryDownloadsContainEveryFile() throws Exception {
+		int threads=this.support.getThreads();
+		this.zipArchiveStreamer = new ZipArchiveStreamer(this.fileLocator, threads);
+		for(int i=0; i<10; i++){
+			this.uploadManager.saveFile(UploadTestSupport.newFile(i, 200 * 1024 + i), i % 2==0 ? "z" : "z/sub", "f-" + i, false);
+		}
+		Files.write(this.support.getFsBasePath().resolve("z/.f-0.bin.0123.tmp"), new byte[10]);
+
+		//每个读取线程使用各自的缓冲区：并发打包同一目录，每个ZIP都包含全部文件且内容完整，不包含临时文件
+		List<Callable<byte[]>> tasks=new ArrayList<>();
+		for(int i=0; i<threads; i++){
+			tasks.add(() -> {
+				ByteArrayOutputStream out=new ByteArrayOutputStream();
+				assertEquals(10, this.zipArchiveStreamer.writeDirectory("z", out));
+				return out.toByteArray();
+			});
+		}
+		for(Future<byte[]> future : this.support.runTogether(tasks)){
+			int count=0;
+			try(ZipInputStream zip=new ZipInputStream(new ByteArrayInputStream(future.get()))){
+				for(ZipEntry entry=zip.getNextEntry(); entry!=null; entry=zip.getNextEntry()){
+					assertTrue(entry.getName(), entry.getName().matches("(sub/)?f-\\d\\.bin"));
+					byte[] content=ByteStreams.toByteArray(zip);
+					int seed=Integer.parseInt(entry.getName().replaceAll("\\D", ""));
+					assertEquals(200 * 1024 + seed, content.length);
+					for(byte b : content){
+						assertEquals((byte)seed, b);
+					}
+					count++;
+				}
+			}
+			assertEquals(10, count);
+		}
+		assertEquals(0, this.zipArchiveStreamer.getActiveCount());
+	}
+
+
+
+	//==================private functions===================
+	private UploadedFileInfo save(byte[] content, String originFileName, String subDir, String newFileName) throws IOException {
+		return this.uploadManager.saveFile(new MockMultipartFile("file", originFileName, "application/octet-stream", content), subDir,
+				newFileName, false);
+	}
+
+	private byte[] zip(List<String> urlPaths) throws IOException {
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		this.zipArchiveStreamer.writeFiles(urlPaths, out);
+		return out.toByteArray();
+	}
+
+	//按ZIP中的顺序返回各文件的条目，条目的大小取自中央目录
+	private Map<String, ZipEntry> readEntries(byte[] zip) throws IOException {
+		Path zipFile=Files.write(this.support.getFsBasePath().resolve(".test.zip"), zip);
+		Map<String, ZipEntry> entries=new LinkedHashMap<>();
+		try(ZipFile file=new ZipFile(zipFile.toFile())){
+			file.stream().forEach(entry -> entries.put(entry.getName(), entry));
+		}
+		return entries;
+	}
+
+}